@@ -0,0 +1,112 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Checks that the host has enough free memory and disk space before a build starts.
+ * A build started without them would fail or slow down the running builds, so the queue holds it instead
+ * until the running builds finish and the janitor frees space.
+ */
+public class AdmissionControl implements Supplier<String> {
+
+    private static final long MB = 1024 * 1024;
+
+    private final File disk;
+    private final long minFreeMemoryBytes;
+    private final long minFreeDiskBytes;
+    private final LongSupplier availableMemory;
+
+    /**
+     * @param disk - A directory on the disk receiving the builds
+     * @param minFreeMemoryBytes - The memory that must be available to start a build, 0 for no check
+     * @param minFreeDiskBytes - The disk space that must be free to start a build, 0 for no check
+     */
+    public AdmissionControl(File disk, long minFreeMemoryBytes, long minFreeDiskBytes) {
+        this(disk, minFreeMemoryBytes, minFreeDiskBytes, AdmissionControl::availableMemoryBytes);
+    }
+
+    /**
+     * @param availableMemory - Gives the memory available on the host, -1 if it is not known
+     */
+    AdmissionControl(File disk, long minFreeMemoryBytes, long minFreeDiskBytes, LongSupplier availableMemory) {
+        this.disk = disk;
+        this.minFreeMemoryBytes = minFreeMemoryBytes;
+        this.minFreeDiskBytes = minFreeDiskBytes;
+        this.availableMemory = availableMemory;
+    }
+
+    /**
+     * @return the reason to hold the builds, or null if a build can start
+     */
+    @Override
+    public String get() {
+        if (minFreeMemoryBytes > 0) {
+            long memory = availableMemory.getAsLong();
+            if (memory >= 0 && memory < minFreeMemoryBytes) {
+                return "Only " + memory / MB + " MB of memory available, " + minFreeMemoryBytes / MB + " MB needed";
+            }
+        }
+        if (minFreeDiskBytes > 0) {
+            if (!disk.exists()) {
+                // getUsableSpace returns 0 for a missing directory, create it so a full disk is told apart
+                disk.mkdirs();
+            }
+            long free = disk.getUsableSpace();
+            if (free < minFreeDiskBytes) {
+                return "Only " + free / MB + " MB of disk space free, " + minFreeDiskBytes / MB + " MB needed";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the memory available for new processes: MemAvailable of /proc/meminfo on Linux, which counts
+     * the page cache that can be reclaimed, or the free physical memory elsewhere.
+     *
+     * @return the available memory, -1 if it is not known
+     */
+    // getFreeMemorySize replaces getFreePhysicalMemorySize from Java 14 on, but the sources target Java 8
+    @SuppressWarnings("deprecation")
+    static long availableMemoryBytes() {
+        try {
+            long available = parseMemAvailable(Files.readAllLines(Paths.get("/proc/meminfo"), StandardCharsets.US_ASCII));
+            if (available >= 0) {
+                return available;
+            }
+        } catch (IOException e) {
+            // Not Linux, use the JVM view below
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize();
+        }
+        return -1;
+    }
+
+    /**
+     * @param lines - The lines of /proc/meminfo
+     * @return the MemAvailable value in bytes, -1 if it is missing
+     */
+    static long parseMemAvailable(List<String> lines) {
+        for (String line : lines) {
+            if (line.startsWith("MemAvailable:")) {
+                String[] fields = line.substring("MemAvailable:".length()).trim().split("\\s+");
+                try {
+                    return Long.parseLong(fields[0]) * 1024;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,741 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Runs the builds on remote build agents (BuildAgent) instead of in the server.
+ *
+ * An agent registers with its number of build slots, then sends heartbeats with the git mirrors it keeps and
+ * pulls jobs with long polls. While it runs a build, it sends the Maven output, which is written to the output
+ * of the build on the server as if Maven ran here, and at the end it sends the exit code and the Surefire reports.
+ * A waiting job is given to an agent that has the mirror of its repository, or after a short wait to the agent
+ * with the most free slots. When an agent misses its heartbeats, its jobs are given to other agents.
+ *
+ * The build workers of the server each wait in execute() for the job of their build, so the number of workers
+ * is the number of builds running on the agents at the same time.
+ */
+public class AgentCoordinator implements BuildExecutor {
+
+    public static final String PREFIX = "/agents";
+    public static final String TOKEN_HEADER = "X-Agent-Token";
+
+    // The longest poll an agent can ask for
+    private static final long MAX_POLL_MILLIS = 30 * 1000;
+
+    /**
+     * A registered agent and the jobs it runs.
+     */
+    static class Agent {
+        final String id;
+        final String name;
+        final int capacity;
+        final Map<String, Job> jobs = new LinkedHashMap<>();
+        // Builds the agent must stop, sent with the next heartbeat
+        final Set<String> cancelled = new HashSet<>();
+        Set<String> mirrors = Collections.emptySet();
+        long lastSeenMillis;
+        boolean polling;
+
+        Agent(String id, String name, int capacity, long lastSeenMillis) {
+            this.id = id;
+            this.name = name;
+            this.capacity = capacity;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+
+        int free() {
+            return capacity - jobs.size();
+        }
+    }
+
+    /**
+     * The build of a server worker, waiting for an agent or running on one.
+     */
+    static class Job {
+        final Build build;
+        final File projectDir;
+        final BuildOutput output;
+        final String mirrorName;
+        long queuedMillis;
+        Agent agent;
+        int attempts;
+        boolean done;
+        int exitCode = -1;
+
+        Job(Build build, File projectDir, BuildOutput output, long queuedMillis) {
+            this.build = build;
+            this.projectDir = projectDir;
+            this.output = output;
+            String repoUrl = build.getEvent() != null ? build.getEvent().getRepositoryUrl() : null;
+            this.mirrorName = repoUrl != null ? GitMirrorCache.mirrorName(repoUrl) : null;
+            this.queuedMillis = queuedMillis;
+        }
+    }
+
+    private final long heartbeatMillis;
+    private final long agentTimeoutMillis;
+    private final long localityWaitMillis;
+    private final int maxAttempts;
+    private final String token;
+
+    private final Map<String, Agent> agents = new LinkedHashMap<>();
+    private final Deque<Job> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final AtomicInteger agentCount = new AtomicInteger();
+    private long rescheduledJobs;
+    private long lostAgents;
+    private ScheduledExecutorService reaper;
+
+    /**
+     * @param heartbeatMillis - The time between two heartbeats of an agent
+     * @param agentTimeoutMillis - The time without heartbeat or poll after which an agent is taken as lost
+     * @param localityWaitMillis - The time a job waits for an agent having the mirror of its repository
+     * @param maxAttempts - The number of agents a build is given to before it fails
+     * @param token - The token the agents must send in the X-Agent-Token header, or null for none
+     */
+    public AgentCoordinator(long heartbeatMillis, long agentTimeoutMillis, long localityWaitMillis, int maxAttempts,
+                            String token) {
+        this.heartbeatMillis = heartbeatMillis;
+        this.agentTimeoutMillis = agentTimeoutMillis;
+        this.localityWaitMillis = localityWaitMillis;
+        this.maxAttempts = maxAttempts;
+        this.token = token;
+    }
+
+    /**
+     * Starts checking the heartbeats of the agents.
+     */
+    public synchronized void start() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "agent-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, agentTimeoutMillis / 4);
+        reaper.scheduleWithFixedDelay(() -> expireAgents(System.currentTimeMillis()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+
+    /**
+     * Gives a build to the agents and waits until one of them ran it.
+     * The Maven output sent by the agents is written to the output, the test reports to the project directory.
+     */
+    @Override
+    public int execute(Build build, File projectDir, BuildOutput output) throws IOException, InterruptedException {
+        Job job = new Job(build, projectDir, output, System.currentTimeMillis());
+        lock.lock();
+        try {
+            pending.addLast(job);
+            changed.signalAll();
+            while (!job.done) {
+                if (build.isCancelled()) {
+                    abort(job);
+                    return -1;
+                }
+                changed.await(500, TimeUnit.MILLISECONDS);
+            }
+            return job.exitCode;
+        } catch (InterruptedException e) {
+            abort(job);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a job from the queue, or tells its agent to stop it. Must be called with the lock held.
+     */
+    private void abort(Job job) {
+        pending.remove(job);
+        if (job.agent != null) {
+            job.agent.jobs.remove(job.build.getId());
+            job.agent.cancelled.add(job.build.getId());
+            job.agent = null;
+        }
+        job.done = true;
+    }
+
+    /**
+     * Registers a new agent.
+     *
+     * @param name - The name of the agent, for the logs
+     * @param capacity - The number of builds the agent runs at the same time
+     * @return the agent
+     */
+    Agent register(String name, int capacity) {
+        lock.lock();
+        try {
+            String id = name.replaceAll("[^a-zA-Z0-9_.-]", "_") + "-" + agentCount.incrementAndGet();
+            Agent agent = new Agent(id, name, Math.max(1, capacity), System.currentTimeMillis());
+            agents.put(id, agent);
+            System.out.println("Agent " + id + " registered with " + agent.capacity + " slots");
+            changed.signalAll();
+            return agent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the heartbeat of an agent.
+     *
+     * @param agentId - The id of the agent
+     * @param mirrors - The names of the git mirrors of the agent
+     * @param running - The builds running on the agent
+     * @return the builds the agent must stop, or null if the agent is not registered
+     */
+    List<String> heartbeat(String agentId, Set<String> mirrors, Set<String> running) {
+        lock.lock();
+        try {
+            Agent agent = agents.get(agentId);
+            if (agent == null) {
+                return null;
+            }
+            agent.lastSeenMillis = System.currentTimeMillis();
+            agent.mirrors = mirrors;
+            // A build the agent runs but no longer has here was given to another agent or cancelled
+            for (String buildId : running) {
+                if (!agent.jobs.containsKey(buildId)) {
+                    agent.cancelled.add(buildId);
+                }
+            }
+            List<String> cancelled = new ArrayList<>(agent.cancelled);
+            agent.cancelled.clear();
+            changed.signalAll();
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for jobs for an agent.
+     *
+     * @param agentId - The id of the agent
+     * @param slots - The number of jobs the agent can take
+     * @param waitMillis - The longest time to wait for a job
+     * @return the jobs given to the agent, empty if none came in time, or null if the agent is not registered
+     */
+    List<Job> poll(String agentId, int slots, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, MAX_POLL_MILLIS);
+        lock.lock();
+        try {
+            Agent agent = agents.get(agentId);
+            if (agent == null) {
+                return null;
+            }
+            agent.polling = true;
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (agents.get(agentId) != agent) {
+                        return null;
+                    }
+                    agent.lastSeenMillis = now;
+                    List<Job> assigned = assign(agent, slots, now);
+                    if (!assigned.isEmpty() || now >= deadline) {
+                        return assigned;
+                    }
+                    // Wake up before the end of the locality wait of the waiting jobs
+                    changed.await(Math.max(1, Math.min(deadline - now, Math.max(10, localityWaitMillis / 4))),
+                        TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                agent.polling = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives waiting jobs to a polling agent. A job is left for another agent that has the mirror of its repository
+     * and a free slot, until the locality wait is over, and for a polling agent with more free slots.
+     * Must be called with the lock held.
+     */
+    private List<Job> assign(Agent agent, int slots, long now) {
+        List<Job> assigned = new ArrayList<>();
+        Iterator<Job> iterator = pending.iterator();
+        while (iterator.hasNext() && assigned.size() < Math.min(slots, agent.free())) {
+            Job job = iterator.next();
+            boolean local = job.mirrorName != null && agent.mirrors.contains(job.mirrorName);
+            if (!local && hasBetterAgent(agent, job, now)) {
+                continue;
+            }
+            iterator.remove();
+            job.agent = agent;
+            job.attempts++;
+            agent.jobs.put(job.build.getId(), job);
+            assigned.add(job);
+        }
+        if (!assigned.isEmpty()) {
+            changed.signalAll();
+        }
+        return assigned;
+    }
+
+    private boolean hasBetterAgent(Agent agent, Job job, long now) {
+        for (Agent other : agents.values()) {
+            if (other == agent || other.free() <= 0) {
+                continue;
+            }
+            if (job.mirrorName != null && other.mirrors.contains(job.mirrorName) && now - job.queuedMillis < localityWaitMillis) {
+                return true;
+            }
+            if (other.polling && other.free() > agent.free()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the job of a build if it is given to an agent, null otherwise. Must be called with the lock held.
+     */
+    private Job jobOf(String agentId, String buildId) {
+        Agent agent = agents.get(agentId);
+        return agent != null ? agent.jobs.get(buildId) : null;
+    }
+
+    /**
+     * Records the end of a job: its exit code. The reports must be stored before.
+     *
+     * @return false if the job is not given to this agent anymore
+     */
+    boolean complete(String agentId, String buildId, int exitCode) {
+        lock.lock();
+        try {
+            Job job = jobOf(agentId, buildId);
+            if (job == null) {
+                return false;
+            }
+            job.agent.jobs.remove(buildId);
+            job.agent = null;
+            job.exitCode = exitCode;
+            job.done = true;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes as lost the agents not seen since the agent timeout. Their jobs wait for another agent,
+     * or fail after maxAttempts agents.
+     *
+     * @param now - The current time
+     * @return the number of agents lost
+     */
+    int expireAgents(long now) {
+        lock.lock();
+        try {
+            int lost = 0;
+            Iterator<Agent> iterator = agents.values().iterator();
+            while (iterator.hasNext()) {
+                Agent agent = iterator.next();
+                if (now - agent.lastSeenMillis <= agentTimeoutMillis) {
+                    continue;
+                }
+                iterator.remove();
+                lost++;
+                lostAgents++;
+                System.err.println("Agent " + agent.id + " lost, " + agent.jobs.size() + " builds to run again");
+                for (Job job : agent.jobs.values()) {
+                    job.agent = null;
+                    boolean retry = job.attempts < maxAttempts && !job.build.isCancelled();
+                    writeLine(job, "[CI] Agent " + agent.name + " stopped responding, "
+                        + (retry ? "the build is run again on another agent" : "the build failed after " + job.attempts + " agents"));
+                    if (retry) {
+                        job.queuedMillis = now;
+                        pending.addFirst(job);
+                        rescheduledJobs++;
+                    } else {
+                        job.done = true;
+                    }
+                }
+                agent.jobs.clear();
+            }
+            if (lost > 0) {
+                changed.signalAll();
+            }
+            return lost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeLine(Job job, String line) {
+        byte[] bytes = ("\n" + line + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            job.output.write(bytes, 0, bytes.length);
+            job.output.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing the output of " + job.build.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers the requests of the agents on /agents.
+     *
+     * @param target - The target of the request
+     * @param request - The request
+     * @param response - The response
+     * @return true if the request was for the agents
+     */
+    public boolean handle(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!target.equals(PREFIX) && !target.startsWith(PREFIX + "/")) {
+            return false;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (token != null && !token.equals(request.getHeader(TOKEN_HEADER))) {
+            sendError(response, HttpServletResponse.SC_FORBIDDEN, "Invalid agent token");
+            return true;
+        }
+        String[] parts = target.substring(PREFIX.length()).split("/");
+        try {
+            if (parts.length <= 1) {
+                writeStatus(response.getWriter());
+            } else if (!"POST".equals(request.getMethod())) {
+                sendError(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Agents use POST");
+            } else if (parts.length == 2 && "register".equals(parts[1])) {
+                JsonObject body = readJson(request);
+                Agent agent = register(body.has("name") ? body.get("name").getAsString() : "agent",
+                    body.has("capacity") ? body.get("capacity").getAsInt() : 1);
+                response.getWriter().print("{\"agentId\": \"" + agent.id + "\", \"heartbeatMillis\": " + heartbeatMillis + "}");
+            } else if (parts.length == 3 && "heartbeat".equals(parts[2])) {
+                JsonObject body = readJson(request);
+                List<String> cancelled = heartbeat(parts[1], toSet(body.getAsJsonArray("mirrors")),
+                    toSet(body.getAsJsonArray("running")));
+                if (cancelled == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown agent");
+                } else {
+                    JsonObject reply = new JsonObject();
+                    reply.add("cancel", new Gson().toJsonTree(cancelled));
+                    response.getWriter().print(reply);
+                }
+            } else if (parts.length == 3 && "poll".equals(parts[2])) {
+                List<Job> jobs = poll(parts[1], parseInt(request.getParameter("slots"), 1),
+                    parseInt(request.getParameter("waitMillis"), 0));
+                if (jobs == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown agent");
+                } else {
+                    JsonArray array = new JsonArray();
+                    for (Job job : jobs) {
+                        array.add(toJson(job));
+                    }
+                    JsonObject reply = new JsonObject();
+                    reply.add("jobs", array);
+                    response.getWriter().print(reply);
+                }
+            } else if (parts.length == 5 && "jobs".equals(parts[2]) && "log".equals(parts[4])) {
+                receiveLog(parts[1], parts[3], request, response);
+            } else if (parts.length == 5 && "jobs".equals(parts[2]) && "result".equals(parts[4])) {
+                receiveResult(parts[1], parts[3], request, response);
+            } else {
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown agent request");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted");
+        } catch (RuntimeException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid agent request: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Appends the Maven output sent by an agent to the output of the build.
+     * Every chunk is written with the lock held, once the build is checked to still be given to the agent:
+     * an agent lost during the upload must not write into the output of the agent running the build again.
+     */
+    private void receiveLog(String agentId, String buildId, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Job job;
+        lock.lock();
+        try {
+            job = jobOf(agentId, buildId);
+        } finally {
+            lock.unlock();
+        }
+        if (job == null) {
+            sendError(response, HttpServletResponse.SC_CONFLICT, "The build is not given to this agent");
+            return;
+        }
+        byte[] chunk = new byte[8 * 1024];
+        try (InputStream in = request.getInputStream()) {
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                boolean given;
+                lock.lock();
+                try {
+                    given = jobOf(agentId, buildId) == job;
+                    if (given) {
+                        job.output.write(chunk, 0, count);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (!given) {
+                    sendError(response, HttpServletResponse.SC_CONFLICT, "The build is not given to this agent");
+                    return;
+                }
+            }
+        }
+        job.output.flush();
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    /**
+     * Stores the test reports sent by an agent, a zip of the report directories, and ends the job.
+     */
+    private void receiveResult(String agentId, String buildId, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Job job;
+        lock.lock();
+        try {
+            job = jobOf(agentId, buildId);
+        } finally {
+            lock.unlock();
+        }
+        if (job == null) {
+            sendError(response, HttpServletResponse.SC_CONFLICT, "The build is not given to this agent");
+            return;
+        }
+        try (InputStream in = request.getInputStream()) {
+            unzipReports(in, job.projectDir);
+        }
+        if (!complete(agentId, buildId, Integer.parseInt(request.getParameter("exitCode")))) {
+            sendError(response, HttpServletResponse.SC_CONFLICT, "The build is not given to this agent");
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    /**
+     * Extracts the files of a zip into a directory. The entries leaving the directory are skipped.
+     *
+     * @param in - The zip
+     * @param dir - The directory
+     * @return the number of files extracted
+     */
+    static int unzipReports(InputStream in, File dir) throws IOException {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        int files = 0;
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            Path file = root.resolve(entry.getName()).normalize();
+            if (entry.isDirectory() || !file.startsWith(root) || file.equals(root)) {
+                continue;
+            }
+            Files.createDirectories(file.getParent());
+            Files.copy(zip, file, StandardCopyOption.REPLACE_EXISTING);
+            files++;
+        }
+        return files;
+    }
+
+    private static JsonObject toJson(Job job) {
+        PushEvent event = job.build.getEvent();
+        JsonObject json = new JsonObject();
+        json.addProperty("buildId", job.build.getId());
+        json.addProperty("attempt", job.attempts);
+        if (event != null) {
+            json.addProperty("repository", event.getRepositoryName());
+            json.addProperty("repositoryUrl", event.getRepositoryUrl());
+            json.addProperty("branch", event.getBranchName());
+            json.addProperty("commit", event.getHeadCommitId());
+        }
+        json.add("mavenArgs", new Gson().toJsonTree(job.build.getMavenArgs()));
+        return json;
+    }
+
+    private static JsonObject readJson(HttpServletRequest request) throws IOException {
+        try (InputStream in = request.getInputStream()) {
+            JsonElement json = JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return json.isJsonObject() ? json.getAsJsonObject() : new JsonObject();
+        }
+    }
+
+    private static Set<String> toSet(JsonArray array) {
+        Set<String> set = new HashSet<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                set.add(element.getAsString());
+            }
+        }
+        return set;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void sendError(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        response.getWriter().print(error);
+    }
+
+    /**
+     * Writes the agents, their builds and the waiting jobs as JSON.
+     */
+    void writeStatus(PrintWriter out) {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Agent agent : agents.values()) {
+                Map<String, Object> status = new LinkedHashMap<>();
+                status.put("id", agent.id);
+                status.put("name", agent.name);
+                status.put("capacity", agent.capacity);
+                status.put("running", new ArrayList<>(agent.jobs.keySet()));
+                status.put("mirrors", agent.mirrors.size());
+                status.put("lastSeenMillisAgo", now - agent.lastSeenMillis);
+                list.add(status);
+            }
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("agents", list);
+            status.put("pendingJobs", pending.size());
+            status.put("rescheduledJobs", rescheduledJobs);
+            status.put("lostAgents", lostAgents);
+            out.print(new Gson().toJson(status));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of registered agents
+     */
+    public int getAgentCount() {
+        lock.lock();
+        try {
+            return agents.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the free build slots of the registered agents
+     */
+    public int getFreeSlots() {
+        lock.lock();
+        try {
+            int free = 0;
+            for (Agent agent : agents.values()) {
+                free += Math.max(0, agent.free());
+            }
+            return free;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of builds waiting for an agent
+     */
+    public int getPendingJobs() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of builds given again to an agent after their agent was lost
+     */
+    public long getRescheduledJobs() {
+        lock.lock();
+        try {
+            return rescheduledJobs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of agents lost since the start
+     */
+    public long getLostAgents() {
+        lock.lock();
+        try {
+            return lostAgents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the names of the agents running a build, by build id
+     */
+    Map<String, String> getAssignments() {
+        lock.lock();
+        try {
+            Map<String, String> assignments = new HashMap<>();
+            for (Agent agent : agents.values()) {
+                for (String buildId : agent.jobs.keySet()) {
+                    assignments.put(buildId, agent.name);
+                }
+            }
+            return assignments;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+// No package declaration here
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The responses of the /build-status/{repo} and /build-status/{repo}/{branch} badge endpoints, computed
+ * when a build finishes instead of on every request.
+ *
+ * Every badge is kept as the bytes of its JSON body with a strong ETag, keyed by its request path,
+ * so answering a badge request is one map lookup and a write of bytes that already exist.
+ * A request with a matching If-None-Match header gets a 304 without a body.
+ */
+public class BadgeCache {
+
+    public static final String PREFIX = "/build-status/";
+
+    /**
+     * A precomputed badge response.
+     */
+    static class Badge {
+        final byte[] body;
+        final String etag;
+
+        Badge(String message, String color) {
+            String json = "{\"schemaVersion\": 1, \"label\": \"Build\", \"message\": \"" + message
+                + "\", \"color\": \"" + color + "\"}";
+            this.body = json.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+        }
+    }
+
+    // Badges of a build status, shared by all the repositories with the same status
+    private static final Badge PASSING = new Badge("Passing", "brightgreen");
+    private static final Badge FAILING = new Badge("Failing", "red");
+    private static final Badge COMPILING = new Badge("Compiling", "yellow");
+
+    private final Map<String, Badge> badges = new ConcurrentHashMap<>();
+    private final String cacheControl;
+
+    /**
+     * @param maxAgeSeconds - The time a client or a proxy can use a badge without asking again
+     */
+    public BadgeCache(int maxAgeSeconds) {
+        this.cacheControl = "public, max-age=" + maxAgeSeconds;
+    }
+
+    /**
+     * Recomputes the badges of the repository and of the branch of a finished build.
+     *
+     * @param index - The build index, already holding the build
+     * @param record - The finished build
+     */
+    public synchronized void update(BuildIndex index, BuildRecord record) {
+        String repository = record.getRepository();
+        if (repository == null) {
+            return;
+        }
+        badges.put(PREFIX + repository, badgeOf(index.getLatest(repository)));
+        if (record.getBranch() != null) {
+            badges.put(PREFIX + repository + "/" + record.getBranch(), badgeOf(index.getLatest(repository, record.getBranch())));
+        }
+    }
+
+    /**
+     * Computes the badges of all the repositories and branches of the index.
+     *
+     * @param index - The build index
+     */
+    public synchronized void rebuild(BuildIndex index) {
+        badges.clear();
+        for (BuildRecord record : index.getBuilds()) {
+            // From the newest build, so the first build of a repository or branch is its latest
+            if (record.getRepository() == null) {
+                continue;
+            }
+            badges.putIfAbsent(PREFIX + record.getRepository(), badgeOf(record));
+            if (record.getBranch() != null) {
+                badges.putIfAbsent(PREFIX + record.getRepository() + "/" + record.getBranch(), badgeOf(record));
+            }
+        }
+    }
+
+    /**
+     * @return the badge of the status of a build, the "Compiling" badge if there is no finished build
+     */
+    private static Badge badgeOf(BuildRecord latest) {
+        if (latest == null) {
+            return COMPILING;
+        } else if ("SUCCESS".equals(latest.getStatus())) {
+            return PASSING;
+        } else if ("FAILURE".equals(latest.getStatus())) {
+            return FAILING;
+        }
+        return COMPILING;
+    }
+
+    /**
+     * Answers a badge request. Nothing is computed here: the target is the key of the badge.
+     *
+     * @param target - The request path, /build-status/{repo} or /build-status/{repo}/{branch}
+     * @param request - The request, with the optional If-None-Match header
+     * @param response - The response receiving the badge
+     */
+    public void serve(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Badge badge = badges.get(target);
+        if (badge == null) {
+            badge = COMPILING;
+        }
+        response.setHeader("ETag", badge.etag);
+        response.setHeader("Cache-Control", cacheControl);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(badge.etag) || "*".equals(ifNoneMatch))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setContentLength(badge.body.length);
+        response.getOutputStream().write(badge.body);
+    }
+}
@@ -0,0 +1,403 @@
+// No package declaration here
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single build of a pushed commit.
+ * It is created by the webhook handler, waits in the BuildQueue and is then run by one of the build workers.
+ * A build can be cancelled when a newer push to the same branch supersedes it.
+ */
+public class Build {
+
+    /**
+     * The lifecycle states of a build.
+     */
+    public enum State {
+        QUEUED,
+        RUNNING,
+        FINISHED
+    }
+
+    /**
+     * The priority classes of the builds, in the order the queue runs them.
+     */
+    public enum Priority {
+        // A rebuild asked by a user
+        MANUAL,
+        // A push to a protected branch, like main
+        PROTECTED,
+        // A push to any other branch
+        FEATURE
+    }
+
+    private final String id;
+    private final PushEvent event;
+    private final String cloneDirPath;
+    private final String supersedeKey;
+    private final Priority priority;
+    private final long queuedAt;
+
+    private final Map<String, Object> summaryFields = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Long> phaseMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final BuildTimeline timeline = new BuildTimeline();
+
+    private volatile List<String> mavenArgs = Collections.emptyList();
+    private volatile File workspaceDir;
+    private volatile boolean incremental;
+    // The entry of the push in the webhook spool, -1 if the build was not spooled
+    private volatile long spoolSequence = -1;
+
+    private volatile State state = State.QUEUED;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    // Set once the build is cancelled, the process is the running Maven build if there is one
+    private volatile String cancelledBy;
+    private Process process;
+
+    /**
+     * Creates a new queued build that is never superseded.
+     *
+     * @param id - The build id, which is also the name of the build directory
+     * @param event - The push event that triggered the build
+     * @param cloneDirPath - The path to the directory where the repository is cloned
+     */
+    public Build(String id, PushEvent event, String cloneDirPath) {
+        this(id, event, cloneDirPath, null);
+    }
+
+    /**
+     * Creates a new queued build.
+     *
+     * @param id - The build id, which is also the name of the build directory
+     * @param event - The push event that triggered the build
+     * @param cloneDirPath - The path to the directory where the repository is cloned
+     * @param supersedeKey - Builds with the same key are cancelled when this build is queued, null to never supersede
+     */
+    public Build(String id, PushEvent event, String cloneDirPath, String supersedeKey) {
+        this(id, event, cloneDirPath, supersedeKey, Priority.FEATURE);
+    }
+
+    /**
+     * Creates a new queued build of a priority class.
+     *
+     * @param id - The build id, which is also the name of the build directory
+     * @param event - The push event that triggered the build
+     * @param cloneDirPath - The path to the directory where the repository is cloned
+     * @param supersedeKey - Builds with the same key are cancelled when this build is queued, null to never supersede
+     * @param priority - The priority class of the build in the queue
+     */
+    public Build(String id, PushEvent event, String cloneDirPath, String supersedeKey, Priority priority) {
+        this.id = id;
+        this.event = event;
+        this.cloneDirPath = cloneDirPath;
+        this.supersedeKey = supersedeKey;
+        this.priority = priority;
+        this.queuedAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public PushEvent getEvent() {
+        return event;
+    }
+
+    public String getCloneDirPath() {
+        return cloneDirPath;
+    }
+
+    public String getSupersedeKey() {
+        return supersedeKey;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the name of the repository of the build, or an empty string if it is not known
+     */
+    public String getRepositoryName() {
+        return event != null && event.getRepositoryName() != null ? event.getRepositoryName() : "";
+    }
+
+    public boolean isCancelled() {
+        return cancelledBy != null;
+    }
+
+    /**
+     * @return the id of the build that superseded this build, or null if the build is not cancelled
+     */
+    public String getCancelledBy() {
+        return cancelledBy;
+    }
+
+    /**
+     * Cancels the build. If its Maven process is running, the process and all its child processes are destroyed.
+     *
+     * @param supersededBy - The id of the newer build that replaces this one
+     */
+    public void cancel(String supersededBy) {
+        Process running;
+        synchronized (this) {
+            if (cancelledBy != null) {
+                return;
+            }
+            cancelledBy = supersededBy;
+            running = process;
+        }
+        if (running != null) {
+            destroyProcessTree(running);
+        }
+    }
+
+    /**
+     * Records the Maven process of the build, so it can be destroyed if the build is cancelled.
+     * If the build was cancelled before the process was started, the process is destroyed right away.
+     *
+     * @param process - The started process, or null once it has exited
+     */
+    public void setProcess(Process process) {
+        boolean cancelled;
+        synchronized (this) {
+            this.process = process;
+            cancelled = cancelledBy != null;
+        }
+        if (cancelled && process != null) {
+            destroyProcessTree(process);
+        }
+    }
+
+    /**
+     * Destroys a process and all its descendants, children first.
+     * Java 8 has no ProcessHandle, so the descendants are listed with pgrep; where pgrep is not available
+     * only the process itself is destroyed.
+     *
+     * @param process - The process to destroy
+     */
+    private static void destroyProcessTree(Process process) {
+        long pid = pidOf(process);
+        if (pid > 0) {
+            // List the whole tree before killing anything, a killed parent no longer lists its children
+            List<Long> descendants = new ArrayList<>();
+            addDescendants(pid, descendants);
+            if (!descendants.isEmpty()) {
+                List<String> command = new ArrayList<>(Arrays.asList("kill", "-KILL"));
+                for (int i = descendants.size() - 1; i >= 0; i--) {
+                    command.add(String.valueOf(descendants.get(i)));
+                }
+                run(command);
+            }
+        }
+        process.destroyForcibly();
+    }
+
+    /**
+     * @param process - A started process
+     * @return the id of the process, or -1 if it cannot be read
+     */
+    static long pidOf(Process process) {
+        try {
+            // Process.pid() from Java 9 on
+            return (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (NoSuchMethodException e) {
+            // Java 8 keeps it in the private pid field of UNIXProcess
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            } catch (ReflectiveOperationException | RuntimeException e2) {
+                return -1;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the children of a process, then their own children, to a list.
+     *
+     * @param pid - The id of the process
+     * @param descendants - The list receiving the ids
+     */
+    static void addDescendants(long pid, List<Long> descendants) {
+        for (String line : run(Arrays.asList("pgrep", "-P", String.valueOf(pid)))) {
+            try {
+                long child = Long.parseLong(line.trim());
+                descendants.add(child);
+                addDescendants(child, descendants);
+            } catch (NumberFormatException e) {
+                // Not a process id
+            }
+        }
+    }
+
+    /**
+     * Runs a short command and waits for it.
+     *
+     * @return the lines written by the command, empty if it could not be run
+     */
+    private static List<String> run(List<String> command) {
+        List<String> lines = new ArrayList<>();
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            process.waitFor();
+        } catch (IOException e) {
+            // The command is not available on this system
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return lines;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Records a value to be written in the build summary file.
+     *
+     * @param name - The name of the field in build_summary.json
+     * @param value - The value of the field
+     */
+    public void putSummaryField(String name, Object value) {
+        summaryFields.put(name, value);
+    }
+
+    /**
+     * @return a copy of the fields recorded for the build summary file
+     */
+    public Map<String, Object> getSummaryFields() {
+        synchronized (summaryFields) {
+            return new LinkedHashMap<>(summaryFields);
+        }
+    }
+
+    /**
+     * @return the directory where the project is checked out and built: a pooled workspace,
+     *         or by default the build directory, named after the build id in the clone directory
+     */
+    public File getWorkspaceDir() {
+        return workspaceDir != null ? workspaceDir : new File(cloneDirPath, id);
+    }
+
+    /**
+     * Builds the project in a pooled workspace instead of the build directory.
+     * The build directory still receives the Maven output and the summary.
+     *
+     * @param workspaceDir - The workspace leased to the build
+     * @param incremental - True to build without the clean goal, keeping the output of the previous build
+     */
+    public void setWorkspace(File workspaceDir, boolean incremental) {
+        this.workspaceDir = workspaceDir;
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return true if the build runs without the clean goal
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the arguments added to the Maven goals of the build, like the modules and tests selected for it
+     */
+    public List<String> getMavenArgs() {
+        return mavenArgs;
+    }
+
+    /**
+     * Sets the arguments added to the Maven goals of the build. They are read by the build executor.
+     *
+     * @param mavenArgs - The arguments, for example [-pl, core, -amd]
+     */
+    public void setMavenArgs(List<String> mavenArgs) {
+        this.mavenArgs = Collections.unmodifiableList(new ArrayList<>(mavenArgs));
+    }
+
+    /**
+     * Records the duration of a phase of the build, written in the build summary and aggregated by BuildStats.
+     *
+     * @param phase - The phase, one of BuildStats.PHASES
+     * @param millis - The duration of the phase in milliseconds
+     */
+    public void putPhaseMillis(String phase, long millis) {
+        phaseMillis.put(phase, millis);
+    }
+
+    /**
+     * @return a copy of the durations of the phases recorded so far
+     */
+    public Map<String, Long> getPhaseMillis() {
+        synchronized (phaseMillis) {
+            return new LinkedHashMap<>(phaseMillis);
+        }
+    }
+
+    /**
+     * @return the spans of the phases recorded so far, written to timeline.json when the build is done
+     */
+    public BuildTimeline getTimeline() {
+        return timeline;
+    }
+
+    public long getSpoolSequence() {
+        return spoolSequence;
+    }
+
+    /**
+     * @param spoolSequence - The entry of the push of the build in the webhook spool
+     */
+    public void setSpoolSequence(long spoolSequence) {
+        this.spoolSequence = spoolSequence;
+    }
+
+    /**
+     * Marks the build as taken by a worker.
+     */
+    void markStarted() {
+        startedAt = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    /**
+     * Marks the build as done, whatever its result was.
+     */
+    void markFinished() {
+        finishedAt = System.currentTimeMillis();
+        state = State.FINISHED;
+    }
+}
@@ -0,0 +1,461 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * A build agent: a process running builds for a CI server started with -Dci.buildExecutor=agents.
+ *
+ * The agent registers with the server, sends a heartbeat with its git mirrors and the builds it runs, and pulls
+ * jobs with long polls while it has free slots. A job is checked out from the local git mirror of its repository
+ * and built with the Maven command of the agent. Its Maven output is sent to the server while it runs, and the
+ * exit code and the Surefire reports when it is done. If the server no longer knows the agent, for example
+ * after a network cut longer than the agent timeout, the agent stops its builds and registers again.
+ *
+ * Start it with java -Dci.coordinatorUrl=http://ci-host:8028 -Dci.agentSlots=2 BuildAgent
+ */
+public class BuildAgent {
+
+    // The longest time a poll waits on the server for a job
+    private static final long POLL_WAIT_MILLIS = 10 * 1000;
+    // The time between two attempts to reach the server
+    private static final long RETRY_MILLIS = 1000;
+    // The largest chunk of Maven output sent in one request
+    private static final int MAX_LOG_CHUNK = 1024 * 1024;
+
+    private final String coordinatorUrl;
+    private final String name;
+    private final int capacity;
+    private final File workDir;
+    private final List<String> command;
+    private final String token;
+    private final GitMirrorCache mirrors;
+
+    private final Map<String, Build> running = new ConcurrentHashMap<>();
+    private final AtomicInteger completedBuilds = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+    private ExecutorService slots;
+    private volatile String agentId;
+    private volatile long heartbeatMillis = 5000;
+    private volatile boolean stopped;
+
+    /**
+     * @param coordinatorUrl - The URL of the CI server, for example http://localhost:8028
+     * @param name - The name of the agent
+     * @param capacity - The number of builds run at the same time
+     * @param workDir - The directory of the git mirrors and the build workspaces
+     * @param command - The command starting Maven, for example [mvn, clean, test]
+     * @param token - The token of the server, or null if it needs none
+     */
+    public BuildAgent(String coordinatorUrl, String name, int capacity, File workDir, List<String> command, String token) {
+        this.coordinatorUrl = coordinatorUrl.endsWith("/") ? coordinatorUrl.substring(0, coordinatorUrl.length() - 1) : coordinatorUrl;
+        this.name = name;
+        this.capacity = capacity;
+        this.workDir = workDir;
+        this.command = command;
+        this.token = token;
+        this.mirrors = new GitMirrorCache(new File(workDir, ".mirrors"), Long.getLong("ci.mirrorCacheBytes", 10L * 1024 * 1024 * 1024));
+    }
+
+    /**
+     * Starts the threads of the agent. It registers with the server in the background.
+     */
+    public synchronized void start() {
+        AtomicInteger slotCount = new AtomicInteger();
+        slots = Executors.newFixedThreadPool(capacity, runnable -> {
+            Thread thread = new Thread(runnable, "agent-" + name + "-slot-" + slotCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread poller = new Thread(this::pollLoop, "agent-" + name + "-poll");
+        Thread heartbeat = new Thread(this::heartbeatLoop, "agent-" + name + "-heartbeat");
+        for (Thread thread : Arrays.asList(poller, heartbeat)) {
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the agent at once: the running builds are killed and not reported, as if the agent crashed.
+     * The server gives them to other agents once the agent timeout is over.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Build build : running.values()) {
+            build.cancel("agent stopped");
+        }
+        if (slots != null) {
+            slots.shutdownNow();
+        }
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    /**
+     * @return the ids of the builds running on the agent
+     */
+    public List<String> getRunningBuilds() {
+        return new ArrayList<>(running.keySet());
+    }
+
+    /**
+     * @return the number of builds run and reported to the server
+     */
+    public int getCompletedBuilds() {
+        return completedBuilds.get();
+    }
+
+    /**
+     * Registers the agent with the server, retrying until it answers.
+     */
+    private void register() throws InterruptedException {
+        while (!stopped) {
+            try {
+                JsonObject body = new JsonObject();
+                body.addProperty("name", name);
+                body.addProperty("capacity", capacity);
+                JsonObject reply = post("/agents/register", body.toString().getBytes(StandardCharsets.UTF_8)).getAsJsonObject();
+                heartbeatMillis = reply.get("heartbeatMillis").getAsLong();
+                agentId = reply.get("agentId").getAsString();
+                System.out.println("Agent " + name + " registered as " + agentId);
+                return;
+            } catch (IOException e) {
+                System.err.println("Agent " + name + " could not register: " + e.getMessage());
+                Thread.sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Registers again after the server forgot the agent. Its builds were given to other agents, they are stopped.
+     */
+    private synchronized void reregister(String oldId) throws InterruptedException {
+        if (oldId == null || !oldId.equals(agentId)) {
+            return;
+        }
+        System.err.println("Agent " + agentId + " is not known by the server, its builds are stopped");
+        for (Build build : running.values()) {
+            build.cancel("agent registered again");
+        }
+        agentId = null;
+        register();
+    }
+
+    /**
+     * The loop of the poll thread: asks the server for jobs while the agent has free slots.
+     */
+    private void pollLoop() {
+        try {
+            register();
+            while (!stopped) {
+                int free = capacity - running.size();
+                if (free <= 0) {
+                    synchronized (running) {
+                        running.wait(RETRY_MILLIS);
+                    }
+                    continue;
+                }
+                String id = agentId;
+                try {
+                    JsonElement reply = post("/agents/" + id + "/poll?slots=" + free + "&waitMillis=" + POLL_WAIT_MILLIS, new byte[0]);
+                    if (reply == null) {
+                        reregister(id);
+                        continue;
+                    }
+                    for (JsonElement job : reply.getAsJsonObject().getAsJsonArray("jobs")) {
+                        startJob(job.getAsJsonObject());
+                    }
+                } catch (IOException e) {
+                    if (stopped) {
+                        return;
+                    }
+                    System.err.println("Agent " + name + " could not poll the server: " + e.getMessage());
+                    Thread.sleep(RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The agent is stopped
+        }
+    }
+
+    /**
+     * The loop of the heartbeat thread: tells the server the agent is alive, its mirrors and its builds,
+     * and stops the builds the server cancelled.
+     */
+    private void heartbeatLoop() {
+        try {
+            while (!stopped) {
+                Thread.sleep(heartbeatMillis);
+                String id = agentId;
+                if (id == null) {
+                    continue;
+                }
+                JsonObject body = new JsonObject();
+                body.add("mirrors", new Gson().toJsonTree(mirrors.listMirrors()));
+                body.add("running", new Gson().toJsonTree(getRunningBuilds()));
+                try {
+                    JsonElement reply = post("/agents/" + id + "/heartbeat", body.toString().getBytes(StandardCharsets.UTF_8));
+                    if (reply == null) {
+                        reregister(id);
+                        continue;
+                    }
+                    for (JsonElement buildId : reply.getAsJsonObject().getAsJsonArray("cancel")) {
+                        Build build = running.get(buildId.getAsString());
+                        if (build != null) {
+                            System.out.println("Agent " + name + " stops build " + buildId.getAsString());
+                            build.cancel("server");
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Agent " + name + " could not send its heartbeat: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            // The agent is stopped
+        }
+    }
+
+    private void startJob(JsonObject job) {
+        String buildId = job.get("buildId").getAsString();
+        PushEvent event = new PushEvent(job.has("branch") ? "refs/heads/" + job.get("branch").getAsString() : null,
+            stringOrNull(job, "repository"), stringOrNull(job, "repositoryUrl"), stringOrNull(job, "commit"), null, null);
+        Build build = new Build(buildId, event, workDir.getPath());
+        List<String> mavenArgs = new ArrayList<>();
+        for (JsonElement arg : job.getAsJsonArray("mavenArgs")) {
+            mavenArgs.add(arg.getAsString());
+        }
+        build.setMavenArgs(mavenArgs);
+        running.put(buildId, build);
+        String id = agentId;
+        slots.submit(() -> runJob(id, build));
+    }
+
+    private static String stringOrNull(JsonObject json, String name) {
+        return json.has(name) && !json.get(name).isJsonNull() ? json.get(name).getAsString() : null;
+    }
+
+    /**
+     * Checks out and builds a job, sending its output while it runs, then its exit code and test reports.
+     */
+    private void runJob(String id, Build build) {
+        String dirName = build.getId().replaceAll("[^a-zA-Z0-9_.-]", "_");
+        File workspace = new File(workDir, "builds/" + dirName);
+        File logFile = new File(workDir, "builds/" + dirName + ".log");
+        int exitCode = -1;
+        Thread uploader = null;
+        boolean[] rejected = new boolean[1];
+        try {
+            GitMirrorCache.deleteDirectory(workspace.toPath());
+            logFile.getParentFile().mkdirs();
+            try (BuildOutput output = new BuildOutput(logFile, new MavenOutputParser(0, 0))) {
+                uploader = new Thread(() -> uploadLog(id, build, output, rejected), "agent-" + name + "-log-" + dirName);
+                uploader.setDaemon(true);
+                uploader.start();
+                write(output, "[CI] Build run on agent " + name + "\n");
+                try {
+                    PushEvent event = build.getEvent();
+                    if (event.getHeadCommitId() != null && event.getBranchName() != null) {
+                        mirrors.createWorkspaceAtCommit(event.getRepositoryUrl(), workspace, event.getBranchName(),
+                            event.getHeadCommitId());
+                    } else {
+                        mirrors.createWorkspace(event.getRepositoryUrl(), workspace, event.getBranchName());
+                    }
+                    if (!build.isCancelled()) {
+                        exitCode = new ForkedBuildExecutor(command).execute(build, workspace, output);
+                    }
+                } catch (GitAPIException | IOException e) {
+                    write(output, "[CI] Checkout failed on agent " + name + ": " + e.getMessage() + "\n");
+                }
+            }
+            uploader.join();
+            // A build stopped by the server or by the agent is not reported
+            if (!build.isCancelled() && !stopped && !rejected[0]) {
+                post("/agents/" + id + "/jobs/" + build.getId() + "/result?exitCode=" + exitCode, zipReports(workspace));
+                completedBuilds.incrementAndGet();
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                System.err.println("Agent " + name + " could not report build " + build.getId() + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            build.cancel("agent stopped");
+        } finally {
+            running.remove(build.getId());
+            synchronized (running) {
+                running.notifyAll();
+            }
+            try {
+                GitMirrorCache.releaseWorkspace(workspace);
+                GitMirrorCache.deleteDirectory(workspace.toPath());
+                Files.deleteIfExists(logFile.toPath());
+            } catch (IOException e) {
+                System.err.println("Agent " + name + " could not delete " + workspace.getPath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void write(BuildOutput output, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        output.write(bytes, 0, bytes.length);
+        output.flush();
+    }
+
+    /**
+     * Sends the new bytes of the log file of a build to the server until the output is closed.
+     * If the server answers that the build is no longer given to the agent, the build is stopped.
+     */
+    private void uploadLog(String id, Build build, BuildOutput output, boolean[] rejected) {
+        long sent = 0;
+        try (FileChannel channel = FileChannel.open(output.getLogFile().toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                if (!output.awaitBytes(sent, 500)) {
+                    if (output.isClosed()) {
+                        return;
+                    }
+                    continue;
+                }
+                int length = (int) Math.min(MAX_LOG_CHUNK, output.getBytesWritten() - sent);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining() && channel.read(buffer, sent + buffer.position()) > 0) {
+                    // Read until the buffer is full
+                }
+                try {
+                    if (post("/agents/" + id + "/jobs/" + build.getId() + "/log", Arrays.copyOf(buffer.array(), buffer.position())) == null) {
+                        rejected[0] = true;
+                        build.cancel("server");
+                        return;
+                    }
+                    sent += buffer.position();
+                } catch (IOException e) {
+                    if (stopped) {
+                        return;
+                    }
+                    System.err.println("Agent " + name + " could not send the log of " + build.getId() + ": " + e.getMessage());
+                    Thread.sleep(RETRY_MILLIS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Agent " + name + " could not read the log of " + build.getId() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            // The agent is stopped
+        }
+    }
+
+    /**
+     * @return a zip of the Surefire report directories of a workspace, with their paths in the workspace
+     */
+    static byte[] zipReports(File workspace) throws IOException {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        Path root = workspace.toPath();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (File reportDir : SurefireReportParser.findReportDirs(workspace).values()) {
+                File[] reports = reportDir.listFiles(File::isFile);
+                if (reports == null) {
+                    continue;
+                }
+                for (File report : reports) {
+                    zip.putNextEntry(new ZipEntry(root.relativize(report.toPath()).toString().replace(File.separatorChar, '/')));
+                    Files.copy(report.toPath(), zip);
+                    zip.closeEntry();
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends a POST request to the server.
+     *
+     * @param path - The path of the request
+     * @param body - The body of the request
+     * @return the JSON reply, JsonNull if it has none, or null if the server answered 404 or 409
+     * @throws IOException if the server can not be reached or answered another error
+     */
+    private JsonElement post(String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(coordinatorUrl + path).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout((int) POLL_WAIT_MILLIS + 30000);
+            connection.setFixedLengthStreamingMode(body.length);
+            if (token != null) {
+                connection.setRequestProperty(AgentCoordinator.TOKEN_HEADER, token);
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_CONFLICT) {
+                return null;
+            }
+            if (status >= 400) {
+                throw new IOException("The server answered " + status + " to " + path);
+            }
+            if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+                return com.google.gson.JsonNull.INSTANCE;
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Starts an agent configured with system properties:
+     * -Dci.coordinatorUrl (http://localhost:8028), -Dci.agentName (the host name), -Dci.agentSlots (1),
+     * -Dci.agentDir (../build_agent), -Dci.agentToken and -Dci.agentCommand ("mvn clean test").
+     */
+    public static void main(String[] args) throws Exception {
+        String name = System.getProperty("ci.agentName", java.net.InetAddress.getLocalHost().getHostName());
+        BuildAgent agent = new BuildAgent(
+            System.getProperty("ci.coordinatorUrl", "http://localhost:8028"),
+            name,
+            Integer.getInteger("ci.agentSlots", 1),
+            new File(System.getProperty("ci.agentDir", "../build_agent")),
+            Arrays.asList(System.getProperty("ci.agentCommand", "mvn clean test").split(" ")),
+            System.getProperty("ci.agentToken"));
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::stop));
+        agent.start();
+        for (Thread thread : agent.threads) {
+            thread.join();
+        }
+    }
+}
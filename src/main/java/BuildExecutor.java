@@ -0,0 +1,47 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the Maven build of a cloned project.
+ * The Maven output is streamed to the BuildOutput of the build while it runs.
+ */
+public interface BuildExecutor {
+
+    /**
+     * Runs the Maven build of a project and waits for it to finish.
+     * The process running the build is recorded on the build, so that it can be destroyed if the build is cancelled.
+     *
+     * @param build - The build being run
+     * @param projectDir - The directory of the Maven project
+     * @param output - The output receiving the Maven output
+     * @return the exit code of Maven, 0 if the build was successful
+     */
+    int execute(Build build, File projectDir, BuildOutput output) throws IOException, InterruptedException;
+
+    /**
+     * Adds the Maven arguments of a build to a command or to a list of goals.
+     * The clean goal is removed for an incremental build.
+     *
+     * @param build - The build
+     * @param command - The command or the goals of the executor
+     * @return the command of the build
+     */
+    static List<String> commandOf(Build build, List<String> command) {
+        List<String> result = new ArrayList<>(command);
+        if (build.isIncremental()) {
+            result.remove("clean");
+        }
+        result.addAll(build.getMavenArgs());
+        return result;
+    }
+
+    /**
+     * Stops the processes kept by the executor, if any.
+     */
+    default void shutdown() {
+    }
+}
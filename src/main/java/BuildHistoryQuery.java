@@ -0,0 +1,316 @@
+// No package declaration here
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A page of the build history, read from the BuildIndex for /api/builds and the /builds page.
+ *
+ * The builds can be filtered by repository, branch, status and finish time, and sorted from the newest
+ * (the default) or from the oldest. A page ends with a cursor, the position of its last build, and the next page
+ * starts right after it, so pages stay stable while new builds are added. The page is read from the sorted sets
+ * of the index, one set per combination of filters: finding its first build is O(log n) and only the builds
+ * of the page are read.
+ *
+ * Query parameters: repo, branch, status, since, until (epoch milliseconds or ISO-8601 instants, inclusive),
+ * order (desc or asc), limit (1 to MAX_LIMIT) and cursor.
+ */
+public class BuildHistoryQuery {
+
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+
+    private final String repository;
+    private final String branch;
+    private final String status;
+    private final Long since;
+    private final Long until;
+    private final boolean ascending;
+    private final int limit;
+    private final BuildRecord cursor;
+
+    public BuildHistoryQuery(String repository, String branch, String status, Long since, Long until,
+                             boolean ascending, int limit, BuildRecord cursor) {
+        this.repository = repository;
+        this.branch = branch;
+        this.status = status;
+        this.since = since;
+        this.until = until;
+        this.ascending = ascending;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Reads a query from the request parameters.
+     *
+     * @param parameters - The request parameters, as given by getParameterMap()
+     * @return the query
+     * @throws IllegalArgumentException if a parameter is invalid, with a message for the client
+     */
+    public static BuildHistoryQuery fromParameters(Map<String, String[]> parameters) {
+        String order = parameter(parameters, "order");
+        if (order != null && !"asc".equals(order) && !"desc".equals(order)) {
+            throw new IllegalArgumentException("order must be asc or desc");
+        }
+        int limit = DEFAULT_LIMIT;
+        String limitParameter = parameter(parameters, "limit");
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+            }
+        }
+        String cursor = parameter(parameters, "cursor");
+        return new BuildHistoryQuery(parameter(parameters, "repo"), parameter(parameters, "branch"),
+            parameter(parameters, "status"), parseTime(parameters, "since"), parseTime(parameters, "until"),
+            "asc".equals(order), limit, cursor != null ? decodeCursor(cursor) : null);
+    }
+
+    private static String parameter(Map<String, String[]> parameters, String name) {
+        String[] values = parameters.get(name);
+        return values != null && values.length > 0 && !values[0].isEmpty() ? values[0] : null;
+    }
+
+    /**
+     * @return the time of a parameter in epoch milliseconds, or null if it is not set
+     */
+    private static Long parseTime(Map<String, String[]> parameters, String name) {
+        String value = parameter(parameters, name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                throw new IllegalArgumentException(name + " must be epoch milliseconds or an ISO-8601 instant");
+            }
+        }
+    }
+
+    /**
+     * @return the cursor of the position of a build: its finish time and id, URL safe
+     */
+    static String encodeCursor(BuildRecord record) {
+        String position = record.getFinishedAtMillis() + ":" + record.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a record at the position of a cursor, only holding the fields compared by the index
+     */
+    static BuildRecord decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = position.indexOf(':');
+            long finishedAtMillis = Long.parseLong(position.substring(0, separator));
+            return new BuildRecord(position.substring(separator + 1), null, null, null, null, finishedAtMillis, null);
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    /**
+     * Starts reading the page from the index.
+     *
+     * @param index - The build index
+     * @return the builds of the page, the next cursor is known once all of them are read
+     */
+    public Page run(BuildIndex index) {
+        // The set of the index holding exactly the builds of the filters
+        NavigableSet<BuildRecord> builds = index.getBuildSet(repository, branch, status);
+        // Newest first: the builds finished at or before "until" start at (until, ""), those finished
+        // at or after "since" end before (since - 1, "")
+        if (until != null && since != null) {
+            if (until < since) {
+                builds = builds.headSet(position(Long.MAX_VALUE), false);
+            } else {
+                builds = builds.subSet(position(until), true, position(since - 1), false);
+            }
+        } else if (until != null) {
+            builds = builds.tailSet(position(until), true);
+        } else if (since != null) {
+            builds = builds.headSet(position(since - 1), false);
+        }
+        if (ascending) {
+            builds = builds.descendingSet();
+        }
+        if (cursor != null) {
+            try {
+                builds = builds.tailSet(cursor, false);
+            } catch (IllegalArgumentException e) {
+                // The cursor of a query with other times is outside of the range
+                return new Page(Collections.<BuildRecord>emptyIterator());
+            }
+        }
+        return new Page(builds.iterator());
+    }
+
+    private static BuildRecord position(long finishedAtMillis) {
+        return new BuildRecord("", null, null, null, null, finishedAtMillis, null);
+    }
+
+    /**
+     * The builds of a page, read from the index while they are iterated.
+     */
+    public class Page implements Iterator<BuildRecord> {
+        private final Iterator<BuildRecord> builds;
+        private BuildRecord next;
+        private BuildRecord last;
+        private int returned;
+
+        Page(Iterator<BuildRecord> builds) {
+            this.builds = builds;
+        }
+
+        /**
+         * @return the next build of the index, or null
+         */
+        private BuildRecord advance() {
+            return builds.hasNext() ? builds.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (returned >= limit) {
+                return false;
+            }
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public BuildRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            returned++;
+            return last;
+        }
+
+        /**
+         * Must be called once the page is read.
+         *
+         * @return the cursor of the next page, or null if this is the last page
+         */
+        public String getNextCursor() {
+            if (returned < limit || last == null) {
+                return null;
+            }
+            if (next == null) {
+                next = advance();
+            }
+            return next != null ? encodeCursor(last) : null;
+        }
+    }
+
+    /**
+     * Writes the page as JSON, one build at a time: {"builds": [...], "nextCursor": "..."}.
+     *
+     * @param index - The build index
+     * @param out - The writer receiving the JSON
+     */
+    public void writeJson(BuildIndex index, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("builds").beginArray();
+        Page page = run(index);
+        while (page.hasNext()) {
+            BuildRecord record = page.next();
+            json.beginObject();
+            json.name("id").value(record.getId());
+            json.name("repository").value(record.getRepository());
+            json.name("branch").value(record.getBranch());
+            json.name("commit").value(record.getCommit());
+            json.name("status").value(record.getStatus());
+            json.name("finishedAtMillis").value(record.getFinishedAtMillis());
+            json.name("totalTime").value(record.getTotalTime());
+            json.name("url").value("/builds/" + record.getId());
+            json.name("logUrl").value("/builds/" + record.getId() + "/log");
+            json.endObject();
+        }
+        json.endArray();
+        String nextCursor = page.getNextCursor();
+        json.name("nextCursor");
+        if (nextCursor != null) {
+            json.value(nextCursor);
+        } else {
+            json.nullValue();
+        }
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * @param nextCursor - The cursor of a page
+     * @return the query string of the same query starting at the cursor, for the links between pages
+     */
+    public String toQueryString(String nextCursor) {
+        StringBuilder query = new StringBuilder();
+        appendParameter(query, "repo", repository);
+        appendParameter(query, "branch", branch);
+        appendParameter(query, "status", status);
+        appendParameter(query, "since", since != null ? since.toString() : null);
+        appendParameter(query, "until", until != null ? until.toString() : null);
+        appendParameter(query, "order", ascending ? "asc" : null);
+        appendParameter(query, "limit", limit != DEFAULT_LIMIT ? Integer.toString(limit) : null);
+        appendParameter(query, "cursor", nextCursor);
+        return query.toString();
+    }
+
+    private static void appendParameter(StringBuilder query, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        query.append(query.length() == 0 ? '?' : '&').append(name).append('=');
+        try {
+            query.append(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public boolean hasCursor() {
+        return cursor != null;
+    }
+}
@@ -0,0 +1,372 @@
+// No package declaration here
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * An in-memory index of the finished builds, so the status, listing and details requests do not scan
+ * the build history directory.
+ *
+ * The builds are kept in skip lists sorted from the newest to the oldest: all builds, the builds of a repository
+ * and the builds of a branch, and for the history filters the builds of a status, alone or with the repository
+ * and branch, and of a branch name across repositories. The latest build of a commit and the builds by id are
+ * in hash maps.
+ * Lookups are O(1) or O(log n) and never block. Updates are serialized, and a replaced record is only removed
+ * once its replacement is in every map.
+ *
+ * Every update is appended to a journal in the build history directory. At startup the journal is read back
+ * and the build directories it does not know are read in parallel, then the journal is compacted.
+ */
+public class BuildIndex {
+
+    public static final String JOURNAL_FILE = ".build_index.journal";
+
+    // Newest first, the id makes builds finished at the same time distinct
+    static final Comparator<BuildRecord> NEWEST_FIRST = Comparator
+        .comparingLong(BuildRecord::getFinishedAtMillis).reversed()
+        .thenComparing(BuildRecord::getId);
+
+    private final Gson gson = new Gson();
+    private final Map<String, BuildRecord> byId = new ConcurrentHashMap<>();
+    private final NavigableSet<BuildRecord> all = new ConcurrentSkipListSet<>(NEWEST_FIRST);
+    private final Map<String, NavigableSet<BuildRecord>> byRepository = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<BuildRecord>> byBranch = new ConcurrentHashMap<>();
+    // The sets of the history filters, by filterKey(): every filter of a query reads a single set
+    private final Map<String, NavigableSet<BuildRecord>> byFilter = new ConcurrentHashMap<>();
+    private final Map<String, BuildRecord> latestByCommit = new ConcurrentHashMap<>();
+
+    private File journalFile;
+    private Writer journal;
+
+    /**
+     * Loads the index of a build history directory and starts writing its journal.
+     *
+     * @param historyDir - The directory holding the build directories
+     * @return the number of builds in the index
+     */
+    public synchronized int load(File historyDir) throws IOException {
+        historyDir.mkdirs();
+        journalFile = new File(historyDir, JOURNAL_FILE);
+        if (journalFile.isFile()) {
+            readJournal(journalFile);
+        }
+
+        // Read the build directories missing from the journal, in parallel
+        File[] buildDirs = historyDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith(".")
+            && !byId.containsKey(file.getName()));
+        if (buildDirs != null && buildDirs.length > 0) {
+            List<BuildRecord> records = Arrays.stream(buildDirs).parallel()
+                .map(BuildRecord::fromBuildDir)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+            for (BuildRecord record : records) {
+                add(record);
+            }
+        }
+        // Forget the builds whose directory was deleted
+        for (BuildRecord record : new ArrayList<>(byId.values())) {
+            if (!new File(historyDir, record.getId()).isDirectory()) {
+                remove(record);
+            }
+        }
+
+        compactJournal();
+        return byId.size();
+    }
+
+    /**
+     * Reads the journal, one JSON record per line. A last line cut by a crash is ignored.
+     */
+    private void readJournal(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    BuildRecord record = gson.fromJson(line, BuildRecord.class);
+                    if (record != null && record.getId() != null) {
+                        add(record);
+                    }
+                } catch (JsonParseException e) {
+                    System.err.println("Skipping invalid build index journal line: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the journal again with one line per build in the index and keeps it open for appending.
+     */
+    private void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        File temp = new File(journalFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (BuildRecord record : all.descendingSet()) {
+                writer.write(gson.toJson(record));
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds or replaces the record of a finished build. The record is written to the journal first,
+     * if the index was loaded from a build history directory.
+     *
+     * @param record - The record of the build
+     */
+    public synchronized void record(BuildRecord record) {
+        if (journal != null) {
+            try {
+                journal.write(gson.toJson(record));
+                journal.write('\n');
+                journal.flush();
+            } catch (IOException e) {
+                System.err.println("Error writing build index journal: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        add(record);
+    }
+
+    /**
+     * Removes a build whose directory is deleted. Nothing is written to the journal: the next load forgets
+     * the builds of the journal whose directory is missing.
+     *
+     * @param id - The id of the build
+     * @return the removed record, or null if the build was not in the index
+     */
+    public synchronized BuildRecord forget(String id) {
+        BuildRecord record = byId.get(id);
+        if (record != null) {
+            remove(record);
+        }
+        return record;
+    }
+
+    /**
+     * Adds a record to every map. The new record is added before the old one is removed,
+     * so a reader always finds a build for the repository. Must be called with the lock held.
+     */
+    private void add(BuildRecord record) {
+        BuildRecord previous = byId.put(record.getId(), record);
+        if (previous != null && NEWEST_FIRST.compare(previous, record) == 0) {
+            // Same place in the sets, the sets would keep the previous record
+            removeFromSets(previous);
+            previous = null;
+        }
+        all.add(record);
+        if (record.getRepository() != null) {
+            byRepository.computeIfAbsent(record.getRepository(), key -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(record);
+            if (record.getBranch() != null) {
+                byBranch.computeIfAbsent(branchKey(record.getRepository(), record.getBranch()),
+                    key -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(record);
+            }
+            if (record.getCommit() != null) {
+                latestByCommit.merge(commitKey(record.getRepository(), record.getCommit()), record,
+                    (older, newer) -> NEWEST_FIRST.compare(newer, older) <= 0 ? newer : older);
+            }
+        }
+        for (String key : filterKeys(record)) {
+            byFilter.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(record);
+        }
+        if (previous != null) {
+            removeFromSets(previous);
+        }
+    }
+
+    /**
+     * Removes a record from every map. Must be called with the lock held.
+     */
+    private void remove(BuildRecord record) {
+        byId.remove(record.getId(), record);
+        removeFromSets(record);
+        if (record.getRepository() != null && record.getCommit() != null) {
+            latestByCommit.remove(commitKey(record.getRepository(), record.getCommit()), record);
+        }
+    }
+
+    private void removeFromSets(BuildRecord record) {
+        all.remove(record);
+        if (record.getRepository() != null) {
+            NavigableSet<BuildRecord> builds = byRepository.get(record.getRepository());
+            if (builds != null) {
+                builds.remove(record);
+            }
+            if (record.getBranch() != null) {
+                NavigableSet<BuildRecord> branchBuilds = byBranch.get(branchKey(record.getRepository(), record.getBranch()));
+                if (branchBuilds != null) {
+                    branchBuilds.remove(record);
+                }
+            }
+        }
+        for (String key : filterKeys(record)) {
+            NavigableSet<BuildRecord> builds = byFilter.get(key);
+            if (builds != null) {
+                builds.remove(record);
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the filter sets holding a record: its status alone, with its repository and with
+     * its branch, and its branch name across repositories, alone and with its status
+     */
+    private static List<String> filterKeys(BuildRecord record) {
+        List<String> keys = new ArrayList<>();
+        String status = record.getStatus();
+        String branch = record.getBranch();
+        if (status != null) {
+            keys.add(filterKey(null, null, status));
+            if (record.getRepository() != null) {
+                keys.add(filterKey(record.getRepository(), null, status));
+                if (branch != null) {
+                    keys.add(filterKey(record.getRepository(), branch, status));
+                }
+            }
+        }
+        if (branch != null) {
+            keys.add(filterKey(null, branch, null));
+            if (status != null) {
+                keys.add(filterKey(null, branch, status));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the key of a filter set, a null part matching any value. The status is not case sensitive
+     */
+    private static String filterKey(String repository, String branch, String status) {
+        return (repository != null ? "=" + repository : "*") + "\n" + (branch != null ? "=" + branch : "*")
+            + "\n" + (status != null ? "=" + status.toUpperCase(Locale.ROOT) : "*");
+    }
+
+    private static String branchKey(String repository, String branch) {
+        return repository + "\n" + branch;
+    }
+
+    private static String commitKey(String repository, String commit) {
+        return repository + "\n" + commit;
+    }
+
+    /**
+     * @param id - The id of a build
+     * @return the record of the build, or null if it is not in the index
+     */
+    public BuildRecord get(String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @param repository - The name of a repository, matched exactly
+     * @return the latest finished build of the repository, or null
+     */
+    public BuildRecord getLatest(String repository) {
+        return first(byRepository.get(repository));
+    }
+
+    /**
+     * @param repository - The name of a repository, matched exactly
+     * @param branch - The name of a branch
+     * @return the latest finished build of the branch, or null
+     */
+    public BuildRecord getLatest(String repository, String branch) {
+        return first(byBranch.get(branchKey(repository, branch)));
+    }
+
+    /**
+     * @param repository - The name of a repository
+     * @param commit - The id of a commit
+     * @return the latest finished build of the commit, or null
+     */
+    public BuildRecord getLatestForCommit(String repository, String commit) {
+        return latestByCommit.get(commitKey(repository, commit));
+    }
+
+    /**
+     * @return all the builds, from the newest to the oldest
+     */
+    public Collection<BuildRecord> getBuilds() {
+        return all;
+    }
+
+    /**
+     * @param repository - The name of a repository
+     * @return the builds of the repository, from the newest to the oldest
+     */
+    public Collection<BuildRecord> getBuilds(String repository) {
+        NavigableSet<BuildRecord> builds = byRepository.get(repository);
+        return builds != null ? builds : new ArrayList<>();
+    }
+
+    /**
+     * @param repository - The name of a repository, or null for all the builds
+     * @param branch - The name of a branch, or null for all the branches
+     * @param status - The status of the builds, not case sensitive, or null for all the statuses
+     * @return a live view of the matching builds, from the newest to the oldest, ordered by NEWEST_FIRST
+     */
+    NavigableSet<BuildRecord> getBuildSet(String repository, String branch, String status) {
+        NavigableSet<BuildRecord> builds;
+        if (status != null || (repository == null && branch != null)) {
+            builds = byFilter.get(filterKey(repository, branch, status));
+        } else if (repository == null) {
+            builds = all;
+        } else if (branch == null) {
+            builds = byRepository.get(repository);
+        } else {
+            builds = byBranch.get(branchKey(repository, branch));
+        }
+        return builds != null ? builds : new ConcurrentSkipListSet<>(NEWEST_FIRST);
+    }
+
+    /**
+     * @return the number of builds in the index
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    private static BuildRecord first(NavigableSet<BuildRecord> builds) {
+        if (builds == null) {
+            return null;
+        }
+        try {
+            return builds.first();
+        } catch (NoSuchElementException e) {
+            // Emptied by a concurrent update
+            return null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+// No package declaration here
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Moves the Maven output of finished builds into the compressed BuildLogStore and applies the log retention.
+ *
+ * With the "trim-success" retention, the default, a successful build only keeps a window of lines around
+ * its error lines and the last lines of its log, while failed and cancelled builds keep their whole log.
+ * "full" keeps every log whole and "trim-all" trims every log.
+ *
+ * It also migrates the build directories written by older versions of the server, where the whole
+ * Maven output was in build_summary.json or next to it in mavenOutput.txt.
+ */
+public class BuildLogArchiver {
+
+    public static final String PLAIN_LOG_FILE = "mavenOutput.txt";
+
+    // Fields of older summaries that are now stored in the log
+    private static final String[] LOG_FIELDS = {"mavenOutput", "errors", "mavenOutputTail", "logFile"};
+
+    private final String retention;
+    private final int contextLines;
+    private final int tailLines;
+    private final int maxErrorWindows;
+
+    /**
+     * @param retention - "trim-success", "trim-all" or "full"
+     * @param contextLines - The number of lines kept before and after an error line in a trimmed log
+     * @param tailLines - The number of lines kept at the end of a trimmed log
+     * @param maxErrorWindows - The number of error lines that get a context window
+     */
+    public BuildLogArchiver(String retention, int contextLines, int tailLines, int maxErrorWindows) {
+        this.retention = retention;
+        this.contextLines = contextLines;
+        this.tailLines = tailLines;
+        this.maxErrorWindows = maxErrorWindows;
+    }
+
+    /**
+     * @return a parser collecting what the retention needs from a Maven output
+     */
+    public MavenOutputParser newParser() {
+        return new MavenOutputParser(maxErrorWindows, 0);
+    }
+
+    /**
+     * Compresses the plain log of a build and deletes it. The log fields are added to the summary.
+     *
+     * @param buildDir - The build directory
+     * @param buildStatus - The status of the build, SUCCESS, FAILURE or CANCELLED
+     * @param parser - The parser which received the whole plain log
+     * @param summary - The summary receiving the log fields
+     */
+    public void archive(File buildDir, String buildStatus, MavenOutputParser parser, Map<String, Object> summary)
+            throws IOException {
+        File plainLog = new File(buildDir, PLAIN_LOG_FILE);
+        if (!plainLog.isFile()) {
+            return;
+        }
+        boolean trim = "trim-all".equals(retention) || ("trim-success".equals(retention) && "SUCCESS".equals(buildStatus));
+        List<long[]> keptLines = trim
+            ? BuildLogStore.retainedLines(parser.getErrorLineNumbers(), parser.getLineCount(), contextLines, tailLines)
+            : null;
+        long storedBytes = BuildLogStore.compress(plainLog, buildDir, keptLines);
+        summary.put("errorCount", parser.getErrorCount());
+        summary.put("logLines", parser.getLineCount());
+        summary.put("logBytes", plainLog.length());
+        summary.put("logStoredBytes", storedBytes);
+        summary.put("logRetention", trim ? "trimmed" : "full");
+        if (!plainLog.delete()) {
+            System.err.println("Error deleting plain build log: " + plainLog.getPath());
+        }
+    }
+
+    /**
+     * Migrates the build directories of the build history that have no compressed log yet.
+     *
+     * @param historyDir - The directory holding the build directories
+     * @return the number of migrated builds
+     */
+    public int migrate(File historyDir) {
+        File[] buildDirs = historyDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        int migrated = 0;
+        if (buildDirs == null) {
+            return migrated;
+        }
+        for (File buildDir : buildDirs) {
+            File summaryFile = new File(buildDir, BuildSummaryFile.FILE_NAME);
+            if (!summaryFile.isFile() || new File(buildDir, BuildLogStore.INDEX_FILE).isFile()) {
+                continue;
+            }
+            try {
+                if (migrateBuild(buildDir, summaryFile)) {
+                    migrated++;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error migrating build " + buildDir.getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        if (migrated > 0) {
+            System.out.println("Migrated " + migrated + " builds to the compressed log format");
+        }
+        return migrated;
+    }
+
+    /**
+     * Migrates one build directory: the Maven output found in the summary is written to the plain log,
+     * the plain log is compressed and the summary is written again with the metadata only.
+     *
+     * @return true if a log was found and compressed
+     */
+    private boolean migrateBuild(File buildDir, File summaryFile) throws IOException {
+        File plainLog = new File(buildDir, PLAIN_LOG_FILE);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        boolean hasLogFields = false;
+
+        // Stream the old summary, the Maven output array can be large
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(summaryFile), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("mavenOutput".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY && !plainLog.isFile()) {
+                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(plainLog), StandardCharsets.UTF_8))) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            writer.write(reader.nextString());
+                            writer.write('\n');
+                        }
+                        reader.endArray();
+                    }
+                } else if (isLogField(name)) {
+                    reader.skipValue();
+                    hasLogFields = true;
+                } else {
+                    // Keep the other fields as they are
+                    summary.put(name, JsonParser.parseReader(reader));
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Invalid build summary", e);
+        }
+
+        if (!plainLog.isFile()) {
+            if (hasLogFields) {
+                BuildSummaryFile.write(buildDir, summary);
+            }
+            return false;
+        }
+        MavenOutputParser parser = newParser();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(plainLog), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parser.onLine(line);
+            }
+        }
+        Object status = summary.get("buildStatus");
+        archive(buildDir, status instanceof JsonElement ? ((JsonElement) status).getAsString() : null, parser, summary);
+        BuildSummaryFile.write(buildDir, summary);
+        return true;
+    }
+
+    private static boolean isLogField(String name) {
+        for (String field : LOG_FIELDS) {
+            if (field.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,407 @@
+// No package declaration here
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compressed Maven output of a finished build.
+ *
+ * The log is stored in build_log.gz as a sequence of independent gzip members of about 64 KB of text each,
+ * always ending on a line boundary. build_log.idx lists the blocks with their first line, their offset in the
+ * original log and their place in the compressed file, so a range of lines or bytes can be read by
+ * decompressing only the blocks that hold it. The stored log may only keep some lines of the original one
+ * (see retainedLines), the line numbers and byte offsets stay the ones of the original log.
+ */
+public class BuildLogStore {
+
+    public static final String LOG_FILE = "build_log.gz";
+    public static final String INDEX_FILE = "build_log.idx";
+
+    private static final int MAGIC = 0x424c4f47; // "BLOG"
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * A block of consecutive lines, stored as one gzip member.
+     */
+    static class Block {
+        long firstLine;
+        int lineCount;
+        long offset;
+        int length;
+        long compressedOffset;
+        int compressedLength;
+    }
+
+    private final File logFile;
+    private final long lineCount;
+    private final long byteCount;
+    private final List<Block> blocks;
+
+    private BuildLogStore(File logFile, long lineCount, long byteCount, List<Block> blocks) {
+        this.logFile = logFile;
+        this.lineCount = lineCount;
+        this.byteCount = byteCount;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Opens the compressed log of a build directory.
+     *
+     * @param buildDir - The build directory
+     * @return the log, or null if the directory has no compressed log
+     */
+    public static BuildLogStore open(File buildDir) throws IOException {
+        File indexFile = new File(buildDir, INDEX_FILE);
+        File logFile = new File(buildDir, LOG_FILE);
+        if (!indexFile.isFile() || !logFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown build log index format: " + indexFile);
+            }
+            long lineCount = in.readLong();
+            long byteCount = in.readLong();
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                Block block = new Block();
+                block.firstLine = in.readLong();
+                block.lineCount = in.readInt();
+                block.offset = in.readLong();
+                block.length = in.readInt();
+                block.compressedOffset = in.readLong();
+                block.compressedLength = in.readInt();
+                blocks.add(block);
+            }
+            return new BuildLogStore(logFile, lineCount, byteCount, blocks);
+        }
+    }
+
+    /**
+     * @return the number of lines of the original log
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return the number of bytes of the original log
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return true if every line of the original log is stored
+     */
+    public boolean isComplete() {
+        long stored = 0;
+        for (Block block : blocks) {
+            stored += block.length;
+        }
+        return stored == byteCount;
+    }
+
+    /**
+     * Reads the stored lines in a range of line numbers. Lines removed by the retention policy are skipped.
+     *
+     * @param fromLine - The first line number, starting at 0
+     * @param toLine - The line number after the last line
+     * @return the stored lines of the range, without their line terminators
+     */
+    public List<String> readLines(long fromLine, long toLine) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            for (Block block : blocks) {
+                if (block.firstLine + block.lineCount <= fromLine || block.firstLine >= toLine) {
+                    continue;
+                }
+                byte[] text = decompress(channel, block);
+                long line = block.firstLine;
+                int start = 0;
+                for (int i = 0; i <= text.length && line < toLine; i++) {
+                    if (i == text.length ? i > start : text[i] == '\n') {
+                        if (line >= fromLine) {
+                            int end = i > start && text[i - 1] == '\r' ? i - 1 : i;
+                            lines.add(new String(text, start, end - start, StandardCharsets.UTF_8));
+                        }
+                        line++;
+                        start = i + 1;
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Reads the last stored lines of the log.
+     *
+     * @param count - The number of lines
+     * @return the last lines of the log
+     */
+    public List<String> tail(int count) throws IOException {
+        return readLines(Math.max(0, lineCount - count), lineCount);
+    }
+
+    /**
+     * Writes a range of bytes of the original log. Only the blocks holding the range are decompressed.
+     *
+     * @param fromOffset - The offset of the first byte in the original log
+     * @param toOffset - The offset after the last byte in the original log
+     * @param out - The stream receiving the bytes
+     * @param markGaps - True to write a line in place of the lines removed by the retention policy
+     */
+    public void copyTo(long fromOffset, long toOffset, OutputStream out, boolean markGaps) throws IOException {
+        long nextLine = 0;
+        long nextOffset = 0;
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            for (Block block : blocks) {
+                if (block.offset + block.length <= fromOffset) {
+                    nextLine = block.firstLine + block.lineCount;
+                    nextOffset = block.offset + block.length;
+                    continue;
+                }
+                if (block.offset >= toOffset) {
+                    break;
+                }
+                if (markGaps && block.firstLine > nextLine && block.offset > fromOffset) {
+                    writeGap(out, block.firstLine - nextLine);
+                }
+                byte[] text = decompress(channel, block);
+                int start = (int) Math.max(0, fromOffset - block.offset);
+                int end = (int) Math.min(text.length, toOffset - block.offset);
+                out.write(text, start, end - start);
+                nextLine = block.firstLine + block.lineCount;
+                nextOffset = block.offset + block.length;
+            }
+        }
+        if (markGaps && nextLine < lineCount && nextOffset < toOffset) {
+            writeGap(out, lineCount - nextLine);
+        }
+        out.flush();
+    }
+
+    private static void writeGap(OutputStream out, long lines) throws IOException {
+        out.write(("[... " + lines + " lines removed by the log retention ...]\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads and decompresses one block.
+     */
+    private static byte[] decompress(FileChannel channel, Block block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(block.compressedLength);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, block.compressedOffset + compressed.position()) < 0) {
+                throw new IOException("Build log is shorter than its index");
+            }
+        }
+        byte[] text = new byte[block.length];
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array()), 8 * 1024)) {
+            int read = 0;
+            while (read < text.length) {
+                int count = in.read(text, read, text.length - read);
+                if (count < 0) {
+                    throw new IOException("Build log block is shorter than its index");
+                }
+                read += count;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Compresses a plain log into build_log.gz and build_log.idx in a directory.
+     * The files are written next to their final name and moved in place, so readers never see half written files.
+     *
+     * @param source - The plain log, like mavenOutput.txt
+     * @param buildDir - The directory receiving the compressed log
+     * @param keptLines - The sorted, non overlapping ranges [first, last + 1) of line numbers to keep, null to keep all
+     * @return the size of the compressed log in bytes
+     */
+    public static long compress(File source, File buildDir, List<long[]> keptLines) throws IOException {
+        File logTemp = new File(buildDir, LOG_FILE + ".tmp");
+        File indexTemp = new File(buildDir, INDEX_FILE + ".tmp");
+        List<Block> blocks = new ArrayList<>();
+        long line = 0;
+        long offset = 0;
+
+        try (InputStream in = new FileInputStream(source);
+             FileOutputStream log = new FileOutputStream(logTemp)) {
+            BlockWriter writer = new BlockWriter(log, blocks);
+            int range = 0;
+            boolean kept = keptLines == null || (!keptLines.isEmpty() && keptLines.get(0)[0] == 0);
+            byte[] chunk = new byte[64 * 1024];
+            byte last = '\n';
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    byte b = chunk[i];
+                    if (kept) {
+                        writer.append(b, line, offset);
+                    }
+                    offset++;
+                    if (b == '\n') {
+                        if (kept) {
+                            writer.lineEnded();
+                        }
+                        line++;
+                        // Move to the range of the next line
+                        boolean nextKept = true;
+                        if (keptLines != null) {
+                            while (range < keptLines.size() && keptLines.get(range)[1] <= line) {
+                                range++;
+                            }
+                            nextKept = range < keptLines.size() && keptLines.get(range)[0] <= line;
+                        }
+                        if (kept && (!nextKept || writer.isFull())) {
+                            writer.flushBlock();
+                        }
+                        kept = nextKept;
+                    }
+                }
+                last = chunk[count - 1];
+            }
+            if (last != '\n') {
+                // The last line has no line terminator
+                if (kept) {
+                    writer.lineEnded();
+                }
+                line++;
+            }
+            writer.flushBlock();
+        }
+
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTemp)))) {
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.writeLong(line);
+            index.writeLong(offset);
+            index.writeInt(blocks.size());
+            for (Block block : blocks) {
+                index.writeLong(block.firstLine);
+                index.writeInt(block.lineCount);
+                index.writeLong(block.offset);
+                index.writeInt(block.length);
+                index.writeLong(block.compressedOffset);
+                index.writeInt(block.compressedLength);
+            }
+        }
+        long compressedBytes = logTemp.length();
+        Files.move(logTemp.toPath(), new File(buildDir, LOG_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(indexTemp.toPath(), new File(buildDir, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return compressedBytes;
+    }
+
+    /**
+     * Collects the lines of a block and writes it as a gzip member.
+     */
+    private static class BlockWriter {
+        private final FileOutputStream log;
+        private final List<Block> blocks;
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private byte[] text = new byte[BLOCK_SIZE + 1024];
+        private int length;
+        private Block block;
+
+        BlockWriter(FileOutputStream log, List<Block> blocks) {
+            this.log = log;
+            this.blocks = blocks;
+        }
+
+        void append(byte b, long line, long offset) {
+            if (block == null) {
+                // Blocks are only flushed at the end of a line, so a new block starts with a new line
+                block = new Block();
+                block.firstLine = line;
+                block.offset = offset;
+            }
+            if (length == text.length) {
+                byte[] larger = new byte[text.length * 2];
+                System.arraycopy(text, 0, larger, 0, length);
+                text = larger;
+            }
+            text[length++] = b;
+        }
+
+        void lineEnded() {
+            block.lineCount++;
+        }
+
+        boolean isFull() {
+            return length >= BLOCK_SIZE;
+        }
+
+        void flushBlock() throws IOException {
+            if (block == null) {
+                return;
+            }
+            compressed.reset();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8 * 1024)) {
+                gzip.write(text, 0, length);
+            }
+            block.length = length;
+            block.compressedOffset = log.getChannel().position();
+            block.compressedLength = compressed.size();
+            compressed.writeTo(log);
+            blocks.add(block);
+            block = null;
+            length = 0;
+        }
+    }
+
+    /**
+     * Computes the lines kept by the trimmed retention: a window of context lines around every error line
+     * and the last lines of the log.
+     *
+     * @param errorLines - The line numbers of the error lines
+     * @param lineCount - The number of lines of the log
+     * @param contextLines - The number of lines kept before and after an error line
+     * @param tailLines - The number of lines kept at the end of the log
+     * @return the sorted, non overlapping ranges [first, last + 1) of kept line numbers
+     */
+    public static List<long[]> retainedLines(List<Long> errorLines, long lineCount, int contextLines, int tailLines) {
+        List<long[]> ranges = new ArrayList<>();
+        for (long errorLine : errorLines) {
+            ranges.add(new long[] {Math.max(0, errorLine - contextLines), Math.min(lineCount, errorLine + contextLines + 1)});
+        }
+        if (tailLines > 0 && lineCount > 0) {
+            ranges.add(new long[] {Math.max(0, lineCount - tailLines), lineCount});
+        }
+        Collections.sort(ranges, Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1]) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else if (range[0] < range[1]) {
+                merged.add(new long[] {range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+}
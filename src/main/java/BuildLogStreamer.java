@@ -0,0 +1,302 @@
+// No package declaration here
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves the Maven output of the builds on /builds/{id}/log.
+ *
+ * The log of a running build is followed over a chunked HTTP response, reading the log file up to the bytes
+ * the build already flushed. Readers never hold up the build: they read the file on their own thread,
+ * and a reader falling too far behind is skipped ahead to the last bytes of the log.
+ * The log of a finished build is read from its compressed BuildLogStore, decompressing only the blocks
+ * holding the requested bytes; a plain log file left by a build is sent with FileChannel.transferTo.
+ * All support ?from=byteOffset to resume and HTTP Range requests, with the offsets of the original log.
+ */
+public class BuildLogStreamer {
+
+    // Maximum number of bytes sent by one transfer, so a slow reader checks its lag often
+    private static final int MAX_TRANSFER_BYTES = 64 * 1024;
+    private static final long WAIT_MILLIS = 1000;
+
+    private final long maxLagBytes;
+    private final Semaphore watchers;
+    private final Map<String, BuildOutput> runningOutputs = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxLagBytes - The number of bytes a reader of a running build can be behind before it is skipped ahead
+     * @param maxWatchers - The maximum number of readers following running builds at the same time
+     */
+    public BuildLogStreamer(long maxLagBytes, int maxWatchers) {
+        this.maxLagBytes = maxLagBytes;
+        this.watchers = new Semaphore(maxWatchers);
+    }
+
+    /**
+     * Makes the output of a running build available to the readers.
+     *
+     * @param buildId - The id of the build
+     * @param output - The output of the build
+     */
+    public void register(String buildId, BuildOutput output) {
+        runningOutputs.put(buildId, output);
+    }
+
+    /**
+     * Removes a build once its output is closed. Readers following it finish reading the log file.
+     *
+     * @param buildId - The id of the build
+     */
+    public void unregister(String buildId) {
+        runningOutputs.remove(buildId);
+    }
+
+    /**
+     * Answers a request for the log of a build.
+     *
+     * @param buildId - The id of the build
+     * @param buildDir - The directory of the build once it is finished
+     * @param request - The request, with the optional from parameter and Range header
+     * @param response - The response receiving the log
+     */
+    public void serve(String buildId, File buildDir, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long from;
+        try {
+            String fromParameter = request.getParameter("from");
+            from = fromParameter == null ? 0 : Long.parseLong(fromParameter);
+        } catch (NumberFormatException e) {
+            from = -1;
+        }
+        if (from < 0) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid from offset.");
+            return;
+        }
+        response.setContentType("text/plain;charset=utf-8");
+        response.setHeader("Accept-Ranges", "bytes");
+
+        BuildOutput output = runningOutputs.get(buildId);
+        BuildLogStore store;
+        File plainLog = new File(buildDir, BuildLogArchiver.PLAIN_LOG_FILE);
+        if (output != null) {
+            serveRunning(output, from, request.getHeader("Range"), response);
+        } else if ((store = BuildLogStore.open(buildDir)) != null) {
+            serveArchived(store, from, request.getHeader("Range"), response);
+        } else if (plainLog.isFile()) {
+            serveFinished(plainLog, from, request.getHeader("Range"), response);
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("No log for build " + buildId);
+        }
+    }
+
+    /**
+     * Sends the log of a running build. A Range request gets the requested bytes already written,
+     * otherwise the log is followed from the from offset until the build is finished.
+     */
+    private void serveRunning(BuildOutput output, long from, String range, HttpServletResponse response)
+            throws IOException {
+        File logFile = output.getLogFile();
+        if (range != null) {
+            long written = output.getBytesWritten();
+            long[] bounds = parseRange(range, written);
+            if (bounds != null) {
+                if (bounds[0] >= written) {
+                    response.setStatus(416); // Range Not Satisfiable
+                    response.setHeader("Content-Range", "bytes */*");
+                    return;
+                }
+                // The total length is not known yet while the build runs
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/*");
+                response.setContentLength((int) (bounds[1] - bounds[0] + 1));
+                transfer(logFile, bounds[0], bounds[1] - bounds[0] + 1, response.getOutputStream());
+                return;
+            }
+        }
+
+        if (!watchers.tryAcquire()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().println("Too many readers are following running builds.");
+            return;
+        }
+        try {
+            response.setHeader("X-Log-Offset", String.valueOf(from));
+            follow(output, from, response.getOutputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchers.release();
+        }
+    }
+
+    /**
+     * Sends the log of a finished build, the whole file or the requested range.
+     */
+    private void serveFinished(File logFile, long from, String range, HttpServletResponse response)
+            throws IOException {
+        long length = logFile.length();
+        long start = Math.min(from, length);
+        long end = length - 1;
+        long[] bounds = parseRange(range, length);
+        if (bounds != null) {
+            if (bounds[0] >= length) {
+                response.setStatus(416); // Range Not Satisfiable
+                response.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        long count = end - start + 1;
+        response.setHeader("Content-Length", String.valueOf(count));
+        transfer(logFile, start, count, response.getOutputStream());
+    }
+
+    /**
+     * Sends the compressed log of a finished build, the whole log or the requested range.
+     * The lines removed by the log retention are replaced by a marker line, except in a Range response
+     * where the bytes have to match the requested offsets.
+     */
+    private void serveArchived(BuildLogStore store, long from, String range, HttpServletResponse response)
+            throws IOException {
+        long length = store.getByteCount();
+        long start = Math.min(from, length);
+        long end = length - 1;
+        long[] bounds = parseRange(range, length);
+        if (bounds != null) {
+            if (bounds[0] >= length) {
+                response.setStatus(416); // Range Not Satisfiable
+                response.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        if (store.isComplete()) {
+            response.setHeader("Content-Length", String.valueOf(end - start + 1));
+        }
+        store.copyTo(start, end + 1, response.getOutputStream(), bounds == null);
+    }
+
+    /**
+     * Follows the log of a running build, sending the bytes as they are flushed until the build is finished.
+     * When the reader is more than maxLagBytes behind, the bytes in between are skipped and replaced by a marker line.
+     *
+     * @param output - The output of the running build
+     * @param from - The offset of the first byte to send
+     * @param out - The stream of the reader
+     * @return the offset after the last byte sent
+     */
+    public long follow(BuildOutput output, long from, OutputStream out) throws IOException, InterruptedException {
+        long position = from;
+        try (FileChannel channel = FileChannel.open(output.getLogFile().toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (true) {
+                boolean closed = output.isClosed();
+                long available = output.getBytesWritten();
+                if (available - position > maxLagBytes) {
+                    long skipTo = available - maxLagBytes;
+                    out.write(("\n[... " + (skipTo - position) + " bytes skipped ...]\n").getBytes(StandardCharsets.UTF_8));
+                    position = skipTo;
+                }
+                if (position < available) {
+                    long transferred = channel.transferTo(position, Math.min(available - position, MAX_TRANSFER_BYTES), target);
+                    if (transferred <= 0) {
+                        // The file is shorter than announced, it was replaced
+                        break;
+                    }
+                    position += transferred;
+                    out.flush();
+                } else if (closed) {
+                    break;
+                } else {
+                    output.awaitBytes(position, WAIT_MILLIS);
+                }
+            }
+        }
+        out.flush();
+        return position;
+    }
+
+    /**
+     * Sends a part of a file with FileChannel.transferTo.
+     *
+     * @param file - The file to send
+     * @param position - The offset of the first byte
+     * @param count - The number of bytes
+     * @param out - The stream receiving the bytes
+     */
+    static void transfer(File file, long position, long count, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long end = Math.min(position + count, channel.size());
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Parses a single range HTTP Range header, like "bytes=0-99", "bytes=100-" or "bytes=-100".
+     *
+     * @param header - The Range header, may be null
+     * @param length - The number of bytes available
+     * @return the first and last byte of the range, or null if there is no valid single byte range
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // Suffix range: the last bytes of the log
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                return new long[] {Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            if (last.isEmpty()) {
+                return new long[] {start, length - 1};
+            }
+            long end = Long.parseLong(last);
+            if (end < start) {
+                return null;
+            }
+            return new long[] {start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
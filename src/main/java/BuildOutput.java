@@ -0,0 +1,184 @@
+// No package declaration here
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receives the output of a Maven build as it is produced.
+ * The bytes are written to the log file through a buffered FileChannel and split into lines for the
+ * MavenOutputParser. Memory use is bounded: one write buffer and one line buffer per build,
+ * longer lines are only truncated for the parser, the log file always gets all the bytes.
+ */
+public class BuildOutput implements Closeable {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final File logFile;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final MavenOutputParser parser;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private volatile long bytesWritten;
+    private volatile boolean closed;
+
+    // Monitor used to wake up the readers of the log when bytes are flushed, separate from the write lock
+    private final Object progress = new Object();
+
+    /**
+     * Creates the log file, replacing an existing one.
+     *
+     * @param logFile - The file receiving the Maven output
+     * @param parser - The parser receiving the output lines
+     */
+    public BuildOutput(File logFile, MavenOutputParser parser) throws IOException {
+        this.logFile = logFile;
+        this.parser = parser;
+        this.channel = FileChannel.open(logFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    public MavenOutputParser getParser() {
+        return parser;
+    }
+
+    /**
+     * @return the number of bytes written to the log file so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return true once the build finished writing its output
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits until the log file has more bytes than a position, or the output is closed.
+     * Used by the readers following the log of a running build; the writer never waits for them.
+     *
+     * @param position - The number of bytes the reader already has
+     * @param timeoutMillis - The maximum time to wait
+     * @return true if bytes after the position are available
+     */
+    public boolean awaitBytes(long position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (progress) {
+            while (bytesWritten <= position && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                progress.wait(remaining);
+            }
+        }
+        return bytesWritten > position;
+    }
+
+    /**
+     * Adds a chunk of output.
+     *
+     * @param bytes - The output bytes
+     * @param offset - The start of the chunk in bytes
+     * @param length - The length of the chunk
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            int count = Math.min(writeBuffer.remaining(), length - written);
+            writeBuffer.put(bytes, offset + written, count);
+            written += count;
+            if (!writeBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                endLine();
+            } else if (lineLength < MAX_LINE_LENGTH) {
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the log file.
+     */
+    public synchronized void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+        long position = channel.position();
+        if (position != bytesWritten) {
+            bytesWritten = position;
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Copies a stream to this output until its end, flushing the log file whenever the stream has no more bytes ready.
+     *
+     * @param in - The output stream of the build process
+     */
+    public void copyFrom(InputStream in) throws IOException {
+        byte[] chunk = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            write(chunk, 0, count);
+            if (in.available() == 0) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Sends the current line to the parser.
+     */
+    private void endLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        parser.onLine(new String(line, 0, length, StandardCharsets.UTF_8));
+        lineLength = 0;
+    }
+
+    /**
+     * Parses the last line if it has no line terminator, flushes and closes the log file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (lineLength > 0) {
+            endLine();
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+            closed = true;
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+// No package declaration here
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded queue of builds drained by a fixed pool of worker threads.
+ * The webhook handler only enqueues builds, so GitHub gets its response right away
+ * while the clone, compilation and cleanup run on the workers.
+ * A build with a supersede key replaces the older builds with the same key: queued ones are dropped
+ * and running ones are cancelled.
+ *
+ * The builds of a higher priority class always run first. Within a class, the workers are shared between
+ * the repositories with start-time fair queuing: every repository has a virtual time, advanced when one of
+ * its builds starts by the expected duration of the build divided by the weight of the repository, and
+ * corrected with the real duration when it finishes. The next build is taken from the repository with the
+ * lowest virtual time, so a repository pushing all the time gets its share of the workers and no more.
+ * A repository that had no build waiting starts from the virtual time of its class and does not keep
+ * credit for the time it was idle.
+ */
+public class BuildQueue {
+
+    // The expected duration of the builds of a repository before one of them finished
+    private static final long DEFAULT_BUILD_MILLIS = 60 * 1000;
+    // Weight of the last build in the expected duration of the builds of a repository
+    private static final double DURATION_SMOOTHING = 0.3;
+
+    /**
+     * The builds of a repository waiting in a priority class, and the virtual time of the repository in the class.
+     */
+    private static class RepositoryQueue {
+        final Deque<Build> builds = new ArrayDeque<>();
+        double virtualTime;
+    }
+
+    /**
+     * The builds waiting in a priority class, by repository.
+     */
+    private static class PriorityClass {
+        final Map<String, RepositoryQueue> repositories = new LinkedHashMap<>();
+        final BuildStats.DurationHistogram waits = new BuildStats.DurationHistogram();
+        double virtualTime;
+        int size;
+    }
+
+    /**
+     * The wait times and the expected build duration of a repository.
+     */
+    private static class RepositoryStats {
+        final BuildStats.DurationHistogram waits = new BuildStats.DurationHistogram();
+        double expectedMillis = -1;
+        int running;
+    }
+
+    /**
+     * A running build and the virtual time it was charged when it started.
+     */
+    private static class RunningBuild {
+        final Build build;
+        final RepositoryQueue queue;
+        final double charge;
+
+        RunningBuild(Build build, RepositoryQueue queue, double charge) {
+            this.build = build;
+            this.queue = queue;
+            this.charge = charge;
+        }
+    }
+
+    private final int workerCount;
+    private final int capacity;
+    private final Consumer<Build> pipeline;
+    private final Map<String, Double> weights;
+    private final Supplier<String> admission;
+    private final long admissionRetryMillis;
+
+    private final Map<Build.Priority, PriorityClass> classes = new EnumMap<>(Build.Priority.class);
+    private final Map<String, RepositoryStats> repositoryStats = new TreeMap<>();
+    private final List<RunningBuild> running = new ArrayList<>();
+    private int pendingCount;
+    private double expectedMillis = -1;
+    private String admissionHold;
+    private long admissionHolds;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    /**
+     * Creates a build queue. The worker threads are started on the first submitted build.
+     *
+     * @param workerCount - The number of builds that can run at the same time
+     * @param capacity - The maximum number of builds waiting in the queue
+     * @param pipeline - The function run by a worker for every build it takes from the queue
+     */
+    public BuildQueue(int workerCount, int capacity, Consumer<Build> pipeline) {
+        this(workerCount, capacity, pipeline, Collections.emptyMap(), () -> null, 0);
+    }
+
+    /**
+     * Creates a build queue sharing the workers between repositories and holding the builds while
+     * the host is short of resources.
+     *
+     * @param workerCount - The number of builds that can run at the same time
+     * @param capacity - The maximum number of builds waiting in the queue
+     * @param pipeline - The function run by a worker for every build it takes from the queue
+     * @param weights - The weights of the repositories in their share of the workers, 1 if not listed
+     * @param admission - Called before a build starts: the reason to hold the builds, or null to start it
+     * @param admissionRetryMillis - The time between two admission checks while the builds are held
+     */
+    public BuildQueue(int workerCount, int capacity, Consumer<Build> pipeline, Map<String, Double> weights,
+                      Supplier<String> admission, long admissionRetryMillis) {
+        if (workerCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Worker count and capacity must be at least 1");
+        }
+        this.workerCount = workerCount;
+        this.capacity = capacity;
+        this.pipeline = pipeline;
+        this.weights = weights;
+        this.admission = admission;
+        this.admissionRetryMillis = admissionRetryMillis;
+        for (Build.Priority priority : Build.Priority.values()) {
+            classes.put(priority, new PriorityClass());
+        }
+    }
+
+    /**
+     * Adds a build to the end of the queue.
+     * The queued and running builds it supersedes are dropped and cancelled.
+     *
+     * @param build - The build to enqueue
+     * @return true if the build was enqueued, false if the queue is full
+     */
+    public boolean submit(Build build) {
+        lock.lock();
+        try {
+            supersede(build);
+            if (pendingCount >= capacity) {
+                return false;
+            }
+            startWorkers();
+            PriorityClass priorityClass = classes.get(build.getPriority());
+            RepositoryQueue queue = priorityClass.repositories.computeIfAbsent(build.getRepositoryName(),
+                name -> new RepositoryQueue());
+            if (queue.builds.isEmpty()) {
+                // No credit for the time the repository had nothing to build
+                queue.virtualTime = Math.max(queue.virtualTime, priorityClass.virtualTime);
+            }
+            queue.builds.addLast(build);
+            priorityClass.size++;
+            pendingCount++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queued builds and cancels the running builds with the same supersede key as a new build.
+     * Must be called with the lock held.
+     *
+     * @param newer - The newly submitted build
+     */
+    private void supersede(Build newer) {
+        String key = newer.getSupersedeKey();
+        if (key == null) {
+            return;
+        }
+        for (PriorityClass priorityClass : classes.values()) {
+            for (RepositoryQueue queue : priorityClass.repositories.values()) {
+                Iterator<Build> queued = queue.builds.iterator();
+                while (queued.hasNext()) {
+                    Build older = queued.next();
+                    if (key.equals(older.getSupersedeKey())) {
+                        queued.remove();
+                        priorityClass.size--;
+                        pendingCount--;
+                        older.cancel(newer.getId());
+                        System.out.println("Queued build " + older.getId() + " dropped, superseded by " + newer.getId());
+                    }
+                }
+            }
+        }
+        for (RunningBuild runningBuild : running) {
+            Build older = runningBuild.build;
+            if (key.equals(older.getSupersedeKey()) && !older.isCancelled()) {
+                older.cancel(newer.getId());
+                System.out.println("Running build " + older.getId() + " cancelled, superseded by " + newer.getId());
+            }
+        }
+    }
+
+    /**
+     * @return the number of builds waiting for a worker
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pendingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of worker threads of the queue
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * @return the number of workers currently running a build
+     */
+    public int getBusyWorkers() {
+        return busyWorkers.get();
+    }
+
+    /**
+     * @return the maximum number of builds waiting in the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stops the worker threads. Builds still waiting in the queue are dropped.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            for (PriorityClass priorityClass : classes.values()) {
+                priorityClass.repositories.clear();
+                priorityClass.size = 0;
+            }
+            pendingCount = 0;
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the worker threads if they are not running yet. Must be called with the lock held.
+     */
+    private void startWorkers() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::runWorker, "build-worker-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Waits for the next build to run and for the admission check to let it start.
+     *
+     * @return the build of the highest priority class, from the repository with the lowest virtual time
+     */
+    private Build take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                while (pendingCount == 0) {
+                    notEmpty.await();
+                }
+                String hold = admission.get();
+                if (hold == null) {
+                    break;
+                }
+                if (!hold.equals(admissionHold)) {
+                    System.out.println("Holding the queued builds: " + hold);
+                    admissionHolds++;
+                }
+                admissionHold = hold;
+                notEmpty.await(admissionRetryMillis, TimeUnit.MILLISECONDS);
+            }
+            admissionHold = null;
+
+            for (Build.Priority priority : Build.Priority.values()) {
+                PriorityClass priorityClass = classes.get(priority);
+                if (priorityClass.size > 0) {
+                    Build build = takeFrom(priorityClass);
+                    if (pendingCount > 0) {
+                        notEmpty.signal();
+                    }
+                    return build;
+                }
+            }
+            throw new IllegalStateException("No queued build in the priority classes");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next build of a priority class and charges its repository. Must be called with the lock held.
+     *
+     * @param priorityClass - A priority class with queued builds
+     * @return the oldest build of the repository with the lowest virtual time
+     */
+    private Build takeFrom(PriorityClass priorityClass) {
+        RepositoryQueue next = null;
+        for (RepositoryQueue queue : priorityClass.repositories.values()) {
+            if (!queue.builds.isEmpty() && (next == null || queue.virtualTime < next.virtualTime
+                || (queue.virtualTime == next.virtualTime
+                    && queue.builds.peekFirst().getQueuedAt() < next.builds.peekFirst().getQueuedAt()))) {
+                next = queue;
+            }
+        }
+        Build build = next.builds.pollFirst();
+        priorityClass.size--;
+        pendingCount--;
+
+        String repository = build.getRepositoryName();
+        RepositoryStats stats = repositoryStats.computeIfAbsent(repository, name -> new RepositoryStats());
+        double charge = expectedMillis(stats) / weightOf(repository);
+        priorityClass.virtualTime = next.virtualTime;
+        next.virtualTime += charge;
+        running.add(new RunningBuild(build, next, charge));
+        stats.running++;
+
+        long waitMillis = System.currentTimeMillis() - build.getQueuedAt();
+        stats.waits.record(waitMillis);
+        priorityClass.waits.record(waitMillis);
+        return build;
+    }
+
+    /**
+     * Corrects the virtual time of the repository of a finished build with its real duration.
+     *
+     * @param build - The finished build
+     */
+    private void finished(Build build) {
+        lock.lock();
+        try {
+            Iterator<RunningBuild> iterator = running.iterator();
+            while (iterator.hasNext()) {
+                RunningBuild runningBuild = iterator.next();
+                if (runningBuild.build == build) {
+                    iterator.remove();
+                    String repository = build.getRepositoryName();
+                    RepositoryStats stats = repositoryStats.get(repository);
+                    stats.running--;
+                    long millis = Math.max(0, build.getFinishedAt() - build.getStartedAt());
+                    // A cancelled build did not run to the end, its duration tells nothing about the next builds
+                    if (!build.isCancelled()) {
+                        stats.expectedMillis = smooth(stats.expectedMillis, millis);
+                        expectedMillis = smooth(expectedMillis, millis);
+                    }
+                    runningBuild.queue.virtualTime += millis / weightOf(repository) - runningBuild.charge;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static double smooth(double average, long millis) {
+        return average < 0 ? millis : average + DURATION_SMOOTHING * (millis - average);
+    }
+
+    /**
+     * @return the expected duration of the next build of a repository: the average of its last builds,
+     *         or of the last builds of all the repositories for its first build
+     */
+    private double expectedMillis(RepositoryStats stats) {
+        if (stats.expectedMillis >= 0) {
+            return stats.expectedMillis;
+        }
+        return expectedMillis >= 0 ? expectedMillis : DEFAULT_BUILD_MILLIS;
+    }
+
+    private double weightOf(String repository) {
+        Double weight = weights.get(repository);
+        return weight != null && weight > 0 ? weight : 1;
+    }
+
+    /**
+     * @return the queued and running builds of every repository, its weight and the time its builds waited
+     *         in the queue, by repository name
+     */
+    public Map<String, Map<String, Object>> getRepositoryStatus() {
+        lock.lock();
+        try {
+            Map<String, Map<String, Object>> status = new TreeMap<>();
+            for (Map.Entry<String, RepositoryStats> entry : repositoryStats.entrySet()) {
+                Map<String, Object> repository = new LinkedHashMap<>();
+                repository.put("weight", weightOf(entry.getKey()));
+                repository.put("queued", 0);
+                repository.put("running", entry.getValue().running);
+                repository.put("expectedBuildMillis", Math.round(expectedMillis(entry.getValue())));
+                putWaits(repository, entry.getValue().waits);
+                status.put(entry.getKey(), repository);
+            }
+            for (PriorityClass priorityClass : classes.values()) {
+                for (Map.Entry<String, RepositoryQueue> entry : priorityClass.repositories.entrySet()) {
+                    Map<String, Object> repository = status.computeIfAbsent(entry.getKey(), name -> {
+                        Map<String, Object> queuedOnly = new LinkedHashMap<>();
+                        queuedOnly.put("weight", weightOf(name));
+                        queuedOnly.put("queued", 0);
+                        queuedOnly.put("running", 0);
+                        return queuedOnly;
+                    });
+                    repository.put("queued", (Integer) repository.get("queued") + entry.getValue().builds.size());
+                }
+            }
+            return status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queued builds of every priority class and the time its builds waited in the queue
+     */
+    public Map<String, Map<String, Object>> getPriorityStatus() {
+        lock.lock();
+        try {
+            Map<String, Map<String, Object>> status = new LinkedHashMap<>();
+            for (Map.Entry<Build.Priority, PriorityClass> entry : classes.entrySet()) {
+                Map<String, Object> priorityClass = new LinkedHashMap<>();
+                priorityClass.put("queued", entry.getValue().size);
+                putWaits(priorityClass, entry.getValue().waits);
+                status.put(entry.getKey().name().toLowerCase(), priorityClass);
+            }
+            return status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void putWaits(Map<String, Object> status, BuildStats.DurationHistogram waits) {
+        status.put("builds", waits.getCount());
+        status.put("waitMeanMillis", waits.getMean());
+        status.put("waitP50Millis", waits.getPercentile(50));
+        status.put("waitP90Millis", waits.getPercentile(90));
+        status.put("waitP99Millis", waits.getPercentile(99));
+        status.put("waitMaxMillis", waits.getMax());
+    }
+
+    /**
+     * @return the reason the queued builds are held by the admission check, or null if they are not held
+     */
+    public String getAdmissionHold() {
+        lock.lock();
+        try {
+            return admissionHold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times the admission check started holding the queued builds
+     */
+    public long getAdmissionHolds() {
+        lock.lock();
+        try {
+            return admissionHolds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The loop of a worker thread: takes builds from the queue and runs the pipeline on them.
+     */
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Build build;
+            try {
+                build = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            busyWorkers.incrementAndGet();
+            build.markStarted();
+            try {
+                pipeline.accept(build);
+            } catch (RuntimeException e) {
+                System.err.println("Error running build " + build.getId() + ": " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                build.markFinished();
+                busyWorkers.decrementAndGet();
+                finished(build);
+            }
+        }
+    }
+}
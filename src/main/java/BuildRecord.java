@@ -0,0 +1,142 @@
+// No package declaration here
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The entry of a finished build in the BuildIndex: the summary fields needed to answer the status,
+ * listing and details requests without reading the build directory. Immutable.
+ */
+public class BuildRecord {
+
+    private final String id;
+    private final String repository;
+    private final String branch;
+    private final String commit;
+    private final String status;
+    private final long finishedAtMillis;
+    private final String totalTime;
+    private final Map<String, Long> phaseMillis;
+
+    public BuildRecord(String id, String repository, String branch, String commit, String status,
+                       long finishedAtMillis, String totalTime) {
+        this(id, repository, branch, commit, status, finishedAtMillis, totalTime, null);
+    }
+
+    /**
+     * @param phaseMillis - The durations of the phases of the build in milliseconds, null if they were not recorded
+     */
+    public BuildRecord(String id, String repository, String branch, String commit, String status,
+                       long finishedAtMillis, String totalTime, Map<String, Long> phaseMillis) {
+        this.id = id;
+        this.repository = repository;
+        this.branch = branch;
+        this.commit = commit;
+        this.status = status;
+        this.finishedAtMillis = finishedAtMillis;
+        this.totalTime = totalTime;
+        this.phaseMillis = phaseMillis != null ? Collections.unmodifiableMap(new LinkedHashMap<>(phaseMillis)) : null;
+    }
+
+    /**
+     * Creates the record of a build from its summary.
+     * Summaries written before the repository and branch were recorded get them from the build id,
+     * which is repository_branch_commit_millis. The id can not tell apart an underscore of the repository name
+     * from one of the branch name, the branch is taken as the part after the last underscore.
+     *
+     * @param id - The id of the build, the name of its directory
+     * @param summary - The build summary
+     * @param defaultFinishedAtMillis - The time used when the summary has no finish time
+     * @return the record of the build
+     */
+    public static BuildRecord fromSummary(String id, JsonObject summary, long defaultFinishedAtMillis) {
+        String repository = getString(summary, "repository");
+        String branch = getString(summary, "branch");
+        String commit = getString(summary, "commit");
+        if (repository == null) {
+            String[] parts = id.split("_");
+            if (parts.length >= 4) {
+                commit = commit != null ? commit : parts[parts.length - 2];
+                branch = parts[parts.length - 3];
+                repository = String.join("_", Arrays.copyOfRange(parts, 0, parts.length - 3));
+            }
+        }
+        long finishedAtMillis = summary.has("finishedAtMillis")
+            ? summary.get("finishedAtMillis").getAsLong() : defaultFinishedAtMillis;
+        Map<String, Long> phaseMillis = null;
+        JsonElement phases = summary.get("phaseMillis");
+        if (phases != null && phases.isJsonObject()) {
+            phaseMillis = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> phase : phases.getAsJsonObject().entrySet()) {
+                phaseMillis.put(phase.getKey(), phase.getValue().getAsLong());
+            }
+        }
+        return new BuildRecord(id, repository, branch, commit, getString(summary, "buildStatus"),
+            finishedAtMillis, getString(summary, "totalTime"), phaseMillis);
+    }
+
+    /**
+     * Reads the record of a build from its directory.
+     *
+     * @param buildDir - The build directory
+     * @return the record, or null if the directory has no readable summary
+     */
+    public static BuildRecord fromBuildDir(File buildDir) {
+        File summaryFile = new File(buildDir, BuildSummaryFile.FILE_NAME);
+        if (!summaryFile.isFile()) {
+            return null;
+        }
+        try {
+            return fromSummary(buildDir.getName(), BuildSummaryFile.read(summaryFile), summaryFile.lastModified());
+        } catch (Exception e) {
+            System.err.println("Error reading build summary of " + buildDir.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String getString(JsonObject summary, String name) {
+        JsonElement value = summary.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public long getFinishedAtMillis() {
+        return finishedAtMillis;
+    }
+
+    public String getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return the durations of the phases of the build in milliseconds, null for the builds of older versions
+     */
+    public Map<String, Long> getPhaseMillis() {
+        return phaseMillis;
+    }
+}
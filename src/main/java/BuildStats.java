@@ -0,0 +1,400 @@
+// No package declaration here
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The durations of the phases of the finished builds, aggregated per repository and per branch for /api/stats/{repo}.
+ *
+ * Every finished build adds its phase durations to the histograms of the time bucket it finished in, so a
+ * request only merges the histograms of the buckets of its window and never reads the build history.
+ * The buckets older than the retention are dropped. The percentiles come from log-linear histograms
+ * with 16 sub-buckets per power of two, within about 3% of the exact value.
+ */
+public class BuildStats {
+
+    // The phases of a build: waiting in the queue, cloning, running Maven, reading the reports and writing the summary
+    public static final String QUEUE = "queue";
+    public static final String CLONE = "clone";
+    public static final String BUILD = "build";
+    public static final String POST_PROCESS = "postProcess";
+    public static final String TOTAL = "total";
+    public static final List<String> PHASES = Collections.unmodifiableList(Arrays.asList(QUEUE, CLONE, BUILD, POST_PROCESS, TOTAL));
+
+    public static final long DEFAULT_WINDOW_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int MAX_POINTS = 1000;
+
+    private static final String ALL_BRANCHES = "";
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    /**
+     * A histogram of durations in milliseconds. Only the non empty buckets are stored, in sorted arrays,
+     * so the histogram of an hour with a few builds takes a few bytes.
+     */
+    static class DurationHistogram {
+        private int[] buckets = new int[4];
+        private long[] counts = new long[4];
+        private int size;
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        void record(long millis) {
+            millis = Math.max(0, millis);
+            add(bucketOf(millis), 1);
+            count++;
+            sum += millis;
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+        }
+
+        void merge(DurationHistogram other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.buckets[i], other.counts[i]);
+            }
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        private void add(int bucket, long n) {
+            int i = Arrays.binarySearch(buckets, 0, size, bucket);
+            if (i >= 0) {
+                counts[i] += n;
+                return;
+            }
+            i = -i - 1;
+            if (size == buckets.length) {
+                buckets = Arrays.copyOf(buckets, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(buckets, i, buckets, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            buckets[i] = bucket;
+            counts[i] = n;
+            size++;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile - The percentile, between 0 and 100
+         * @return the duration below which the given percent of the durations are, 0 if the histogram is empty
+         */
+        long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < size; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long value = lowerBound(buckets[i]) + (lowerBound(buckets[i] + 1) - lowerBound(buckets[i])) / 2;
+                    return Math.max(min, Math.min(max, value));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Values below 16 have their own bucket, the others have 16 buckets per power of two.
+         */
+        static int bucketOf(long value) {
+            if (value < 16) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 4)) & 15;
+            return 16 + (exponent - 4) * 16 + subBucket;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int exponent = (bucket - 16) / 16 + 4;
+            return (16L + (bucket - 16) % 16) << (exponent - 4);
+        }
+    }
+
+    /**
+     * The histograms of the phases of the builds finished in one time bucket.
+     */
+    static class PhaseHistograms {
+        final Map<String, DurationHistogram> phases = new HashMap<>();
+
+        void record(Map<String, Long> phaseMillis) {
+            for (Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+                if (phase.getValue() != null) {
+                    phases.computeIfAbsent(phase.getKey(), k -> new DurationHistogram()).record(phase.getValue());
+                }
+            }
+        }
+
+        void merge(PhaseHistograms other) {
+            for (Map.Entry<String, DurationHistogram> phase : other.phases.entrySet()) {
+                phases.computeIfAbsent(phase.getKey(), k -> new DurationHistogram()).merge(phase.getValue());
+            }
+        }
+
+        long getBuilds() {
+            DurationHistogram total = phases.get(TOTAL);
+            return total != null ? total.getCount() : 0;
+        }
+    }
+
+    private final long bucketMillis;
+    private final long retentionMillis;
+
+    // Repository -> branch, or ALL_BRANCHES for the whole repository -> start of the time bucket -> histograms
+    private final Map<String, Map<String, TreeMap<Long, PhaseHistograms>>> stats = new HashMap<>();
+    private long lastPruneMillis;
+
+    /**
+     * @param bucketMillis - The length of the time buckets, the smallest interval of a trend
+     * @param retentionMillis - The time the durations of a build are kept
+     */
+    public BuildStats(long bucketMillis, long retentionMillis) {
+        this.bucketMillis = bucketMillis;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Adds the phase durations of a finished build. Cancelled builds and the builds of older versions,
+     * without phase durations, are not counted.
+     *
+     * @param record - The finished build
+     */
+    public synchronized void record(BuildRecord record) {
+        long now = System.currentTimeMillis();
+        if (record.getRepository() == null || record.getPhaseMillis() == null || "CANCELLED".equals(record.getStatus())
+            || record.getFinishedAtMillis() < now - retentionMillis) {
+            return;
+        }
+        Map<String, TreeMap<Long, PhaseHistograms>> branches = stats.computeIfAbsent(record.getRepository(), k -> new HashMap<>());
+        long bucket = bucketStart(record.getFinishedAtMillis());
+        branches.computeIfAbsent(ALL_BRANCHES, k -> new TreeMap<>())
+            .computeIfAbsent(bucket, k -> new PhaseHistograms()).record(record.getPhaseMillis());
+        if (record.getBranch() != null) {
+            branches.computeIfAbsent(record.getBranch(), k -> new TreeMap<>())
+                .computeIfAbsent(bucket, k -> new PhaseHistograms()).record(record.getPhaseMillis());
+        }
+        if (now - lastPruneMillis > bucketMillis) {
+            prune(now);
+        }
+    }
+
+    /**
+     * Aggregates the builds of the index, when the server starts.
+     *
+     * @param index - The build index
+     */
+    public synchronized void rebuild(BuildIndex index) {
+        stats.clear();
+        for (BuildRecord record : index.getBuilds()) {
+            record(record);
+        }
+    }
+
+    /**
+     * Drops the buckets older than the retention.
+     */
+    private void prune(long now) {
+        lastPruneMillis = now;
+        long oldest = bucketStart(now - retentionMillis);
+        stats.values().removeIf(branches -> {
+            branches.values().removeIf(buckets -> {
+                buckets.headMap(oldest).clear();
+                return buckets.isEmpty();
+            });
+            return branches.isEmpty();
+        });
+    }
+
+    private long bucketStart(long millis) {
+        return millis - Math.floorMod(millis, bucketMillis);
+    }
+
+    /**
+     * @param repository - The repository
+     * @return true if builds of the repository were aggregated
+     */
+    public synchronized boolean hasRepository(String repository) {
+        return stats.containsKey(repository);
+    }
+
+    /**
+     * Merges the histograms of the builds of a repository or a branch finished between two times.
+     *
+     * @param repository - The repository
+     * @param branch - The branch, null for all the branches of the repository
+     * @param fromMillis - The start of the period, rounded down to a bucket
+     * @param untilMillis - The end of the period, exclusive, rounded down to a bucket
+     * @return the histograms of the phases
+     */
+    synchronized PhaseHistograms aggregate(String repository, String branch, long fromMillis, long untilMillis) {
+        PhaseHistograms result = new PhaseHistograms();
+        Map<String, TreeMap<Long, PhaseHistograms>> branches = stats.get(repository);
+        TreeMap<Long, PhaseHistograms> buckets = branches != null ? branches.get(branch != null ? branch : ALL_BRANCHES) : null;
+        if (buckets != null) {
+            NavigableMap<Long, PhaseHistograms> period = buckets.subMap(bucketStart(fromMillis), true, bucketStart(untilMillis), false);
+            for (PhaseHistograms histograms : period.values()) {
+                result.merge(histograms);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses a duration like 90m, 24h, 7d or 2w, or a number of milliseconds.
+     *
+     * @param value - The duration
+     * @param name - The name of the parameter, for the error message
+     * @return the duration in milliseconds
+     * @throws IllegalArgumentException if the duration is invalid
+     */
+    static long parseDuration(String value, String name) {
+        try {
+            long unit = 1;
+            String number = value;
+            switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+                case 'm': unit = 60 * 1000L; break;
+                case 'h': unit = 60 * 60 * 1000L; break;
+                case 'd': unit = 24 * 60 * 60 * 1000L; break;
+                case 'w': unit = 7 * 24 * 60 * 60 * 1000L; break;
+                default: break;
+            }
+            if (unit != 1) {
+                number = value.substring(0, value.length() - 1);
+            }
+            long millis = Math.multiplyExact(Long.parseLong(number), unit);
+            if (millis > 0) {
+                return millis;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive duration like 90m, 24h, 7d or 2w");
+    }
+
+    /**
+     * Writes the statistics of a repository as JSON: the percentiles of every phase over the window,
+     * the same for the previous window with the change of the percentiles, and the series of the
+     * percentiles per interval of the window, oldest first.
+     *
+     * @param repository - The repository
+     * @param branch - The branch, null for all the branches of the repository
+     * @param windowMillis - The length of the window, rounded up to a number of intervals
+     * @param intervalMillis - The length of a point of the series, 0 for one bucket, rounded up to a number of buckets
+     * @param nowMillis - The end of the window
+     * @param out - The writer receiving the JSON
+     * @throws IllegalArgumentException if the window holds more than MAX_POINTS intervals
+     */
+    public void writeJson(String repository, String branch, long windowMillis, long intervalMillis, long nowMillis,
+                          Writer out) throws IOException {
+        long interval = Math.max(1, (intervalMillis + bucketMillis - 1) / bucketMillis) * bucketMillis;
+        long points = (windowMillis + interval - 1) / interval;
+        if (points > MAX_POINTS) {
+            throw new IllegalArgumentException("window must hold at most " + MAX_POINTS + " intervals");
+        }
+        long window = points * interval;
+        long until = bucketStart(nowMillis) + bucketMillis;
+        long from = until - window;
+
+        PhaseHistograms current = aggregate(repository, branch, from, until);
+        PhaseHistograms previous = aggregate(repository, branch, from - window, from);
+
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("repository").value(repository);
+        json.name("branch").value(branch);
+        json.name("from").value(from);
+        json.name("until").value(until);
+        json.name("windowMillis").value(window);
+        json.name("intervalMillis").value(interval);
+        json.name("builds").value(current.getBuilds());
+        json.name("phases");
+        writePhases(json, current);
+
+        json.name("previousWindow").beginObject();
+        json.name("builds").value(previous.getBuilds());
+        json.name("phases");
+        writePhases(json, previous);
+        json.endObject();
+
+        // Relative change of the percentiles from the previous window, for the phases measured in both
+        json.name("trend").beginObject();
+        for (String phase : PHASES) {
+            DurationHistogram now = current.phases.get(phase);
+            DurationHistogram before = previous.phases.get(phase);
+            if (now == null || before == null) {
+                continue;
+            }
+            json.name(phase).beginObject();
+            for (double percentile : PERCENTILES) {
+                long old = before.getPercentile(percentile);
+                if (old > 0) {
+                    double change = (now.getPercentile(percentile) - old) * 100.0 / old;
+                    json.name("p" + (int) percentile + "ChangePercent").value(Math.round(change * 10) / 10.0);
+                }
+            }
+            json.endObject();
+        }
+        json.endObject();
+
+        json.name("series").beginArray();
+        for (long start = from; start < until; start += interval) {
+            PhaseHistograms point = aggregate(repository, branch, start, start + interval);
+            json.beginObject();
+            json.name("from").value(start);
+            json.name("builds").value(point.getBuilds());
+            json.name("phases");
+            writePhases(json, point);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writePhases(JsonWriter json, PhaseHistograms histograms) throws IOException {
+        json.beginObject();
+        for (String phase : PHASES) {
+            DurationHistogram histogram = histograms.phases.get(phase);
+            if (histogram == null) {
+                continue;
+            }
+            json.name(phase).beginObject();
+            json.name("count").value(histogram.getCount());
+            json.name("meanMillis").value(histogram.getMean());
+            for (double percentile : PERCENTILES) {
+                json.name("p" + (int) percentile + "Millis").value(histogram.getPercentile(percentile));
+            }
+            json.name("maxMillis").value(histogram.getMax());
+            json.endObject();
+        }
+        json.endObject();
+    }
+}
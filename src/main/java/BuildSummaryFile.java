@@ -0,0 +1,95 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads and writes build_summary.json, the metadata of a build.
+ * The summary only holds small fields like the build status and the times, the Maven output is stored
+ * separately by the BuildLogStore. It is written as compact JSON and a single field can be read without parsing the rest.
+ */
+public class BuildSummaryFile {
+
+    public static final String FILE_NAME = "build_summary.json";
+
+    private static final Gson GSON = new Gson();
+
+    private BuildSummaryFile() {
+    }
+
+    /**
+     * Writes the summary of a build, replacing the existing one.
+     *
+     * @param buildDir - The build directory
+     * @param summary - The summary fields
+     */
+    public static void write(File buildDir, Map<String, Object> summary) throws IOException {
+        File temp = new File(buildDir, FILE_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(summary, writer);
+        }
+        Files.move(temp.toPath(), new File(buildDir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a top level string or number field of a summary. Reading stops at the field,
+     * the members before it are skipped without being parsed.
+     *
+     * @param summaryFile - The build_summary.json file
+     * @param name - The name of the field
+     * @return the value of the field, or null if the summary has no such field
+     */
+    public static String readField(File summaryFile, String name) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(summaryFile), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (name.equals(reader.nextName())) {
+                    JsonToken token = reader.peek();
+                    if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                        return reader.nextString();
+                    }
+                    return null;
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IllegalStateException e) {
+            throw new IOException("Invalid build summary: " + summaryFile, e);
+        }
+    }
+
+    /**
+     * Reads a whole summary.
+     *
+     * @param summaryFile - The build_summary.json file
+     * @return the summary as a JSON object
+     */
+    public static JsonObject read(File summaryFile) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(summaryFile), StandardCharsets.UTF_8)) {
+            JsonElement summary = JsonParser.parseReader(reader);
+            if (!summary.isJsonObject()) {
+                throw new IOException("Invalid build summary: " + summaryFile);
+            }
+            return summary.getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid build summary: " + summaryFile, e);
+        }
+    }
+}
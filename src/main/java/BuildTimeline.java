@@ -0,0 +1,177 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The spans of time of the phases of a build: the queue wait, the clone, the Maven run with the plugin goals
+ * read from its output, the post-processing and the cleanup. A span may have a parent, the span it is part of.
+ *
+ * The timeline is written to timeline.json in the build directory when the build is done, next to the summary.
+ */
+public class BuildTimeline {
+
+    public static final String FILE_NAME = "timeline.json";
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * A phase of a build, from its start to its end in milliseconds since the epoch.
+     */
+    public static class Span {
+        private final String name;
+        private final String parent;
+        private final long startMillis;
+        private final long endMillis;
+
+        /**
+         * @param name - The name of the phase
+         * @param parent - The name of the phase it is part of, or null
+         * @param startMillis - The start of the phase
+         * @param endMillis - The end of the phase
+         */
+        public Span(String name, String parent, long startMillis, long endMillis) {
+            this.name = name;
+            this.parent = parent;
+            this.startMillis = startMillis;
+            this.endMillis = Math.max(startMillis, endMillis);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getParent() {
+            return parent;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+    }
+
+    private final List<Span> spans = new ArrayList<>();
+
+    /**
+     * Adds a phase that started at startMillis and ends now.
+     */
+    public void add(String name, String parent, long startMillis) {
+        add(new Span(name, parent, startMillis, System.currentTimeMillis()));
+    }
+
+    public synchronized void add(Span span) {
+        spans.add(span);
+    }
+
+    public synchronized void addAll(List<Span> spans) {
+        this.spans.addAll(spans);
+    }
+
+    /**
+     * @return a copy of the spans, in the order they were added
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * Writes the timeline of a build, replacing the existing one.
+     *
+     * @param buildDir - The build directory
+     * @param buildId - The id of the build
+     */
+    public void write(File buildDir, String buildId) throws IOException {
+        List<Map<String, Object>> fields = new ArrayList<>();
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (Span span : getSpans()) {
+            Map<String, Object> field = new LinkedHashMap<>();
+            field.put("name", span.name);
+            if (span.parent != null) {
+                field.put("parent", span.parent);
+            }
+            field.put("startMillis", span.startMillis);
+            field.put("endMillis", span.endMillis);
+            field.put("durationMillis", span.endMillis - span.startMillis);
+            fields.add(field);
+            start = Math.min(start, span.startMillis);
+            end = Math.max(end, span.endMillis);
+        }
+        Map<String, Object> timeline = new LinkedHashMap<>();
+        timeline.put("buildId", buildId);
+        timeline.put("startMillis", fields.isEmpty() ? 0 : start);
+        timeline.put("endMillis", end);
+        timeline.put("spans", fields);
+
+        File temp = new File(buildDir, FILE_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(timeline, writer);
+        }
+        Files.move(temp.toPath(), new File(buildDir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes a timeline read from timeline.json as an HTML waterfall: one row per span, with a bar placed
+     * at its start and as long as its duration on the scale of the whole build. The parts of a span are
+     * indented below it.
+     *
+     * @param timeline - The content of timeline.json
+     * @param out - The writer receiving the HTML
+     */
+    public static void writeWaterfall(JsonObject timeline, PrintWriter out) {
+        String buildId = escapeHtml(timeline.get("buildId").getAsString());
+        long start = timeline.get("startMillis").getAsLong();
+        long total = Math.max(1, timeline.get("endMillis").getAsLong() - start);
+        out.println("<h1>Timeline of build " + buildId + "</h1>");
+        out.println("<table style='width: 100%; border-collapse: collapse; font-family: monospace'>");
+        out.println("<tr><th style='text-align: left'>Phase</th><th style='text-align: right'>Start</th>"
+            + "<th style='text-align: right'>Duration</th><th style='width: 60%'></th></tr>");
+        for (JsonElement element : timeline.getAsJsonArray("spans")) {
+            JsonObject span = element.getAsJsonObject();
+            boolean child = span.has("parent");
+            long offset = span.get("startMillis").getAsLong() - start;
+            long duration = span.get("durationMillis").getAsLong();
+            double left = 100.0 * offset / total;
+            double width = Math.max(0.2, 100.0 * duration / total);
+            out.println("<tr><td style='padding-left: " + (child ? "2em" : "0") + "'>"
+                + escapeHtml(span.get("name").getAsString()) + "</td>"
+                + "<td style='text-align: right'>" + formatMillis(offset) + "</td>"
+                + "<td style='text-align: right'>" + formatMillis(duration) + "</td>"
+                + "<td><div style='position: relative; height: 1em; background: #eee'>"
+                + "<div style='position: absolute; left: " + String.format(Locale.ROOT, "%.2f", left) + "%; width: "
+                + String.format(Locale.ROOT, "%.2f", Math.min(width, 100 - left)) + "%; height: 100%; background: "
+                + (child ? "#8ab" : "#369") + "'></div></div></td></tr>");
+        }
+        out.println("</table>");
+        out.println("<a href='/builds/" + buildId + "'>Build details</a>");
+        out.println("<a href='/builds/" + buildId + "/timeline'>Timeline as JSON</a>");
+    }
+
+    private static String formatMillis(long millis) {
+        return millis < 1000 ? millis + " ms" : String.format(Locale.ROOT, "%.1f s", millis / 1000.0);
+    }
+
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&#39;");
+    }
+}
@@ -3,40 +3,41 @@
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.lang.reflect.Type;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 
-import javax.mail.Message;
-import javax.mail.Multipart;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 
+import org.eclipse.jgit.api.CloneCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.lib.Constants;
 
-import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -53,21 +54,168 @@ public class ContinuousIntegrationServer extends AbstractHandler
 {
     // [IMPORTANT]: Update the path to the mvn executable 
 
+    // The output of Maven is read by the server and written to mavenOutput.txt, no shell redirect is needed
+
     // ******  Windows  ******
     // public final String[] mavenCommand = {
     //     "C:\\Program Files\\Maven\\apache-maven-3.9.6\\bin\\mvn.cmd",
     //     "clean",
-    //     "install",
-    //     ">", 
-    //     "mavenOutput.txt"
+    //     "install"
     // };
     //public final List<String> command = Arrays.asList(mavenCommand);
 
     //  *****  Linux  ******
-    public final List<String> command = new ArrayList<>(Arrays.asList("bash", "-c", "mvn clean test > mavenOutput.txt"));
+    public final List<String> command = new ArrayList<>(Arrays.asList("mvn", "clean", "test"));
+
+    // Maven goals run by the warm build JVMs, they must match the command above
+    public final List<String> mavenGoals = Arrays.asList("clean", "test");
+
+    // Number of error lines of the Maven output that keep a window of context lines in a trimmed log
+    private static final int MAX_ERROR_LINES = 100;
+
+    // Number of last lines of the Maven output shown in the build details and in the email
+    private static final int SUMMARY_TAIL_LINES = 50;
 
     // Directory to store cloned repositories and build summaries. It's located in the server.
     public final  String repoDir = "../build_history"; 
+
+    // Number of builds that run at the same time and number of builds that can wait in the queue.
+    // They can be changed with -Dci.workers=N and -Dci.queueCapacity=N when starting the server.
+    public final int workerCount = Integer.getInteger("ci.workers", 2);
+    public final int queueCapacity = Integer.getInteger("ci.queueCapacity", 100);
+
+    // Keep one bare git mirror per repository under the build history directory and create the
+    // build workspaces from it. Disabled with -Dci.gitMirrors=false, size limit set with -Dci.mirrorCacheBytes=N
+    public final boolean useGitMirrors = !"false".equals(System.getProperty("ci.gitMirrors"));
+    public final long mirrorCacheBytes = Long.getLong("ci.mirrorCacheBytes", 10L * 1024 * 1024 * 1024);
+    private final Map<String, GitMirrorCache> mirrorCaches = new ConcurrentHashMap<>();
+
+    // "exact" fetches only the pushed branch and checks out the pushed commit,
+    // "default" fetches all the branches and checks out the default branch. Set with -Dci.checkoutMode=...
+    public final String checkoutMode = System.getProperty("ci.checkoutMode", "exact");
+
+    // A push cancels the queued and running builds of the same repository and branch, except on the
+    // branches listed in -Dci.neverCancelBranches. Disabled with -Dci.supersedeBuilds=false
+    public final boolean supersedeBuilds = !"false".equals(System.getProperty("ci.supersedeBuilds"));
+    public final List<String> neverCancelBranches =
+        Arrays.asList(System.getProperty("ci.neverCancelBranches", "main,master").split(","));
+
+    // "forked" starts a new Maven process for every build with the command above, "warm" sends the builds
+    // to a pool of pre-warmed Maven JVMs. Set with -Dci.buildExecutor=warm, the pool is tuned with
+    // -Dci.warmWorkers, -Dci.warmWorkerMaxBuilds, -Dci.warmWorkerMaxHeapRatio and -Dci.warmWorkerHeap.
+    // "agents" sends the builds to the build agents registered on /agents, see createBuildExecutor
+    public final String buildExecutorMode = System.getProperty("ci.buildExecutor", "forked");
+    private final BuildExecutor buildExecutor = createBuildExecutor();
+    private final AgentCoordinator agentCoordinator =
+        buildExecutor instanceof AgentCoordinator ? (AgentCoordinator) buildExecutor : null;
+
+    // With -Dci.cpuBudget=N, the N cores of the host are split between the running builds, which get
+    // matching -T and -DforkCount arguments. "auto" uses the cores of the host, 0 (default) leaves Maven as is
+    private final CpuBudget cpuBudget = createCpuBudget();
+
+    // Serves the logs on /builds/{id}/log. A reader following a running build more than -Dci.logMaxLagBytes
+    // behind is skipped ahead, at most -Dci.maxLogWatchers readers can follow running builds at the same time
+    private final BuildLogStreamer logStreamer = new BuildLogStreamer(
+        Long.getLong("ci.logMaxLagBytes", 1024 * 1024), Integer.getInteger("ci.maxLogWatchers", 50));
+
+    // Compresses the logs of the finished builds. -Dci.logRetention=trim-success (default) only keeps the error
+    // windows and the last lines of the successful builds, trim-all does it for every build and full keeps all logs.
+    // The windows and the tail are set with -Dci.logContextLines and -Dci.logTailLines
+    private final BuildLogArchiver logArchiver = new BuildLogArchiver(System.getProperty("ci.logRetention", "trim-success"),
+        Integer.getInteger("ci.logContextLines", 20), Integer.getInteger("ci.logTailLines", 200), MAX_ERROR_LINES);
+
+    // Index of the finished builds answering the status, listing and details requests, loaded at startup
+    private final BuildIndex buildIndex = new BuildIndex();
+
+    // "changed" runs only the modules and tests affected by the files changed by a push, "full" (default) always
+    // runs the whole build. A push without a file list, a change to a build file or a previous build of the branch
+    // that did not succeed runs the whole build
+    public final String testSelection = System.getProperty("ci.testSelection", "full");
+
+    // Durations of the phases of the finished builds per repository and branch, served on /api/stats/{repo}.
+    // They are aggregated in buckets of -Dci.statsBucketMinutes, kept for -Dci.statsRetentionDays
+    private final BuildStats buildStats = new BuildStats(Long.getLong("ci.statsBucketMinutes", 60) * 60 * 1000,
+        Long.getLong("ci.statsRetentionDays", 90) * 24 * 60 * 60 * 1000);
+
+    // Precomputed responses of the /build-status badges, cached by the clients for -Dci.badgeMaxAge seconds
+    private final BadgeCache badgeCache = new BadgeCache(Integer.getInteger("ci.badgeMaxAge", 30));
+
+    // Emails of the build results, sent in the background by the outbox of the build history directory.
+    // The SMTP server is set with -Dci.smtp.host, -Dci.smtp.port, -Dci.smtp.user, -Dci.smtp.password and
+    // -Dci.smtp.starttls, the sender with -Dci.mail.from. Failed emails are tried again after -Dci.mailRetrySeconds,
+    // doubled after every failure, at most -Dci.mailMaxAttempts times. With -Dci.mailDigestSeconds=N the results
+    // for the same committer within N seconds are sent as one email
+    private final EmailOutbox emailOutbox = createEmailOutbox();
+
+    // Address of the server used in the links of the emails, set with -Dci.publicUrl
+    public final String publicUrl = System.getProperty("ci.publicUrl", "http://localhost:8028");
+
+    // Deletes the finished workspaces in the background with -Dci.janitorThreads threads, and every
+    // -Dci.janitorIntervalSeconds removes the builds of a repository beyond the newest -Dci.retention.keepBuilds,
+    // older than -Dci.retention.maxAgeDays or beyond -Dci.retention.maxBytes of disk space (0 for no limit)
+    private final WorkspaceJanitor janitor = new WorkspaceJanitor(new File(repoDir),
+        Integer.getInteger("ci.janitorThreads", 2),
+        Integer.getInteger("ci.retention.keepBuilds", 200),
+        Long.getLong("ci.retention.maxAgeDays", 90) * 24 * 60 * 60 * 1000,
+        Long.getLong("ci.retention.maxBytes", 0));
+
+    // With -Dci.workspacePool=true, the builds of a branch reuse up to -Dci.workspacesPerBranch (2) workspaces, updated
+    // in place and built without the clean goal. -Dci.buildMode=clean runs the clean goal in every build. A clean build
+    // is forced every -Dci.cleanBuildEvery builds (20) and every -Dci.cleanBuildHours (24), and workspaces unused for
+    // -Dci.workspaceIdleDays (7) are deleted. The pool needs the git mirrors and the exact checkout mode
+    private final WorkspacePool workspacePool = "true".equals(System.getProperty("ci.workspacePool"))
+        ? new WorkspacePool(new File(repoDir, WorkspacePool.POOL_DIR), janitor,
+            Integer.getInteger("ci.workspacesPerBranch", 2),
+            !"clean".equals(System.getProperty("ci.buildMode", "incremental")),
+            Integer.getInteger("ci.cleanBuildEvery", 20),
+            Long.getLong("ci.cleanBuildHours", 24) * 60 * 60 * 1000,
+            Long.getLong("ci.workspaceIdleDays", 7) * 24 * 60 * 60 * 1000)
+        : null;
+
+    // Pushes to the -Dci.protectedBranches run before the pushes to other branches, and manual rebuilds before both.
+    // Within a priority class, the workers are shared between repositories by the weights of -Dci.repoWeights=repo:3,...
+    public final List<String> protectedBranches =
+        Arrays.asList(System.getProperty("ci.protectedBranches", "main,master").split(","));
+    public final Map<String, Double> repositoryWeights = parseWeights(System.getProperty("ci.repoWeights", ""));
+
+    // A build only starts with -Dci.minFreeMemoryMb (512) of memory available and -Dci.minFreeDiskMb (1024)
+    // free in the build history, checked again every -Dci.admissionRetrySeconds (5) while the builds are held
+    private final AdmissionControl admissionControl = new AdmissionControl(new File(repoDir),
+        Long.getLong("ci.minFreeMemoryMb", 512) * 1024 * 1024, Long.getLong("ci.minFreeDiskMb", 1024) * 1024 * 1024);
+
+    // Queue of pending builds, drained by the build workers
+    private final BuildQueue buildQueue = new BuildQueue(workerCount, queueCapacity, this::runBuild,
+        repositoryWeights, admissionControl, Long.getLong("ci.admissionRetrySeconds", 5) * 1000);
+
+    // Every push is written to a journal in the build history directory and synced before it is acknowledged.
+    // The pushes whose build did not finish are built again when the server starts. The journal is split in
+    // segments of -Dci.spoolSegmentMb (16) MB, deleted once their builds are done. Disabled with -Dci.spool=false
+    private final WebhookSpool spool = "false".equals(System.getProperty("ci.spool")) ? null
+        : new WebhookSpool(new File(repoDir, WebhookSpool.DIR_NAME), Long.getLong("ci.spoolSegmentMb", 16) * 1024 * 1024);
+    // The builds of the pushes not recorded yet, by id. Their spool entry is done when they finish or are superseded
+    private final Map<String, Build> pendingBuilds = new ConcurrentHashMap<>();
+
+    // The deliveries already built, found by their X-GitHub-Delivery id and by their repository and head commit.
+    // -Dci.dedupMaxEntries (100000) ids and commits are remembered, -Dci.dedupCommits=false only uses the ids
+    private final DeliveryDedup deliveryDedup = new DeliveryDedup(Integer.getInteger("ci.dedupMaxEntries", 100000));
+    public final boolean dedupCommits = !"false".equals(System.getProperty("ci.dedupCommits"));
+
+    // The counters and latency histograms of the server, written in the Prometheus text format on /metrics
+    private final Metrics metrics = createMetrics();
+    private final Metrics.Family<Metrics.Counter> webhookRequests = metrics.counterFamily("ci_webhook_requests_total",
+        "Webhook requests by event and outcome", "event", "outcome");
+    private final Metrics.Histogram webhookSeconds = metrics.histogram("ci_webhook_seconds",
+        "Time to acknowledge a push, from the request to the response");
+    private final Metrics.Histogram parseSeconds = metrics.histogram("ci_payload_parse_seconds",
+        "Time to read and parse the payload of a push");
+    private final Metrics.Family<Metrics.Histogram> phaseSeconds = metrics.histogramFamily("ci_build_phase_seconds",
+        "Duration of the phases of the finished builds: queue, clone, build, postProcess and total", "phase");
+    private final Metrics.Histogram summarySeconds = metrics.histogram("ci_summary_seconds",
+        "Time to write the summary, test results and compressed log of a finished build");
+    private final Metrics.Family<Metrics.Counter> buildsFinished = metrics.counterFamily("ci_builds_total",
+        "Finished builds by status", "status");
+    private final Metrics.Family<Metrics.Histogram> lookupSeconds = metrics.histogramFamily("ci_status_lookup_seconds",
+        "Time to answer the badges, the build pages and the status APIs", "route");
      
     @Override
     /**
@@ -88,6 +236,18 @@ public class ContinuousIntegrationServer extends AbstractHandler
         response.setContentType("text/html;charset=utf-8");
         response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
+        long requestStart = System.nanoTime();
+
+        // Badges are polled all the time, they are answered from the badge cache before anything else
+        if (target.startsWith(BadgeCache.PREFIX) && target.length() > BadgeCache.PREFIX.length()) {
+            badgeCache.serve(target, request, response);
+            lookupSeconds.labels("badge").observeNanos(System.nanoTime() - requestStart);
+            return;
+        }
+        // The requests of the build agents, polled all the time too
+        if (agentCoordinator != null && agentCoordinator.handle(target, request, response)) {
+            return;
+        }
 
         System.out.println("Target: " + target);
 
@@ -96,105 +256,375 @@ public class ContinuousIntegrationServer extends AbstractHandler
         System.out.println("Received event: " + eventType);
 
 
-        // Read the JSON payload
-        StringBuilder payloadBuilder = new StringBuilder();
-        String line;
-        try (BufferedReader reader = request.getReader()) {
-            while ((line = reader.readLine()) != null) {
-                payloadBuilder.append(line);
-            }
-        }
-        String payload = payloadBuilder.toString();
-
         if ("push".equals(eventType)) {
-            handlePushEvent(payload);
+            // Parse the JSON payload straight from the request bytes, kept for the spool if it is open
+            boolean spooled = spool != null && spool.isOpen();
+            byte[] payload = null;
+            PushEvent event;
+            try (InputStream in = request.getInputStream()) {
+                if (spooled) {
+                    payload = readPayload(in);
+                    event = PushEvent.parse(new ByteArrayInputStream(payload));
+                } else {
+                    event = PushEvent.parse(in);
+                }
+            } catch (IOException e) {
+                System.err.println("Error parsing JSON payload: " + e.getMessage());
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println("Invalid push event payload.");
+                recordPush("invalid", requestStart);
+                return;
+            }
+            parseSeconds.observeNanos(System.nanoTime() - requestStart);
+            // A delivery sent again by GitHub, or a commit already built, points at the existing build
+            String deliveryId = request.getHeader("X-GitHub-Delivery");
+            String repository = dedupRepository(event);
+            String commit = dedupCommits ? event.getHeadCommitId() : null;
+            String existingBuildId = deliveryDedup.findOrReserve(deliveryId, repository, event.getRef(), commit, this::isBuildCurrent);
+            if (existingBuildId != null) {
+                System.out.println("Duplicate delivery " + deliveryId + " of build " + existingBuildId);
+                response.setContentType("application/json");
+                response.getWriter().print("{\"buildId\": " + (existingBuildId.isEmpty() ? "null" : "\"" + existingBuildId + "\"")
+                    + ", \"duplicate\": true}");
+                recordPush("duplicate", requestStart);
+                return;
+            }
+            long spoolSequence = -1;
+            if (spooled) {
+                try {
+                    spoolSequence = spool.append(payload);
+                } catch (IOException | InterruptedException e) {
+                    deliveryDedup.release(deliveryId, repository, event.getRef(), commit);
+                    System.err.println("Error writing the push to the spool: " + e.getMessage());
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setContentType("application/json");
+                    response.getWriter().print("{\"error\": \"The push could not be stored\"}");
+                    recordPush("rejected", requestStart);
+                    return;
+                }
+            }
+            Build build = handlePushEvent(event, spoolSequence);
+            response.setContentType("application/json");
+            if (build != null) {
+                deliveryDedup.record(deliveryId, repository, event.getRef(), commit, build.getId());
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.getWriter().print("{\"buildId\": \"" + build.getId() + "\", \"queueDepth\": " + buildQueue.getQueueDepth() + "}");
+                recordPush("accepted", requestStart);
+            } else {
+                deliveryDedup.release(deliveryId, repository, event.getRef(), commit);
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.getWriter().print("{\"error\": \"Build queue is full\"}");
+                recordPush("rejected", requestStart);
+            }
+            return;
         } else if ("pull_request".equals(eventType)) {
-            handlePullRequestEvent(payload);
+            try (InputStream in = request.getInputStream()) {
+                handlePullRequestEvent(in);
+            }
+            webhookRequests.labels(eventType, "accepted").inc();
         } else {
             System.out.println("Unhandled event type: " + eventType);
+            if (eventType != null) {
+                // The header is sent by the client: only the known events get their own label
+                webhookRequests.labels("ping".equals(eventType) ? "ping" : "other", "ignored").inc();
+            }
         }
 
-        if ("/builds".equals(target)) {
-            System.out.println("Target : "+ target);
-            listBuilds(response);
+        String route = null;
+
+        if (target.startsWith("/builds/") && target.endsWith("/rebuild")) {
+            rebuild(target, request, response);
+        } else if ("/metrics".equals(target)) {
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            metrics.write(response.getWriter());
+        } else if ("/queue".equals(target)) {
+            showQueueStatus(response);
+            route = "queue";
+        } else if ("/janitor".equals(target)) {
+            showJanitorStatus(response);
+        } else if ("/api/builds".equals(target)) {
+            listBuildsJson(request, response);
+            route = "api_builds";
+        } else if (target.startsWith("/api/stats/")) {
+            showBuildStats(target, request, response);
+            route = "api_stats";
+        } else if ("/builds".equals(target)) {
+            listBuilds(request, response);
+            route = "builds";
+        } else if (target.startsWith("/builds/") && target.endsWith("/log")) {
+            showBuildLog(target, request, response);
+        } else if (target.startsWith("/builds/") && target.endsWith("/tests")) {
+            showTestResults(target, request, response);
+            route = "build_tests";
+        } else if (target.startsWith("/builds/") && target.endsWith("/timeline")) {
+            showTimeline(target, request, response);
+            route = "build_timeline";
         } else if (target.startsWith("/builds/")) {
             showBuildDetails(target, response);
-        } else if (target.startsWith("/build-status/")) {
-            String repoName = target.substring("/build-status/".length());
-            if (repoName != null && !repoName.isEmpty()) {
-                getBuildStatus(repoName, response);
-            } else {
-                response.getWriter().println("Repository name is missing in the request URL.");
-            }
+            route = "build";
+        } else if (target.startsWith(BadgeCache.PREFIX)) {
+            // /build-status/{repo} and /build-status/{repo}/{branch} are answered by the badge cache above
+            response.getWriter().println("Repository name is missing in the request URL.");
         } else {
             // Handle other requests or show default message
             response.getWriter().println("CI Server is running. Use /builds to list all builds.");
         }
+        if (route != null) {
+            lookupSeconds.labels(route).observeNanos(System.nanoTime() - requestStart);
+        }
         
         
     }  
 
     /**
-     * This function transforms a string in json format into a String,Object map.
-     * @param request - Request payload from webhook. It is in the JSON format (but json isn't selected in the Webhook options!!)
-     * @return A mapping String,Object of the json payload
+     * This function counts a push request by its outcome and records the time taken to answer it.
+     *
+     * @param outcome - accepted, duplicate, rejected or invalid
+     * @param requestStart - The System.nanoTime() when the request was received
      */
-    private Map<String, Object> request_to_map(String request){
+    private void recordPush(String outcome, long requestStart) {
+        webhookRequests.labels("push", outcome).inc();
+        webhookSeconds.observeNanos(System.nanoTime() - requestStart);
+    }
 
-        Gson gson = new Gson();
-        Type mapType = new TypeToken<Map<String, Object>>() {}.getType();
-        return gson.fromJson(request, mapType);
+    /**
+     * This function reads the whole body of a webhook request, to write it to the spool.
+     *
+     * @param in - The body of the request
+     * @return the bytes of the body
+     */
+    private static byte[] readPayload(InputStream in) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            payload.write(buffer, 0, read);
+        }
+        return payload.toByteArray();
     }
 
     /**
      * This function extracts the latest commit message from the push event payload.
-     * It uses the Gson library to parse the JSON payload and extract the commit message.
+     * It parses the payload into a PushEvent and returns the message of the last listed commit.
      * If no commits are found, it returns null.
      * 
      * @param payload - The JSON payload from the push event
      * @return The latest commit message
      */
     public String getLatestCommitMessageFromPush(String payload) {
-        try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            List<Map<String, Object>> commits = (List<Map<String, Object>>) payloadMap.get("commits");
-            if (commits != null && !commits.isEmpty()) {
-                Map<String, Object> latestCommit = commits.get(commits.size() - 1);
-                return (String) latestCommit.get("message");
-            }
-        } catch (Exception e) {
-            // System.err.println("Error parsing JSON payload: " + e.getMessage());
-            // e.printStackTrace();
-        }
-        return null; // Return null if no commits found
+        PushEvent event = PushEvent.parse(payload);
+        return event != null ? event.getLatestCommitMessage() : null;
     }
 
     /**
      * Clones a Git repository to a specified directory.
      * The repository is cloned to a unique directory name generated from the commit hash and the current time.
+     * When git mirrors are enabled, the mirror of the repository in the ".mirrors" directory of baseCloneDirPath
+     * is fetched and the clone is created from it locally.
      * 
      * @param repoUrl the URL of the repository to clone.
      * @param baseCloneDirPath the base path to the directory where the repository will be cloned.
      * @param uniqueDirName the hash of the commit to clone.
      */
     public void cloneRepository(String repoUrl, String baseCloneDirPath, String uniqueDirName) {
+        cloneRepository(repoUrl, baseCloneDirPath, uniqueDirName, null, null);
+    }
+
+    /**
+     * Clones a Git repository to a specified directory.
+     * If a branch and a commit are given, only this branch is fetched and the given commit is checked out.
+     * Otherwise all the branches are fetched and the default branch is checked out.
+     * 
+     * @param repoUrl the URL of the repository to clone.
+     * @param baseCloneDirPath the base path to the directory where the repository will be cloned.
+     * @param uniqueDirName the hash of the commit to clone.
+     * @param branch the pushed branch, or null to clone all the branches.
+     * @param commitId the pushed commit, or null to check out the head of the default branch.
+     * @return the size and duration of the fetch, or null if the clone failed.
+     */
+    private FetchStats cloneRepository(String repoUrl, String baseCloneDirPath, String uniqueDirName,
+                                       String branch, String commitId) {
         File cloneDir = new File(baseCloneDirPath, uniqueDirName);
         if (!cloneDir.mkdirs()) {
             System.err.println("Failed to create directory for clone: " + cloneDir.getPath());
-            return;
+            return null;
         }
+        boolean exactCommit = branch != null && commitId != null;
         
         try {
-            System.out.println("Cloning repository from " + repoUrl + " to " + cloneDir.getPath());
-            Git.cloneRepository()
-                .setURI(repoUrl)
-                .setDirectory(cloneDir)
-                .call();
-            System.out.println("Repository cloned successfully.");
-        } catch (GitAPIException e) {
+            System.out.println("Cloning repository from " + repoUrl + " to " + cloneDir.getPath()
+                + (exactCommit ? " at " + branch + "@" + commitId : ""));
+            FetchStats stats;
+            if (useGitMirrors && exactCommit) {
+                stats = getMirrorCache(baseCloneDirPath).createWorkspaceAtCommit(repoUrl, cloneDir, branch, commitId);
+            } else if (useGitMirrors) {
+                stats = getMirrorCache(baseCloneDirPath).createWorkspace(repoUrl, cloneDir, null);
+            } else {
+                long start = System.currentTimeMillis();
+                CloneCommand clone = Git.cloneRepository()
+                    .setURI(repoUrl)
+                    .setDirectory(cloneDir);
+                if (exactCommit) {
+                    clone.setBranchesToClone(Collections.singleton(Constants.R_HEADS + branch))
+                        .setBranch(Constants.R_HEADS + branch);
+                }
+                try (Git git = clone.call()) {
+                    if (exactCommit) {
+                        git.reset().setMode(ResetType.HARD).setRef(commitId).call();
+                    }
+                }
+                long fetchBytes = GitMirrorCache.directorySize(new File(cloneDir, ".git").toPath());
+                stats = new FetchStats(fetchBytes, System.currentTimeMillis() - start);
+            }
+            System.out.println("Repository cloned successfully (" + stats.getBytes() + " bytes fetched in "
+                + stats.getMillis() + " ms).");
+            return stats;
+        } catch (GitAPIException | IOException | IllegalArgumentException e) {
             System.err.println("Error cloning repository: " + e.getMessage());
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * This function creates the metrics of the server, with the gauges and counters read from its components
+     * when the metrics are written.
+     *
+     * @return the metrics
+     */
+    private Metrics createMetrics() {
+        Metrics metrics = new Metrics();
+        metrics.gauge("ci_queue_depth", "Builds waiting for a worker", buildQueue::getQueueDepth);
+        metrics.gauge("ci_workers", "Build workers", buildQueue::getWorkerCount);
+        metrics.gauge("ci_busy_workers", "Build workers running a build", buildQueue::getBusyWorkers);
+        metrics.counter("ci_admission_holds_total", "Times a build was held for lack of memory or disk",
+            buildQueue::getAdmissionHolds);
+        metrics.counter("ci_duplicate_deliveries_total", "Webhook deliveries answered with an existing build",
+            () -> deliveryDedup.getDeliveryHits() + deliveryDedup.getCommitHits());
+        if (spool != null) {
+            metrics.gauge("ci_spooled_pushes", "Pushes in the spool whose build is not finished", spool::getLiveEntries);
+            metrics.gauge("ci_spool_segments", "Segment files of the spool", spool::getSegmentCount);
+            metrics.counter("ci_spool_syncs_total", "Fsyncs of the spool", spool::getSyncs);
+        }
+        if (cpuBudget != null) {
+            metrics.gauge("ci_cpu_budget_cores", "Cores shared between the builds", cpuBudget::getTotalCores);
+            metrics.gauge("ci_cpu_allocated_cores", "Cores given to the running builds", cpuBudget::getAllocatedCores);
+        }
+        if (agentCoordinator != null) {
+            metrics.gauge("ci_agents", "Build agents registered", agentCoordinator::getAgentCount);
+            metrics.gauge("ci_agent_free_slots", "Builds the agents can still take", agentCoordinator::getFreeSlots);
+            metrics.counter("ci_agent_rescheduled_jobs_total", "Builds run again after their agent was lost",
+                agentCoordinator::getRescheduledJobs);
+        }
+        if (workspacePool != null) {
+            metrics.counter("ci_workspace_clean_builds_total", "Builds of the pool run with the clean goal",
+                workspacePool::getCleanBuilds);
+            metrics.counter("ci_workspace_busy_misses_total", "Builds that found all the workspaces of their branch busy",
+                workspacePool::getBusyMisses);
+        }
+        metrics.gauge("ci_emails_pending", "Emails waiting in the outbox", emailOutbox::getPendingCount);
+        metrics.counter("ci_emails_sent_total", "Emails sent", emailOutbox::getSentCount);
+        metrics.counter("ci_emails_failed_total", "Emails given up after their last attempt", emailOutbox::getFailedCount);
+        metrics.counter("ci_smtp_connections_total", "Connections opened to the SMTP server", emailOutbox::getConnectionCount);
+        metrics.histogram("ci_email_send_seconds", "Time to send an email or a digest", emailOutbox.getSendLatency());
+        metrics.gauge("ci_cleanup_backlog", "Workspaces waiting to be deleted", janitor::getBacklog);
+        metrics.counter("ci_cleanup_reclaimed_bytes_total", "Bytes deleted by the janitor", janitor::getReclaimedBytes);
+        metrics.counter("ci_cleanup_failed_deletes_total", "Files the janitor could not delete", janitor::getFailedDeletes);
+        metrics.histogram("ci_cleanup_seconds", "Time to delete a workspace or a build", janitor.getDeleteLatency());
+        return metrics;
+    }
+
+    /**
+     * Creates the CPU budget of the builds from -Dci.cpuBudget.
+     *
+     * @return the CPU budget, or null if the builds are not given a number of cores.
+     */
+    private CpuBudget createCpuBudget() {
+        String value = System.getProperty("ci.cpuBudget", "0");
+        int cores = "auto".equals(value) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value);
+        // The builds run on the agents do not use the cores of the server
+        return cores > 0 && agentCoordinator == null ? new CpuBudget(cores, workerCount) : null;
+    }
+
+    /**
+     * Creates the executor running the Maven builds, as selected by the buildExecutorMode.
+     * The warm executor falls back to forked builds when Maven can not be found.
+     * The agent coordinator is set with -Dci.agentHeartbeatSeconds (5), -Dci.agentTimeoutSeconds (30),
+     * -Dci.agentLocalityWaitSeconds (3), -Dci.agentMaxAttempts (3) and -Dci.agentToken.
+     *
+     * @return the build executor.
+     */
+    private BuildExecutor createBuildExecutor() {
+        if ("agents".equals(buildExecutorMode)) {
+            return new AgentCoordinator(Long.getLong("ci.agentHeartbeatSeconds", 5) * 1000,
+                Long.getLong("ci.agentTimeoutSeconds", 30) * 1000,
+                Long.getLong("ci.agentLocalityWaitSeconds", 3) * 1000,
+                Integer.getInteger("ci.agentMaxAttempts", 3),
+                System.getProperty("ci.agentToken"));
+        }
+        BuildExecutor forked = new ForkedBuildExecutor(command);
+        if (!"warm".equals(buildExecutorMode)) {
+            return forked;
+        }
+        File mavenHome = WarmMavenExecutor.findMavenHome();
+        if (mavenHome == null) {
+            System.err.println("Maven home not found, using forked builds.");
+            return forked;
+        }
+        return new WarmMavenExecutor(mavenHome,
+            Integer.getInteger("ci.warmWorkers", workerCount),
+            mavenGoals,
+            Integer.getInteger("ci.warmWorkerMaxBuilds", 50),
+            Double.parseDouble(System.getProperty("ci.warmWorkerMaxHeapRatio", "0.8")),
+            System.getProperty("ci.warmWorkerHeap", "1g"),
+            forked);
+    }
+
+    /**
+     * Creates the outbox of the build result emails. No connection is opened before the first email.
+     *
+     * @return the email outbox, started by main.
+     */
+    private EmailOutbox createEmailOutbox() {
+        // No account by default: the credentials are given with -Dci.smtp.user and -Dci.smtp.password
+        final String user = System.getProperty("ci.smtp.user", "");
+        final String password = System.getProperty("ci.smtp.password", "");
+
+        Properties props = new Properties();
+        props.put("mail.smtp.host", System.getProperty("ci.smtp.host", "smtp.gmail.com")); // SMTP Host
+        props.put("mail.smtp.port", System.getProperty("ci.smtp.port", "587")); // TLS Port
+        props.put("mail.smtp.auth", Boolean.toString(!user.isEmpty())); // enable authentication
+        props.put("mail.smtp.starttls.enable", System.getProperty("ci.smtp.starttls", "true")); // enable STARTTLS
+        props.put("mail.smtp.connectiontimeout", "30000");
+        props.put("mail.smtp.timeout", "60000");
+
+        // Create a session with account credentials
+        Session session = Session.getInstance(props, new javax.mail.Authenticator() {
+            protected javax.mail.PasswordAuthentication getPasswordAuthentication() {
+                return new javax.mail.PasswordAuthentication(user, password);
+            }
+        });
+        InternetAddress from;
+        try {
+            from = new InternetAddress(System.getProperty("ci.mail.from", user), "CI Server");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
+        return new EmailOutbox(new File(repoDir, ".outbox"), session, from,
+            Long.getLong("ci.mailDigestSeconds", 0) * 1000,
+            Long.getLong("ci.mailRetrySeconds", 30) * 1000,
+            Integer.getInteger("ci.mailMaxAttempts", 8));
+    }
+
+    /**
+     * Returns the git mirror cache stored in a build history directory.
+     *
+     * @param baseCloneDirPath the path to the build history directory.
+     * @return the mirror cache of the directory.
+     */
+    private GitMirrorCache getMirrorCache(String baseCloneDirPath) {
+        return mirrorCaches.computeIfAbsent(baseCloneDirPath,
+            path -> new GitMirrorCache(new File(path, ".mirrors"), mirrorCacheBytes));
     }
 
     /**
@@ -205,24 +635,71 @@ public class ContinuousIntegrationServer extends AbstractHandler
      * @param payload the JSON payload received from the webhook.
      */
     public boolean compileMavenProject(String projectDirPath, String uniqueDirName, String payload){
+        return compileMavenProject(new Build(uniqueDirName, PushEvent.parse(payload), projectDirPath));
+    }
+
+    /**
+     * Compiles the Maven project of a build and runs tests.
+     * The project is located in the directory named after the build id, in the clone directory of the build.
+     *
+     * @param build the build to compile.
+     */
+    public boolean compileMavenProject(Build build){
+        String projectDirPath = build.getCloneDirPath();
+        String uniqueDirName = build.getId();
+        PushEvent event = build.getEvent();
         int exitCode = -1; // Default exit code for failure
         boolean buildSuccess = false;
+        MavenOutputParser parser = logArchiver.newParser();
         try {            
-            // Create a process builder to execute the command in the project directory
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            processBuilder.directory(new File(projectDirPath, uniqueDirName)); // Set the working directory
-            
-            // Inherit IO to display output in the console
-            processBuilder.inheritIO();
-            
-            // Start the process
-            Process process = processBuilder.start();
-
-            // Wait for the process to complete
-            exitCode = process.waitFor();
+            // Run Maven in the project directory, unless a newer push already cancelled the build
+            if (build.isCancelled()) {
+                return false;
+            }
+            // The Maven output is written to the build directory, Maven runs in the workspace of the build
+            File projectDir = new File(projectDirPath, uniqueDirName);
+            File workspaceDir = build.getWorkspaceDir();
+            // The workspace of a build run on an agent is on the agent, the whole build runs there
+            if ("changed".equals(testSelection) && event != null && agentCoordinator == null) {
+                long selectionStart = System.currentTimeMillis();
+                TestSelector.Selection selection = selectTests(build, workspaceDir);
+                System.out.println("Test selection: " + selection.getReason() + " " + selection.getMavenArgs());
+                build.setMavenArgs(selection.getMavenArgs());
+                build.putSummaryField("testSelection", selection.toSummary());
+                build.getTimeline().add("testSelection", null, selectionStart);
+            }
+            CpuBudget.Allocation cores = null;
+            if (cpuBudget != null) {
+                cores = cpuBudget.acquire(buildQueue.getBusyWorkers() + buildQueue.getQueueDepth(),
+                    TestSelector.countModules(workspaceDir));
+                List<String> args = new ArrayList<>(build.getMavenArgs());
+                args.addAll(cores.getMavenArgs());
+                build.setMavenArgs(args);
+                build.putSummaryField("cpu", cores.toSummary());
+            }
+            try (BuildOutput output = new BuildOutput(new File(projectDir, "mavenOutput.txt"), parser)) {
+                logStreamer.register(uniqueDirName, output);
+                long buildStart = System.currentTimeMillis();
+                try {
+                    exitCode = buildExecutor.execute(build, workspaceDir, output);
+                } finally {
+                    long buildEnd = System.currentTimeMillis();
+                    build.putPhaseMillis(BuildStats.BUILD, buildEnd - buildStart);
+                    // The plugin goals read from the Maven output are parts of the build phase
+                    build.getTimeline().add(new BuildTimeline.Span(BuildStats.BUILD, null, buildStart, buildEnd));
+                    build.getTimeline().addAll(parser.getGoalSpans(buildEnd));
+                }
+            } finally {
+                logStreamer.unregister(uniqueDirName);
+                if (cores != null) {
+                    cpuBudget.release(cores);
+                }
+            }
 
             // Check the exit code to determine if the build was successful
-            if (exitCode == 0) {
+            if (build.isCancelled()) {
+                System.out.println("Maven build cancelled, superseded by " + build.getCancelledBy());
+            } else if (exitCode == 0) {
                 System.out.println("Maven project compiled successfully.");
                 buildSuccess = true;
             } else {
@@ -233,242 +710,227 @@ public class ContinuousIntegrationServer extends AbstractHandler
             e.printStackTrace();
         } finally {
             // Generate and write JSON summary file
-            generateSummaryFile(projectDirPath, uniqueDirName);
-            
-            String toEmail = extractEmail(payload);
-            System.out.println("Email: " + toEmail);
-            String subject = "Build Result Notification";
-            try {
-                sendBuildResultEmail(toEmail, subject, projectDirPath, uniqueDirName);
-            } catch (Exception e) {
-                System.err.println("Error sending build result email: " + e.getMessage());
-                e.printStackTrace();
+            long summaryStart = System.nanoTime();
+            Map<String, Object> summary = generateSummaryFile(build, parser, exitCode);
+            summarySeconds.observeNanos(System.nanoTime() - summaryStart);
+
+            // No notification for a cancelled build, the build that superseded it will send one
+            if (!build.isCancelled()) {
+                String toEmail = event != null ? event.getAuthorEmail() : null;
+                System.out.println("Email: " + toEmail);
+                long notifyStart = System.currentTimeMillis();
+                notifyBuildResult(toEmail, build, summary, parser);
+                build.getTimeline().add("notify", null, notifyStart);
             }
-            
+            // The build is recorded, its push is not built again after a restart
+            releasePendingBuild(build);
         }
         return buildSuccess;
     } 
     
+    /**
+     * This function chooses the modules and tests of a build from the files changed by its push.
+     * The tests not run are taken as passing as in the previous build of the branch, so the whole build
+     * is run if that build did not succeed, or if the push does not start from its commit: the pushes
+     * of builds superseded in the queue are not recorded and their changes are not in the files of this push.
+     *
+     * @param build - The build, with its push event
+     * @param projectDir - The cloned project
+     * @return the selection of the build
+     */
+    private TestSelector.Selection selectTests(Build build, File projectDir) {
+        PushEvent event = build.getEvent();
+        BuildRecord previous = event.getRepositoryName() != null && event.getBranchName() != null
+            ? buildIndex.getLatest(event.getRepositoryName(), event.getBranchName()) : null;
+        if (previous == null || !"SUCCESS".equals(previous.getStatus())) {
+            return TestSelector.Selection.fullBuild("The previous build of the branch did not succeed");
+        }
+        if (event.getBeforeCommitId() == null || !event.getBeforeCommitId().equals(previous.getCommit())) {
+            return TestSelector.Selection.fullBuild("The push does not start from the commit of the previous build");
+        }
+        return TestSelector.select(projectDir, event.getChangedFiles());
+    }
+
     /**
      * Generates a summary file for the build process.
      * The summary file contains information about the build status, compilation errors, and total time.
      * 
-     * @param projectDirPath the path to the directory where the Maven project is located.
-     * @param uniqueDirName the unique directory name generated from the commit hash and the current time.
+     * The fields recorded on the build by the previous steps, like the fetch size, are added to it.
+     * The summary only holds metadata: the Maven output is compressed into the log store of the build directory.
+     * 
+     * @param build the build to summarize.
+     * @param parser the parser which received the Maven output of the build.
+     * @param exitCode the exit code of Maven, -1 if it did not run.
+     * @return the fields of the summary.
      */
-    private void generateSummaryFile(String projectDirPath, String uniqueDirName) {
+    private Map<String, Object> generateSummaryFile(Build build, MavenOutputParser parser, int exitCode) {
+        long postProcessStart = System.currentTimeMillis();
+        String projectDirPath = build.getCloneDirPath();
+        String uniqueDirName = build.getId();
+
         // Prepare summary data
-        Map<String, Object> summary = new HashMap<>();
+        Map<String, Object> summary = new HashMap<>(build.getSummaryFields());
         summary.put("uniqueDirName", uniqueDirName);
-
-        // Read the Maven output file and extract relevant information
-        String mavenOutputFile = projectDirPath + File.separator + uniqueDirName + File.separator + "mavenOutput.txt";
-        // List<String> errorLines = new ArrayList<>();
-        // List<String> infoLines = new ArrayList<>();
-        List<String> mavenlines = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(mavenOutputFile))) {
-            String line;
-            boolean errorEncountered = false;
-            while ((line = reader.readLine()) != null) {
-                // System.out.println("line : "+line);
-                if (line.contains("[ERROR]")) {
-                    errorEncountered = true;
-                    // errorLines.add(line);
-                } else if (line.contains("[INFO]")) {
-                    // infoLines.add(line);
-                }
-                if (line.startsWith("[INFO] Total time:")) {
-                    String[] parts = line.split(": ");
-                    if (parts.length == 2) {
-                        String totalTime = parts[1].trim();
-                        summary.put("totalTime", totalTime);
-                    }
-                }
-                if (line.startsWith("[INFO] Finished at:")) {
-                    String finishedAt = line.substring("[INFO] Finished at:".length()).trim();
-                    summary.put("finishedAt", finishedAt);
-                }
-                mavenlines.add(line);
-            }
-            // If errors were encountered, mark the summary as a failure
-            if (errorEncountered) {
-                summary.put("buildStatus", "FAILURE");
-            } else {
-                summary.put("buildStatus", "SUCCESS");
+        summary.put("priority", build.getPriority().name().toLowerCase());
+        PushEvent event = build.getEvent();
+        if (event != null) {
+            summary.put("repository", event.getRepositoryName());
+            summary.put("branch", event.getBranchName());
+            summary.put("repositoryUrl", event.getRepositoryUrl());
+            if (event.getHeadCommitId() != null) {
+                summary.putIfAbsent("commit", event.getHeadCommitId());
             }
+        }
 
-
+        // Read the test reports of all the modules into the test results of the build
+        File buildDir = new File(projectDirPath, uniqueDirName);
+        SurefireReportParser.TestTotals tests = null;
+        try {
+            tests = SurefireReportParser.collect(build.getWorkspaceDir(), new File(buildDir, SurefireReportParser.RESULTS_FILE));
         } catch (IOException e) {
-            System.err.println("Error reading Maven output file: " + e.getMessage());
+            System.err.println("Error reading the test reports: " + e.getMessage());
             e.printStackTrace();
         }
+        long archiveStart = System.currentTimeMillis();
+        BuildTimeline.Span testReports = new BuildTimeline.Span("testReports", BuildStats.POST_PROCESS, postProcessStart, archiveStart);
+        if (tests != null) {
+            summary.put("tests", tests.toSummary());
+        }
 
-        // Output
-        // summary.put("errorLines", errorLines);
-        // summary.put("infoLines", infoLines);
-        summary.put("mavenOutput", mavenlines);
+        // The build fails if Maven fails or if a test failed, the [ERROR] lines of the output do not decide it
+        if (exitCode == 0 && (tests == null || !tests.hasFailures())) {
+            summary.put("buildStatus", "SUCCESS");
+        } else {
+            summary.put("buildStatus", "FAILURE");
+        }
+        if (parser.getTotalTime() != null) {
+            summary.put("totalTime", parser.getTotalTime());
+        }
+        if (parser.getFinishedAt() != null) {
+            summary.put("finishedAt", parser.getFinishedAt());
+        }
+
+        // A cancelled build may have no Maven output at all
+        if (build.isCancelled()) {
+            summary.put("buildStatus", "CANCELLED");
+            summary.put("cancelledBy", build.getCancelledBy());
+        }
 
-        // Write summary to JSON file
-        String summaryFile = projectDirPath + File.separator + uniqueDirName + File.separator + "build_summary.json";
-        try (FileWriter fileWriter = new FileWriter(summaryFile)) {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            gson.toJson(summary, fileWriter);
-            System.out.println("Build summary file written to: " + summaryFile);
+        // Compress the Maven output and write the summary next to it
+        try {
+            logArchiver.archive(buildDir, (String) summary.get("buildStatus"), parser, summary);
         } catch (IOException e) {
-            System.err.println("Error writing build summary file: " + e.getMessage());
+            System.err.println("Error compressing Maven output file: " + e.getMessage());
             e.printStackTrace();
-        }   
-    }
+        }
+        long finishedAtMillis = System.currentTimeMillis();
+        summary.put("finishedAtMillis", finishedAtMillis);
+        build.getTimeline().add(new BuildTimeline.Span(BuildStats.POST_PROCESS, null, postProcessStart, finishedAtMillis));
+        build.getTimeline().add(testReports);
+        build.getTimeline().add(new BuildTimeline.Span("logArchive", BuildStats.POST_PROCESS, archiveStart, finishedAtMillis));
 
-    /**
-     * This function returns the build status for a specific repository.
-     * The build status is determined by checking the latest build directory for the repository.
-     * 
-     * @param repoName - The name of the repository
-     * @param response - The response object to write the JSON response
-     */
-    private void getBuildStatus(String repoName, HttpServletResponse response) throws IOException {
-        String status = "Unknown";
-        String color = "lightgrey";
-        int isBuildSuccessful = checkBuildStatusForRepo(repoName);
-
-        if (isBuildSuccessful==1) {
-            status = "Passing";
-            color = "brightgreen";
-        } else if (isBuildSuccessful==0) {
-            status = "Failing";
-            color = "red";
-        } else {
-            status = "Compiling";
-            color = "yellow";
-            
+        // The durations of the phases, as numbers of milliseconds. A build run outside the queue has no queue phase
+        Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        if (build.getStartedAt() > 0) {
+            phaseMillis.put(BuildStats.QUEUE, build.getStartedAt() - build.getQueuedAt());
+        }
+        phaseMillis.putAll(build.getPhaseMillis());
+        phaseMillis.put(BuildStats.POST_PROCESS, finishedAtMillis - postProcessStart);
+        phaseMillis.put(BuildStats.TOTAL, finishedAtMillis - build.getQueuedAt());
+        summary.put("phaseMillis", phaseMillis);
+        for (Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+            phaseSeconds.labels(phase.getKey()).observeMillis(phase.getValue());
         }
-               
-        String jsonResponse = String.format(
-            "{\"schemaVersion\": 1, \"label\": \"Build\", \"message\": \"%s\", \"color\": \"%s\"}",
-            status, color);
+        buildsFinished.labels((String) summary.get("buildStatus")).inc();
+        try {
+            BuildSummaryFile.write(buildDir, summary);
+            System.out.println("Build summary file written to: " + new File(buildDir, BuildSummaryFile.FILE_NAME));
+        } catch (IOException e) {
+            System.err.println("Error writing build summary file: " + e.getMessage());
+            e.printStackTrace();
+        }   
 
-        response.setContentType("application/json");
-        response.setStatus(HttpServletResponse.SC_OK);
-        PrintWriter out = response.getWriter();
-        out.print(jsonResponse);
-        out.flush();
+        // Publish the finished build in the index
+        JsonObject summaryJson = new GsonBuilder().create().toJsonTree(summary).getAsJsonObject();
+        BuildRecord record = BuildRecord.fromSummary(uniqueDirName, summaryJson, finishedAtMillis);
+        buildIndex.record(record);
+        badgeCache.update(buildIndex, record);
+        buildStats.record(record);
+        build.getTimeline().add("summary", null, finishedAtMillis);
+        return summary;
     }
-    
+
     /**
-     * This function checks the build status for a specific repository.
-     * It reads the build summary file in the latest build directory for the repository and returns the build status.
+     * This function queues the email notification of a build result in the email outbox.
+     * The email is written from the summary and the parser of the build, only the last lines of the Maven output
+     * are read from the compressed log. It is sent in the background, the build worker does not wait for it.
      * 
-     * @param repoName - The name of the repository
-     * @return 1 if the build was successful, 0 if the build failed, -1 if the build status is unknown
+     * @param toEmail - The email address to send the notification to, nothing is sent if it is null
+     * @param build - The finished build
+     * @param summary - The fields of the build summary
+     * @param parser - The parser which received the Maven output of the build
      */
-    private int checkBuildStatusForRepo(String repoName) {
-        File buildHistoryDir = new File("../build_history");
-        if (!buildHistoryDir.exists() || !buildHistoryDir.isDirectory()) {
-            System.err.println("Build history directory does not exist or is not a directory.");
-            return -1;
+    private void notifyBuildResult(String toEmail, Build build, Map<String, Object> summary, MavenOutputParser parser) {
+        if (toEmail == null || toEmail.isEmpty()) {
+            return;
         }
-    
-        File[] matchingDirs = buildHistoryDir.listFiles((dir, name) -> name.startsWith(repoName) && new File(dir, name).isDirectory());
-    
-        if (matchingDirs == null || matchingDirs.length == 0) {
-            System.out.println("No matching build directories found for repository: " + repoName);
-            return -1;
+        String status = String.valueOf(summary.get("buildStatus"));
+        Object repository = summary.get("repository");
+        Object branch = summary.get("branch");
+        Object commit = summary.get("commit");
+        String name = (repository != null ? repository : build.getId()) + (branch != null ? "/" + branch : "");
+        String subject = "Build " + status + ": " + name
+            + (commit != null ? " (" + commit.toString().substring(0, Math.min(7, commit.toString().length())) + ")" : "");
+
+        StringBuilder body = new StringBuilder();
+        body.append("Build ").append(build.getId()).append(": ").append(status).append("\n");
+        if (commit != null) {
+            body.append("Commit: ").append(commit).append("\n");
         }
-    
-        Arrays.sort(matchingDirs, Comparator.comparingLong(File::lastModified).reversed());
-        File latestBuildDir = matchingDirs[0];
-        System.out.println("Latest build directory for " + repoName + ": " + latestBuildDir.getName());
-    
-        File buildSummaryFile = new File(latestBuildDir, "build_summary.json");
-        if (!buildSummaryFile.exists()) {
-            System.err.println("Build summary file does not exist in the latest build directory.");
-            return -1;
+        if (summary.get("totalTime") != null) {
+            body.append("Total time: ").append(summary.get("totalTime")).append("\n");
         }
-    
-        try {
-            String content = new String(Files.readAllBytes(Paths.get(buildSummaryFile.getPath())));
-            JsonObject buildSummaryJson = JsonParser.parseString(content).getAsJsonObject();
-            String buildStatus = buildSummaryJson.has("buildStatus") ? buildSummaryJson.get("buildStatus").getAsString() : "";
-    
-            if ("SUCCESS".equals(buildStatus)){
-                return 1;
-            } else if ("FAILURE".equals(buildStatus)){
-                return 0;
-            } else {
-                return -1;
+        Object tests = summary.get("tests");
+        if (tests instanceof Map) {
+            Map<?, ?> totals = (Map<?, ?>) tests;
+            body.append("Tests: ").append(totals.get("total")).append(" run, ").append(totals.get("failures"))
+                .append(" failed, ").append(totals.get("errors")).append(" errors, ").append(totals.get("skipped"))
+                .append(" skipped\n");
+            Object failedTests = totals.get("failedTests");
+            if (failedTests instanceof List) {
+                for (Object test : (List<?>) failedTests) {
+                    body.append("  Failed: ").append(test).append("\n");
+                }
             }
-        } catch (Exception e) {
-            System.err.println("Error reading or parsing build summary file: " + e.getMessage());
-            e.printStackTrace();
-            return -1;
         }
-    }
-    
-    /**
-     * This function sends an email notification with the build result.
-     * @param toEmail - The email address to send the notification to
-     * @param subject - The subject of the email
-     * @param projectDirPath - The path to the directory where the Maven project is located
-     * @param uniqueDirName - The unique directory name generated from the commit hash and the current time
-     */
-    public void sendBuildResultEmail(String toEmail, String subject, String projectDirPath, String uniqueDirName) {
-        final String fromEmail = "group28github@gmail.com"; //requires valid Gmail id
-        final String password = "asux vdff sxnl gprt"; // correct password for Gmail id
-
-        Properties props = new Properties();
-        props.put("mail.smtp.host", "smtp.gmail.com"); // SMTP Host
-        props.put("mail.smtp.port", "587"); // TLS Port
-        props.put("mail.smtp.auth", "true"); // enable authentication
-        props.put("mail.smtp.starttls.enable", "true"); // enable STARTTLS
-
-        // Create a session with account credentials
-        Session session = Session.getInstance(props, new javax.mail.Authenticator() {
-            protected javax.mail.PasswordAuthentication getPasswordAuthentication() {
-                return new javax.mail.PasswordAuthentication(fromEmail, password);
+        body.append("Details: ").append(publicUrl).append("/builds/").append(build.getId()).append("\n");
+        body.append("Full Maven output: ").append(publicUrl).append("/builds/").append(build.getId()).append("/log\n");
+        if (parser.getErrorCount() > 0) {
+            body.append("\n").append(parser.getErrorCount()).append(" error lines, the first ones:\n");
+            List<String> errorLines = parser.getErrorLines();
+            for (String line : errorLines.subList(0, Math.min(10, errorLines.size()))) {
+                body.append(line).append("\n");
             }
-        });
-
+        }
         try {
-            // Read the contents of build_summary.json
-            String summaryFilePath = projectDirPath + "/" + uniqueDirName + "/build_summary.json";
-            StringBuilder summaryContent = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(summaryFilePath))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    summaryContent.append(line).append("\n");
+            BuildLogStore log = BuildLogStore.open(new File(build.getCloneDirPath(), build.getId()));
+            if (log != null) {
+                body.append("\nLast lines of the Maven output:\n");
+                for (String line : log.tail(SUMMARY_TAIL_LINES)) {
+                    body.append(line).append("\n");
                 }
             }
-
-            // Create the message
-            MimeMessage msg = new MimeMessage(session);
-            msg.setFrom(new InternetAddress(fromEmail, "CI Server"));
-            msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail));
-            msg.setSubject(subject);
-
-            // Create a multipart message
-            Multipart multipart = new MimeMultipart();
-
-            // Create the HTML part
-            MimeBodyPart messageBodyPart = new MimeBodyPart();
-            messageBodyPart.setContent(summaryContent.toString(), "text/plain");
-            multipart.addBodyPart(messageBodyPart);
-
-            // Set the multipart message
-            msg.setContent(multipart);
-
-            // Send the message
-            Transport.send(msg);
-
-            System.out.println("Email sent successfully!");
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("Error reading the Maven output of " + build.getId() + ": " + e.getMessage());
         }
+        emailOutbox.enqueue(toEmail, subject, body.toString());
     }
 
     /**
      * Removes the cloned repository from the file system.
-     * This function deletes the cloned repository directory and all its contents, except for the build summary file.
+     * The files of the cloned repository are moved to the trash of the build history and deleted in the background
+     * by the janitor, except for the build summary file and the compressed Maven output.
+     * The plain Maven output is kept if it could not be compressed.
      * 
      * @param cloneDirPath the path to the directory where the repository was cloned.
      * @param uniqueDirName the unique directory name generated from the commit hash and the current time.
@@ -477,35 +939,21 @@ public class ContinuousIntegrationServer extends AbstractHandler
         File clonedRepo = new File(cloneDirPath, uniqueDirName);
         if (clonedRepo.exists() && clonedRepo.isDirectory()) {
             System.out.println("Deleting cloned repository: " + clonedRepo.getPath());
-            File[] files = clonedRepo.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (!file.getName().equals("build_summary.json")) {
-                        deleteFile(file);
-                    }
-                }
-            }
+            GitMirrorCache.releaseWorkspace(clonedRepo);
+            janitor.discardWorkspace(clonedRepo, ContinuousIntegrationServer::isBuildRecordFile);
         }
     }
 
     /**
-     * Deletes a file or directory from the file system.
-     * This function is used to delete the cloned repository directory and its contents.
+     * This function tells if a file of a build directory is kept after the build: the summary, the Maven output
+     * and the test results.
      * 
-     * @param file the file or directory to delete.
-     */
-    private void deleteFile(File file) {
-        if (file.isDirectory()) {
-            File[] contents = file.listFiles();
-            if (contents != null) {
-                for (File f : contents) {
-                    deleteFile(f);
-                }
-            }
-        }
-        if (!file.delete()) {
-            System.err.println("Failed to delete file: " + file.getPath());
-        }
+     * @param name the name of the file.
+     */
+    private static boolean isBuildRecordFile(String name) {
+        return name.equals(BuildSummaryFile.FILE_NAME) || name.equals(BuildLogStore.LOG_FILE)
+            || name.equals(BuildLogStore.INDEX_FILE) || name.equals(BuildLogArchiver.PLAIN_LOG_FILE)
+            || name.equals(SurefireReportParser.RESULTS_FILE) || name.equals(BuildTimeline.FILE_NAME);
     }
     
     /**
@@ -514,42 +962,20 @@ public class ContinuousIntegrationServer extends AbstractHandler
      * @return The email of the committer
      */
     public String extractEmail(String payload) {
-        try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            Map<String, Object> head_commit = (Map<String, Object>) payloadMap.get("head_commit");
-            if (head_commit != null) {
-                Map<String, Object> author = (Map<String, Object>) head_commit.get("author");
-                if (author != null) {
-                    return (String) author.get("email");
-                }
-            }
-        } catch (Exception e) {
-            // System.err.println("Error parsing JSON payload: " + e.getMessage());
-            // e.printStackTrace();
-        }
-        return null; 
+        PushEvent event = PushEvent.parse(payload);
+        return event != null ? event.getAuthorEmail() : null;
     }
 
      /**
      * Extracts the repository clone URL from the webhook payload.
-     * This function uses the Gson library to parse the JSON payload and extract the repository URL.
      * If the repository URL cannot be extracted, it returns null.
      *
      * @param payload the JSON payload received from the webhook.
      * @return the clone URL of the repository.
      */
     public String extractRepositoryUrl(String payload) {
-        try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            Map<String, Object> repository = (Map<String, Object>) payloadMap.get("repository");
-            if (repository != null) {
-                return (String) repository.get("clone_url");
-            }
-        } catch (Exception e) {
-            // System.err.println("Error parsing JSON payload: " + e.getMessage());
-            // e.printStackTrace();
-        }
-        return null;
+        PushEvent event = PushEvent.parse(payload);
+        return event != null ? event.getRepositoryUrl() : null;
     }
 
     /**
@@ -559,17 +985,8 @@ public class ContinuousIntegrationServer extends AbstractHandler
      * @return the name of the repository
      */
     public String extractRepositoryName(String payload) {
-        try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            Map<String, Object> repository = (Map<String, Object>) payloadMap.get("repository");
-            if (repository != null) {
-                return (String) repository.get("name");
-            }
-        } catch (Exception e) {
-            System.err.println("Error parsing JSON payload: " + e.getMessage());
-            e.printStackTrace();
-        }
-        return null;
+        PushEvent event = PushEvent.parse(payload);
+        return event != null ? event.getRepositoryName() : null;
     }
     
     /**
@@ -579,96 +996,469 @@ public class ContinuousIntegrationServer extends AbstractHandler
      * @return the name of the branch
      */
     public String extractBranchName(String payload) {
-        try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            String ref = (String) payloadMap.get("ref");
-            if (ref != null && ref.startsWith("refs/heads/")) {
-                return ref.substring("refs/heads/".length());
+        PushEvent event = PushEvent.parse(payload);
+        return event != null ? event.getBranchName() : null;
+    }
+
+    /**
+     * This function handles the push event from the webhook and prints the latest commit message.
+     * The build itself is not run here: it is added to the build queue and run later by a build worker.
+     *
+     * @param event - The parsed push event
+     * @param spoolSequence - The entry of the push in the webhook spool, -1 if it is not spooled
+     * @return the queued build, or null if the build queue is full
+     */
+    private Build handlePushEvent(PushEvent event, long spoolSequence) {
+        String latestCommitMessage = event.getLatestCommitMessage();
+        if (latestCommitMessage != null) {
+            System.out.println("Latest commit message: " + latestCommitMessage);
+        }
+
+        String repoName = event.getRepositoryName();
+        String branchName = event.getBranchName();
+        String baseDirPath = System.getProperty("user.dir");
+        String cloneDirPath = baseDirPath +"/"+ repoDir;
+        String commitHash = event.getHeadCommitId();
+        // Create a unique directory name using the commit hash and the current time
+        String uniqueDirName = repoName + "_" + branchName + "_" +commitHash + "_" + System.currentTimeMillis();
+
+        String supersedeKey = null;
+        if (supersedeBuilds && branchName != null && !neverCancelBranches.contains(branchName)) {
+            supersedeKey = repoName + "/" + branchName;
+        }
+        Build.Priority priority = branchName != null && protectedBranches.contains(branchName)
+            ? Build.Priority.PROTECTED : Build.Priority.FEATURE;
+        Build build = new Build(uniqueDirName, event, cloneDirPath, supersedeKey, priority);
+        build.setSpoolSequence(spoolSequence);
+        pendingBuilds.put(build.getId(), build);
+        boolean queued = buildQueue.submit(build);
+        // The builds superseded by this one are never run, their push is replaced by this one
+        for (Build pending : pendingBuilds.values()) {
+            if (pending.isCancelled() || (pending == build && !queued)) {
+                releasePendingBuild(pending);
             }
-        } catch (Exception e) {
-            System.err.println("Error parsing JSON payload for branch name: " + e.getMessage());
-            e.printStackTrace();
         }
-        return null; 
+        if (!queued) {
+            System.err.println("Build queue is full, dropping build " + uniqueDirName);
+            return null;
+        }
+        System.out.println("Build " + uniqueDirName + " queued (queue depth: " + buildQueue.getQueueDepth() + ")");
+        return build;
     }
-    
+
     /**
-     * Extracts the latest commit hash from the push event payload.
+     * Runs the build pipeline for a queued build: clone, compile and test, then cleanup.
+     * This function is called by the build workers of the build queue.
      *
-     * @param payload the JSON payload received from the webhook.
-     * @return the commit hash of the latest commit.
+     * @param build - The build to run
      */
-    private String getLatestCommitHashFromPush(String payload) {
+    private void runBuild(Build build) {
+        System.out.println("Starting build " + build.getId());
+        if (build.getStartedAt() > 0) {
+            build.getTimeline().add(new BuildTimeline.Span(BuildStats.QUEUE, null, build.getQueuedAt(), build.getStartedAt()));
+        }
+        PushEvent event = build.getEvent();
+        boolean exactCommit = "exact".equals(checkoutMode)
+            && event.getBranchName() != null && event.getHeadCommitId() != null;
+        FetchStats fetchStats = null;
+        long cloneStart = System.currentTimeMillis();
+
+        // A build agent checks out the project itself, the build directory only receives its output and reports
+        if (agentCoordinator != null) {
+            new File(build.getCloneDirPath(), build.getId()).mkdirs();
+            build.putSummaryField("checkoutMode", "agent");
+            compileMavenProject(build);
+            long cleanupStart = System.currentTimeMillis();
+            removeClonedRepository(build.getCloneDirPath(), build.getId());
+            build.getTimeline().add("cleanup", null, cleanupStart);
+            writeTimeline(build);
+            return;
+        }
+
+        // A pooled workspace is updated from the git mirror to the pushed commit
+        WorkspacePool.Lease lease = null;
+        if (workspacePool != null && useGitMirrors && exactCommit && event.getRepositoryName() != null) {
+            lease = workspacePool.tryAcquire(event.getRepositoryName(), event.getBranchName());
+        }
+        if (lease != null) {
+            fetchStats = updatePooledWorkspace(build, lease);
+            if (fetchStats == null) {
+                lease.discard();
+                lease = null;
+            }
+        }
+        if (lease != null) {
+            build.putSummaryField("commit", event.getHeadCommitId());
+        } else if (exactCommit) {
+            fetchStats = cloneRepository(event.getRepositoryUrl(), build.getCloneDirPath(), build.getId(),
+                event.getBranchName(), event.getHeadCommitId());
+            build.putSummaryField("commit", event.getHeadCommitId());
+        } else {
+            fetchStats = cloneRepository(event.getRepositoryUrl(), build.getCloneDirPath(), build.getId(), null, null);
+        }
+        build.putPhaseMillis(BuildStats.CLONE, System.currentTimeMillis() - cloneStart);
+        build.getTimeline().add(BuildStats.CLONE, null, cloneStart);
+        build.putSummaryField("checkoutMode", exactCommit ? "exact" : "default");
+        if (fetchStats != null) {
+            build.putSummaryField("fetchBytes", fetchStats.getBytes());
+            build.putSummaryField("fetchMillis", fetchStats.getMillis());
+        }
+        boolean finished = false;
+        long cleanupStart = 0;
         try {
-            Map<String, Object> payloadMap = request_to_map(payload);
-            List<Map<String, Object>> commits = (List<Map<String, Object>>) payloadMap.get("commits");
-            if (commits != null && !commits.isEmpty()) {
-                // The first commit in the list is the latest commit
-                Map<String, Object> latestCommit = commits.get(0); 
-                return (String) latestCommit.get("id");
+            compileMavenProject(build);
+            finished = true;
+        } finally {
+            cleanupStart = System.currentTimeMillis();
+            if (lease != null) {
+                // A cancelled or failed build may have left half written classes, the next build of the workspace is a clean build
+                lease.release(finished && !build.isCancelled());
+            } else {
+                removeClonedRepository(build.getCloneDirPath(), build.getId());
             }
-        } catch (Exception e) {
-            System.err.println("Error parsing JSON payload: " + e.getMessage());
+        }
+        build.getTimeline().add("cleanup", null, cleanupStart);
+        writeTimeline(build);
+    }
+
+    /**
+     * This function writes the timeline of a finished build to its build directory, next to its summary.
+     * The emails and the deletion of the workspace are done in the background: the timeline has the time
+     * to queue them, their own times are in the metrics.
+     *
+     * @param build - The finished build
+     */
+    private void writeTimeline(Build build) {
+        File buildDir = new File(build.getCloneDirPath(), build.getId());
+        if (!new File(buildDir, BuildSummaryFile.FILE_NAME).isFile()) {
+            return;
+        }
+        try {
+            build.getTimeline().write(buildDir, build.getId());
+        } catch (IOException e) {
+            System.err.println("Error writing the timeline of " + build.getId() + ": " + e.getMessage());
             e.printStackTrace();
         }
-        return null; 
     }
 
     /**
-     * This function handles the push event from the webhook and prints the latest commit message.
+     * This function forgets a build of a push once it is recorded or superseded, and marks its push as done
+     * in the webhook spool, so it is not built again after a restart.
      *
-     * @param payload
+     * @param build - The finished or superseded build
      */
-    private void handlePushEvent(String payload) {
-        String latestCommitMessage = getLatestCommitMessageFromPush(payload);
-        if (latestCommitMessage != null) {
-            System.out.println("Latest commit message: " + latestCommitMessage);
+    private void releasePendingBuild(Build build) {
+        if (pendingBuilds.remove(build.getId()) != null && build.getSpoolSequence() >= 0) {
+            spool.complete(build.getSpoolSequence());
         }
+    }
 
-        String repoUrl = extractRepositoryUrl(payload);
-        String repoName = extractRepositoryName(payload);
-        String branchName = extractBranchName(payload);
-        String baseDirPath = System.getProperty("user.dir");
-        String cloneDirPath = baseDirPath +"/"+ repoDir;
-        String commitHash = getLatestCommitHashFromPush(payload);
-        // Create a unique directory name using the commit hash and the current time
-        String uniqueDirName = repoName + "_" + branchName + "_" +commitHash + "_" + System.currentTimeMillis();
+    /**
+     * This function tells if a build still stands for its commit: it is queued, running, or finished without
+     * being cancelled. Another push of the commit of a build that is not current starts a new build.
+     *
+     * @param buildId - The id of the build
+     */
+    private boolean isBuildCurrent(String buildId) {
+        Build pending = pendingBuilds.get(buildId);
+        if (pending != null) {
+            return !pending.isCancelled();
+        }
+        BuildRecord record = buildIndex.get(buildId);
+        return record != null && !"CANCELLED".equals(record.getStatus());
+    }
+
+    /**
+     * @return the repository of a push for the delivery de-duplication: its URL, or its name if it has none
+     */
+    private static String dedupRepository(PushEvent event) {
+        return event.getRepositoryUrl() != null ? event.getRepositoryUrl() : event.getRepositoryName();
+    }
+
+    /**
+     * This function queues again the pushes of the spool whose build did not finish before the server stopped.
+     *
+     * @param entries - The entries not done of the spool, oldest first
+     * @return the number of builds queued
+     */
+    private int replaySpool(List<WebhookSpool.Entry> entries) {
+        int queued = 0;
+        for (WebhookSpool.Entry entry : entries) {
+            PushEvent event;
+            try {
+                event = PushEvent.parse(new ByteArrayInputStream(entry.getPayload()));
+            } catch (IOException e) {
+                System.err.println("Skipping invalid spooled push " + entry.getSequence() + ": " + e.getMessage());
+                spool.complete(entry.getSequence());
+                continue;
+            }
+            System.out.println("Replaying push " + entry.getSequence() + " received at "
+                + Instant.ofEpochMilli(entry.getReceivedMillis()));
+            Build build = handlePushEvent(event, entry.getSequence());
+            if (build != null) {
+                // The deliveries of the push sent again after the restart find the new build by its commit
+                deliveryDedup.record(null, dedupRepository(event), event.getRef(), dedupCommits ? event.getHeadCommitId() : null, build.getId());
+                queued++;
+            }
+        }
+        return queued;
+    }
 
-        cloneRepository(repoUrl, cloneDirPath, uniqueDirName);
-        compileMavenProject(cloneDirPath, uniqueDirName, payload);
-        removeClonedRepository(cloneDirPath, uniqueDirName);
+    /**
+     * This function brings a pooled workspace to the commit of a build: a new workspace is created from the
+     * git mirror, a reused one is reset and cleaned in place, keeping its target directories.
+     * The build directory is created for the Maven output and the summary.
+     *
+     * @param build - The build
+     * @param lease - The workspace leased to the build
+     * @return the size and duration of the fetch, or null if the workspace could not be updated
+     */
+    private FetchStats updatePooledWorkspace(Build build, WorkspacePool.Lease lease) {
+        PushEvent event = build.getEvent();
+        File workspaceDir = lease.getDir();
+        try {
+            System.out.println("Updating workspace " + workspaceDir.getName() + " to " + event.getBranchName() + "@"
+                + event.getHeadCommitId() + " for a " + (lease.isCleanBuild() ? "clean" : "incremental") + " build: "
+                + lease.getReason());
+            GitMirrorCache mirrorCache = getMirrorCache(build.getCloneDirPath());
+            FetchStats stats;
+            if (lease.isNewWorkspace()) {
+                stats = mirrorCache.createWorkspaceAtCommit(event.getRepositoryUrl(), workspaceDir,
+                    event.getBranchName(), event.getHeadCommitId());
+            } else {
+                stats = mirrorCache.updateWorkspaceAtCommit(event.getRepositoryUrl(), workspaceDir,
+                    event.getBranchName(), event.getHeadCommitId(), "target");
+                lease.removeOldReports();
+            }
+            new File(build.getCloneDirPath(), build.getId()).mkdirs();
+            build.setWorkspace(workspaceDir, !lease.isCleanBuild());
+            build.putSummaryField("workspace", lease.toSummary());
+            return stats;
+        } catch (GitAPIException | IOException | IllegalArgumentException | JGitInternalException e) {
+            // JGit reports the I/O errors of reset and clean, like a missing object, as a JGitInternalException
+            System.err.println("Error updating workspace " + workspaceDir.getName() + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
      * This function handles the pull request event from the webhook and prints the action.
+     * Only the top level "action" member of the payload is read, the rest is skipped.
      *
-     * @param payload
+     * @param in - The JSON payload of the pull request event
      */
-    private void handlePullRequestEvent(String payload) {
-        // Parse the payload to extract pull request event information
-        Map payloadMap = request_to_map(payload);
-        String action = (String) payloadMap.get("action");
+    private void handlePullRequestEvent(InputStream in) {
+        String action = null;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("action".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    action = reader.nextString();
+                    break;
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Error parsing JSON payload: " + e.getMessage());
+        }
         System.out.println("Pull request action: " + action);
     }
 
     /**
-     * This function lists all the builds in the repoDir directory.
+     * This function shows the state of the build queue: number of workers, busy workers and queued builds.
      * 
      * @param response
      */
-    private void listBuilds(HttpServletResponse response) throws IOException {
-        File buildDir = new File(repoDir); 
-        File[] buildDirs = buildDir.listFiles(File::isDirectory); // List all directories within repoDir
-    
+    private void showQueueStatus(HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("workers", buildQueue.getWorkerCount());
+        status.put("busyWorkers", buildQueue.getBusyWorkers());
+        status.put("queueDepth", buildQueue.getQueueDepth());
+        status.put("queueCapacity", buildQueue.getCapacity());
+        if (cpuBudget != null) {
+            status.put("cpuBudget", cpuBudget.getTotalCores());
+            status.put("allocatedCores", cpuBudget.getAllocatedCores());
+        }
+        status.put("duplicateDeliveries", deliveryDedup.getDeliveryHits() + deliveryDedup.getCommitHits());
+        if (spool != null) {
+            status.put("spooledPushes", spool.getLiveEntries());
+            status.put("spoolSegments", spool.getSegmentCount());
+        }
+        if (agentCoordinator != null) {
+            status.put("agents", agentCoordinator.getAgentCount());
+            status.put("freeAgentSlots", agentCoordinator.getFreeSlots());
+        }
+        status.put("admissionHold", buildQueue.getAdmissionHold());
+        status.put("admissionHolds", buildQueue.getAdmissionHolds());
+        status.put("priorities", buildQueue.getPriorityStatus());
+        status.put("repositories", buildQueue.getRepositoryStatus());
         PrintWriter out = response.getWriter();
-        out.println("<h1>Build History</h1>");
-    
-        if (buildDirs != null) {
-            for (File dir : buildDirs) {
-                String buildId = dir.getName(); // Use the directory name as the build ID
-                out.println("<div><a href='/builds/" + buildId + "'>" + buildId + "</a></div>");
+        out.print(new GsonBuilder().serializeNulls().create().toJson(status));
+        out.flush();
+    }
+
+    /**
+     * This function answers POST /builds/{id}/rebuild: it queues a new build of the commit of a finished build,
+     * ahead of the pushes. The new build is never superseded and does not supersede the builds of the branch.
+     *
+     * @param target - The target of the request
+     * @param request - The request, which must be a POST
+     * @param response - The response receiving the id of the new build as JSON
+     */
+    private void rebuild(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        if (!"POST".equals(request.getMethod())) {
+            response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            response.setHeader("Allow", "POST");
+            response.getWriter().print("{\"error\": \"Use POST to rebuild\"}");
+            return;
+        }
+        String buildId = target.substring("/builds/".length(), target.length() - "/rebuild".length());
+        File summaryFile = new File(new File(repoDir, buildId), BuildSummaryFile.FILE_NAME);
+        if (buildIndex.get(buildId) == null || !summaryFile.isFile()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().print("{\"error\": \"Build not found\"}");
+            return;
+        }
+        JsonObject summary = BuildSummaryFile.read(summaryFile);
+        String repoName = summary.has("repository") ? summary.get("repository").getAsString() : null;
+        String branchName = summary.has("branch") ? summary.get("branch").getAsString() : null;
+        String commit = summary.has("commit") ? summary.get("commit").getAsString() : null;
+        String repoUrl = summary.has("repositoryUrl") ? summary.get("repositoryUrl").getAsString() : null;
+        if (repoName == null || branchName == null || commit == null || repoUrl == null) {
+            // The builds of older versions do not record the clone URL
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().print("{\"error\": \"The build does not record its repository, branch and commit\"}");
+            return;
+        }
+
+        PushEvent event = new PushEvent("refs/heads/" + branchName, repoName, repoUrl, commit, null, null);
+        String cloneDirPath = System.getProperty("user.dir") + "/" + repoDir;
+        String uniqueDirName = repoName + "_" + branchName + "_" + commit + "_" + System.currentTimeMillis();
+        Build build = new Build(uniqueDirName, event, cloneDirPath, null, Build.Priority.MANUAL);
+        build.putSummaryField("rebuildOf", buildId);
+        if (!buildQueue.submit(build)) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().print("{\"error\": \"Build queue is full\"}");
+            return;
+        }
+        System.out.println("Rebuild of " + buildId + " queued as " + uniqueDirName);
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.getWriter().print("{\"buildId\": \"" + uniqueDirName + "\", \"queueDepth\": " + buildQueue.getQueueDepth() + "}");
+    }
+
+    /**
+     * Parses the weights of the repositories in the fair share of the build workers.
+     *
+     * @param value - The weights, for example "big-repo:3,small-repo:0.5"
+     * @return the weights by repository name
+     */
+    static Map<String, Double> parseWeights(String value) {
+        Map<String, Double> weights = new HashMap<>();
+        for (String entry : value.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                try {
+                    weights.put(entry.substring(0, colon).trim(), Double.parseDouble(entry.substring(colon + 1).trim()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid repository weight: " + entry);
+                }
             }
         }
+        return weights;
+    }
+
+    /**
+     * This function shows the work of the janitor as JSON: the trash entries waiting to be deleted,
+     * the space reclaimed and the builds removed by the retention rules.
+     * 
+     * @param response - The response receiving the JSON
+     */
+    private void showJanitorStatus(HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        PrintWriter out = response.getWriter();
+        out.print("{\"trashBacklog\": " + janitor.getBacklog()
+            + ", \"reclaimedBytes\": " + janitor.getReclaimedBytes()
+            + ", \"reclaimedFiles\": " + janitor.getReclaimedFiles()
+            + ", \"removedBuilds\": " + janitor.getRemovedBuilds()
+            + ", \"failedDeletes\": " + janitor.getFailedDeletes() + "}");
+        out.flush();
+    }
+
+    /**
+     * This function answers /api/builds with a page of the build history as JSON.
+     * The page is written while it is read from the build index, see BuildHistoryQuery for the parameters.
+     * 
+     * @param request - The request, with the filters, order, limit and cursor of the page
+     * @param response - The response receiving the JSON
+     */
+    @SuppressWarnings("unchecked")
+    private void listBuildsJson(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        BuildHistoryQuery query;
+        try {
+            query = BuildHistoryQuery.fromParameters(request.getParameterMap());
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            JsonObject error = new JsonObject();
+            error.addProperty("error", e.getMessage());
+            response.getWriter().print(error);
+            return;
+        }
+        query.writeJson(buildIndex, response.getWriter());
+    }
+
+    /**
+     * This function shows a page of the build history, with a link to the next page.
+     * It takes the same parameters as /api/builds.
+     * 
+     * @param request - The request, with the filters, order, limit and cursor of the page
+     * @param response - The response receiving the page
+     */
+    @SuppressWarnings("unchecked")
+    private void listBuilds(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        BuildHistoryQuery query;
+        try {
+            query = BuildHistoryQuery.fromParameters(request.getParameterMap());
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            out.println("<h1>Invalid request</h1><p>" + escapeHtml(e.getMessage()) + "</p>");
+            return;
+        }
+        out.println("<h1>Build History</h1>");
+        if (query.getRepository() != null || query.getBranch() != null || query.getStatus() != null) {
+            out.println("<p>Filtered by" + (query.getRepository() != null ? " repository " + escapeHtml(query.getRepository()) : "")
+                + (query.getBranch() != null ? " branch " + escapeHtml(query.getBranch()) : "")
+                + (query.getStatus() != null ? " status " + escapeHtml(query.getStatus()) : "")
+                + " - <a href='/builds'>All builds</a></p>");
+        }
+
+        out.println("<table><tr><th>Build</th><th>Branch</th><th>Status</th><th>Finished</th><th>Duration</th></tr>");
+        BuildHistoryQuery.Page page = query.run(buildIndex);
+        while (page.hasNext()) {
+            BuildRecord record = page.next();
+            String buildId = escapeHtml(record.getId());
+            out.println("<tr><td><a href='/builds/" + buildId + "'>" + buildId + "</a></td>"
+                + "<td>" + (record.getBranch() != null ? escapeHtml(record.getBranch()) : "") + "</td>"
+                + "<td>" + (record.getStatus() != null ? escapeHtml(record.getStatus()) : "") + "</td>"
+                + "<td>" + Instant.ofEpochMilli(record.getFinishedAtMillis()) + "</td>"
+                + "<td>" + (record.getTotalTime() != null ? escapeHtml(record.getTotalTime()) : "") + "</td></tr>");
+        }
+        out.println("</table>");
+
+        String nextCursor = page.getNextCursor();
+        if (query.hasCursor()) {
+            out.println("<a href='/builds" + escapeHtml(query.toQueryString(null)) + "'>First page</a>");
+        }
+        if (nextCursor != null) {
+            out.println("<a href='/builds" + escapeHtml(query.toQueryString(nextCursor)) + "'>"
+                + (query.isAscending() ? "Newer builds" : "Older builds") + "</a>");
+        }
     }
     
     /**
@@ -682,12 +1472,29 @@ public class ContinuousIntegrationServer extends AbstractHandler
         File buildDir = new File(repoDir, buildId);
     
         PrintWriter out = response.getWriter();
-        if (buildDir.exists() && buildDir.isDirectory()) {
-            File buildSummaryFile = new File(buildDir, "build_summary.json");
+        // Only the builds of the index are shown, the id can not be used to read other directories
+        if (buildIndex.get(buildId) != null) {
+            File buildSummaryFile = new File(buildDir, BuildSummaryFile.FILE_NAME);
             if (buildSummaryFile.exists()) {
-                String content = new String(Files.readAllBytes(buildSummaryFile.toPath()), StandardCharsets.UTF_8);
-                out.println("<h1>Build Details for " + buildId + "</h1>");
-                out.println("<pre>" + content + "</pre>");
+                JsonObject summary = BuildSummaryFile.read(buildSummaryFile);
+                // The id holds the branch name, which may contain HTML characters
+                String escapedId = escapeHtml(buildId);
+                out.println("<h1>Build Details for " + escapedId + "</h1>");
+                out.println("<pre>" + escapeHtml(new GsonBuilder().setPrettyPrinting().create().toJson(summary)) + "</pre>");
+                // Only the last blocks of the compressed log are read
+                BuildLogStore log = BuildLogStore.open(buildDir);
+                if (log != null) {
+                    out.println("<h2>Last lines of the Maven output</h2>");
+                    out.println("<pre>" + escapeHtml(String.join("\n", log.tail(SUMMARY_TAIL_LINES))) + "</pre>");
+                }
+                out.println("<a href='/builds/" + escapedId + "/log'>Full Maven output</a>");
+                if (new File(buildDir, SurefireReportParser.RESULTS_FILE).isFile()) {
+                    out.println("<a href='/builds/" + escapedId + "/tests'>Test results</a>");
+                    out.println("<a href='/builds/" + escapedId + "/tests?status=failed'>Failed tests</a>");
+                }
+                if (new File(buildDir, BuildTimeline.FILE_NAME).isFile()) {
+                    out.println("<a href='/builds/" + escapedId + "/timeline?view=waterfall'>Timeline</a>");
+                }
             } else {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 out.println("<h1>Build Details Not Found</h1>");
@@ -698,13 +1505,170 @@ public class ContinuousIntegrationServer extends AbstractHandler
         }
     }
     
+    /**
+     * This function escapes the HTML special characters of a text.
+     * 
+     * @param text - The text to escape
+     * @return the escaped text
+     */
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&#39;");
+    }
+
+    /**
+     * This function sends the Maven output of a build.
+     * The output of a running build is streamed while the build goes on, the output of a finished build is
+     * sent from its log file. The ?from=byteOffset parameter and the Range header select the part of the log.
+     * 
+     * @param target - The target of the request, /builds/{id}/log
+     * @param request - The request
+     * @param response - The response receiving the log
+     */
+    private void showBuildLog(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String buildId = target.substring("/builds/".length(), target.length() - "/log".length());
+        if (buildId.isEmpty() || buildId.contains("/") || buildId.startsWith(".")) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("<h1>Build Not Found</h1>");
+            return;
+        }
+        logStreamer.serve(buildId, new File(repoDir, buildId), request, response);
+    }
+
+    /**
+     * This function sends the test results of a build as JSON: every test case with its status and time,
+     * then the totals. The ?status=passed|failed|error|skipped|flaky parameter only keeps the test cases of a status.
+     * 
+     * @param target - The target of the request, /builds/{id}/tests
+     * @param request - The request
+     * @param response - The response receiving the test results
+     */
+    private void showTestResults(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String buildId = target.substring("/builds/".length(), target.length() - "/tests".length());
+        File resultsFile = new File(new File(repoDir, buildId), SurefireReportParser.RESULTS_FILE);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (buildIndex.get(buildId) == null || !resultsFile.isFile()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().print("{\"error\": \"No test results for this build\"}");
+            return;
+        }
+        String status = request.getParameter("status");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (status == null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            // The results file is already gzipped JSON
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength((int) resultsFile.length());
+            Files.copy(resultsFile.toPath(), response.getOutputStream());
+            return;
+        }
+        SurefireReportParser.copyResults(resultsFile, status, response.getWriter());
+    }
+
+    /**
+     * This function answers /builds/{id}/timeline with the spans of the phases of a finished build as JSON,
+     * or as an HTML waterfall with ?view=waterfall.
+     *
+     * @param target - The target of the request, /builds/{id}/timeline
+     * @param request - The request, with the optional view parameter
+     * @param response - The response receiving the timeline
+     */
+    private void showTimeline(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String buildId = target.substring("/builds/".length(), target.length() - "/timeline".length());
+        File timelineFile = new File(new File(repoDir, buildId), BuildTimeline.FILE_NAME);
+        boolean waterfall = "waterfall".equals(request.getParameter("view"));
+        response.setContentType(waterfall ? "text/html" : "application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (buildIndex.get(buildId) == null || !timelineFile.isFile()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().print(waterfall ? "<h1>No timeline for this build</h1>" : "{\"error\": \"No timeline for this build\"}");
+            return;
+        }
+        if (waterfall) {
+            String json = new String(Files.readAllBytes(timelineFile.toPath()), StandardCharsets.UTF_8);
+            BuildTimeline.writeWaterfall(JsonParser.parseString(json).getAsJsonObject(), response.getWriter());
+        } else {
+            Files.copy(timelineFile.toPath(), response.getOutputStream());
+        }
+    }
+
+    /**
+     * This function answers /api/stats/{repo} with the durations of the phases of the builds of a repository as JSON:
+     * the p50, p90 and p99 over a window, their change from the previous window and their trend per interval.
+     * The durations are aggregated when the builds finish, see BuildStats.
+     * 
+     * @param target - The target of the request, /api/stats/{repo}
+     * @param request - The request, with the optional branch, window (7d by default) and interval parameters
+     * @param response - The response receiving the JSON
+     */
+    private void showBuildStats(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String repository = target.substring("/api/stats/".length());
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (!buildStats.hasRepository(repository) && buildIndex.getLatest(repository) == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().print("{\"error\": \"Unknown repository\"}");
+            return;
+        }
+        String window = request.getParameter("window");
+        String interval = request.getParameter("interval");
+        try {
+            long windowMillis = window != null ? BuildStats.parseDuration(window, "window") : BuildStats.DEFAULT_WINDOW_MILLIS;
+            // One point per day for the windows of a week or more, one point per bucket below
+            long intervalMillis = interval != null ? BuildStats.parseDuration(interval, "interval")
+                : windowMillis >= BuildStats.DEFAULT_WINDOW_MILLIS ? 24 * 60 * 60 * 1000 : 0;
+            // The parameters are checked before anything is written
+            buildStats.writeJson(repository, request.getParameter("branch"), windowMillis, intervalMillis,
+                System.currentTimeMillis(), response.getWriter());
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            JsonObject error = new JsonObject();
+            error.addProperty("error", e.getMessage());
+            response.getWriter().print(error);
+        }
+    }
+
+    /**
+     * This function tunes Jetty before its first connector is created.
+     * Jetty 7.0 takes a selector waking up often with no ready key for an old JVM epoll bug and pauses it,
+     * which keep alive clients polling the badges trigger on every request, capping the server at a few
+     * hundred requests/s. The pause is removed unless -Dorg.mortbay.io.nio.BUSY_PAUSE is set.
+     */
+    public static void configureJetty() {
+        if (System.getProperty("org.mortbay.io.nio.BUSY_PAUSE") == null) {
+            System.setProperty("org.mortbay.io.nio.BUSY_PAUSE", "0");
+        }
+    }
+
     /**
      * This function starts the CI server on port 8028.
      * @param args - Command line arguments
      */
    public static void main(String[] args) throws Exception {
+        ContinuousIntegrationServer ci = new ContinuousIntegrationServer();
+        // Move the logs of the builds of older versions to the compressed format, disabled with -Dci.migrateLogs=false
+        if (!"false".equals(System.getProperty("ci.migrateLogs"))) {
+            ci.logArchiver.migrate(new File(ci.repoDir));
+        }
+        System.out.println("Build index loaded with " + ci.buildIndex.load(new File(ci.repoDir)) + " builds");
+        ci.badgeCache.rebuild(ci.buildIndex);
+        System.out.println("Delivery journal loaded with " + ci.deliveryDedup.load(new File(ci.repoDir)) + " deliveries");
+        ci.buildStats.rebuild(ci.buildIndex);
+        ci.janitor.start(ci.buildIndex, Long.getLong("ci.janitorIntervalSeconds", 600) * 1000);
+        if (ci.workspacePool != null) {
+            System.out.println("Workspace pool loaded with " + ci.workspacePool.load() + " workspaces");
+        }
+        System.out.println("Email outbox started with " + ci.emailOutbox.start() + " emails to send");
+        if (ci.spool != null) {
+            List<WebhookSpool.Entry> entries = ci.spool.open();
+            System.out.println("Webhook spool replayed " + ci.replaySpool(entries) + " of " + entries.size() + " pushes");
+        }
+        if (ci.agentCoordinator != null) {
+            ci.agentCoordinator.start();
+            System.out.println("Waiting for build agents on " + AgentCoordinator.PREFIX);
+        }
+        configureJetty();
         Server server = new Server(8028);
-        server.setHandler(new ContinuousIntegrationServer());
+        server.setHandler(ci);
         server.start();
         server.join();
     }
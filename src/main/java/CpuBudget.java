@@ -0,0 +1,137 @@
+// No package declaration here
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the cores of the build host between the builds running at the same time.
+ *
+ * Every build gets a number of cores when it starts: an equal share of the budget between the builds expected
+ * to run at the same time, the running ones and the ones waiting for a worker, and never more than the cores
+ * left by the running builds. A build alone on the host gets every core, a build starting while the host is
+ * full gets what is left. The cores of a build are given back when it finishes, for the next builds to start.
+ * The cores of a build become Maven threads (-T), one per module at most, and parallel Surefire forks
+ * (forkCount) for the rest, so a project of one module still uses its share to run its tests.
+ */
+public class CpuBudget {
+
+    /**
+     * The cores given to a build, to give back with release() when the build is done.
+     */
+    public static class Allocation {
+        private final int cores;
+        private final int mavenThreads;
+        private final int forkCount;
+        private boolean released;
+
+        Allocation(int cores, int modules) {
+            this.cores = cores;
+            this.mavenThreads = Math.max(1, Math.min(cores, modules));
+            this.forkCount = Math.max(1, cores / mavenThreads);
+        }
+
+        public int getCores() {
+            return cores;
+        }
+
+        public int getMavenThreads() {
+            return mavenThreads;
+        }
+
+        public int getForkCount() {
+            return forkCount;
+        }
+
+        /**
+         * @return the Maven arguments running the build with its cores
+         */
+        public List<String> getMavenArgs() {
+            List<String> args = new ArrayList<>();
+            if (mavenThreads > 1) {
+                args.add("-T");
+                args.add(String.valueOf(mavenThreads));
+            }
+            args.add("-DforkCount=" + forkCount);
+            return args;
+        }
+
+        /**
+         * @return the fields of the allocation in the build summary
+         */
+        public Map<String, Object> toSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("cores", cores);
+            summary.put("mavenThreads", mavenThreads);
+            summary.put("forkCount", forkCount);
+            return summary;
+        }
+    }
+
+    private final int totalCores;
+    private final int maxBuilds;
+
+    private int allocatedCores;
+    private int runningBuilds;
+
+    /**
+     * @param totalCores - The cores shared by the builds
+     * @param maxBuilds - The number of builds that can run at the same time, the number of build workers
+     */
+    public CpuBudget(int totalCores, int maxBuilds) {
+        if (totalCores < 1 || maxBuilds < 1) {
+            throw new IllegalArgumentException("The cores and the number of builds must be at least 1");
+        }
+        this.totalCores = totalCores;
+        this.maxBuilds = maxBuilds;
+    }
+
+    /**
+     * Gives cores to a build that is starting.
+     *
+     * @param pendingBuilds - The builds taken by a worker or waiting for one, including this build
+     * @param modules - The number of modules of the project
+     * @return the cores of the build
+     */
+    public synchronized Allocation acquire(int pendingBuilds, int modules) {
+        int expectedBuilds = Math.min(maxBuilds, Math.max(pendingBuilds, runningBuilds + 1));
+        int share = Math.max(1, totalCores / expectedBuilds);
+        int cores = Math.max(1, Math.min(share, totalCores - allocatedCores));
+        allocatedCores += cores;
+        runningBuilds++;
+        return new Allocation(cores, modules);
+    }
+
+    /**
+     * Gives back the cores of a build that is done. Releasing an allocation twice has no effect.
+     *
+     * @param allocation - The cores of the build
+     */
+    public synchronized void release(Allocation allocation) {
+        if (allocation.released) {
+            return;
+        }
+        allocation.released = true;
+        allocatedCores -= allocation.cores;
+        runningBuilds--;
+    }
+
+    public int getTotalCores() {
+        return totalCores;
+    }
+
+    /**
+     * @return the cores given to the running builds, more than the total if the host is overbooked
+     */
+    public synchronized int getAllocatedCores() {
+        return allocatedCores;
+    }
+
+    /**
+     * @return the number of builds holding cores
+     */
+    public synchronized int getRunningBuilds() {
+        return runningBuilds;
+    }
+}
@@ -0,0 +1,263 @@
+// No package declaration here
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the webhook deliveries that started a build, so a delivery sent again by GitHub, or another push
+ * of a commit already built on the same branch, does not start another build.
+ *
+ * The deliveries are found by the X-GitHub-Delivery header and by their repository, ref and head commit.
+ * The ref is part of the key: a commit merged into another branch is built for that branch too. Both are kept
+ * in maps in least recently used order, holding at most maxEntries keys each: the oldest keys are forgotten first.
+ * The keys are kept as 64-bit hashes and every lookup is one hash map lookup. A delivery takes about 220 bytes:
+ * a map entry and a boxed key in each map, and the build id shared by both. The default of 100,000 deliveries
+ * takes about 20 MB, a million over 200 MB.
+ *
+ * Every build recorded is appended to a journal in the build history directory, read back at startup.
+ * The journal is compacted when it has twice as many lines as the full maps have keys. The order of the lookups
+ * is not written: after a restart the keys are in the order they were recorded.
+ */
+public class DeliveryDedup {
+
+    public static final String JOURNAL_FILE = ".deliveries.journal";
+
+    // The build of a delivery being accepted, before its build id is known
+    private static final String PENDING = "";
+    private static final char DELIVERY = 'd';
+    private static final char COMMIT = 'c';
+
+    private final int maxEntries;
+    private final Map<Long, String> deliveries;
+    private final Map<Long, String> commits;
+
+    private File journalFile;
+    private Writer journal;
+    private long journalLines;
+    private long deliveryHits;
+    private long commitHits;
+
+    /**
+     * @param maxEntries - The number of delivery ids, and of commits, remembered
+     */
+    public DeliveryDedup(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.deliveries = newLruMap(maxEntries);
+        this.commits = newLruMap(maxEntries);
+    }
+
+    private static Map<Long, String> newLruMap(int maxEntries) {
+        return new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The 64-bit FNV-1a hash of a key.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static Long commitKey(String repository, String ref, String commit) {
+        return repository != null && commit != null ? hash(repository + "@" + ref + "@" + commit) : null;
+    }
+
+    /**
+     * Loads the journal of a build history directory and starts writing to it.
+     *
+     * @param historyDir - The build history directory
+     * @return the number of deliveries remembered
+     */
+    public synchronized int load(File historyDir) throws IOException {
+        journalFile = new File(historyDir, JOURNAL_FILE);
+        // The delivery and the commit of a build share one build id string, as when they are recorded
+        Map<String, String> buildIds = new HashMap<>();
+        if (journalFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // A line cut by a crash is skipped
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length != 3 || fields[0].length() != 1 || fields[2].isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        long key = Long.parseUnsignedLong(fields[1], 16);
+                        String buildId = buildIds.computeIfAbsent(fields[2], id -> id);
+                        if (fields[0].charAt(0) == DELIVERY) {
+                            deliveries.put(key, buildId);
+                        } else if (fields[0].charAt(0) == COMMIT) {
+                            commits.put(key, buildId);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.println("Skipping invalid delivery journal line: " + line);
+                    }
+                }
+            }
+        }
+        compactJournal();
+        return deliveries.size();
+    }
+
+    /**
+     * Writes the journal again with the keys of the maps, least recently used first, and keeps it open for appending.
+     * Must be called with the lock held.
+     */
+    private void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        File temp = new File(journalFile.getPath() + ".tmp");
+        journalLines = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<Long, String> entry : deliveries.entrySet()) {
+                writeLine(writer, DELIVERY, entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<Long, String> entry : commits.entrySet()) {
+                writeLine(writer, COMMIT, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+    }
+
+    private void writeLine(Writer writer, char type, long key, String buildId) throws IOException {
+        if (PENDING.equals(buildId)) {
+            return;
+        }
+        writer.write(type);
+        writer.write('\t');
+        writer.write(Long.toHexString(key));
+        writer.write('\t');
+        writer.write(buildId);
+        writer.write('\n');
+        journalLines++;
+    }
+
+    /**
+     * Looks for the build of a delivery. If there is none, the delivery is reserved until record() or release(),
+     * so a copy of it received meanwhile is found too.
+     *
+     * A delivery id already seen is always a duplicate. A commit already seen on the same ref of the repository
+     * is only a duplicate while its build is current: queued, running or finished without being cancelled.
+     *
+     * @param deliveryId - The X-GitHub-Delivery header, or null
+     * @param repository - The repository of the push, or null
+     * @param ref - The pushed ref, like refs/heads/main
+     * @param commit - The head commit of the push, or null
+     * @param current - Tells if a build is current
+     * @return null if the delivery is new, otherwise the id of the build of the first delivery, empty if it is
+     *         not known yet
+     */
+    public synchronized String findOrReserve(String deliveryId, String repository, String ref, String commit,
+                                             Predicate<String> current) {
+        Long deliveryKey = deliveryId != null ? hash(deliveryId) : null;
+        Long commitKey = commitKey(repository, ref, commit);
+        String buildId = deliveryKey != null ? deliveries.get(deliveryKey) : null;
+        if (buildId != null) {
+            deliveryHits++;
+            return buildId;
+        }
+        buildId = commitKey != null ? commits.get(commitKey) : null;
+        if (buildId != null && (PENDING.equals(buildId) || current.test(buildId))) {
+            commitHits++;
+            return buildId;
+        }
+        if (deliveryKey != null) {
+            deliveries.put(deliveryKey, PENDING);
+        }
+        if (commitKey != null) {
+            commits.put(commitKey, PENDING);
+        }
+        return null;
+    }
+
+    /**
+     * Records the build started by a delivery reserved with findOrReserve().
+     *
+     * @param buildId - The id of the build
+     */
+    public synchronized void record(String deliveryId, String repository, String ref, String commit, String buildId) {
+        Long commitKey = commitKey(repository, ref, commit);
+        try {
+            if (deliveryId != null) {
+                deliveries.put(hash(deliveryId), buildId);
+                if (journal != null) {
+                    writeLine(journal, DELIVERY, hash(deliveryId), buildId);
+                }
+            }
+            if (commitKey != null) {
+                commits.put(commitKey, buildId);
+                if (journal != null) {
+                    writeLine(journal, COMMIT, commitKey, buildId);
+                }
+            }
+            if (journal != null) {
+                journal.flush();
+                if (journalLines > 4L * maxEntries) {
+                    compactJournal();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing delivery journal: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forgets a delivery reserved with findOrReserve() that did not start a build, so it can be sent again.
+     */
+    public synchronized void release(String deliveryId, String repository, String ref, String commit) {
+        if (deliveryId != null) {
+            deliveries.remove(hash(deliveryId), PENDING);
+        }
+        Long commitKey = commitKey(repository, ref, commit);
+        if (commitKey != null) {
+            commits.remove(commitKey, PENDING);
+        }
+    }
+
+    /**
+     * @return the number of delivery ids remembered
+     */
+    public synchronized int getDeliveryCount() {
+        return deliveries.size();
+    }
+
+    /**
+     * @return the number of deliveries found by their delivery id
+     */
+    public synchronized long getDeliveryHits() {
+        return deliveryHits;
+    }
+
+    /**
+     * @return the number of deliveries found by their repository, ref and commit
+     */
+    public synchronized long getCommitHits() {
+        return commitHits;
+    }
+}
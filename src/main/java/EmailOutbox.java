@@ -0,0 +1,411 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * A queue of the emails to send, so the build workers never wait for the mail server.
+ *
+ * Every email is written to its own file in the outbox directory before it is queued, and deleted once sent,
+ * so the emails not sent yet are sent after a restart. A single sender thread sends them over one SMTP connection,
+ * kept open between emails and closed after IDLE_CLOSE_MILLIS without email. An email that can not be sent is
+ * tried again later, waiting twice as long after every failure, and dropped after maxAttempts tries or MAX_AGE_MILLIS.
+ *
+ * With a digest window, an email waits that long before it is sent and the emails queued in the meantime
+ * for the same recipient are sent with it, as one digest.
+ */
+public class EmailOutbox {
+
+    // An email not sent after a day is dropped, including the emails found in the outbox at startup
+    public static final long MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    // The SMTP connection is closed when no email was sent for a minute, mail servers drop idle connections
+    public static final long IDLE_CLOSE_MILLIS = 60 * 1000;
+
+    public static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * An email of the outbox, as written in its file.
+     */
+    static class Email {
+        String id;
+        String to;
+        String subject;
+        String body;
+        long createdAtMillis;
+        int attempts;
+        long nextAttemptAtMillis;
+    }
+
+    private final Gson gson = new Gson();
+    private final File outboxDir;
+    private final Session session;
+    private final InternetAddress from;
+    private final long digestWindowMillis;
+    private final long initialBackoffMillis;
+    private final int maxAttempts;
+    private final AtomicLong nextId = new AtomicLong();
+
+    // Guarded by this
+    private final List<Email> pending = new ArrayList<>();
+    private boolean running;
+    private Thread sender;
+
+    // Only used by the sender thread
+    private Transport transport;
+    private long lastSentAtMillis;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final Metrics.Histogram sendLatency = new Metrics.Histogram();
+
+    /**
+     * @param outboxDir - The directory holding the emails not sent yet
+     * @param session - The mail session, with the SMTP server and its credentials
+     * @param from - The sender address of the emails
+     * @param digestWindowMillis - The time an email waits for other emails to the same recipient, 0 to send it at once
+     * @param initialBackoffMillis - The time before the second try of an email, doubled after every failure
+     * @param maxAttempts - The number of tries before an email is dropped
+     */
+    public EmailOutbox(File outboxDir, Session session, InternetAddress from, long digestWindowMillis,
+                       long initialBackoffMillis, int maxAttempts) {
+        this.outboxDir = outboxDir;
+        this.session = session;
+        this.from = from;
+        this.digestWindowMillis = digestWindowMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Reads the emails left in the outbox directory and starts the sender thread.
+     *
+     * @return the number of emails read from the outbox directory
+     */
+    public synchronized int start() {
+        outboxDir.mkdirs();
+        File[] files = outboxDir.listFiles(file -> file.getName().endsWith(".json"));
+        long now = System.currentTimeMillis();
+        if (files != null) {
+            for (File file : files) {
+                Email email = readEmail(file);
+                if (email == null || now - email.createdAtMillis > MAX_AGE_MILLIS) {
+                    file.delete();
+                } else {
+                    pending.add(email);
+                }
+            }
+        }
+        running = true;
+        sender = new Thread(this::run, "email-sender");
+        sender.setDaemon(true);
+        sender.start();
+        notifyAll();
+        return pending.size();
+    }
+
+    /**
+     * Stops the sender thread and closes the SMTP connection. The emails not sent yet stay in the outbox directory.
+     */
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = sender;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Queues an email. It is written to the outbox directory before this function returns.
+     *
+     * @param to - The recipient address
+     * @param subject - The subject of the email
+     * @param body - The plain text of the email
+     * @return false if the email could not be written to the outbox directory or the outbox is not started
+     */
+    public boolean enqueue(String to, String subject, String body) {
+        Email email = new Email();
+        email.createdAtMillis = System.currentTimeMillis();
+        email.id = email.createdAtMillis + "-" + nextId.incrementAndGet();
+        email.to = to;
+        email.subject = subject;
+        email.body = body;
+        email.nextAttemptAtMillis = email.createdAtMillis + digestWindowMillis;
+        synchronized (this) {
+            if (!running) {
+                System.err.println("Email outbox is not started, email to " + to + " dropped.");
+                return false;
+            }
+            try {
+                writeEmail(email);
+            } catch (IOException e) {
+                System.err.println("Error writing email to the outbox: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+            pending.add(email);
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of emails not sent yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of emails sent, an email sent in a digest counts once
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of emails dropped after too many tries or because they were too old
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of SMTP connections opened
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the times to send an email or a digest, connection included
+     */
+    public Metrics.Histogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * The loop of the sender thread: waits for the next email due, then sends it with the other emails
+     * to the same recipient.
+     */
+    private void run() {
+        while (true) {
+            List<Email> batch = null;
+            boolean idle = false;
+            synchronized (this) {
+                while (running) {
+                    batch = takeDueBatch();
+                    if (batch != null) {
+                        break;
+                    }
+                    long waitMillis = nextDueInMillis();
+                    if (transport != null) {
+                        long idleLeftMillis = lastSentAtMillis + IDLE_CLOSE_MILLIS - System.currentTimeMillis();
+                        if (idleLeftMillis <= 0) {
+                            // The connection is closed outside of the lock, enqueue never waits for the mail server
+                            idle = true;
+                            break;
+                        }
+                        waitMillis = Math.min(waitMillis, idleLeftMillis);
+                    }
+                    try {
+                        wait(Math.max(1, waitMillis));
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+            }
+            if (idle) {
+                closeTransport();
+            } else {
+                send(batch);
+            }
+        }
+        closeTransport();
+    }
+
+    /**
+     * Removes the emails to send now from the pending list: the emails to the recipient of the first email due.
+     * Must be called with the lock held.
+     *
+     * @return the emails to send, or null if no email is due
+     */
+    private List<Email> takeDueBatch() {
+        long now = System.currentTimeMillis();
+        Email due = null;
+        for (Email email : pending) {
+            if (email.nextAttemptAtMillis <= now && (due == null || email.nextAttemptAtMillis < due.nextAttemptAtMillis)) {
+                due = email;
+            }
+        }
+        if (due == null) {
+            return null;
+        }
+        List<Email> batch = new ArrayList<>();
+        for (Email email : pending) {
+            // The other emails of the recipient join the digest, except those waiting after a failure
+            if (email.to.equalsIgnoreCase(due.to) && (email == due || digestWindowMillis > 0 && email.attempts == 0)) {
+                batch.add(email);
+            }
+        }
+        pending.removeAll(batch);
+        batch.sort(Comparator.comparingLong(email -> email.createdAtMillis));
+        return batch;
+    }
+
+    /**
+     * @return the time until the next email is due, Long.MAX_VALUE if there is none. Must be called with the lock held
+     */
+    private long nextDueInMillis() {
+        long next = Long.MAX_VALUE;
+        for (Email email : pending) {
+            next = Math.min(next, email.nextAttemptAtMillis);
+        }
+        return next == Long.MAX_VALUE ? next : next - System.currentTimeMillis();
+    }
+
+    /**
+     * Sends the emails of a recipient, as one digest if there are several, and deletes their files.
+     * On failure the emails are queued again with a longer wait.
+     */
+    private void send(List<Email> batch) {
+        long start = System.nanoTime();
+        try {
+            MimeMessage message = createMessage(batch);
+            if (transport == null || !transport.isConnected()) {
+                closeTransport();
+                transport = session.getTransport("smtp");
+                transport.connect();
+                connectionCount.incrementAndGet();
+            }
+            transport.sendMessage(message, message.getAllRecipients());
+            lastSentAtMillis = System.currentTimeMillis();
+            for (Email email : batch) {
+                new File(outboxDir, email.id + ".json").delete();
+            }
+            sentCount.addAndGet(batch.size());
+            sendLatency.observeNanos(System.nanoTime() - start);
+            System.out.println("Email sent to " + batch.get(0).to + (batch.size() > 1 ? ", digest of " + batch.size() + " builds" : ""));
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            System.err.println("Error sending email to " + batch.get(0).to + ": " + e.getMessage());
+            // The connection may be broken, the next try opens a new one
+            closeTransport();
+            retryLater(batch);
+        } catch (Throwable e) {
+            // Keep the sender thread alive: an unexpected exception or error, such as a missing class of the
+            // mail library, must not stop the other emails while enqueue() keeps accepting new ones
+            System.err.println("Unexpected error sending email to " + batch.get(0).to + ": " + e);
+            e.printStackTrace();
+            closeTransport();
+            retryLater(batch);
+        }
+    }
+
+    /**
+     * Queues failed emails again, or drops them after maxAttempts tries.
+     */
+    private void retryLater(List<Email> batch) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Email email : batch) {
+                email.attempts++;
+                if (email.attempts >= maxAttempts || now - email.createdAtMillis > MAX_AGE_MILLIS) {
+                    System.err.println("Email to " + email.to + " dropped after " + email.attempts + " tries.");
+                    new File(outboxDir, email.id + ".json").delete();
+                    failedCount.incrementAndGet();
+                    continue;
+                }
+                long backoff = initialBackoffMillis << Math.min(email.attempts - 1, 20);
+                email.nextAttemptAtMillis = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+                try {
+                    writeEmail(email);
+                } catch (IOException e) {
+                    System.err.println("Error writing email to the outbox: " + e.getMessage());
+                }
+                pending.add(email);
+            }
+        }
+    }
+
+    /**
+     * Creates the message of a batch: the email itself, or a digest of the emails of the batch.
+     */
+    private MimeMessage createMessage(List<Email> batch) throws MessagingException, UnsupportedEncodingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(from);
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(batch.get(0).to));
+        if (batch.size() == 1) {
+            message.setSubject(batch.get(0).subject, "UTF-8");
+            message.setText(batch.get(0).body, "UTF-8");
+        } else {
+            StringBuilder body = new StringBuilder();
+            body.append(batch.size()).append(" builds finished:\n");
+            for (Email email : batch) {
+                body.append("* ").append(email.subject).append("\n");
+            }
+            for (Email email : batch) {
+                body.append("\n==== ").append(email.subject).append(" ====\n\n").append(email.body).append("\n");
+            }
+            message.setSubject("Build results: " + batch.size() + " builds", "UTF-8");
+            message.setText(body.toString(), "UTF-8");
+        }
+        return message;
+    }
+
+    private void closeTransport() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                // The connection is already broken
+            }
+            transport = null;
+        }
+    }
+
+    /**
+     * Writes the file of an email, replacing its previous version at once.
+     */
+    private void writeEmail(Email email) throws IOException {
+        File file = new File(outboxDir, email.id + ".json");
+        File temp = new File(outboxDir, email.id + ".json.tmp");
+        Files.write(temp.toPath(), gson.toJson(email).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Email readEmail(File file) {
+        try {
+            Email email = gson.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), Email.class);
+            return email != null && email.id != null && email.to != null ? email : null;
+        } catch (IOException | JsonParseException e) {
+            System.err.println("Skipping invalid email in the outbox " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
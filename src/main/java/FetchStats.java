@@ -0,0 +1,27 @@
+// No package declaration here
+
+/**
+ * The size and duration of the fetch done to create a build workspace.
+ */
+public final class FetchStats {
+
+    private final long bytes;
+    private final long millis;
+
+    /**
+     * @param bytes - The number of bytes of git objects added by the fetch
+     * @param millis - The duration of the fetch in milliseconds
+     */
+    public FetchStats(long bytes, long millis) {
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+}
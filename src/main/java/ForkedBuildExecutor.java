@@ -0,0 +1,42 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs every build in a new Maven process started with the command of the server and the Maven arguments of the build.
+ */
+public class ForkedBuildExecutor implements BuildExecutor {
+
+    private final List<String> command;
+
+    /**
+     * @param command - The command starting Maven
+     */
+    public ForkedBuildExecutor(List<String> command) {
+        this.command = command;
+    }
+
+    @Override
+    public int execute(Build build, File projectDir, BuildOutput output) throws IOException, InterruptedException {
+        // Create a process builder to execute the command in the project directory
+        ProcessBuilder processBuilder = new ProcessBuilder(BuildExecutor.commandOf(build, command));
+        processBuilder.directory(projectDir); // Set the working directory
+
+        // Read the output and the errors of Maven as one stream
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectInput(ProcessBuilder.Redirect.INHERIT);
+
+        // Start the process
+        Process process = processBuilder.start();
+        build.setProcess(process);
+        try {
+            // Stream the output until Maven closes it, then wait for the process to complete
+            output.copyFrom(process.getInputStream());
+            return process.waitFor();
+        } finally {
+            build.setProcess(null);
+        }
+    }
+}
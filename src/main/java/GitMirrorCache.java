@@ -0,0 +1,615 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * A cache of bare git mirrors, one per repository, kept under the build history directory.
+ * On every push the mirror is updated with an incremental fetch, and the build workspace is created
+ * from it locally: the workspace borrows the mirror objects through git alternates, so no objects are copied.
+ * A workspace can also be created for one exact commit: then only the pushed branch is fetched.
+ * The least recently used mirrors are removed when the cache grows over its size limit.
+ *
+ * A workspace uses its mirror from the start of its creation until it is released with releaseWorkspace(),
+ * since git reads its objects from the mirror. A mirror used by a workspace is never removed.
+ */
+public class GitMirrorCache {
+
+    // Mirror locks are shared by all caches of the JVM: fetches take the write lock, workspace creation the read lock
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> LOCKS = new ConcurrentHashMap<>();
+    // The workspaces using each mirror, by mirror path, shared by all caches of the JVM. The sets are only
+    // changed in compute(), and a mirror without workspaces has no entry
+    private static final ConcurrentHashMap<String, Set<String>> USERS = new ConcurrentHashMap<>();
+
+    private static final RefSpec MIRROR_REFSPEC = new RefSpec("+refs/heads/*:refs/heads/*");
+
+    private final File root;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, Long> mirrorSizes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a mirror cache.
+     *
+     * @param root - The directory where the mirrors are stored
+     * @param maxBytes - The total size of the mirrors above which the least recently used ones are removed
+     */
+    public GitMirrorCache(File root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the directory of the mirror of a repository. The name is readable and unique per URL.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @return the directory of the bare mirror
+     */
+    public File getMirrorDir(String repoUrl) {
+        return new File(root, mirrorName(repoUrl));
+    }
+
+    /**
+     * @param repoUrl - The clone URL of the repository
+     * @return the name of the mirror directory of a repository, the same in every cache
+     */
+    public static String mirrorName(String repoUrl) {
+        String name = repoUrl.replaceAll("^[a-zA-Z]+://", "").replaceAll("[^a-zA-Z0-9._-]", "_");
+        if (name.length() > 80) {
+            name = name.substring(name.length() - 80);
+        }
+        return name + "-" + Integer.toHexString(repoUrl.hashCode()) + ".git";
+    }
+
+    /**
+     * @return the names of the mirrors in the cache
+     */
+    public List<String> listMirrors() {
+        List<String> names = new ArrayList<>();
+        File[] dirs = root.listFiles(file -> file.isDirectory() && file.getName().endsWith(".git"));
+        if (dirs != null) {
+            for (File dir : dirs) {
+                names.add(dir.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Creates the mirror of a repository, or updates it with an incremental fetch if it already exists.
+     * All the branches of the repository are fetched.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @return the directory of the up to date mirror
+     */
+    public File updateMirror(String repoUrl) throws GitAPIException, IOException {
+        fetchIntoMirror(repoUrl, null);
+        return getMirrorDir(repoUrl);
+    }
+
+    /**
+     * Creates or updates the mirror of a repository.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @param branch - The only branch to fetch, or null to fetch all the branches
+     * @return the size of the packs received by the fetch and its duration
+     */
+    FetchStats fetchIntoMirror(String repoUrl, String branch) throws GitAPIException, IOException {
+        File mirrorDir = getMirrorDir(repoUrl);
+        RefSpec refSpec = branch != null
+            ? new RefSpec("+" + Constants.R_HEADS + branch + ":" + Constants.R_HEADS + branch)
+            : MIRROR_REFSPEC;
+        FetchStats stats;
+        ReentrantReadWriteLock lock = lockFor(mirrorDir);
+        lock.writeLock().lock();
+        try (FileChannel lockChannel = FileChannel.open(new File(root, mirrorDir.getName() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Other processes sharing the cache directory hold the same file lock
+            FileLock fileLock = lockChannel.lock();
+            try {
+                long start = System.currentTimeMillis();
+                boolean created = !mirrorDir.exists();
+                Map<String, Long> packsBefore = packFiles(mirrorDir);
+                try {
+                    if (new File(mirrorDir, "objects").isDirectory()) {
+                        System.out.println("Fetching " + refSpec + " of " + repoUrl + " into mirror " + mirrorDir.getPath());
+                        try (Git mirror = Git.open(mirrorDir)) {
+                            mirror.fetch()
+                                .setRemote(repoUrl)
+                                .setRefSpecs(refSpec)
+                                .setRemoveDeletedRefs(branch == null)
+                                .call();
+                        }
+                    } else if (branch != null) {
+                        System.out.println("Creating mirror of " + refSpec + " of " + repoUrl + " in " + mirrorDir.getPath());
+                        try (Git mirror = Git.init().setBare(true).setDirectory(mirrorDir).call()) {
+                            mirror.fetch()
+                                .setRemote(repoUrl)
+                                .setRefSpecs(refSpec)
+                                .call();
+                        }
+                    } else {
+                        System.out.println("Creating mirror of " + repoUrl + " in " + mirrorDir.getPath());
+                        Git.cloneRepository()
+                            .setURI(repoUrl)
+                            .setDirectory(mirrorDir)
+                            .setBare(true)
+                            .call()
+                            .close();
+                    }
+                } catch (GitAPIException | RuntimeException e) {
+                    if (created) {
+                        deleteDirectory(mirrorDir.toPath());
+                        new File(root, mirrorDir.getName() + ".lock").delete();
+                    }
+                    throw e;
+                }
+                // A fetch stores what it receives as a new pack, so the new files of objects/pack give the
+                // fetched bytes without walking the mirror while the locks are held
+                long receivedBytes = 0;
+                long addedBytes = 0;
+                for (Map.Entry<String, Long> pack : packFiles(mirrorDir).entrySet()) {
+                    if (!packsBefore.containsKey(pack.getKey())) {
+                        addedBytes += pack.getValue();
+                        if (pack.getKey().endsWith(".pack")) {
+                            receivedBytes += pack.getValue();
+                        }
+                    }
+                }
+                long added = addedBytes;
+                if (created) {
+                    mirrorSizes.put(mirrorDir.getName(), added);
+                } else {
+                    // An unknown size is computed once by evict(), outside the locks
+                    mirrorSizes.computeIfPresent(mirrorDir.getName(), (name, size) -> size + added);
+                }
+                mirrorDir.setLastModified(System.currentTimeMillis());
+                stats = new FetchStats(receivedBytes, System.currentTimeMillis() - start);
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        evict(mirrorDir);
+        return stats;
+    }
+
+    /**
+     * Creates a build workspace from the mirror of a repository.
+     * The mirror is updated first, then the workspace is initialized with the mirror objects as alternates
+     * and the given branch is checked out.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @param workspaceDir - The directory of the workspace, it must be empty or not exist
+     * @param branch - The branch to check out, or null for the default branch of the repository
+     * @return the number of bytes fetched into the mirror and the duration of the fetch
+     */
+    public FetchStats createWorkspace(String repoUrl, File workspaceDir, String branch) throws GitAPIException, IOException {
+        File mirrorDir = getMirrorDir(repoUrl);
+        // The mirror is not evicted between the fetch and the checkout
+        addUser(mirrorDir, workspaceDir);
+        boolean created = false;
+        FetchStats stats;
+        try {
+            stats = fetchIntoMirror(repoUrl, null);
+            checkoutBranch(mirrorDir, repoUrl, workspaceDir, branch);
+            created = true;
+        } finally {
+            if (!created) {
+                removeUser(mirrorDir, workspaceDir);
+            }
+        }
+        return stats;
+    }
+
+    private void checkoutBranch(File mirrorDir, String repoUrl, File workspaceDir, String branch)
+            throws GitAPIException, IOException {
+        ReentrantReadWriteLock lock = lockFor(mirrorDir);
+        lock.readLock().lock();
+        try (Git mirror = Git.open(mirrorDir)) {
+            String ref = branch != null ? Constants.R_HEADS + branch : Constants.HEAD;
+            ObjectId commitId = mirror.getRepository().resolve(ref);
+            if (commitId == null) {
+                throw new IOException("Ref " + ref + " not found in mirror of " + repoUrl);
+            }
+            String branchRef = branch != null ? Constants.R_HEADS + branch
+                : mirror.getRepository().getFullBranch();
+            checkoutFromMirror(mirrorDir, repoUrl, workspaceDir, branchRef, commitId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates a build workspace for an exact commit of a branch.
+     * Only the pushed branch is fetched into the mirror, and the workspace branch points at the given commit,
+     * even if the branch has moved since the push.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @param workspaceDir - The directory of the workspace, it must be empty or not exist
+     * @param branch - The pushed branch
+     * @param commitId - The hash of the pushed commit
+     * @return the number of bytes fetched into the mirror and the duration of the fetch
+     */
+    public FetchStats createWorkspaceAtCommit(String repoUrl, File workspaceDir, String branch, String commitId)
+            throws GitAPIException, IOException {
+        File mirrorDir = getMirrorDir(repoUrl);
+        addUser(mirrorDir, workspaceDir);
+        boolean created = false;
+        FetchStats stats;
+        try {
+            stats = fetchIntoMirror(repoUrl, branch);
+            ReentrantReadWriteLock lock = lockFor(mirrorDir);
+            lock.readLock().lock();
+            try (Git mirror = Git.open(mirrorDir)) {
+                ObjectId id = ObjectId.fromString(commitId);
+                if (!mirror.getRepository().hasObject(id)) {
+                    throw new IOException("Commit " + commitId + " not found on branch " + branch + " of " + repoUrl);
+                }
+                checkoutFromMirror(mirrorDir, repoUrl, workspaceDir, Constants.R_HEADS + branch, id);
+            } finally {
+                lock.readLock().unlock();
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                removeUser(mirrorDir, workspaceDir);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Updates a workspace created from the mirror to an exact commit of a branch, in place.
+     * Only the pushed branch is fetched into the mirror. The workspace is reset to the commit, and the files
+     * that are not in the commit are deleted, except in the directories with the kept name, like the
+     * target directories of an incremental Maven build.
+     *
+     * @param repoUrl - The clone URL of the repository
+     * @param workspaceDir - The workspace, created by createWorkspaceAtCommit
+     * @param branch - The pushed branch
+     * @param commitId - The hash of the pushed commit
+     * @param keptDirName - The name of the untracked directories to keep, at any depth
+     * @return the number of bytes fetched into the mirror and the duration of the fetch
+     */
+    public FetchStats updateWorkspaceAtCommit(String repoUrl, File workspaceDir, String branch, String commitId,
+                                              String keptDirName) throws GitAPIException, IOException {
+        File mirrorDir = getMirrorDir(repoUrl);
+        // The workspace uses the mirror until it is released, even if the update fails
+        addUser(mirrorDir, workspaceDir);
+        FetchStats stats = fetchIntoMirror(repoUrl, branch);
+        ReentrantReadWriteLock lock = lockFor(mirrorDir);
+        lock.readLock().lock();
+        try (Git workspace = Git.open(workspaceDir)) {
+            // The objects are read from the mirror through the alternates of the workspace
+            ObjectId id = ObjectId.fromString(commitId);
+            if (!workspace.getRepository().hasObject(id)) {
+                throw new IOException("Commit " + commitId + " not found on branch " + branch + " of " + repoUrl);
+            }
+            workspace.reset().setMode(ResetType.HARD).setRef(commitId).call();
+            Set<String> untracked = workspace.clean().setCleanDirectories(true).setIgnore(false).setDryRun(true).call();
+            for (String path : untracked) {
+                if (!Arrays.asList(path.split("/")).contains(keptDirName)) {
+                    deleteExcept(new File(workspaceDir, path).toPath(), keptDirName);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return stats;
+    }
+
+    /**
+     * Initializes a workspace that borrows the objects of a mirror and checks out a commit.
+     *
+     * @param mirrorDir - The directory of the mirror
+     * @param repoUrl - The clone URL of the repository, set as the origin remote of the workspace
+     * @param workspaceDir - The directory of the workspace
+     * @param branchRef - The full name of the branch to create, or null to check out a detached HEAD
+     * @param commitId - The commit to check out
+     */
+    void checkoutFromMirror(File mirrorDir, String repoUrl, File workspaceDir, String branchRef, ObjectId commitId)
+            throws GitAPIException, IOException {
+        try (Git workspace = Git.init().setDirectory(workspaceDir).call()) {
+            Repository repo = workspace.getRepository();
+
+            // Borrow the objects of the mirror instead of copying them
+            File alternates = new File(repo.getDirectory(), "objects/info/alternates");
+            alternates.getParentFile().mkdirs();
+            Files.write(alternates.toPath(),
+                (new File(mirrorDir, "objects").getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+
+            StoredConfig config = repo.getConfig();
+            config.setString("remote", "origin", "url", repoUrl);
+            config.setString("remote", "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+            config.save();
+
+            try (RevWalk walk = new RevWalk(repo)) {
+                RevCommit commit = walk.parseCommit(commitId);
+                DirCacheCheckout checkout = new DirCacheCheckout(repo, repo.lockDirCache(), commit.getTree());
+                checkout.setFailOnConflict(true);
+                checkout.checkout();
+            }
+
+            RefUpdate head = repo.updateRef(Constants.HEAD, branchRef == null);
+            if (branchRef != null) {
+                RefUpdate branchUpdate = repo.updateRef(branchRef);
+                branchUpdate.setNewObjectId(commitId);
+                branchUpdate.forceUpdate();
+                head.link(branchRef);
+            } else {
+                head.setNewObjectId(commitId);
+                head.forceUpdate();
+            }
+        }
+    }
+
+    /**
+     * Marks the mirror of an existing workspace as used by it, like a workspace kept across restarts.
+     * Nothing is done if the workspace does not borrow the objects of a mirror.
+     *
+     * @param workspaceDir - The workspace
+     */
+    public static void retainWorkspace(File workspaceDir) {
+        File mirrorDir = alternateMirror(workspaceDir);
+        if (mirrorDir != null) {
+            addUser(mirrorDir, workspaceDir);
+        }
+    }
+
+    /**
+     * Tells that a workspace does not use its mirror anymore, before it is deleted. It can be called more than once.
+     *
+     * @param workspaceDir - The workspace
+     */
+    public static void releaseWorkspace(File workspaceDir) {
+        File mirrorDir = alternateMirror(workspaceDir);
+        if (mirrorDir != null) {
+            removeUser(mirrorDir, workspaceDir);
+        }
+    }
+
+    /**
+     * @return true if a workspace uses the mirror
+     */
+    static boolean isInUse(File mirrorDir) {
+        return USERS.containsKey(mirrorDir.getAbsolutePath());
+    }
+
+    private static void addUser(File mirrorDir, File workspaceDir) {
+        USERS.compute(mirrorDir.getAbsolutePath(), (path, users) -> {
+            Set<String> updated = users != null ? users : new HashSet<>();
+            updated.add(workspaceDir.getAbsolutePath());
+            return updated;
+        });
+    }
+
+    private static void removeUser(File mirrorDir, File workspaceDir) {
+        USERS.computeIfPresent(mirrorDir.getAbsolutePath(), (path, users) -> {
+            users.remove(workspaceDir.getAbsolutePath());
+            return users.isEmpty() ? null : users;
+        });
+    }
+
+    /**
+     * Reads the mirror of a workspace from the alternates written by checkoutFromMirror().
+     *
+     * @return the mirror directory, or null if the workspace has no alternates
+     */
+    private static File alternateMirror(File workspaceDir) {
+        File alternates = new File(workspaceDir, ".git/objects/info/alternates");
+        if (!alternates.isFile()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(alternates.toPath(), StandardCharsets.UTF_8);
+            return lines.isEmpty() ? null : new File(lines.get(0).trim()).getParentFile();
+        } catch (IOException e) {
+            System.err.println("Failed to read the alternates of " + workspaceDir.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Removes the least recently used mirrors until the total size of the cache is under its limit.
+     * Mirrors used by a workspace or being fetched, and the mirror that was just used, are never removed.
+     *
+     * @param justUsed - The mirror that was just used
+     */
+    void evict(File justUsed) {
+        File[] mirrors = root.listFiles(file -> file.isDirectory() && file.getName().endsWith(".git"));
+        if (mirrors == null) {
+            return;
+        }
+        long total = 0;
+        List<File> candidates = new ArrayList<>();
+        for (File mirror : mirrors) {
+            total += mirrorSizes.computeIfAbsent(mirror.getName(), name -> directorySize(mirror.toPath()));
+            if (!mirror.equals(justUsed)) {
+                candidates.add(mirror);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(File::lastModified));
+        for (File mirror : candidates) {
+            if (total <= maxBytes) {
+                break;
+            }
+            ReentrantReadWriteLock lock = lockFor(mirror);
+            if (!lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                // Checked with the write lock held: a workspace added later waits for the eviction to fetch again
+                if (isInUse(mirror)) {
+                    continue;
+                }
+                System.out.println("Evicting git mirror " + mirror.getPath());
+                deleteDirectory(mirror.toPath());
+                Long size = mirrorSizes.remove(mirror.getName());
+                total -= size != null ? size : 0;
+                new File(root, mirror.getName() + ".lock").delete();
+            } catch (IOException e) {
+                System.err.println("Failed to evict git mirror " + mirror.getPath() + ": " + e.getMessage());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the total size in bytes of the mirrors known to the cache
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (long size : mirrorSizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the lock of a mirror. The root directory is created if needed.
+     *
+     * @param mirrorDir - The directory of the mirror
+     * @return the read/write lock of the mirror
+     */
+    private ReentrantReadWriteLock lockFor(File mirrorDir) {
+        root.mkdirs();
+        return LOCKS.computeIfAbsent(mirrorDir.getAbsolutePath(), path -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Lists the pack files of a mirror, without walking its other directories.
+     *
+     * @param mirrorDir - The directory of the mirror
+     * @return the size of each file of objects/pack, by name
+     */
+    private static Map<String, Long> packFiles(File mirrorDir) {
+        Map<String, Long> sizes = new HashMap<>();
+        File[] files = new File(mirrorDir, "objects/pack").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                sizes.put(file.getName(), file.length());
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Computes the size of all the files in a directory.
+     *
+     * @param dir - The directory
+     * @return the total size in bytes, or 0 if the directory can not be read
+     */
+    static long directorySize(Path dir) {
+        final long[] size = {0};
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return 0;
+        }
+        return size[0];
+    }
+
+    /**
+     * Deletes a file or a directory and all its contents, except the directories of a name and their contents.
+     *
+     * @param path - The file or directory to delete
+     * @param keptDirName - The name of the directories to keep, at any depth
+     */
+    static void deleteExcept(Path path, String keptDirName) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                return d.getFileName().toString().equals(keptDirName) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                try (Stream<Path> entries = Files.list(d)) {
+                    if (!entries.findAny().isPresent()) {
+                        Files.delete(d);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes a directory and all its contents.
+     *
+     * @param dir - The directory to delete
+     */
+    static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
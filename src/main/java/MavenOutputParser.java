@@ -0,0 +1,189 @@
+// No package declaration here
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the build summary from the Maven output while the build runs, one line at a time.
+ * Only a bounded number of lines is kept: the first error lines and the last lines of the output,
+ * so the memory used does not depend on the size of the log.
+ *
+ * The plugin goals run by Maven are timed from the time their "--- plugin:version:goal (execution) @ module ---"
+ * line is received to the start of the next goal or the end of the build.
+ */
+public class MavenOutputParser {
+
+    private static final String TOTAL_TIME_PREFIX = "[INFO] Total time:";
+    private static final String FINISHED_AT_PREFIX = "[INFO] Finished at:";
+    private static final Pattern GOAL_LINE = Pattern.compile("^\\[INFO\\] --- (\\S+) \\(([^)]*)\\) @ (\\S+) ---");
+    // The lines printed by Maven once the last goal is done
+    private static final String[] BUILD_END_PREFIXES = {"[INFO] Reactor Summary", "[INFO] BUILD SUCCESS", "[INFO] BUILD FAILURE"};
+    // The number of goals timed, a build with more goals only has the first ones in its timeline
+    private static final int MAX_GOAL_SPANS = 1000;
+
+    private final int maxErrorLines;
+    private final int maxTailLines;
+
+    private final List<String> errorLines = new ArrayList<>();
+    private final List<Long> errorLineNumbers = new ArrayList<>();
+    private long errorCount;
+    private final Deque<String> tailLines = new ArrayDeque<>();
+    private boolean errorEncountered;
+    private String totalTime;
+    private String finishedAt;
+    private long lineCount;
+    private final List<BuildTimeline.Span> goalSpans = new ArrayList<>();
+    private String currentGoal;
+    private long currentGoalStart;
+
+    /**
+     * @param maxErrorLines - The number of error lines kept, from the start of the output
+     * @param maxTailLines - The number of lines kept from the end of the output
+     */
+    public MavenOutputParser(int maxErrorLines, int maxTailLines) {
+        this.maxErrorLines = maxErrorLines;
+        this.maxTailLines = maxTailLines;
+    }
+
+    /**
+     * Parses the next line of the Maven output.
+     *
+     * @param line - The line, without its line terminator
+     */
+    public void onLine(String line) {
+        onLine(line, System.currentTimeMillis());
+    }
+
+    /**
+     * Parses the next line of the Maven output, received at the given time.
+     *
+     * @param line - The line, without its line terminator
+     * @param receivedMillis - The time the line was received
+     */
+    synchronized void onLine(String line, long receivedMillis) {
+        long lineNumber = lineCount++;
+        if (line.contains("[ERROR]")) {
+            errorEncountered = true;
+            errorCount++;
+            if (errorLines.size() < maxErrorLines) {
+                errorLines.add(line);
+                errorLineNumbers.add(lineNumber);
+            }
+        }
+        if (line.startsWith(TOTAL_TIME_PREFIX)) {
+            totalTime = line.substring(TOTAL_TIME_PREFIX.length()).trim();
+        } else if (line.startsWith(FINISHED_AT_PREFIX)) {
+            finishedAt = line.substring(FINISHED_AT_PREFIX.length()).trim();
+        }
+        if (line.startsWith("[INFO] ")) {
+            timeGoals(line, receivedMillis);
+        }
+        if (maxTailLines > 0) {
+            if (tailLines.size() == maxTailLines) {
+                tailLines.removeFirst();
+            }
+            tailLines.addLast(line);
+        }
+    }
+
+    /**
+     * Ends the goal being run at the start of a new goal or at the end of the build, and starts the new goal.
+     */
+    private void timeGoals(String line, long receivedMillis) {
+        Matcher goal = GOAL_LINE.matcher(line);
+        boolean started = goal.find();
+        boolean ended = false;
+        for (String prefix : BUILD_END_PREFIXES) {
+            ended |= line.startsWith(prefix);
+        }
+        if (!started && !ended) {
+            return;
+        }
+        if (currentGoal != null && goalSpans.size() < MAX_GOAL_SPANS) {
+            goalSpans.add(new BuildTimeline.Span(currentGoal, BuildStats.BUILD, currentGoalStart, receivedMillis));
+        }
+        currentGoal = started ? goalName(goal.group(1)) + " @ " + goal.group(3) : null;
+        currentGoalStart = receivedMillis;
+    }
+
+    /**
+     * @param mojo - The plugin, version and goal, like maven-compiler-plugin:3.8.1:compile
+     * @return the short name of the plugin and the goal, like compiler:compile
+     */
+    private static String goalName(String mojo) {
+        String[] parts = mojo.split(":");
+        String plugin = parts[0];
+        if (plugin.startsWith("maven-") && plugin.endsWith("-plugin")) {
+            plugin = plugin.substring("maven-".length(), plugin.length() - "-plugin".length());
+        } else if (plugin.endsWith("-maven-plugin")) {
+            plugin = plugin.substring(0, plugin.length() - "-maven-plugin".length());
+        }
+        return plugin + ":" + parts[parts.length - 1];
+    }
+
+    /**
+     * @param endMillis - The end of the goal still running if the output stopped before the end of the build
+     * @return the spans of the plugin goals run by Maven, as parts of the build phase
+     */
+    public synchronized List<BuildTimeline.Span> getGoalSpans(long endMillis) {
+        List<BuildTimeline.Span> spans = new ArrayList<>(goalSpans);
+        if (currentGoal != null && spans.size() < MAX_GOAL_SPANS) {
+            spans.add(new BuildTimeline.Span(currentGoal, BuildStats.BUILD, currentGoalStart, endMillis));
+        }
+        return spans;
+    }
+
+    public synchronized boolean isErrorEncountered() {
+        return errorEncountered;
+    }
+
+    /**
+     * @return the value of the "Total time" line, or null if Maven did not print it
+     */
+    public synchronized String getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return the value of the "Finished at" line, or null if Maven did not print it
+     */
+    public synchronized String getFinishedAt() {
+        return finishedAt;
+    }
+
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return the number of error lines of the output, including the ones not kept
+     */
+    public synchronized long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return a copy of the line numbers of the first error lines, starting at 0
+     */
+    public synchronized List<Long> getErrorLineNumbers() {
+        return new ArrayList<>(errorLineNumbers);
+    }
+
+    /**
+     * @return a copy of the first error lines of the output
+     */
+    public synchronized List<String> getErrorLines() {
+        return new ArrayList<>(errorLines);
+    }
+
+    /**
+     * @return a copy of the last lines of the output
+     */
+    public synchronized List<String> getTailLines() {
+        return new ArrayList<>(tailLines);
+    }
+}
@@ -0,0 +1,183 @@
+// No package declaration here
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.google.gson.Gson;
+
+/**
+ * The main class of a warm build JVM, started by the WarmMavenExecutor.
+ * It loads Maven from the Maven installation once and then runs the builds it is sent one after the other,
+ * so the builds do not pay for the JVM start, the Maven class loading and the JIT warmup.
+ *
+ * The executor writes one JSON build request per line on the standard input:
+ * {"dir": "/path/to/project", "args": ["clean", "test"]}
+ * and the worker answers on the standard output with frames made of a type byte, a length int and the payload:
+ * a READY frame once Maven is loaded and warmed up, OUTPUT frames with the Maven output while the build runs,
+ * and a DONE frame with "exitCode usedHeapBytes maxHeapBytes" when the build is finished.
+ */
+public class MavenWorkerMain {
+
+    static final byte READY = 'R';
+    static final byte OUTPUT = 'O';
+    static final byte DONE = 'D';
+
+    /**
+     * A build request sent by the executor.
+     */
+    static class Request {
+        String dir;
+        List<String> args;
+    }
+
+    // The real standard output of the worker, receiving the frames
+    private static DataOutputStream protocol;
+
+    /**
+     * Starts the worker.
+     *
+     * @param args - The Maven home directory
+     */
+    public static void main(String[] args) throws Exception {
+        File mavenHome = new File(args[0]);
+        // Maven writes to System.out, keep the real standard output for the protocol
+        protocol = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(new PrintStream(new NullOutputStream()));
+
+        ClassLoader mavenLoader = createMavenClassLoader(mavenHome);
+        Thread.currentThread().setContextClassLoader(mavenLoader);
+        System.setProperty("maven.home", mavenHome.getAbsolutePath());
+        System.setProperty("maven.conf", new File(mavenHome, "conf").getAbsolutePath());
+        Class<?> cliClass = mavenLoader.loadClass("org.apache.maven.cli.MavenCli");
+        Method doMain = cliClass.getMethod("doMain", String[].class, String.class, PrintStream.class, PrintStream.class);
+
+        // Warm up Maven before taking builds
+        PrintStream discard = new PrintStream(new NullOutputStream());
+        runMaven(cliClass, doMain, new String[] {"--version"}, System.getProperty("user.dir"), discard);
+        writeFrame(READY, new byte[0], 0, 0);
+
+        Gson gson = new Gson();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Request request = gson.fromJson(line, Request.class);
+            PrintStream output = new PrintStream(new BufferedOutputStream(new OutputFrameStream()), true, "UTF-8");
+            int exitCode = runMaven(cliClass, doMain, request.args.toArray(new String[0]), request.dir, output);
+            Runtime runtime = Runtime.getRuntime();
+            long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+            byte[] done = (exitCode + " " + usedHeap + " " + runtime.maxMemory()).getBytes(StandardCharsets.UTF_8);
+            writeFrame(DONE, done, 0, done.length);
+        }
+    }
+
+    /**
+     * Writes a frame on the standard output.
+     *
+     * @param type - The type of the frame
+     * @param bytes - The payload
+     * @param offset - The start of the payload in bytes
+     * @param length - The length of the payload
+     */
+    private static synchronized void writeFrame(byte type, byte[] bytes, int offset, int length) throws IOException {
+        protocol.writeByte(type);
+        protocol.writeInt(length);
+        protocol.write(bytes, offset, length);
+        protocol.flush();
+    }
+
+    /**
+     * Runs one Maven build in this JVM. The system properties changed by the build are restored afterwards.
+     *
+     * @param cliClass - The MavenCli class
+     * @param doMain - The MavenCli.doMain(String[], String, PrintStream, PrintStream) method
+     * @param args - The Maven command line arguments
+     * @param dir - The project directory
+     * @param output - The stream receiving the Maven output
+     * @return the exit code of the build
+     */
+    private static int runMaven(Class<?> cliClass, Method doMain, String[] args, String dir, PrintStream output) {
+        Properties savedProperties = (Properties) System.getProperties().clone();
+        PrintStream savedOut = System.out;
+        PrintStream savedErr = System.err;
+        try {
+            System.setProperty("maven.multiModuleProjectDirectory", dir);
+            System.setProperty("user.dir", dir);
+            Object cli = cliClass.getConstructor().newInstance();
+            return (Integer) doMain.invoke(cli, args, dir, output, output);
+        } catch (Exception e) {
+            e.printStackTrace(output);
+            return 1;
+        } finally {
+            output.flush();
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+            System.setProperties(savedProperties);
+        }
+    }
+
+    /**
+     * Creates a class loader with the same content as the plexus.core realm of the Maven launcher (see bin/m2.conf).
+     *
+     * @param mavenHome - The Maven home directory
+     * @return the class loader of Maven
+     */
+    static ClassLoader createMavenClassLoader(File mavenHome) throws Exception {
+        List<URL> urls = new ArrayList<>();
+        urls.add(new File(mavenHome, "conf/logging/").toURI().toURL());
+        for (String dir : new String[] {"lib/ext", "lib", "boot"}) {
+            File[] jars = new File(mavenHome, dir).listFiles((d, name) -> name.endsWith(".jar"));
+            if (jars != null) {
+                for (File jar : jars) {
+                    urls.add(jar.toURI().toURL());
+                }
+            }
+        }
+        return new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    /**
+     * An output stream sending everything written to it to the executor in OUTPUT frames.
+     */
+    static class OutputFrameStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFrame(OUTPUT, b, off, len);
+        }
+    }
+
+    /**
+     * An output stream that drops everything written to it.
+     */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
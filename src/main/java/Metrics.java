@@ -0,0 +1,277 @@
+// No package declaration here
+
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The counters, latency histograms and gauges of the server, written in the Prometheus text format on /metrics.
+ *
+ * Recording never takes a lock: a counter is a LongAdder, and a histogram is one LongAdder per bucket plus one
+ * for the sum, so threads recording at the same time update different cells instead of one contended value.
+ * A metric with labels is found in a concurrent map, which is only locked the first time a label value is used.
+ * Gauges are read from their supplier when the metrics are written.
+ */
+public class Metrics {
+
+    // Upper bounds in seconds of the latency buckets, from a status lookup to a long build
+    public static final double[] LATENCY_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600
+    };
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A histogram of durations in fixed buckets.
+     */
+    public static class Histogram {
+        private final double[] bounds;
+        private final long[] boundNanos;
+        // One bucket per bound, then the bucket of the durations above the last bound
+        private final LongAdder[] buckets;
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * @param bounds - The upper bounds of the buckets in seconds, in increasing order
+         */
+        public Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.boundNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                boundNanos[i] = (long) (bounds[i] * 1e9);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public Histogram() {
+            this(LATENCY_BUCKETS);
+        }
+
+        /**
+         * Records a duration in nanoseconds, for example System.nanoTime() - start.
+         */
+        public void observeNanos(long nanos) {
+            int index = Arrays.binarySearch(boundNanos, nanos);
+            buckets[index >= 0 ? index : -index - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        public void observeMillis(long millis) {
+            observeNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        /**
+         * @return the number of durations recorded
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return the sum of the durations recorded, in seconds
+         */
+        public double getSumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+
+    /**
+     * A value read when the metrics are written, like the depth of the build queue.
+     */
+    private static class Gauge {
+        final DoubleSupplier value;
+
+        Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The metrics of one name, one per set of label values.
+     */
+    public static class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<String> labelNames;
+        private final Supplier<T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = Arrays.asList(labelNames);
+            this.factory = factory;
+        }
+
+        /**
+         * @param values - The values of the labels of the family, in the same order
+         * @return the metric of the label values, created the first time
+         */
+        public T labels(String... values) {
+            if (values.length != labelNames.size()) {
+                throw new IllegalArgumentException(name + " has the labels " + labelNames);
+            }
+            List<String> key = Arrays.asList(values);
+            T child = children.get(key);
+            return child != null ? child : children.computeIfAbsent(key, k -> factory.get());
+        }
+    }
+
+    // Sorted by name, so the output does not change order between scrapes
+    private final Map<String, Family<?>> families = new ConcurrentSkipListMap<>();
+
+    private <T> Family<T> register(Family<T> family) {
+        if (families.putIfAbsent(family.name, family) != null) {
+            throw new IllegalArgumentException("The metric " + family.name + " is already registered");
+        }
+        return family;
+    }
+
+    /**
+     * @param name - The name of the counters, ending with _total
+     * @param help - The description of the counters
+     * @param labelNames - The names of the labels telling the counters apart
+     */
+    public Family<Counter> counterFamily(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, Counter::new));
+    }
+
+    public Counter counter(String name, String help) {
+        return counterFamily(name, help).labels();
+    }
+
+    /**
+     * @param name - The name of the histograms, ending with the unit, _seconds
+     * @param help - The description of the histograms
+     * @param labelNames - The names of the labels telling the histograms apart
+     */
+    public Family<Histogram> histogramFamily(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "histogram", labelNames, Histogram::new));
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogramFamily(name, help).labels();
+    }
+
+    /**
+     * Publishes a histogram kept by another class, like the send times of the email outbox.
+     */
+    public void histogram(String name, String help, Histogram histogram) {
+        register(new Family<>(name, help, "histogram", new String[0], () -> histogram)).labels();
+    }
+
+    /**
+     * Publishes a value read when the metrics are written.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(new Family<>(name, help, "gauge", new String[0], () -> new Gauge(value))).labels();
+    }
+
+    /**
+     * Publishes a count kept by another class, read when the metrics are written.
+     */
+    public void counter(String name, String help, DoubleSupplier value) {
+        register(new Family<>(name, help, "counter", new String[0], () -> new Gauge(value))).labels();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format, version 0.0.4.
+     */
+    public void write(PrintWriter out) {
+        for (Family<?> family : families.values()) {
+            out.print("# HELP " + family.name + " " + family.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            out.print("# TYPE " + family.name + " " + family.type + "\n");
+            List<List<String>> labelValues = new ArrayList<>(family.children.keySet());
+            labelValues.sort(Comparator.comparing(values -> String.join(",", values)));
+            for (List<String> values : labelValues) {
+                writeChild(out, family, values, family.children.get(values));
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeChild(PrintWriter out, Family<?> family, List<String> labelValues, Object metric) {
+        String labels = formatLabels(family.labelNames, labelValues, null);
+        if (metric instanceof Counter) {
+            out.print(family.name + labels + " " + ((Counter) metric).get() + "\n");
+        } else if (metric instanceof Gauge) {
+            out.print(family.name + labels + " " + formatValue(((Gauge) metric).value.getAsDouble()) + "\n");
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            long cumulative = 0;
+            for (int i = 0; i < histogram.buckets.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i < histogram.bounds.length ? formatValue(histogram.bounds[i]) : "+Inf";
+                out.print(family.name + "_bucket" + formatLabels(family.labelNames, labelValues, le) + " " + cumulative + "\n");
+            }
+            out.print(family.name + "_sum" + labels + " " + formatValue(histogram.getSumSeconds()) + "\n");
+            out.print(family.name + "_count" + labels + " " + cumulative + "\n");
+        }
+    }
+
+    private static String formatLabels(List<String> names, List<String> values, String le) {
+        if (names.isEmpty() && le == null) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            String value = values.get(i) != null ? values.get(i) : "";
+            labels.append(names.get(i)).append("=\"")
+                .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        if (le != null) {
+            labels.append(names.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value)
+            : BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,314 @@
+// No package declaration here
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The fields of a GitHub push event that the CI server uses.
+ * A push event is parsed once with a streaming JsonReader: only the fields below are kept
+ * and the rest of the payload (user objects, repository details...) is skipped without being stored.
+ * The added, modified and removed files of all the commits are merged into one set of changed paths.
+ */
+public final class PushEvent {
+
+    private static final String BRANCH_REF_PREFIX = "refs/heads/";
+
+    // GitHub lists at most 2048 commits in a push event, a longer push has an incomplete file list
+    static final int MAX_LISTED_COMMITS = 2048;
+
+    private final String ref;
+    private final String repositoryName;
+    private final String repositoryUrl;
+    private final String headCommitId;
+    private final String latestCommitMessage;
+    private final String authorEmail;
+    private final Set<String> changedFiles;
+    private final String beforeCommitId;
+
+    /**
+     * Creates a push event. Use one of the parse functions to create it from a webhook payload.
+     *
+     * @param ref - The pushed ref, for example refs/heads/main
+     * @param repositoryName - The name of the repository
+     * @param repositoryUrl - The clone URL of the repository
+     * @param headCommitId - The hash of the head commit of the push
+     * @param latestCommitMessage - The message of the latest commit of the push
+     * @param authorEmail - The email of the author of the head commit
+     */
+    public PushEvent(String ref, String repositoryName, String repositoryUrl, String headCommitId,
+                     String latestCommitMessage, String authorEmail) {
+        this(ref, repositoryName, repositoryUrl, headCommitId, latestCommitMessage, authorEmail, null);
+    }
+
+    /**
+     * Creates a push event with the files changed by its commits.
+     *
+     * @param changedFiles - The paths changed by the pushed commits, null if the push does not tell them
+     */
+    public PushEvent(String ref, String repositoryName, String repositoryUrl, String headCommitId,
+                     String latestCommitMessage, String authorEmail, Set<String> changedFiles) {
+        this(ref, repositoryName, repositoryUrl, headCommitId, latestCommitMessage, authorEmail, changedFiles, null);
+    }
+
+    /**
+     * Creates a push event with the files changed by its commits and the commit the branch pointed to before.
+     *
+     * @param changedFiles - The paths changed by the pushed commits, null if the push does not tell them
+     * @param beforeCommitId - The hash of the commit the branch pointed to before the push, or null
+     */
+    public PushEvent(String ref, String repositoryName, String repositoryUrl, String headCommitId,
+                     String latestCommitMessage, String authorEmail, Set<String> changedFiles, String beforeCommitId) {
+        this.ref = ref;
+        this.repositoryName = repositoryName;
+        this.repositoryUrl = repositoryUrl;
+        this.headCommitId = headCommitId;
+        this.latestCommitMessage = latestCommitMessage;
+        this.authorEmail = authorEmail;
+        this.changedFiles = changedFiles != null ? Collections.unmodifiableSet(changedFiles) : null;
+        this.beforeCommitId = beforeCommitId;
+    }
+
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * @return the pushed branch name, or null if the pushed ref is not a branch
+     */
+    public String getBranchName() {
+        if (ref != null && ref.startsWith(BRANCH_REF_PREFIX)) {
+            return ref.substring(BRANCH_REF_PREFIX.length());
+        }
+        return null;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getRepositoryUrl() {
+        return repositoryUrl;
+    }
+
+    public String getHeadCommitId() {
+        return headCommitId;
+    }
+
+    public String getLatestCommitMessage() {
+        return latestCommitMessage;
+    }
+
+    public String getAuthorEmail() {
+        return authorEmail;
+    }
+
+    /**
+     * @return the paths added, modified or removed by the pushed commits, or null if they are not known:
+     *         a new branch, a forced push or a push with more commits than the event lists
+     */
+    public Set<String> getChangedFiles() {
+        return changedFiles;
+    }
+
+    /**
+     * @return the hash of the commit the branch pointed to before the push, the commit the changed files
+     *         are relative to, or null if it is not known
+     */
+    public String getBeforeCommitId() {
+        return beforeCommitId;
+    }
+
+    /**
+     * Parses a push event from a JSON payload string.
+     *
+     * @param payload - The JSON payload of the push event
+     * @return the push event, or null if the payload is null or is not a valid JSON object
+     */
+    public static PushEvent parse(String payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return parse(new StringReader(payload));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a push event straight from the bytes of a webhook request.
+     *
+     * @param in - The UTF-8 encoded JSON payload of the push event
+     * @return the push event
+     * @throws IOException if the payload can not be read or is not a valid JSON object
+     */
+    public static PushEvent parse(InputStream in) throws IOException {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a push event with a streaming JsonReader.
+     * Only the top level "ref", "before", "after", "created", "forced", "repository", "head_commit" and "commits" members are looked at.
+     *
+     * @param in - The JSON payload of the push event
+     * @return the push event
+     * @throws IOException if the payload can not be read or is not a valid JSON object
+     */
+    public static PushEvent parse(Reader in) throws IOException {
+        String ref = null;
+        String before = null;
+        String after = null;
+        String repositoryName = null;
+        String repositoryUrl = null;
+        String headCommitId = null;
+        String headCommitMessage = null;
+        String authorEmail = null;
+        String lastCommitId = null;
+        String lastCommitMessage = null;
+        boolean created = false;
+        boolean forced = false;
+        int commitCount = 0;
+        Set<String> changedFiles = new TreeSet<>();
+
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "ref":
+                        ref = reader.nextString();
+                        break;
+                    case "before":
+                        before = nextStringOrNull(reader);
+                        break;
+                    case "after":
+                        after = reader.nextString();
+                        break;
+                    case "created":
+                    case "forced":
+                        if (reader.peek() != JsonToken.BOOLEAN) {
+                            reader.skipValue();
+                        } else if (reader.nextBoolean()) {
+                            created |= "created".equals(name);
+                            forced |= "forced".equals(name);
+                        }
+                        break;
+                    case "repository":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if ("name".equals(field)) {
+                                repositoryName = nextStringOrNull(reader);
+                            } else if ("clone_url".equals(field)) {
+                                repositoryUrl = nextStringOrNull(reader);
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    case "head_commit":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if ("id".equals(field)) {
+                                headCommitId = nextStringOrNull(reader);
+                            } else if ("message".equals(field)) {
+                                headCommitMessage = nextStringOrNull(reader);
+                            } else if ("author".equals(field) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                                reader.beginObject();
+                                while (reader.hasNext()) {
+                                    if ("email".equals(reader.nextName())) {
+                                        authorEmail = nextStringOrNull(reader);
+                                    } else {
+                                        reader.skipValue();
+                                    }
+                                }
+                                reader.endObject();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    case "commits":
+                        // Commits are listed from oldest to newest, only the last one is kept
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String id = null;
+                            String message = null;
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                String field = reader.nextName();
+                                if ("id".equals(field)) {
+                                    id = nextStringOrNull(reader);
+                                } else if ("message".equals(field)) {
+                                    message = nextStringOrNull(reader);
+                                } else if (("added".equals(field) || "modified".equals(field) || "removed".equals(field))
+                                    && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                                    reader.beginArray();
+                                    while (reader.hasNext()) {
+                                        String path = nextStringOrNull(reader);
+                                        if (path != null) {
+                                            changedFiles.add(path);
+                                        }
+                                    }
+                                    reader.endArray();
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                            commitCount++;
+                            lastCommitId = id;
+                            lastCommitMessage = message;
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw new IOException("Invalid push event payload: " + e.getMessage(), e);
+        }
+
+        String commitId = headCommitId != null ? headCommitId : (lastCommitId != null ? lastCommitId : after);
+        String message = lastCommitMessage != null ? lastCommitMessage : headCommitMessage;
+        // The commits of a new branch or of a forced push are not the changes from the previous build
+        boolean complete = !created && !forced && commitCount > 0 && commitCount < MAX_LISTED_COMMITS;
+        return new PushEvent(ref, repositoryName, repositoryUrl, commitId, message, authorEmail,
+            complete ? changedFiles : null, before);
+    }
+
+    /**
+     * Reads a string value, or consumes a JSON null.
+     *
+     * @param reader - The reader positioned on a value
+     * @return the string value, or null if the value is null or not a string
+     */
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+}
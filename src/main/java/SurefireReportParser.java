@@ -0,0 +1,453 @@
+// No package declaration here
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads the Surefire XML reports of all the modules of a build and stores the test results in the build directory.
+ *
+ * The reports are read with a StAX reader, one test case at a time, and every test case is written to the
+ * results file as soon as it is read, so the memory used does not depend on the number of test cases.
+ * Only the totals and the first failed tests are kept in memory. The stack traces and the test output
+ * of the reports are not stored.
+ *
+ * The results file is gzipped JSON: {"testCases": [{"module", "class", "name", "status", "time", "type", "message"}],
+ * "totals": {...}}. The status of a test case is passed, failed, error, skipped or flaky (passed on a rerun).
+ */
+public class SurefireReportParser {
+
+    public static final String RESULTS_FILE = "test_results.json.gz";
+
+    // Messages of failed tests are cut, the full stack trace is in the Maven output
+    public static final int MAX_MESSAGE_LENGTH = 500;
+    public static final int MAX_FAILED_TESTS = 20;
+
+    // Directories of a workspace that do not hold the reports of a module
+    private static final List<String> SKIPPED_DIRS = Arrays.asList(".git", "src", "node_modules", ".mvn");
+    private static final int MAX_MODULE_DEPTH = 8;
+
+    /**
+     * The totals of the test results of a build.
+     */
+    public static class TestTotals {
+        private long tests;
+        private long passed;
+        private long failures;
+        private long errors;
+        private long skipped;
+        private long flaky;
+        private long timeMillis;
+        private int reports;
+        private final List<String> modules = new ArrayList<>();
+        private final List<String> failedTests = new ArrayList<>();
+
+        public long getTests() {
+            return tests;
+        }
+
+        public long getPassed() {
+            return passed;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getFlaky() {
+            return flaky;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public int getReports() {
+            return reports;
+        }
+
+        /**
+         * @return the first failed tests, as class.name
+         */
+        public List<String> getFailedTests() {
+            return failedTests;
+        }
+
+        /**
+         * @return true if a test failed or ended with an error
+         */
+        public boolean hasFailures() {
+            return failures > 0 || errors > 0;
+        }
+
+        /**
+         * @return the totals as the fields of the build summary
+         */
+        public Map<String, Object> toSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("total", tests);
+            summary.put("passed", passed);
+            summary.put("failures", failures);
+            summary.put("errors", errors);
+            summary.put("skipped", skipped);
+            summary.put("flaky", flaky);
+            summary.put("timeMillis", timeMillis);
+            summary.put("modules", modules.size());
+            if (!failedTests.isEmpty()) {
+                summary.put("failedTests", failedTests);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Reads the Surefire reports of a workspace and writes the results file.
+     *
+     * @param workspaceDir - The directory of the Maven project, with the modules below it
+     * @param resultsFile - The results file to write
+     * @return the totals, or null if the workspace has no Surefire report
+     */
+    public static TestTotals collect(File workspaceDir, File resultsFile) throws IOException {
+        Map<String, File> reportDirs = findReportDirs(workspaceDir);
+        if (reportDirs.isEmpty()) {
+            return null;
+        }
+        TestTotals totals = new TestTotals();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+
+        File temp = new File(resultsFile.getPath() + ".tmp");
+        try (JsonWriter json = new JsonWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), 64 * 1024), StandardCharsets.UTF_8))) {
+            json.beginObject();
+            json.name("testCases").beginArray();
+            for (Map.Entry<String, File> module : reportDirs.entrySet()) {
+                File[] reports = module.getValue().listFiles(file -> file.getName().startsWith("TEST-") && file.getName().endsWith(".xml"));
+                if (reports == null || reports.length == 0) {
+                    continue;
+                }
+                Arrays.sort(reports);
+                totals.modules.add(module.getKey());
+                for (File report : reports) {
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(report))) {
+                        readReport(factory, in, module.getKey(), json, totals);
+                        totals.reports++;
+                    } catch (XMLStreamException e) {
+                        // A report cut by a crashed test JVM, its complete test cases are kept
+                        System.err.println("Error reading test report " + report.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+            json.endArray();
+            json.name("totals");
+            writeTotals(json, totals);
+            json.endObject();
+        }
+        Files.move(temp.toPath(), resultsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return totals;
+    }
+
+    /**
+     * @return the target/surefire-reports directories of the workspace, by module path ("." for the root module)
+     */
+    static Map<String, File> findReportDirs(File workspaceDir) throws IOException {
+        Map<String, File> reportDirs = new LinkedHashMap<>();
+        if (!workspaceDir.isDirectory()) {
+            return reportDirs;
+        }
+        Path root = workspaceDir.toPath();
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), MAX_MODULE_DEPTH,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.getFileName() != null ? dir.getFileName().toString() : "";
+                    if (!dir.equals(root) && SKIPPED_DIRS.contains(name)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if ("target".equals(name)) {
+                        File reports = new File(dir.toFile(), "surefire-reports");
+                        if (reports.isDirectory()) {
+                            String module = root.relativize(dir.getParent()).toString();
+                            reportDirs.put(module.isEmpty() ? "." : module.replace(File.separatorChar, '/'), reports);
+                        }
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        return reportDirs;
+    }
+
+    /**
+     * Reads the test cases of a report and writes them to the results file.
+     */
+    private static void readReport(XMLInputFactory factory, InputStream in, String module, JsonWriter json,
+                                   TestTotals totals) throws XMLStreamException, IOException {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            String className = null;
+            String name = null;
+            double time = 0;
+            String status = null;
+            String type = null;
+            String message = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String element = reader.getLocalName();
+                    if ("testcase".equals(element)) {
+                        className = reader.getAttributeValue(null, "classname");
+                        name = reader.getAttributeValue(null, "name");
+                        time = parseTime(reader.getAttributeValue(null, "time"));
+                        status = "passed";
+                        type = null;
+                        message = null;
+                    } else if (status != null && ("failure".equals(element) || "error".equals(element))) {
+                        status = "failure".equals(element) ? "failed" : "error";
+                        type = reader.getAttributeValue(null, "type");
+                        message = cut(reader.getAttributeValue(null, "message"));
+                    } else if (status != null && "skipped".equals(element)) {
+                        status = "skipped";
+                        message = cut(reader.getAttributeValue(null, "message"));
+                    } else if ("passed".equals(status) && (element.startsWith("flaky"))) {
+                        status = "flaky";
+                        type = reader.getAttributeValue(null, "type");
+                        message = cut(reader.getAttributeValue(null, "message"));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && status != null && "testcase".equals(reader.getLocalName())) {
+                    writeTestCase(json, module, className, name, time, status, type, message);
+                    count(totals, className, name, time, status);
+                    status = null;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeTestCase(JsonWriter json, String module, String className, String name, double time,
+                                      String status, String type, String message) throws IOException {
+        json.beginObject();
+        json.name("module").value(module);
+        json.name("class").value(className);
+        json.name("name").value(name);
+        json.name("status").value(status);
+        json.name("time").value(time);
+        if (type != null) {
+            json.name("type").value(type);
+        }
+        if (message != null) {
+            json.name("message").value(message);
+        }
+        json.endObject();
+    }
+
+    private static void count(TestTotals totals, String className, String name, double time, String status) {
+        totals.tests++;
+        totals.timeMillis += Math.round(time * 1000);
+        switch (status) {
+            case "failed":
+                totals.failures++;
+                break;
+            case "error":
+                totals.errors++;
+                break;
+            case "skipped":
+                totals.skipped++;
+                break;
+            case "flaky":
+                totals.flaky++;
+                totals.passed++;
+                break;
+            default:
+                totals.passed++;
+        }
+        if (("failed".equals(status) || "error".equals(status)) && totals.failedTests.size() < MAX_FAILED_TESTS) {
+            totals.failedTests.add(className + "." + name);
+        }
+    }
+
+    private static void writeTotals(JsonWriter json, TestTotals totals) throws IOException {
+        json.beginObject();
+        for (Map.Entry<String, Object> field : totals.toSummary().entrySet()) {
+            json.name(field.getKey());
+            if (field.getValue() instanceof Number) {
+                json.value((Number) field.getValue());
+            } else {
+                json.beginArray();
+                for (Object value : (List<?>) field.getValue()) {
+                    json.value(String.valueOf(value));
+                }
+                json.endArray();
+            }
+        }
+        json.endObject();
+    }
+
+    private static double parseTime(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            // Older reports format the time with a grouping separator: 1,234.5
+            return Double.parseDouble(value.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String cut(String message) {
+        if (message == null || message.length() <= MAX_MESSAGE_LENGTH) {
+            return message;
+        }
+        return message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+    }
+
+    /**
+     * Writes the results file of a build as JSON, only with the test cases of a status.
+     * The test cases are copied one at a time from the compressed file.
+     *
+     * @param resultsFile - The results file of the build
+     * @param status - The status of the test cases to keep, or null for all of them
+     * @param out - The writer receiving the JSON
+     */
+    public static void copyResults(File resultsFile, String status, Writer out) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(resultsFile), 64 * 1024), StandardCharsets.UTF_8))) {
+            JsonWriter json = new JsonWriter(out);
+            reader.beginObject();
+            json.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                json.name(name);
+                if ("testCases".equals(name)) {
+                    reader.beginArray();
+                    json.beginArray();
+                    while (reader.hasNext()) {
+                        copyTestCase(reader, json, status);
+                    }
+                    reader.endArray();
+                    json.endArray();
+                } else {
+                    copyValue(reader, json);
+                }
+            }
+            reader.endObject();
+            json.endObject();
+            json.flush();
+        }
+    }
+
+    /**
+     * Copies a test case if it has the status, the fields are all strings and numbers.
+     */
+    private static void copyTestCase(JsonReader reader, JsonWriter json, String status) throws IOException {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NUMBER) {
+                fields.put(name, Double.valueOf(reader.nextDouble()));
+            } else {
+                fields.put(name, reader.nextString());
+            }
+        }
+        reader.endObject();
+        if (status != null && !status.equals(fields.get("status"))) {
+            return;
+        }
+        json.beginObject();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            json.name(field.getKey());
+            if (field.getValue() instanceof Double) {
+                json.value((Double) field.getValue());
+            } else {
+                json.value((String) field.getValue());
+            }
+        }
+        json.endObject();
+    }
+
+    private static void copyValue(JsonReader reader, JsonWriter json) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                json.beginObject();
+                while (reader.hasNext()) {
+                    json.name(reader.nextName());
+                    copyValue(reader, json);
+                }
+                reader.endObject();
+                json.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                json.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, json);
+                }
+                reader.endArray();
+                json.endArray();
+                break;
+            case NUMBER:
+                json.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                json.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                json.nullValue();
+                break;
+            default:
+                json.value(reader.nextString());
+        }
+    }
+}
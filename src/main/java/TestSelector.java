@@ -0,0 +1,688 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Chooses the Maven modules and the test classes a build runs from the files changed by a push.
+ *
+ * The modules of the reactor and their dependencies are read from the pom.xml files of the workspace.
+ * A changed source file marks its module, and the modules depending on it, as affected. In the affected modules,
+ * the test classes referencing a changed class, directly or through other classes of these modules, are selected.
+ * A file references a class if it uses its simple name and is in the same package or imports it, so reflection
+ * is not seen. A change that can not be mapped to classes, like a resource, runs all the tests of its module,
+ * and a change to a build file, or a push without a file list, runs the whole build.
+ */
+public class TestSelector {
+
+    // Above this number of test classes the filter is dropped and all the tests of the modules are run
+    public static final int MAX_SELECTED_TESTS = 300;
+    static final int MAX_LISTED_SKIPPED_TESTS = 200;
+
+    private static final String MAIN_SOURCES = "src/main/java/";
+    private static final String TEST_SOURCES = "src/test/java/";
+
+    // Files that do not change the result of the build
+    private static final List<String> IGNORED_SUFFIXES = Arrays.asList(".md", ".txt", ".adoc", ".png", ".jpg", ".svg");
+    private static final List<String> IGNORED_PREFIXES = Arrays.asList("docs/", ".github/", "LICENSE", ".gitignore",
+        ".gitattributes", ".editorconfig");
+
+    // The test classes run by Surefire by default
+    private static final Pattern TEST_CLASS = Pattern.compile("Test.*|.*Test|.*Tests|.*TestCase");
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+    private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+(static\\s+)?([\\w.]+?)(\\.\\*)?\\s*;", Pattern.MULTILINE);
+
+    /**
+     * The modules and test classes chosen for a build, or the reason to run the whole build.
+     */
+    public static class Selection {
+        private final boolean fullBuild;
+        private String reason;
+        private final int changedFiles;
+        private final List<String> mavenArgs = new ArrayList<>();
+        private final List<String> modules = new ArrayList<>();
+        private List<String> testClasses;
+        private final Map<String, String> skippedModules = new TreeMap<>();
+        private final Map<String, String> skippedTests = new TreeMap<>();
+
+        private Selection(boolean fullBuild, String reason, int changedFiles) {
+            this.fullBuild = fullBuild;
+            this.reason = reason;
+            this.changedFiles = changedFiles;
+        }
+
+        /**
+         * @param reason - Why the changed files can not be used
+         * @return a selection running the whole build
+         */
+        public static Selection fullBuild(String reason) {
+            return new Selection(true, reason, 0);
+        }
+
+        public boolean isFullBuild() {
+            return fullBuild;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the arguments added to the Maven goals, empty for a full build
+         */
+        public List<String> getMavenArgs() {
+            return mavenArgs;
+        }
+
+        /**
+         * @return the directories of the changed modules, given to -pl, empty for a project of one module
+         */
+        public List<String> getModules() {
+            return modules;
+        }
+
+        /**
+         * @return the selected test classes, or null if all the tests of the built modules are run
+         */
+        public List<String> getTestClasses() {
+            return testClasses;
+        }
+
+        /**
+         * @return the modules not built, with the reason
+         */
+        public Map<String, String> getSkippedModules() {
+            return skippedModules;
+        }
+
+        /**
+         * @return the test classes not run, with the reason
+         */
+        public Map<String, String> getSkippedTests() {
+            return skippedTests;
+        }
+
+        /**
+         * @return the fields of the selection in the build summary, with at most MAX_LISTED_SKIPPED_TESTS skipped tests
+         */
+        public Map<String, Object> toSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("mode", fullBuild ? "full" : "changed");
+            summary.put("reason", reason);
+            if (fullBuild) {
+                return summary;
+            }
+            summary.put("changedFiles", changedFiles);
+            summary.put("mavenArgs", mavenArgs);
+            summary.put("modules", modules);
+            if (testClasses != null) {
+                summary.put("testClasses", testClasses);
+            }
+            summary.put("skippedModules", skippedModules);
+            List<Map<String, String>> skipped = new ArrayList<>();
+            for (Map.Entry<String, String> test : skippedTests.entrySet()) {
+                if (skipped.size() == MAX_LISTED_SKIPPED_TESTS) {
+                    break;
+                }
+                Map<String, String> entry = new LinkedHashMap<>();
+                entry.put("class", test.getKey());
+                entry.put("reason", test.getValue());
+                skipped.add(entry);
+            }
+            summary.put("skippedTests", skipped);
+            summary.put("skippedTestCount", skippedTests.size());
+            return summary;
+        }
+    }
+
+    /**
+     * A module of the reactor, read from its pom.xml.
+     */
+    static class Module {
+        final String path;
+        String groupId;
+        String artifactId;
+        final List<String> modules = new ArrayList<>();
+        final List<String[]> dependencies = new ArrayList<>();
+        final Set<Module> dependents = new HashSet<>();
+        boolean customSources;
+        boolean profileModules;
+
+        Module(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * A Java source file of an affected module, with the names it uses.
+     */
+    static class SourceFile {
+        final Module module;
+        final String className;
+        final String packageName;
+        final boolean test;
+        final Set<String> imports = new HashSet<>();
+        final Set<String> wildcardImports = new HashSet<>();
+        final Set<String> identifiers = new HashSet<>();
+        final String text;
+
+        SourceFile(Module module, String className, boolean test, String text) {
+            this.module = module;
+            this.className = className;
+            this.test = test;
+            this.text = text;
+            Matcher packageMatcher = PACKAGE.matcher(text);
+            this.packageName = packageMatcher.find() ? packageMatcher.group(1) : "";
+            Matcher importMatcher = IMPORT.matcher(text);
+            while (importMatcher.find()) {
+                String name = importMatcher.group(2);
+                boolean isStatic = importMatcher.group(1) != null;
+                boolean wildcard = importMatcher.group(3) != null;
+                if (isStatic && !wildcard) {
+                    // import static a.b.C.member imports from the class a.b.C
+                    name = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+                    imports.add(name);
+                } else if (wildcard && !isStatic) {
+                    wildcardImports.add(name);
+                } else {
+                    imports.add(name);
+                }
+            }
+            // The identifiers of the code, without the comments and the literals
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (c == '/' && text.startsWith("//", i)) {
+                    int end = text.indexOf('\n', i);
+                    i = end < 0 ? text.length() : end;
+                } else if (c == '/' && text.startsWith("/*", i)) {
+                    int end = text.indexOf("*/", i + 2);
+                    i = end < 0 ? text.length() : end + 2;
+                } else if (c == '"' || c == '\'') {
+                    i++;
+                    while (i < text.length() && text.charAt(i) != c) {
+                        i += text.charAt(i) == '\\' ? 2 : 1;
+                    }
+                    i++;
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    int start = i;
+                    while (i < text.length() && Character.isJavaIdentifierPart(text.charAt(i))) {
+                        i++;
+                    }
+                    identifiers.add(text.substring(start, i));
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * @param changedClass - The fully qualified name of a class
+         * @return true if this file uses the class
+         */
+        boolean references(String changedClass) {
+            int dot = changedClass.lastIndexOf('.');
+            String simpleName = changedClass.substring(dot + 1);
+            String changedPackage = dot >= 0 ? changedClass.substring(0, dot) : "";
+            if (!identifiers.contains(simpleName)) {
+                return false;
+            }
+            if (packageName.equals(changedPackage) || imports.contains(changedClass)
+                || wildcardImports.contains(changedPackage) || text.contains(changedClass)) {
+                return true;
+            }
+            // An import of a nested class of the changed class
+            for (String name : imports) {
+                if (name.startsWith(changedClass + ".")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Chooses the modules and tests to run for the changed files of a push.
+     *
+     * @param workspaceDir - The cloned project
+     * @param changedFiles - The paths changed by the push, relative to the repository, null if they are not known
+     * @return the selection, a full build if the changes can not be mapped to modules and classes
+     */
+    public static Selection select(File workspaceDir, Set<String> changedFiles) {
+        if (changedFiles == null || changedFiles.isEmpty()) {
+            return Selection.fullBuild("The push does not list the changed files");
+        }
+        Map<String, Module> reactor;
+        try {
+            reactor = readReactor(workspaceDir);
+        } catch (IOException | XMLStreamException e) {
+            return Selection.fullBuild("The modules could not be read: " + e.getMessage());
+        }
+
+        // Sort the changes by module: changed classes, and modules where every test has to run
+        Set<Module> changedModules = new HashSet<>();
+        Set<Module> allTestsModules = new HashSet<>();
+        Set<String> changedClasses = new TreeSet<>();
+        for (String path : changedFiles) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if ("pom.xml".equals(name) || path.startsWith(".mvn/") || name.startsWith("mvnw")) {
+                return Selection.fullBuild("The build file " + path + " changed");
+            }
+            if (isIgnored(path)) {
+                continue;
+            }
+            Module module = moduleOf(reactor, path);
+            String relative = path.substring(module.path.isEmpty() ? 0 : module.path.length() + 1);
+            if (!relative.startsWith("src/")) {
+                return Selection.fullBuild(path + " is not a source file of a module");
+            }
+            if (module.customSources) {
+                return Selection.fullBuild("The module " + displayName(module) + " has its own source directories");
+            }
+            if (module.path.isEmpty() && reactor.size() > 1) {
+                return Selection.fullBuild("The sources of the parent module changed");
+            }
+            changedModules.add(module);
+            if ((relative.startsWith(MAIN_SOURCES) || relative.startsWith(TEST_SOURCES)) && relative.endsWith(".java")) {
+                // The main and test source directories have the same length
+                String className = relative.substring(MAIN_SOURCES.length(), relative.length() - ".java".length());
+                changedClasses.add(className.replace('/', '.'));
+            } else {
+                allTestsModules.add(module);
+            }
+        }
+        for (Module module : reactor.values()) {
+            if (module.profileModules) {
+                return Selection.fullBuild("The module " + displayName(module) + " declares modules in profiles");
+            }
+        }
+
+        Selection selection = new Selection(false, null, changedFiles.size());
+        Set<Module> affected = dependentsOf(changedModules);
+        Set<String> selectedTests = new TreeSet<>();
+        try {
+            if (changedModules.isEmpty()) {
+                selection.reason = "Only files that do not change the build changed, the tests are skipped";
+            } else {
+                List<SourceFile> sources = readSources(workspaceDir, affected);
+                for (SourceFile source : referencing(sources, changedClasses)) {
+                    if (source.test && isTestClass(source.className)) {
+                        selectedTests.add(source.className);
+                    }
+                }
+                selection.reason = "The tests referencing the changed classes of " + changedModules.size()
+                    + " module" + (changedModules.size() == 1 ? "" : "s") + " are run";
+            }
+            Set<Module> allTests = dependentsOf(allTestsModules);
+            for (Module module : reactor.values()) {
+                for (String test : listTestClasses(workspaceDir, module)) {
+                    if (!affected.contains(module)) {
+                        selection.skippedTests.put(test, "Its module does not depend on a changed module");
+                    } else if (!allTests.contains(module) && !selectedTests.contains(test)) {
+                        selection.skippedTests.put(test, "It does not reference a changed class");
+                    }
+                }
+            }
+            if (!allTestsModules.isEmpty()) {
+                // A resource can be read by any test, and one -Dtest filter applies to every module
+                selection.reason = "Files other than Java sources changed, all the tests of the affected modules are run";
+                selection.skippedTests.values().removeIf(r -> r.startsWith("It does not"));
+                selectedTests = null;
+            } else if (selectedTests.size() > MAX_SELECTED_TESTS) {
+                selection.reason = "More than " + MAX_SELECTED_TESTS + " test classes are selected, all the tests of the affected modules are run";
+                selection.skippedTests.values().removeIf(r -> r.startsWith("It does not"));
+                selectedTests = null;
+            }
+        } catch (IOException e) {
+            return Selection.fullBuild("The sources could not be read: " + e.getMessage());
+        }
+
+        // The changed modules with the modules they need (-am) and the modules needing them (-amd)
+        if (reactor.size() > 1 && !changedModules.isEmpty()) {
+            for (Module module : changedModules) {
+                selection.modules.add(module.path);
+            }
+            Collections.sort(selection.modules);
+            selection.mavenArgs.add("-pl");
+            selection.mavenArgs.add(String.join(",", selection.modules));
+            selection.mavenArgs.add("-am");
+            selection.mavenArgs.add("-amd");
+            Set<Module> built = dependenciesOf(reactor, changedModules);
+            built.addAll(affected);
+            for (Module module : reactor.values()) {
+                if (!built.contains(module) && !module.path.isEmpty()) {
+                    selection.skippedModules.put(module.path, "It does not depend on a changed module and no changed module needs it");
+                }
+            }
+        }
+        if (selectedTests != null && selectedTests.isEmpty()) {
+            selection.mavenArgs.add("-DskipTests");
+            selection.testClasses = new ArrayList<>();
+        } else if (selectedTests != null) {
+            selection.testClasses = new ArrayList<>(selectedTests);
+            selection.mavenArgs.add("-Dtest=" + String.join(",", selectedTests));
+            // The modules built for -am may have none of the selected tests
+            selection.mavenArgs.add("-Dsurefire.failIfNoSpecifiedTests=false");
+            selection.mavenArgs.add("-DfailIfNoTests=false");
+        }
+        return selection;
+    }
+
+    private static boolean isIgnored(String path) {
+        for (String suffix : IGNORED_SUFFIXES) {
+            if (path.endsWith(suffix)) {
+                return true;
+            }
+        }
+        for (String prefix : IGNORED_PREFIXES) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTestClass(String className) {
+        return TEST_CLASS.matcher(className.substring(className.lastIndexOf('.') + 1)).matches();
+    }
+
+    private static String displayName(Module module) {
+        return module.path.isEmpty() ? "." : module.path;
+    }
+
+    /**
+     * @return the module with the longest directory holding the path
+     */
+    private static Module moduleOf(Map<String, Module> reactor, String path) {
+        Module best = reactor.get("");
+        for (Module module : reactor.values()) {
+            if (path.startsWith(module.path + "/") && module.path.length() > best.path.length()) {
+                best = module;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the modules and all the modules depending on them, directly or not
+     */
+    static Set<Module> dependentsOf(Set<Module> modules) {
+        Set<Module> result = new HashSet<>(modules);
+        Deque<Module> pending = new ArrayDeque<>(modules);
+        while (!pending.isEmpty()) {
+            for (Module dependent : pending.poll().dependents) {
+                if (result.add(dependent)) {
+                    pending.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the modules and all the modules they depend on, directly or not
+     */
+    static Set<Module> dependenciesOf(Map<String, Module> reactor, Set<Module> modules) {
+        Set<Module> result = new HashSet<>(modules);
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Module module : reactor.values()) {
+                if (!result.contains(module) && !Collections.disjoint(module.dependents, result)) {
+                    result.add(module);
+                    added = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the source files using the changed classes, then the files using those, until no file is added.
+     *
+     * @param sources - The source files of the affected modules
+     * @param changedClasses - The changed classes
+     * @return the changed files and the files depending on them
+     */
+    static List<SourceFile> referencing(List<SourceFile> sources, Set<String> changedClasses) {
+        List<SourceFile> result = new ArrayList<>();
+        List<SourceFile> remaining = new ArrayList<>();
+        Set<String> found = new HashSet<>(changedClasses);
+        for (SourceFile source : sources) {
+            (changedClasses.contains(source.className) ? result : remaining).add(source);
+        }
+        List<String> added = new ArrayList<>(changedClasses);
+        while (!added.isEmpty() && !remaining.isEmpty()) {
+            List<String> next = new ArrayList<>();
+            for (Iterator<SourceFile> it = remaining.iterator(); it.hasNext();) {
+                SourceFile source = it.next();
+                for (String changedClass : added) {
+                    if (source.references(changedClass)) {
+                        it.remove();
+                        result.add(source);
+                        if (found.add(source.className)) {
+                            next.add(source.className);
+                        }
+                        break;
+                    }
+                }
+            }
+            added = next;
+        }
+        return result;
+    }
+
+    /**
+     * Reads the Java sources of the modules.
+     */
+    private static List<SourceFile> readSources(File workspaceDir, Set<Module> modules) throws IOException {
+        List<SourceFile> sources = new ArrayList<>();
+        for (Module module : modules) {
+            for (String root : Arrays.asList(MAIN_SOURCES, TEST_SOURCES)) {
+                Path rootDir = new File(new File(workspaceDir, module.path), root).toPath();
+                for (Path file : listJavaFiles(rootDir)) {
+                    String className = rootDir.relativize(file).toString().replace(File.separatorChar, '.');
+                    className = className.substring(0, className.length() - ".java".length());
+                    String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    sources.add(new SourceFile(module, className, root.equals(TEST_SOURCES), text));
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Lists the test classes of a module run by Surefire, without reading them.
+     */
+    private static List<String> listTestClasses(File workspaceDir, Module module) throws IOException {
+        List<String> tests = new ArrayList<>();
+        Path rootDir = new File(new File(workspaceDir, module.path), TEST_SOURCES).toPath();
+        for (Path file : listJavaFiles(rootDir)) {
+            String className = rootDir.relativize(file).toString().replace(File.separatorChar, '.');
+            className = className.substring(0, className.length() - ".java".length());
+            if (isTestClass(className)) {
+                tests.add(className);
+            }
+        }
+        return tests;
+    }
+
+    private static List<Path> listJavaFiles(Path rootDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(rootDir)) {
+            return files;
+        }
+        Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(".java")) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Reads the modules of the reactor from the pom.xml of the workspace and of its modules,
+     * and links every module to the modules depending on it.
+     *
+     * @param workspaceDir - The cloned project
+     * @return the modules by directory relative to the workspace, "" for the root module
+     * @throws IOException if a pom.xml is missing or a module is outside the workspace
+     */
+    static Map<String, Module> readReactor(File workspaceDir) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        Map<String, Module> reactor = new LinkedHashMap<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add("");
+        while (!pending.isEmpty()) {
+            String path = pending.poll();
+            if (reactor.containsKey(path)) {
+                continue;
+            }
+            File pom = new File(new File(workspaceDir, path), "pom.xml");
+            if (!pom.isFile()) {
+                throw new IOException("No pom.xml in " + (path.isEmpty() ? "the workspace" : path));
+            }
+            Module module = new Module(path);
+            try (InputStream in = Files.newInputStream(pom.toPath())) {
+                parsePom(factory, in, module);
+            }
+            reactor.put(path, module);
+            for (String child : module.modules) {
+                if (child.endsWith(".xml")) {
+                    child = child.contains("/") ? child.substring(0, child.lastIndexOf('/')) : "";
+                }
+                String childPath = Paths.get(path, child).normalize().toString().replace(File.separatorChar, '/');
+                if (childPath.startsWith("..")) {
+                    throw new IOException("The module " + child + " is outside the workspace");
+                }
+                pending.add(childPath);
+            }
+        }
+
+        // Dependencies between modules, matched on the artifactId and on the groupId when it is not a property
+        for (Module module : reactor.values()) {
+            for (String[] dependency : module.dependencies) {
+                for (Module other : reactor.values()) {
+                    if (other != module && dependency[1] != null && dependency[1].equals(other.artifactId)
+                        && (dependency[0] == null || dependency[0].contains("${") || dependency[0].equals(other.groupId))) {
+                        other.dependents.add(module);
+                    }
+                }
+            }
+        }
+        return reactor;
+    }
+
+    /**
+     * Counts the modules of the reactor of a project.
+     *
+     * @param workspaceDir - The cloned project
+     * @return the number of modules, 1 if the pom.xml files can not be read
+     */
+    static int countModules(File workspaceDir) {
+        try {
+            return Math.max(1, readReactor(workspaceDir).size());
+        } catch (IOException | XMLStreamException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Reads the groupId, artifactId, modules and dependencies of a pom.xml.
+     */
+    private static void parsePom(XMLInputFactory factory, InputStream in, Module module) throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        String parentGroupId = null;
+        String[] dependency = null;
+        String path = "";
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String element = path.isEmpty() ? reader.getLocalName() : path + "/" + reader.getLocalName();
+                    switch (element) {
+                        case "project/groupId":
+                            module.groupId = reader.getElementText().trim();
+                            continue;
+                        case "project/artifactId":
+                            module.artifactId = reader.getElementText().trim();
+                            continue;
+                        case "project/parent/groupId":
+                            parentGroupId = reader.getElementText().trim();
+                            continue;
+                        case "project/modules/module":
+                            module.modules.add(reader.getElementText().trim());
+                            continue;
+                        case "project/profiles/profile/modules/module":
+                            module.profileModules = true;
+                            continue;
+                        case "project/build/sourceDirectory":
+                        case "project/build/testSourceDirectory":
+                            String directory = reader.getElementText().trim();
+                            if (!directory.endsWith(element.endsWith("testSourceDirectory") ? "src/test/java" : "src/main/java")) {
+                                module.customSources = true;
+                            }
+                            continue;
+                        case "project/dependencies/dependency":
+                            dependency = new String[2];
+                            break;
+                        case "project/dependencies/dependency/groupId":
+                            dependency[0] = reader.getElementText().trim();
+                            continue;
+                        case "project/dependencies/dependency/artifactId":
+                            dependency[1] = reader.getElementText().trim();
+                            continue;
+                        default:
+                            break;
+                    }
+                    path = element;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if ("project/dependencies/dependency".equals(path)) {
+                        module.dependencies.add(dependency);
+                    }
+                    path = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "";
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (module.groupId == null) {
+            module.groupId = parentGroupId;
+        }
+    }
+}
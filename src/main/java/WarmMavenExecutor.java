@@ -0,0 +1,322 @@
+// No package declaration here
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+/**
+ * Runs builds in a pool of long lived, pre-warmed Maven JVMs, in the style of the Maven daemon.
+ * Each worker JVM runs MavenWorkerMain, which loads Maven once and then runs the builds it is sent.
+ * A worker is replaced after a number of builds or when its heap is getting full.
+ * If a worker can not be started, the build falls back to the forked executor.
+ */
+public class WarmMavenExecutor implements BuildExecutor {
+
+    /**
+     * A running worker JVM.
+     */
+    static class Worker {
+        final Process process;
+        final BufferedWriter requests;
+        final DataInputStream replies;
+        byte[] payload = new byte[8 * 1024];
+        int payloadLength;
+        int builds;
+
+        Worker(Process process) {
+            this.process = process;
+            this.requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.replies = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /**
+         * Reads the next frame sent by the worker into the payload buffer.
+         *
+         * @return the type of the frame, or -1 if the worker exited
+         */
+        int readFrame() throws IOException {
+            int type = replies.read();
+            if (type == -1) {
+                return -1;
+            }
+            int length = replies.readInt();
+            if (length > payload.length) {
+                payload = new byte[length];
+            }
+            replies.readFully(payload, 0, length);
+            payloadLength = length;
+            return type;
+        }
+
+        void stop() {
+            try {
+                requests.close();
+            } catch (IOException e) {
+                // The worker is already gone
+            }
+            process.destroy();
+        }
+    }
+
+    private final File mavenHome;
+    private final int poolSize;
+    private final List<String> goals;
+    private final int maxBuildsPerWorker;
+    private final double maxHeapRatio;
+    private final String workerHeap;
+    private final BuildExecutor fallback;
+
+    private final LinkedBlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final AtomicLong recycledWorkers = new AtomicLong();
+    private final Gson gson = new Gson();
+
+    /**
+     * Creates a warm executor. Worker JVMs are started when they are first needed.
+     *
+     * @param mavenHome - The Maven installation directory
+     * @param poolSize - The maximum number of worker JVMs
+     * @param goals - The Maven goals of a build, for example [clean, test]
+     * @param maxBuildsPerWorker - The number of builds after which a worker is replaced
+     * @param maxHeapRatio - The ratio of used to max heap after a build above which a worker is replaced
+     * @param workerHeap - The max heap of a worker JVM, for example 1g
+     * @param fallback - The executor used when no worker can be started
+     */
+    public WarmMavenExecutor(File mavenHome, int poolSize, List<String> goals, int maxBuildsPerWorker,
+                             double maxHeapRatio, String workerHeap, BuildExecutor fallback) {
+        this.mavenHome = mavenHome;
+        this.poolSize = poolSize;
+        this.goals = goals;
+        this.maxBuildsPerWorker = maxBuildsPerWorker;
+        this.maxHeapRatio = maxHeapRatio;
+        this.workerHeap = workerHeap;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public int execute(Build build, File projectDir, BuildOutput output) throws IOException, InterruptedException {
+        Worker worker;
+        try {
+            worker = acquireWorker();
+        } catch (IOException e) {
+            System.err.println("Error starting warm Maven worker, running a forked build: " + e.getMessage());
+            return fallback.execute(build, projectDir, output);
+        }
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("dir", projectDir.getAbsolutePath());
+        List<String> args = new ArrayList<>();
+        args.add("-B");
+        args.addAll(BuildExecutor.commandOf(build, goals));
+        request.put("args", args);
+
+        build.setProcess(worker.process);
+        try {
+            worker.requests.write(gson.toJson(request));
+            worker.requests.newLine();
+            worker.requests.flush();
+
+            int type;
+            while ((type = worker.readFrame()) != MavenWorkerMain.DONE) {
+                if (type == -1) {
+                    throw new IOException("Warm Maven worker exited during the build");
+                }
+                if (type == MavenWorkerMain.OUTPUT) {
+                    output.write(worker.payload, 0, worker.payloadLength);
+                    if (worker.replies.available() == 0) {
+                        output.flush();
+                    }
+                }
+            }
+            String[] parts = new String(worker.payload, 0, worker.payloadLength, StandardCharsets.UTF_8).split(" ");
+            int exitCode = Integer.parseInt(parts[0]);
+            long usedHeap = Long.parseLong(parts[1]);
+            long maxHeap = Long.parseLong(parts[2]);
+            worker.builds++;
+            releaseWorker(worker, usedHeap, maxHeap);
+            return exitCode;
+        } catch (IOException | RuntimeException e) {
+            // A cancelled build destroys the worker, it is replaced by a new one on the next build
+            discardWorker(worker);
+            if (!build.isCancelled()) {
+                System.err.println("Error running build in warm Maven worker: " + e.getMessage());
+            }
+            return -1;
+        } finally {
+            build.setProcess(null);
+        }
+    }
+
+    /**
+     * @return the number of worker JVMs currently alive
+     */
+    public int getLiveWorkers() {
+        return liveWorkers.get();
+    }
+
+    /**
+     * @return the number of worker JVMs replaced because of their build count or heap use
+     */
+    public long getRecycledWorkers() {
+        return recycledWorkers.get();
+    }
+
+    @Override
+    public void shutdown() {
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.stop();
+            liveWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes an idle worker, starts a new one if the pool is not full, or waits for a worker to be released.
+     *
+     * @return a worker ready to run a build
+     */
+    private Worker acquireWorker() throws IOException, InterruptedException {
+        Worker worker = idleWorkers.poll();
+        if (worker != null) {
+            return worker;
+        }
+        while (true) {
+            int live = liveWorkers.get();
+            if (live >= poolSize) {
+                // Check the pool again from time to time, a discarded worker frees its place without being released
+                worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+                if (worker != null) {
+                    return worker;
+                }
+                continue;
+            }
+            if (liveWorkers.compareAndSet(live, live + 1)) {
+                try {
+                    return startWorker();
+                } catch (IOException e) {
+                    liveWorkers.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives a worker back to the pool after a build, or replaces it if it ran too many builds or uses too much heap.
+     * The replacement is started in the background so that it is warm when the next build comes.
+     */
+    private void releaseWorker(Worker worker, long usedHeap, long maxHeap) {
+        boolean tooManyBuilds = worker.builds >= maxBuildsPerWorker;
+        boolean heapTooFull = maxHeap > 0 && (double) usedHeap / maxHeap > maxHeapRatio;
+        if (!tooManyBuilds && !heapTooFull) {
+            idleWorkers.offer(worker);
+            return;
+        }
+        System.out.println("Recycling warm Maven worker after " + worker.builds + " builds (heap "
+            + usedHeap / (1024 * 1024) + "/" + maxHeap / (1024 * 1024) + " MB)");
+        recycledWorkers.incrementAndGet();
+        worker.stop();
+        Thread starter = new Thread(() -> {
+            try {
+                idleWorkers.offer(startWorker());
+            } catch (IOException e) {
+                liveWorkers.decrementAndGet();
+                System.err.println("Error starting warm Maven worker: " + e.getMessage());
+            }
+        }, "warm-maven-starter");
+        starter.setDaemon(true);
+        starter.start();
+    }
+
+    /**
+     * Stops a broken worker and frees its place in the pool.
+     */
+    private void discardWorker(Worker worker) {
+        worker.stop();
+        liveWorkers.decrementAndGet();
+    }
+
+    /**
+     * Starts a worker JVM and waits until it has loaded Maven.
+     *
+     * @return the started worker
+     */
+    private Worker startWorker() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = codeLocation(MavenWorkerMain.class) + File.pathSeparator + codeLocation(Gson.class);
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-Xmx" + workerHeap, "-cp", classpath,
+            "MavenWorkerMain", mavenHome.getAbsolutePath()));
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker = new Worker(processBuilder.start());
+        int type;
+        while ((type = worker.readFrame()) != -1 && type != MavenWorkerMain.READY) {
+            // Wait for the worker to be warmed up
+        }
+        if (type == -1) {
+            worker.stop();
+            throw new IOException("Warm Maven worker exited before being ready");
+        }
+        System.out.println("Warm Maven worker started");
+        return worker;
+    }
+
+    /**
+     * @return the jar or directory a class was loaded from
+     */
+    private static String codeLocation(Class<?> type) throws IOException {
+        try {
+            return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            throw new IOException("Can not find the location of " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Finds the Maven installation: the maven.home system property (set when running with mvn exec:java),
+     * the MAVEN_HOME environment variable, or the mvn executable on the PATH.
+     *
+     * @return the Maven home directory, or null if it can not be found
+     */
+    public static File findMavenHome() {
+        String home = System.getProperty("maven.home");
+        if (home == null) {
+            home = System.getenv("MAVEN_HOME");
+        }
+        if (home != null && new File(home, "lib").isDirectory()) {
+            return new File(home);
+        }
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                File mvn = new File(dir, "mvn");
+                if (mvn.isFile()) {
+                    try {
+                        File mavenHome = mvn.getCanonicalFile().getParentFile().getParentFile();
+                        if (new File(mavenHome, "lib").isDirectory()) {
+                            return mavenHome;
+                        }
+                    } catch (IOException e) {
+                        // Try the next directory of the PATH
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,485 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable spool of the webhook payloads accepted by the server, so a push is not lost when the server stops
+ * before its build is done.
+ *
+ * The payloads are appended to a journal split in segment files. A single writer thread writes the records
+ * queued by the request threads and syncs them to the disk with one fsync for the whole batch (group commit):
+ * a request waits for at most the fsync running when it came and its own, however many requests come at the
+ * same time. An entry is marked done once its build finished; the marker is not synced, a marker lost in a crash
+ * only runs the build again. When the spool is opened, the entries not done are returned to be built again and
+ * carried to a new segment. A segment is deleted when its entries and the entries of the older segments are done.
+ *
+ * Every record is written as its length, the CRC32 of its body, then its body: the type, the sequence number and,
+ * for an entry, the time it was received and the payload. A record cut by a crash fails its check and ends
+ * the reading of its segment. For the same reason a write error ends a segment: the next records go to a new one.
+ */
+public class WebhookSpool {
+
+    public static final String DIR_NAME = ".webhook_spool";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte ENTRY = 1;
+    private static final byte DONE = 2;
+
+    /**
+     * A payload of the spool, not built yet when the spool was opened.
+     */
+    public static class Entry {
+        private final long sequence;
+        private final long receivedMillis;
+        private final byte[] payload;
+
+        Entry(long sequence, long receivedMillis, byte[] payload) {
+            this.sequence = sequence;
+            this.receivedMillis = receivedMillis;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getReceivedMillis() {
+            return receivedMillis;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        long bytes;
+        int liveEntries;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A record waiting for the writer thread.
+     */
+    private static class Write {
+        final long sequence;
+        final ByteBuffer record;
+        final boolean entry;
+        Segment segment;
+        boolean done;
+        IOException error;
+
+        Write(long sequence, ByteBuffer record, boolean entry) {
+            this.sequence = sequence;
+            this.record = record;
+            this.entry = entry;
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // The segment of every entry not done yet, by sequence number
+    private final Map<Long, Segment> liveEntries = new HashMap<>();
+    private List<Write> queue = new ArrayList<>();
+    private long nextSequence = 1;
+    private Segment active;
+    private FileChannel channel;
+    private Thread writer;
+    private boolean closed;
+    private long appendedEntries;
+    private long syncs;
+    // Only used by the writer thread. After a write error the segment may end with a partial record, which ends
+    // the reading of the segment, so the next records go to a new segment
+    private boolean rollAfterError;
+
+    /**
+     * @param dir - The directory of the segment files
+     * @param segmentBytes - The size after which a new segment is started
+     */
+    public WebhookSpool(File dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Reads the segments of the spool, carries the entries not done to a new segment and starts the writer thread.
+     *
+     * @return the entries not done, oldest first
+     * @throws IOException if the spool can not be read or written
+     */
+    public List<Entry> open() throws IOException {
+        lock.lock();
+        try {
+            if (writer != null) {
+                throw new IllegalStateException("The spool is already open");
+            }
+            Files.createDirectories(dir.toPath());
+            TreeMap<Long, File> oldSegments = new TreeMap<>();
+            File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+            for (File file : files != null ? files : new File[0]) {
+                try {
+                    String id = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+                    oldSegments.put(Long.parseLong(id), file);
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping unknown spool file " + file.getName());
+                }
+            }
+            TreeMap<Long, Entry> entries = new TreeMap<>();
+            for (File file : oldSegments.values()) {
+                readSegment(file, entries);
+            }
+
+            // The entries not done start the new segment, then the old segments can go
+            active = newSegment(oldSegments.isEmpty() ? 1 : oldSegments.lastKey() + 1);
+            for (Entry entry : entries.values()) {
+                ByteBuffer record = encode(ENTRY, entry.sequence, entry.receivedMillis, entry.payload);
+                active.bytes += record.remaining();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                active.liveEntries++;
+                liveEntries.put(entry.sequence, active);
+            }
+            channel.force(true);
+            for (File file : oldSegments.values()) {
+                Files.deleteIfExists(file.toPath());
+            }
+
+            closed = false;
+            writer = new Thread(this::runWriter, "webhook-spool-writer");
+            writer.setDaemon(true);
+            writer.start();
+            return new ArrayList<>(entries.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records of a segment into the entries not done. Must be called with the lock held.
+     */
+    private void readSegment(File file, TreeMap<Long, Entry> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 9 || length > buffer.remaining()) {
+                System.err.println("Spool segment " + file.getName() + " ends with a partial record, "
+                    + (buffer.remaining() + 8) + " bytes skipped");
+                return;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            CRC32 checksum = new CRC32();
+            checksum.update(body);
+            if ((int) checksum.getValue() != crc) {
+                System.err.println("Spool segment " + file.getName() + " has a damaged record, "
+                    + (buffer.remaining() + length + 8) + " bytes skipped");
+                return;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            long sequence = record.getLong();
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (type == ENTRY && record.remaining() >= 8) {
+                long receivedMillis = record.getLong();
+                entries.put(sequence, new Entry(sequence, receivedMillis, Arrays.copyOfRange(body, record.position(), body.length)));
+            } else if (type == DONE) {
+                entries.remove(sequence);
+            }
+        }
+    }
+
+    /**
+     * Creates a segment file and makes it the one written. Must be called with the lock held.
+     */
+    private Segment newSegment(long id) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Segment segment = new Segment(id, new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+        channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static ByteBuffer encode(byte type, long sequence, long receivedMillis, byte[] payload) {
+        int length = 1 + 8 + (type == ENTRY ? 8 + payload.length : 0);
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type).putLong(sequence);
+        if (type == ENTRY) {
+            body.putLong(receivedMillis).put(payload);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(body.array());
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt((int) checksum.getValue()).put(body.array());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Appends a payload to the spool and waits until it is on the disk.
+     *
+     * @param payload - The body of the webhook request
+     * @return the sequence number of the entry, to mark it done with complete()
+     * @throws IOException if the entry could not be written
+     */
+    public long append(byte[] payload) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            if (writer == null || closed) {
+                throw new IOException("The spool is not open");
+            }
+            long sequence = nextSequence++;
+            Write write = new Write(sequence, encode(ENTRY, sequence, System.currentTimeMillis(), payload), true);
+            queue.add(write);
+            queued.signal();
+            while (!write.done) {
+                written.await();
+            }
+            if (write.error != null) {
+                throw write.error;
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an entry as done: it is not returned by open() anymore. Marking an entry twice has no effect.
+     *
+     * @param sequence - The sequence number of the entry
+     */
+    public void complete(long sequence) {
+        lock.lock();
+        try {
+            Segment segment = liveEntries.remove(sequence);
+            if (segment == null) {
+                return;
+            }
+            segment.liveEntries--;
+            if (writer != null && !closed) {
+                queue.add(new Write(sequence, encode(DONE, sequence, 0, null), false));
+                queued.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The loop of the writer thread: writes the queued records, syncs them with one fsync and wakes up
+     * the requests waiting for them.
+     */
+    private void runWriter() {
+        while (true) {
+            List<Write> batch;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    queued.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+
+            // Only this thread writes to the channel, the requests can queue records meanwhile
+            IOException error = null;
+            try {
+                if (rollAfterError) {
+                    lock.lock();
+                    try {
+                        active = newSegment(active.id + 1);
+                    } finally {
+                        lock.unlock();
+                    }
+                    rollAfterError = false;
+                }
+                for (Write write : batch) {
+                    if (active.bytes > 0 && active.bytes + write.record.remaining() > segmentBytes) {
+                        channel.force(false);
+                        lock.lock();
+                        try {
+                            active = newSegment(active.id + 1);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    active.bytes += write.record.remaining();
+                    while (write.record.hasRemaining()) {
+                        channel.write(write.record);
+                    }
+                    write.segment = active;
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                System.err.println("Error writing the webhook spool: " + e.getMessage());
+                e.printStackTrace();
+                error = e;
+                rollAfterError = true;
+            }
+
+            lock.lock();
+            try {
+                syncs++;
+                for (Write write : batch) {
+                    if (write.entry && error == null) {
+                        write.segment.liveEntries++;
+                        liveEntries.put(write.sequence, write.segment);
+                        appendedEntries++;
+                    }
+                    write.error = error;
+                    write.done = true;
+                }
+                written.signalAll();
+                compact();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while all their entries are done. A segment is only deleted after the older
+     * ones, since it may hold the done markers of their entries. Must be called with the lock held.
+     */
+    private void compact() {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || segment.liveEntries > 0) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(segment.file.toPath());
+                iterator.remove();
+            } catch (IOException e) {
+                System.err.println("Error deleting spool segment " + segment.file.getName() + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the queued records and stops the writer thread.
+     */
+    public void close() throws IOException, InterruptedException {
+        Thread stopped;
+        lock.lock();
+        try {
+            closed = true;
+            queued.signal();
+            stopped = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (stopped != null) {
+            stopped.join();
+        }
+        lock.lock();
+        try {
+            writer = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the spool is open and accepts entries
+     */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return writer != null && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries not done
+     */
+    public int getLiveEntries() {
+        lock.lock();
+        try {
+            return liveEntries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries appended since the spool was opened
+     */
+    public long getAppendedEntries() {
+        lock.lock();
+        try {
+            return appendedEntries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of fsyncs of the writer thread, each for a batch of records
+     */
+    public long getSyncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
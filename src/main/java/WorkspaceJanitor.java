@@ -0,0 +1,462 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Deletes the build workspaces and the old builds in the background, so the build workers never wait for the disk.
+ *
+ * A finished workspace is taken off the build path by renaming its files into the ".trash" directory next to it,
+ * which is one rename per file of the top level. The trash is then deleted by a pool of deleter threads, every
+ * top level entry of a workspace in its own task. A trash entry that could not be deleted stays in the trash
+ * and is tried again by the next sweep, and the trash left by a stopped server is deleted at startup.
+ *
+ * The retention rules remove the builds of the build history, for every repository: the builds after the newest
+ * keepBuilds, the builds older than maxAgeMillis and the oldest builds beyond maxBytesPerRepository.
+ * The newest build of every branch is always kept, it gives the status badge of the branch.
+ */
+public class WorkspaceJanitor {
+
+    public static final String TRASH_DIR = ".trash";
+
+    private final File historyDir;
+    private final int keepBuilds;
+    private final long maxAgeMillis;
+    private final long maxBytesPerRepository;
+
+    private final ExecutorService deleters;
+    private ScheduledExecutorService scheduler;
+
+    // Trash entries deleted right now, they are not submitted again by a sweep
+    private final Set<Path> deleting = ConcurrentHashMap.newKeySet();
+    // Size of the finished build directories, which do not change once the workspace is removed
+    private final Map<String, Long> buildSizes = new ConcurrentHashMap<>();
+    private final AtomicLong entryCount = new AtomicLong();
+
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong reclaimedFiles = new AtomicLong();
+    private final AtomicLong removedBuilds = new AtomicLong();
+    private final AtomicLong failedDeletes = new AtomicLong();
+    private final Metrics.Histogram deleteLatency = new Metrics.Histogram();
+
+    /**
+     * @param historyDir - The build history directory
+     * @param deleterThreads - The number of threads deleting the trash
+     * @param keepBuilds - The number of builds kept per repository, 0 for no limit
+     * @param maxAgeMillis - The age after which a build is removed, 0 for no limit
+     * @param maxBytesPerRepository - The disk space of the builds of a repository, 0 for no limit
+     */
+    public WorkspaceJanitor(File historyDir, int deleterThreads, int keepBuilds, long maxAgeMillis,
+                            long maxBytesPerRepository) {
+        this.historyDir = historyDir;
+        this.keepBuilds = keepBuilds;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytesPerRepository = maxBytesPerRepository;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.deleters = Executors.newFixedThreadPool(Math.max(1, deleterThreads), runnable -> {
+            Thread thread = new Thread(runnable, "workspace-janitor-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Deletes the trash left by a previous run, then sweeps the trash and applies the retention rules
+     * every intervalMillis.
+     *
+     * @param index - The build index of the build history directory
+     * @param intervalMillis - The time between two runs
+     */
+    public synchronized void start(BuildIndex index, long intervalMillis) {
+        sweepTrash(new File(historyDir, TRASH_DIR));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "workspace-janitor-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                enforceRetention(index);
+                sweepTrash(new File(historyDir, TRASH_DIR));
+            } catch (RuntimeException e) {
+                System.err.println("Error cleaning the build history: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic runs and the deleter threads. The trash not deleted yet is deleted at the next start.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        deleters.shutdownNow();
+    }
+
+    /**
+     * Takes a finished workspace off the build path: its files are moved to the trash and deleted in the background.
+     *
+     * @param buildDir - The build directory holding the workspace
+     * @param keep - Tells which files of the top level of the build directory are kept
+     * @return the number of files and directories moved to the trash
+     */
+    public int discardWorkspace(File buildDir, Predicate<String> keep) {
+        File[] files = buildDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        File entry = newTrashEntry(buildDir);
+        int moved = 0;
+        for (File file : files) {
+            if (keep.test(file.getName())) {
+                continue;
+            }
+            if (moved == 0 && !entry.mkdirs()) {
+                System.err.println("Failed to create trash directory: " + entry.getPath());
+                deleteLater(buildDir.toPath(), keep);
+                return 0;
+            }
+            try {
+                Files.move(file.toPath(), new File(entry, file.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            } catch (IOException e) {
+                // Not on the same file system as the trash, deleted where it is
+                System.err.println("Failed to move " + file.getPath() + " to the trash: " + e.getMessage());
+                deleteLater(file.toPath(), name -> false);
+            }
+        }
+        if (moved > 0) {
+            deleteLater(entry.toPath(), name -> false);
+        }
+        // Measured again by the retention, without the workspace
+        buildSizes.remove(buildDir.getName());
+        return moved;
+    }
+
+    /**
+     * Removes a finished build from the build history: its directory is moved to the trash.
+     *
+     * @param buildDir - The build directory
+     * @return true if the build directory was moved
+     */
+    public boolean discardBuild(File buildDir) {
+        File entry = newTrashEntry(buildDir);
+        entry.getParentFile().mkdirs();
+        try {
+            Files.move(buildDir.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to move " + buildDir.getPath() + " to the trash: " + e.getMessage());
+            return false;
+        }
+        buildSizes.remove(buildDir.getName());
+        deleteLater(entry.toPath(), name -> false);
+        return true;
+    }
+
+    /**
+     * @return a new entry of the trash next to a build directory, named after the build
+     */
+    private File newTrashEntry(File buildDir) {
+        File trash = new File(buildDir.getAbsoluteFile().getParentFile(), TRASH_DIR);
+        return new File(trash, buildDir.getName() + "." + entryCount.incrementAndGet() + "." + System.nanoTime());
+    }
+
+    /**
+     * Submits the deletion of the entries of a trash directory that are not being deleted.
+     *
+     * @param trashDir - The trash directory
+     * @return the number of entries submitted
+     */
+    public int sweepTrash(File trashDir) {
+        File[] entries = trashDir.listFiles();
+        int submitted = 0;
+        if (entries != null) {
+            for (File entry : entries) {
+                if (!deleting.contains(entry.toPath().toAbsolutePath().normalize())) {
+                    deleteLater(entry.toPath(), name -> false);
+                    submitted++;
+                }
+            }
+        }
+        return submitted;
+    }
+
+    /**
+     * Deletes a directory in the background, every entry of its top level in its own task.
+     * The directory itself is deleted by the last task, unless some of its entries are kept.
+     */
+    private void deleteLater(Path dir, Predicate<String> keep) {
+        Path key = dir.toAbsolutePath().normalize();
+        if (!deleting.add(key)) {
+            return;
+        }
+        File[] files = dir.toFile().listFiles();
+        if (files == null) {
+            submit(key, () -> deleteTree(key), key);
+            return;
+        }
+        List<File> toDelete = new ArrayList<>();
+        boolean keepsFiles = false;
+        for (File file : files) {
+            if (keep.test(file.getName())) {
+                keepsFiles = true;
+            } else {
+                toDelete.add(file);
+            }
+        }
+        if (toDelete.isEmpty()) {
+            finishEntry(key, keepsFiles);
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(toDelete.size());
+        boolean deleteDir = !keepsFiles;
+        for (File file : toDelete) {
+            submit(key, () -> {
+                deleteTree(file.toPath());
+                if (remaining.decrementAndGet() == 0) {
+                    finishEntry(key, !deleteDir);
+                }
+            }, null);
+        }
+    }
+
+    private void submit(Path key, Runnable task, Path entryToRelease) {
+        try {
+            deleters.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    if (entryToRelease != null) {
+                        deleting.remove(entryToRelease);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Stopped, the next start deletes it
+            deleting.remove(key);
+        }
+    }
+
+    /**
+     * Deletes the directory of a trash entry once its content is deleted.
+     */
+    private void finishEntry(Path dir, boolean keepDir) {
+        try {
+            if (!keepDir) {
+                Files.deleteIfExists(dir);
+            }
+        } catch (IOException e) {
+            failedDeletes.incrementAndGet();
+            System.err.println("Failed to delete " + dir + ", it will be tried again: " + e.getMessage());
+        } finally {
+            deleting.remove(dir);
+        }
+    }
+
+    /**
+     * Deletes a file or a directory and its content. The files that can not be deleted are left
+     * for the next sweep of the trash.
+     */
+    private void deleteTree(Path root) {
+        long start = System.nanoTime();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (delete(file)) {
+                        reclaimedBytes.addAndGet(attrs.size());
+                        reclaimedFiles.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!delete(file)) {
+                        failedDeletes.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            failedDeletes.incrementAndGet();
+            System.err.println("Failed to delete " + root + ": " + e.getMessage());
+        }
+        deleteLatency.observeNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Deletes a file or an empty directory, making it writable first if needed.
+     *
+     * @return true if it was deleted
+     */
+    private boolean delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            return true;
+        } catch (IOException e) {
+            // Read-only files, like the git pack files, can not be deleted on every system
+            path.toFile().setWritable(true);
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            } catch (IOException e2) {
+                failedDeletes.incrementAndGet();
+                System.err.println("Failed to delete " + path + ": " + e2.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Applies the retention rules to the builds of the index. The removed builds are forgotten by the index
+     * and their directories moved to the trash.
+     *
+     * @param index - The build index of the build history directory
+     * @return the number of removed builds
+     */
+    public int enforceRetention(BuildIndex index) {
+        if (keepBuilds <= 0 && maxAgeMillis <= 0 && maxBytesPerRepository <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        // From the newest to the oldest build, the counters of every repository
+        Map<String, Integer> keptBuilds = new HashMap<>();
+        Map<String, Long> keptBytes = new HashMap<>();
+        Set<String> newestOfBranch = new HashSet<>();
+        List<BuildRecord> expired = new ArrayList<>();
+        for (BuildRecord record : index.getBuilds()) {
+            String repository = String.valueOf(record.getRepository());
+            boolean newest = newestOfBranch.add(repository + "\n" + record.getBranch());
+            int kept = keptBuilds.getOrDefault(repository, 0);
+            long bytes = keptBytes.getOrDefault(repository, 0L);
+            long size = maxBytesPerRepository > 0 ? sizeOf(record.getId()) : 0;
+            boolean remove = keepBuilds > 0 && kept >= keepBuilds
+                || maxAgeMillis > 0 && now - record.getFinishedAtMillis() > maxAgeMillis
+                || maxBytesPerRepository > 0 && bytes + size > maxBytesPerRepository;
+            if (remove && !newest) {
+                expired.add(record);
+            } else {
+                keptBuilds.put(repository, kept + 1);
+                keptBytes.put(repository, bytes + size);
+            }
+        }
+
+        int removed = 0;
+        for (BuildRecord record : expired) {
+            index.forget(record.getId());
+            File buildDir = new File(historyDir, record.getId());
+            if (!buildDir.exists() || discardBuild(buildDir)) {
+                removed++;
+            } else {
+                // Still on disk, it comes back at the next load
+                index.record(record);
+            }
+        }
+        if (removed > 0) {
+            removedBuilds.addAndGet(removed);
+            System.out.println("Retention removed " + removed + " builds from the build history");
+        }
+        return removed;
+    }
+
+    /**
+     * @return the size of the files of a build directory
+     */
+    private long sizeOf(String buildId) {
+        Long cached = buildSizes.get(buildId);
+        if (cached != null) {
+            return cached;
+        }
+        AtomicLong size = new AtomicLong();
+        try {
+            Files.walkFileTree(new File(historyDir, buildId).toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return 0;
+        }
+        buildSizes.put(buildId, size.get());
+        return size.get();
+    }
+
+    /**
+     * @return the number of trash entries waiting to be deleted or being deleted
+     */
+    public int getBacklog() {
+        return deleting.size();
+    }
+
+    /**
+     * @return the bytes of the files deleted from the trash
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * @return the number of files deleted from the trash
+     */
+    public long getReclaimedFiles() {
+        return reclaimedFiles.get();
+    }
+
+    /**
+     * @return the number of builds removed by the retention rules
+     */
+    public long getRemovedBuilds() {
+        return removedBuilds.get();
+    }
+
+    /**
+     * @return the number of files and directories that could not be deleted
+     */
+    public long getFailedDeletes() {
+        return failedDeletes.get();
+    }
+
+    /**
+     * @return the times to delete the trash, one top level file or directory of a workspace or build at a time
+     */
+    public Metrics.Histogram getDeleteLatency() {
+        return deleteLatency;
+    }
+}
@@ -0,0 +1,364 @@
+// No package declaration here
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent build workspaces, reused by the builds of the same repository and branch.
+ *
+ * A workspace is leased to one build at a time. It is updated in place to the pushed commit, keeping the
+ * target directories, so an incremental build only compiles what changed. A clean build is run in a new
+ * workspace, after a build that was cancelled, after a restart, and every few builds or hours, so the state
+ * left by the incremental builds never lives long. When all the workspaces of a branch are leased, the build
+ * gets no lease and uses a new directory as before. Workspaces unused for a while are discarded.
+ */
+public class WorkspacePool {
+
+    public static final String POOL_DIR = ".workspaces";
+
+    /**
+     * A persistent workspace and the builds run in it since its last clean build.
+     */
+    static class Workspace {
+        final String key;
+        final File dir;
+        boolean leased;
+        boolean needsClean = true;
+        int buildsSinceClean;
+        long lastCleanMillis;
+        long lastUsedMillis;
+
+        Workspace(String key, File dir, long lastUsedMillis) {
+            this.key = key;
+            this.dir = dir;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    /**
+     * The exclusive use of a workspace by one build. It must be released or discarded when the build is done.
+     */
+    public class Lease {
+        private final Workspace workspace;
+        private final boolean newWorkspace;
+        private final boolean cleanBuild;
+        private final String reason;
+        private boolean done;
+
+        private Lease(Workspace workspace, boolean newWorkspace, boolean cleanBuild, String reason) {
+            this.workspace = workspace;
+            this.newWorkspace = newWorkspace;
+            this.cleanBuild = cleanBuild;
+            this.reason = reason;
+        }
+
+        public File getDir() {
+            return workspace.dir;
+        }
+
+        /**
+         * @return true if the workspace does not exist yet and has to be cloned
+         */
+        public boolean isNewWorkspace() {
+            return newWorkspace;
+        }
+
+        /**
+         * @return true if the build has to run the clean goal
+         */
+        public boolean isCleanBuild() {
+            return cleanBuild;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Removes the test reports of the previous build of the workspace, so that they are not read as
+         * the results of this build. Call it once the workspace is at the pushed commit.
+         */
+        public void removeOldReports() throws IOException {
+            for (File reportDir : SurefireReportParser.findReportDirs(workspace.dir).values()) {
+                GitMirrorCache.deleteDirectory(reportDir.toPath());
+            }
+        }
+
+        /**
+         * Gives the workspace back to the pool.
+         *
+         * @param healthy - False if the build was cancelled or did not finish, the next build is then a clean build
+         */
+        public void release(boolean healthy) {
+            WorkspacePool.this.release(this, healthy);
+        }
+
+        /**
+         * Removes the workspace from the pool and deletes it, when it could not be updated.
+         */
+        public void discard() {
+            WorkspacePool.this.discard(this);
+        }
+
+        /**
+         * @return the fields of the lease in the build summary
+         */
+        public Map<String, Object> toSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("dir", workspace.dir.getName());
+            summary.put("mode", cleanBuild ? "clean" : "incremental");
+            summary.put("reason", reason);
+            summary.put("buildsSinceClean", workspace.buildsSinceClean);
+            return summary;
+        }
+    }
+
+    private final File root;
+    private final WorkspaceJanitor janitor;
+    private final int maxPerBranch;
+    private final boolean incremental;
+    private final int cleanEveryBuilds;
+    private final long cleanEveryMillis;
+    private final long maxIdleMillis;
+
+    private final Map<String, List<Workspace>> workspaces = new LinkedHashMap<>();
+    private final AtomicLong incrementalBuilds = new AtomicLong();
+    private final AtomicLong cleanBuilds = new AtomicLong();
+    private final AtomicLong busyMisses = new AtomicLong();
+
+    /**
+     * @param root - The directory of the workspaces
+     * @param janitor - The janitor deleting the discarded workspaces
+     * @param maxPerBranch - The number of workspaces of a branch, the number of its builds that can run in one
+     * @param incremental - False to run the clean goal in every build, the workspace still saves the clone
+     * @param cleanEveryBuilds - The number of incremental builds after which a clean build is run, 0 for no limit
+     * @param cleanEveryMillis - The time after which a clean build is run, 0 for no limit
+     * @param maxIdleMillis - The time after which an unused workspace is discarded
+     */
+    public WorkspacePool(File root, WorkspaceJanitor janitor, int maxPerBranch, boolean incremental,
+                         int cleanEveryBuilds, long cleanEveryMillis, long maxIdleMillis) {
+        this.root = root;
+        this.janitor = janitor;
+        this.maxPerBranch = maxPerBranch;
+        this.incremental = incremental;
+        this.cleanEveryBuilds = cleanEveryBuilds;
+        this.cleanEveryMillis = cleanEveryMillis;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Finds the workspaces left by the previous run of the server. Their first build is a clean build,
+     * since the builds run in them are not known. The workspaces being discarded when the server stopped
+     * are deleted.
+     *
+     * @return the number of workspaces found
+     */
+    public synchronized int load() {
+        janitor.sweepTrash(new File(root, WorkspaceJanitor.TRASH_DIR));
+        File[] dirs = root.listFiles(file -> file.isDirectory() && !file.getName().startsWith(".")
+            && file.getName().lastIndexOf('.') > 0);
+        int found = 0;
+        if (dirs != null) {
+            for (File dir : dirs) {
+                String key = dir.getName().substring(0, dir.getName().lastIndexOf('.'));
+                workspaces.computeIfAbsent(key, k -> new ArrayList<>()).add(new Workspace(key, dir, dir.lastModified()));
+                // Its git mirror is kept as long as the workspace
+                GitMirrorCache.retainWorkspace(dir);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The workspaces of a branch are named after the repository and the branch, with a hash telling apart
+     * the names that are the same once cleaned.
+     */
+    static String keyOf(String repository, String branch) {
+        String name = (repository + "_" + branch).replaceAll("[^a-zA-Z0-9_-]", "_");
+        if (name.length() > 60) {
+            name = name.substring(0, 60);
+        }
+        return name + "-" + Integer.toHexString((repository + "/" + branch).hashCode());
+    }
+
+    /**
+     * Leases a workspace of a branch: an idle one, or a new one if the branch has fewer than maxPerBranch.
+     *
+     * @param repository - The repository
+     * @param branch - The branch
+     * @return the lease, or null if all the workspaces of the branch are leased
+     */
+    public synchronized Lease tryAcquire(String repository, String branch) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+        String key = keyOf(repository, branch);
+        List<Workspace> branchWorkspaces = workspaces.computeIfAbsent(key, k -> new ArrayList<>());
+        Workspace workspace = null;
+        for (Workspace candidate : branchWorkspaces) {
+            if (!candidate.leased) {
+                workspace = candidate;
+                break;
+            }
+        }
+        boolean newWorkspace = false;
+        if (workspace == null) {
+            if (branchWorkspaces.size() >= maxPerBranch) {
+                busyMisses.incrementAndGet();
+                return null;
+            }
+            File dir = null;
+            for (int n = 1; dir == null || dir.exists() || isUsed(branchWorkspaces, dir); n++) {
+                dir = new File(root, key + "." + n);
+            }
+            workspace = new Workspace(key, dir, now);
+            branchWorkspaces.add(workspace);
+            newWorkspace = true;
+        }
+        workspace.leased = true;
+        workspace.lastUsedMillis = now;
+
+        String reason;
+        if (newWorkspace) {
+            reason = "New workspace";
+        } else if (!incremental) {
+            reason = "Incremental builds are disabled";
+        } else if (workspace.needsClean) {
+            reason = "The previous build of the workspace is not known or did not finish";
+        } else if (cleanEveryBuilds > 0 && workspace.buildsSinceClean >= cleanEveryBuilds) {
+            reason = "Clean build every " + cleanEveryBuilds + " builds";
+        } else if (cleanEveryMillis > 0 && now - workspace.lastCleanMillis >= cleanEveryMillis) {
+            reason = "Clean build every " + (cleanEveryMillis / 60000) + " minutes";
+        } else {
+            reason = null;
+        }
+        boolean cleanBuild = reason != null;
+        if (!cleanBuild) {
+            reason = workspace.buildsSinceClean + " builds since the last clean build";
+        }
+        (cleanBuild ? cleanBuilds : incrementalBuilds).incrementAndGet();
+        return new Lease(workspace, newWorkspace, cleanBuild, reason);
+    }
+
+    private static boolean isUsed(List<Workspace> branchWorkspaces, File dir) {
+        for (Workspace workspace : branchWorkspaces) {
+            if (workspace.dir.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void release(Lease lease, boolean healthy) {
+        if (lease.done) {
+            return;
+        }
+        lease.done = true;
+        Workspace workspace = lease.workspace;
+        workspace.leased = false;
+        workspace.lastUsedMillis = System.currentTimeMillis();
+        if (lease.cleanBuild) {
+            workspace.buildsSinceClean = 0;
+            workspace.lastCleanMillis = workspace.lastUsedMillis;
+        } else {
+            workspace.buildsSinceClean++;
+        }
+        workspace.needsClean = !healthy;
+        // The idle time of the workspaces found at startup is read from their directory
+        workspace.dir.setLastModified(workspace.lastUsedMillis);
+    }
+
+    private synchronized void discard(Lease lease) {
+        if (lease.done) {
+            return;
+        }
+        lease.done = true;
+        remove(lease.workspace);
+    }
+
+    private void remove(Workspace workspace) {
+        List<Workspace> branchWorkspaces = workspaces.get(workspace.key);
+        if (branchWorkspaces != null) {
+            branchWorkspaces.remove(workspace);
+            if (branchWorkspaces.isEmpty()) {
+                workspaces.remove(workspace.key);
+            }
+        }
+        if (workspace.dir.exists()) {
+            GitMirrorCache.releaseWorkspace(workspace.dir);
+            janitor.discardBuild(workspace.dir);
+        }
+    }
+
+    /**
+     * Discards the workspaces not leased since maxIdleMillis.
+     *
+     * @param now - The current time
+     * @return the number of workspaces discarded
+     */
+    synchronized int evictIdle(long now) {
+        List<Workspace> idle = new ArrayList<>();
+        for (List<Workspace> branchWorkspaces : workspaces.values()) {
+            for (Workspace workspace : branchWorkspaces) {
+                if (!workspace.leased && now - workspace.lastUsedMillis > maxIdleMillis) {
+                    idle.add(workspace);
+                }
+            }
+        }
+        for (Workspace workspace : idle) {
+            System.out.println("Discarding idle workspace " + workspace.dir.getName());
+            remove(workspace);
+        }
+        return idle.size();
+    }
+
+    /**
+     * @return the number of workspaces in the pool
+     */
+    public synchronized int getWorkspaceCount() {
+        int count = 0;
+        for (List<Workspace> branchWorkspaces : workspaces.values()) {
+            count += branchWorkspaces.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of workspaces leased to running builds
+     */
+    public synchronized int getLeasedCount() {
+        int count = 0;
+        for (List<Workspace> branchWorkspaces : workspaces.values()) {
+            for (Workspace workspace : branchWorkspaces) {
+                count += workspace.leased ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of leases for an incremental build
+     */
+    public long getIncrementalBuilds() {
+        return incrementalBuilds.get();
+    }
+
+    /**
+     * @return the number of leases for a clean build
+     */
+    public long getCleanBuilds() {
+        return cleanBuilds.get();
+    }
+
+    /**
+     * @return the number of builds that got no workspace because all the workspaces of their branch were leased
+     */
+    public long getBusyMisses() {
+        return busyMisses.get();
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControlTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test that a build is held while the available memory or the free disk space is below the minimum
+     */
+    public void testHoldOnLowResources() {
+        AtomicLong memory = new AtomicLong(100 * MB);
+        AdmissionControl admission = new AdmissionControl(tempDir.toFile(), 512 * MB, 0, memory::get);
+        assertEquals("Only 100 MB of memory available, 512 MB needed", admission.get());
+        memory.set(600 * MB);
+        assertNull(admission.get());
+        // The memory is not known
+        memory.set(-1);
+        assertNull(admission.get());
+
+        AdmissionControl disk = new AdmissionControl(tempDir.toFile(), 0, Long.MAX_VALUE, memory::get);
+        assertTrue(disk.get().contains("MB of disk space free"));
+
+        // A directory that does not exist yet is created before its free space is read
+        File missing = new File(tempDir.toFile(), "repos");
+        assertNull(new AdmissionControl(missing, 0, 1, memory::get).get());
+        assertTrue(missing.isDirectory());
+    }
+
+    @Test
+    /**
+     * Test that the available memory is read from /proc/meminfo
+     */
+    public void testParseMemAvailable() {
+        assertEquals(2048 * 1024, AdmissionControl.parseMemAvailable(Arrays.asList(
+            "MemTotal:       16000000 kB", "MemFree:          1000 kB", "MemAvailable:       2048 kB")));
+        assertEquals(-1, AdmissionControl.parseMemAvailable(Arrays.asList("MemTotal:       16000000 kB")));
+    }
+}
@@ -0,0 +1,250 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jgit.api.Git;
+
+public class AgentCoordinatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private Server server;
+
+    @AfterEach
+    public void stop() throws Exception {
+        workers.shutdownNow();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Creates a build of a repository and its output in the temporary directory.
+     */
+    private Build newBuild(String id, String repoUrl) {
+        PushEvent event = new PushEvent("refs/heads/master", "repo", repoUrl, null, "message", null);
+        Build build = new Build(id, event, tempDir.resolve("builds").toString());
+        build.getWorkspaceDir().mkdirs();
+        return build;
+    }
+
+    /**
+     * Runs a build on the coordinator from a server worker thread.
+     */
+    private Future<Integer> submit(AgentCoordinator coordinator, Build build) {
+        return workers.submit(() -> {
+            try (BuildOutput output = new BuildOutput(new File(build.getWorkspaceDir(), "mavenOutput.txt"),
+                new MavenOutputParser(0, 0))) {
+                return coordinator.execute(build, build.getWorkspaceDir(), output);
+            }
+        });
+    }
+
+    /**
+     * Waits until the coordinator has a number of waiting jobs.
+     */
+    private static void awaitPendingJobs(AgentCoordinator coordinator, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (coordinator.getPendingJobs() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, coordinator.getPendingJobs());
+    }
+
+    @Test
+    /**
+     * Test that the jobs go to the agents having the mirror of their repository, then to the free agents
+     *
+     * This test registers a large agent without mirrors and a small agent with the mirror of one repository.
+     * The job of that repository waits for the small agent, the job of another repository goes to the large agent.
+     */
+    public void testAssignByLocalityAndCapacity() throws Exception {
+        AgentCoordinator coordinator = new AgentCoordinator(1000, 60000, 60000, 3, null);
+        AgentCoordinator.Agent large = coordinator.register("large", 4);
+        AgentCoordinator.Agent small = coordinator.register("small", 1);
+        String cachedUrl = "https://github.com/owner/cached.git";
+        coordinator.heartbeat(small.id, Collections.singleton(GitMirrorCache.mirrorName(cachedUrl)), Collections.emptySet());
+
+        Future<Integer> cached = submit(coordinator, newBuild("cached-1", cachedUrl));
+        awaitPendingJobs(coordinator, 1);
+        assertTrue(coordinator.poll(large.id, 4, 100).isEmpty(), "The job should wait for the agent with the mirror.");
+        List<AgentCoordinator.Job> jobs = coordinator.poll(small.id, 1, 100);
+        assertEquals(1, jobs.size());
+        assertEquals("cached-1", jobs.get(0).build.getId());
+
+        // The small agent is full, the large agent takes the next jobs even for the cached repository
+        Future<Integer> other = submit(coordinator, newBuild("other-1", "https://github.com/owner/other.git"));
+        Future<Integer> cachedAgain = submit(coordinator, newBuild("cached-2", cachedUrl));
+        awaitPendingJobs(coordinator, 2);
+        assertEquals(2, coordinator.poll(large.id, 4, 100).size());
+        assertEquals(2, coordinator.getFreeSlots());
+        assertEquals("large", coordinator.getAssignments().get("cached-2"));
+
+        assertTrue(coordinator.complete(small.id, "cached-1", 0));
+        assertTrue(coordinator.complete(large.id, "other-1", 1));
+        assertTrue(coordinator.complete(large.id, "cached-2", 0));
+        assertEquals(0, (int) cached.get(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) other.get(5, TimeUnit.SECONDS));
+        assertEquals(0, (int) cachedAgain.get(5, TimeUnit.SECONDS));
+        assertTrue(!coordinator.complete(large.id, "cached-2", 0), "A job can only complete once.");
+        assertNull(coordinator.poll("unknown-1", 1, 0));
+    }
+
+    @Test
+    /**
+     * Test that an agent lost during a log upload stops writing to the output of the build
+     *
+     * This test sends the log of a build in two chunks of one request. The agent is taken as lost after the first
+     * chunk is written: the second chunk is refused with 409, and the build waits for another agent.
+     */
+    public void testLogUploadStopsWhenAgentIsLost() throws Exception {
+        AgentCoordinator coordinator = new AgentCoordinator(1000, 60000, 0, 3, null);
+        ContinuousIntegrationServer.configureJetty();
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                coordinator.handle(target, request, response);
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+
+        Build build = newBuild("build-1", "https://github.com/owner/repo.git");
+        File log = new File(build.getWorkspaceDir(), "mavenOutput.txt");
+        CountDownLatch firstChunk = new CountDownLatch(1);
+        workers.submit(() -> {
+            try (BuildOutput output = new BuildOutput(log, new MavenOutputParser(0, 0)) {
+                @Override
+                public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                    super.write(bytes, offset, length);
+                    firstChunk.countDown();
+                }
+            }) {
+                return coordinator.execute(build, build.getWorkspaceDir(), output);
+            }
+        });
+        AgentCoordinator.Agent agent = coordinator.register("lost", 1);
+        awaitPendingJobs(coordinator, 1);
+        assertEquals(1, coordinator.poll(agent.id, 1, 100).size());
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "/agents/" + agent.id + "/jobs/build-1/log").openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setChunkedStreamingMode(64);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("first chunk\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertTrue(firstChunk.await(5, TimeUnit.SECONDS));
+            assertEquals(1, coordinator.expireAgents(System.currentTimeMillis() + 120000));
+            out.write("second chunk\n".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(HttpURLConnection.HTTP_CONFLICT, connection.getResponseCode());
+        assertEquals(1, coordinator.getPendingJobs());
+
+        String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+        assertTrue(output.contains("first chunk"), output);
+        assertFalse(output.contains("second chunk"), output);
+    }
+
+    @Test
+    /**
+     * Test that the build of an agent that stops responding is run again on another agent
+     *
+     * This test runs a coordinator over HTTP with two agents on localhost. The first agent starts the build,
+     * which never ends, and is stopped as if it crashed. The second agent runs the build again and sends its
+     * output and test report, which end in the output and the project directory of the build on the server.
+     */
+    public void testRescheduleBuildOfLostAgent() throws Exception {
+        File source = tempDir.resolve("source").toFile();
+        try (Git git = Git.init().setDirectory(source).call()) {
+            Files.write(new File(source, "pom.xml").toPath(), "<project/>".getBytes(StandardCharsets.UTF_8));
+            git.add().addFilepattern("pom.xml").call();
+            git.commit().setMessage("Add pom.xml").setAuthor("Test", "test@mail.test").call();
+        }
+        AgentCoordinator coordinator = new AgentCoordinator(100, 1000, 0, 3, "secret");
+        coordinator.start();
+        ContinuousIntegrationServer.configureJetty();
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                coordinator.handle(target, request, response);
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+
+        BuildAgent stuck = new BuildAgent(url, "stuck", 1, tempDir.resolve("stuck").toFile(),
+            Arrays.asList("sh", "-c", "echo started on stuck; exec sleep 60"), "secret");
+        BuildAgent healthy = new BuildAgent(url, "healthy", 2, tempDir.resolve("healthy").toFile(),
+            Arrays.asList("sh", "-c", "mkdir -p target/surefire-reports"
+                + " && echo '<testsuite name=\"AppTest\" tests=\"1\"><testcase name=\"test\"/></testsuite>'"
+                + " > target/surefire-reports/TEST-AppTest.xml && echo finished on healthy"), "secret");
+        Build build = newBuild("build-1", source.toURI().toString());
+        File log = new File(build.getWorkspaceDir(), "mavenOutput.txt");
+        try {
+            stuck.start();
+            Future<Integer> result = submit(coordinator, build);
+            long deadline = System.currentTimeMillis() + 20000;
+            while (!(log.exists() && new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8).contains("started on stuck"))
+                && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(Collections.singletonList("build-1"), stuck.getRunningBuilds());
+
+            healthy.start();
+            stuck.stop();
+            assertEquals(0, (int) result.get(20, TimeUnit.SECONDS));
+            assertEquals(1, coordinator.getRescheduledJobs());
+            assertEquals(1, coordinator.getLostAgents());
+            // The agent counts the build once the server answered
+            deadline = System.currentTimeMillis() + 5000;
+            while (healthy.getCompletedBuilds() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, healthy.getCompletedBuilds());
+
+            String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+            assertTrue(output.indexOf("started on stuck") < output.indexOf("stuck stopped responding"), output);
+            assertTrue(output.indexOf("stopped responding") < output.indexOf("finished on healthy"), output);
+            assertTrue(new File(build.getWorkspaceDir(), "target/surefire-reports/TEST-AppTest.xml").exists());
+        } finally {
+            stuck.stop();
+            healthy.stop();
+            coordinator.shutdown();
+        }
+    }
+}
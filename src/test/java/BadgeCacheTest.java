@@ -0,0 +1,211 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+public class BadgeCacheTest {
+
+    private BuildIndex index;
+    private BadgeCache cache;
+    private Server server;
+    private int port;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        index = new BuildIndex();
+        cache = new BadgeCache(30);
+        ContinuousIntegrationServer.configureJetty();
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                cache.serve(target, request, response);
+            }
+        });
+        server.start();
+        port = server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Records a finished build in the index and updates the badges.
+     */
+    private void finishBuild(String id, String repository, String branch, String status, long finishedAt) {
+        BuildRecord record = new BuildRecord(id, repository, branch, "abc", status, finishedAt, null);
+        index.record(record);
+        cache.update(index, record);
+    }
+
+    /**
+     * Sends a badge request and returns the connection after reading the body.
+     */
+    private HttpURLConnection get(String path, String ifNoneMatch, ByteArrayOutputStream body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (connection.getResponseCode() == 200) {
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, count);
+                }
+            }
+        }
+        return connection;
+    }
+
+    @Test
+    /**
+     * Test the badges of a repository and of its branches
+     *
+     * This test finishes builds on two branches and checks the body, the ETag and the caching headers
+     * of the repository and branch badges.
+     */
+    public void testBadgeOfRepositoryAndBranch() throws IOException {
+        finishBuild("ci_main_1", "ci", "main", "SUCCESS", 1000);
+        finishBuild("ci_feature_2", "ci", "feature", "FAILURE", 2000);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpURLConnection repository = get("/build-status/ci", null, body);
+        assertEquals(200, repository.getResponseCode());
+        assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("\"message\": \"Failing\""));
+        assertEquals("public, max-age=30", repository.getHeaderField("Cache-Control"));
+
+        body.reset();
+        HttpURLConnection branch = get("/build-status/ci/main", null, body);
+        assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("\"message\": \"Passing\""));
+        assertNotEquals(repository.getHeaderField("ETag"), branch.getHeaderField("ETag"));
+
+        body.reset();
+        get("/build-status/unknown", null, body);
+        assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("\"message\": \"Compiling\""));
+    }
+
+    @Test
+    /**
+     * Test that a client with the current ETag gets a 304 until the status changes
+     */
+    public void testNotModified() throws IOException {
+        finishBuild("ci_main_1", "ci", "main", "SUCCESS", 1000);
+        String etag = get("/build-status/ci", null, new ByteArrayOutputStream()).getHeaderField("ETag");
+
+        HttpURLConnection notModified = get("/build-status/ci", etag, new ByteArrayOutputStream());
+        assertEquals(304, notModified.getResponseCode());
+        assertEquals(etag, notModified.getHeaderField("ETag"));
+
+        finishBuild("ci_main_2", "ci", "main", "FAILURE", 2000);
+        HttpURLConnection changed = get("/build-status/ci", etag, new ByteArrayOutputStream());
+        assertEquals(200, changed.getResponseCode());
+        assertNotEquals(etag, changed.getHeaderField("ETag"));
+    }
+
+    /**
+     * Reads one response of a keep alive connection: the headers, then Content-Length bytes of body.
+     */
+    private static void readResponse(InputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                if (line.length() == 0) {
+                    break;
+                }
+                String header = line.toString();
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Integer.parseInt(header.substring(15).trim());
+                }
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1) {
+            throw new EOFException("Connection closed by the server");
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() == -1) {
+                throw new EOFException("Connection closed by the server");
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Load test of the badge endpoint
+     *
+     * Clients with a keep alive connection each request the same badge for a few seconds, half of them with
+     * the current ETag, and the throughput is printed. This test only runs with mvn test -Dci.loadtest=true,
+     * the number of client threads can be set with -Dci.loadtest.clients=N
+     */
+    public void loadTestBadges() throws Exception {
+        assumeTrue(Boolean.getBoolean("ci.loadtest"), "Run with -Dci.loadtest=true");
+        int clients = Integer.getInteger("ci.loadtest.clients", 2);
+        long durationMillis = 5000;
+        finishBuild("ci_main_1", "ci", "main", "SUCCESS", 1000);
+        String etag = get("/build-status/ci", null, new ByteArrayOutputStream()).getHeaderField("ETag");
+
+        AtomicLong requests = new AtomicLong();
+        long deadline = System.currentTimeMillis() + durationMillis;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            String request = "GET /build-status/ci HTTP/1.1\r\nHost: localhost\r\n"
+                + (i % 2 == 1 ? "If-None-Match: " + etag + "\r\n" : "") + "\r\n";
+            byte[] requestBytes = request.getBytes(StandardCharsets.US_ASCII);
+            threads[i] = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    while (System.currentTimeMillis() < deadline) {
+                        out.write(requestBytes);
+                        out.flush();
+                        readResponse(in);
+                        requests.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long perSecond = requests.get() * 1000 / durationMillis;
+        System.out.println("Badge load test: " + requests.get() + " requests with " + clients + " clients, "
+            + perSecond + " requests/s");
+        assertTrue(perSecond > 2000, "The badge endpoint should answer more than 2000 requests/s.");
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class BuildExecutorBenchmarkTest {
+
+    private static final String[] SNIPPETS = {"Compile", "No_Compile", "Test_Fail", "Test_Success"};
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Benchmark of the forked and warm build executors on the src/test/test_snippets projects
+     *
+     * Every project is built several times with each executor and the average build time is printed.
+     * The first warm build includes the start of the worker JVM. This test only runs with
+     * mvn test -Dci.benchmark=true, the number of builds can be set with -Dci.benchmark.iterations=N
+     */
+    public void benchmarkForkedAndWarmBuilds() throws Exception {
+        assumeTrue(Boolean.getBoolean("ci.benchmark"), "Run with -Dci.benchmark=true");
+        File mavenHome = WarmMavenExecutor.findMavenHome();
+        assumeTrue(mavenHome != null, "Maven must be installed to run warm builds.");
+        int iterations = Integer.getInteger("ci.benchmark.iterations", 3);
+
+        BuildExecutor forked = new ForkedBuildExecutor(Arrays.asList("mvn", "-B", "clean", "test"));
+        WarmMavenExecutor warm = new WarmMavenExecutor(mavenHome, 1, Arrays.asList("clean", "test"), 1000, 0.9, "1g", forked);
+
+        System.out.println(String.format("%-14s %12s %12s", "Project", "Forked (ms)", "Warm (ms)"));
+        try {
+            for (String snippet : SNIPPETS) {
+                long forkedMillis = averageBuildMillis(forked, snippet, "forked", iterations);
+                long warmMillis = averageBuildMillis(warm, snippet, "warm", iterations);
+                System.out.println(String.format("%-14s %12d %12d", snippet, forkedMillis, warmMillis));
+            }
+        } finally {
+            warm.shutdown();
+        }
+    }
+
+    /**
+     * Builds a copy of a snippet project several times and returns the average build time.
+     */
+    private long averageBuildMillis(BuildExecutor executor, String snippet, String name, int iterations) throws Exception {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            File projectDir = WarmMavenExecutorTest.copySnippet(snippet, tempDir.resolve(name + "-" + i));
+            long start = System.nanoTime();
+            try (BuildOutput output = new BuildOutput(new File(projectDir, "mavenOutput.txt"), new MavenOutputParser(100, 200))) {
+                executor.execute(new Build(snippet, null, null), projectDir, output);
+            }
+            total += System.nanoTime() - start;
+        }
+        return total / iterations / 1_000_000;
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BuildHistoryQueryTest {
+
+    /**
+     * Creates an index with 10 builds of "ci", one every second, alternating between main (SUCCESS)
+     * and feature (FAILURE), and one build of "other".
+     */
+    private BuildIndex createIndex() {
+        BuildIndex index = new BuildIndex();
+        for (int i = 0; i < 10; i++) {
+            boolean main = i % 2 == 0;
+            index.record(new BuildRecord("ci_" + i, "ci", main ? "main" : "feature", "c" + i,
+                main ? "SUCCESS" : "FAILURE", 1000L * i, null));
+        }
+        index.record(new BuildRecord("other_1", "other", "main", "d", "SUCCESS", 5500, null));
+        return index;
+    }
+
+    private static Map<String, String[]> parameters(String... namesAndValues) {
+        Map<String, String[]> parameters = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put(namesAndValues[i], new String[] {namesAndValues[i + 1]});
+        }
+        return parameters;
+    }
+
+    /**
+     * Reads all the pages of a query and returns the ids of the builds.
+     */
+    private static List<String> readAllPages(BuildIndex index, String... namesAndValues) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            Map<String, String[]> parameters = parameters(namesAndValues);
+            if (cursor != null) {
+                parameters.put("cursor", new String[] {cursor});
+            }
+            BuildHistoryQuery.Page page = BuildHistoryQuery.fromParameters(parameters).run(index);
+            while (page.hasNext()) {
+                ids.add(page.next().getId());
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return ids;
+    }
+
+    @Test
+    /**
+     * Test the pages of the build history
+     *
+     * This test reads the history 3 builds at a time and checks that the pages follow each other
+     * without a gap or a duplicate, in both orders.
+     */
+    public void testPagination() {
+        BuildIndex index = createIndex();
+        List<String> newestFirst = readAllPages(index, "repo", "ci", "limit", "3");
+        assertEquals(10, newestFirst.size());
+        assertEquals("ci_9", newestFirst.get(0));
+        assertEquals("ci_0", newestFirst.get(9));
+
+        List<String> oldestFirst = readAllPages(index, "repo", "ci", "limit", "3", "order", "asc");
+        assertEquals(10, oldestFirst.size());
+        assertEquals("ci_0", oldestFirst.get(0));
+        assertEquals("ci_9", oldestFirst.get(9));
+
+        // All the repositories, and a page that ends exactly on the last build has no next cursor
+        assertEquals(11, readAllPages(index, "limit", "11").size());
+        BuildHistoryQuery.Page page = BuildHistoryQuery.fromParameters(parameters("limit", "11")).run(index);
+        while (page.hasNext()) {
+            page.next();
+        }
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    /**
+     * Test the filters of the build history
+     */
+    public void testFilters() {
+        BuildIndex index = createIndex();
+        assertEquals(5, readAllPages(index, "repo", "ci", "branch", "main", "limit", "2").size());
+        assertEquals(5, readAllPages(index, "repo", "ci", "status", "failure").size());
+        // A branch without a repository matches the branch of every repository
+        assertEquals(6, readAllPages(index, "branch", "main").size());
+        // Every combination of filters reads its own set of the index
+        assertEquals(6, readAllPages(index, "status", "SUCCESS", "limit", "4").size());
+        assertEquals(6, readAllPages(index, "branch", "main", "status", "success").size());
+        assertEquals(0, readAllPages(index, "repo", "ci", "branch", "feature", "status", "success").size());
+        // A record replaced with another status moves to the set of its new status
+        index.record(new BuildRecord("ci_1", "ci", "feature", "c1", "SUCCESS", 1000L, null));
+        assertEquals(4, readAllPages(index, "repo", "ci", "status", "failure").size());
+        assertEquals(Arrays.asList("ci_1"), readAllPages(index, "repo", "ci", "branch", "feature", "status", "success"));
+        index.record(new BuildRecord("ci_1", "ci", "feature", "c1", "FAILURE", 1000L, null));
+
+        // since and until are inclusive
+        List<String> ids = readAllPages(index, "repo", "ci", "since", "3000", "until", "6000", "limit", "2");
+        assertEquals(4, ids.size());
+        assertEquals("ci_6", ids.get(0));
+        assertEquals("ci_3", ids.get(3));
+        assertEquals(3, readAllPages(index, "repo", "ci", "until", "1970-01-01T00:00:02Z").size());
+        assertEquals(0, readAllPages(index, "repo", "ci", "since", "6000", "until", "3000").size());
+
+        assertEquals(0, readAllPages(index, "repo", "unknown").size());
+        assertThrows(IllegalArgumentException.class, () -> BuildHistoryQuery.fromParameters(parameters("limit", "0")));
+        assertThrows(IllegalArgumentException.class, () -> BuildHistoryQuery.fromParameters(parameters("order", "up")));
+        assertThrows(IllegalArgumentException.class, () -> BuildHistoryQuery.fromParameters(parameters("cursor", "%%%")));
+    }
+
+    @Test
+    /**
+     * Test the JSON written for /api/builds
+     */
+    public void testWriteJson() throws IOException {
+        BuildIndex index = createIndex();
+        StringWriter out = new StringWriter();
+        BuildHistoryQuery.fromParameters(parameters("repo", "ci", "limit", "4")).writeJson(index, out);
+
+        JsonObject json = JsonParser.parseString(out.toString()).getAsJsonObject();
+        JsonArray builds = json.getAsJsonArray("builds");
+        assertEquals(4, builds.size());
+        JsonObject first = builds.get(0).getAsJsonObject();
+        assertEquals("ci_9", first.get("id").getAsString());
+        assertEquals("feature", first.get("branch").getAsString());
+        assertEquals(9000, first.get("finishedAtMillis").getAsLong());
+        assertEquals("/builds/ci_9/log", first.get("logUrl").getAsString());
+
+        // The next page starts after the last build of this one
+        StringWriter next = new StringWriter();
+        BuildHistoryQuery.fromParameters(parameters("repo", "ci", "limit", "4",
+            "cursor", json.get("nextCursor").getAsString())).writeJson(index, next);
+        JsonElement nextFirst = JsonParser.parseString(next.toString()).getAsJsonObject().getAsJsonArray("builds").get(0);
+        assertEquals("ci_5", nextFirst.getAsJsonObject().get("id").getAsString());
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BuildIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Creates a build directory with a summary.
+     */
+    private void writeBuild(String id, String summary) throws IOException {
+        File buildDir = new File(tempDir.toFile(), id);
+        buildDir.mkdirs();
+        Files.write(new File(buildDir, BuildSummaryFile.FILE_NAME).toPath(), summary.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    /**
+     * Test the lookups of the build index
+     *
+     * This test records builds of two repositories whose names share a prefix and checks that the
+     * latest build of a repository, of a branch and of a commit are found with the exact names.
+     */
+    public void testLatestBuilds() {
+        BuildIndex index = new BuildIndex();
+        index.record(new BuildRecord("ci_main_a_1", "ci", "main", "a", "SUCCESS", 1000, null));
+        index.record(new BuildRecord("ci_feature_b_2", "ci", "feature", "b", "FAILURE", 2000, null));
+        index.record(new BuildRecord("ci_server_main_c_3", "ci_server", "main", "c", "FAILURE", 3000, null));
+
+        assertEquals("ci_feature_b_2", index.getLatest("ci").getId());
+        assertEquals("ci_main_a_1", index.getLatest("ci", "main").getId());
+        assertEquals("ci_server_main_c_3", index.getLatest("ci_server").getId());
+        assertEquals("ci_main_a_1", index.getLatestForCommit("ci", "a").getId());
+        assertNull(index.getLatest("c"));
+        assertNull(index.getLatest("ci", "release"));
+
+        List<String> ids = new ArrayList<>();
+        for (BuildRecord record : index.getBuilds()) {
+            ids.add(record.getId());
+        }
+        assertEquals(3, ids.size());
+        assertEquals("ci_server_main_c_3", ids.get(0));
+
+        // Replacing a build keeps a single entry
+        index.record(new BuildRecord("ci_main_a_1", "ci", "main", "a", "FAILURE", 1000, null));
+        assertEquals(3, index.size());
+        assertEquals("FAILURE", index.getLatest("ci", "main").getStatus());
+    }
+
+    @Test
+    /**
+     * Test that the build index is rebuilt at startup
+     *
+     * This test loads an index from build directories, records a new build in its journal,
+     * and checks that a second index loaded from the same directory has all the builds
+     * and forgets the build whose directory was deleted.
+     */
+    public void testLoadFromDirectoriesAndJournal() throws IOException {
+        writeBuild("ci_server_main_abc_1", "{\"buildStatus\": \"SUCCESS\", \"finishedAtMillis\": 1000}");
+        writeBuild("other_main_def_2", "{\"buildStatus\": \"FAILURE\", \"repository\": \"other\", \"branch\": \"main\", \"finishedAtMillis\": 2000}");
+
+        BuildIndex index = new BuildIndex();
+        assertEquals(2, index.load(tempDir.toFile()));
+        // Old summaries get the repository and branch from the build id
+        assertEquals("ci_server_main_abc_1", index.getLatest("ci_server", "main").getId());
+        assertEquals("FAILURE", index.getLatest("other").getStatus());
+
+        writeBuild("other_main_ghi_3", "{\"buildStatus\": \"SUCCESS\"}");
+        index.record(new BuildRecord("other_main_ghi_3", "other", "main", "ghi", "SUCCESS", 3000, "1 s"));
+        new File(tempDir.toFile(), "ci_server_main_abc_1/" + BuildSummaryFile.FILE_NAME).delete();
+        new File(tempDir.toFile(), "ci_server_main_abc_1").delete();
+
+        BuildIndex reloaded = new BuildIndex();
+        assertEquals(2, reloaded.load(tempDir.toFile()));
+        assertEquals("other_main_ghi_3", reloaded.getLatest("other").getId());
+        assertEquals("1 s", reloaded.get("other_main_ghi_3").getTotalTime());
+        assertNull(reloaded.getLatest("ci_server"));
+    }
+}
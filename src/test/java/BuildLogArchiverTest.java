@@ -0,0 +1,95 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+public class BuildLogArchiverTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test the migration of a build directory of an older version
+     *
+     * This test writes a pretty printed summary with the whole Maven output in it, migrates the build history
+     * and checks that the summary only has metadata and that the output is in the compressed log.
+     * A second migration has nothing to do.
+     */
+    public void testMigrateSummaryWithMavenOutput() throws IOException {
+        File buildDir = new File(tempDir.toFile(), "repo_main_abc_1");
+        buildDir.mkdirs();
+        String oldSummary = "{\n"
+            + "  \"buildStatus\": \"FAILURE\",\n"
+            + "  \"totalTime\": \"1.5 s\",\n"
+            + "  \"mavenOutput\": [\n"
+            + "    \"[INFO] Scanning for projects...\",\n"
+            + "    \"[ERROR] Failed to execute goal\",\n"
+            + "    \"[INFO] BUILD FAILURE\"\n"
+            + "  ],\n"
+            + "  \"uniqueDirName\": \"repo_main_abc_1\"\n"
+            + "}";
+        Files.write(new File(buildDir, BuildSummaryFile.FILE_NAME).toPath(), oldSummary.getBytes(StandardCharsets.UTF_8));
+
+        BuildLogArchiver archiver = new BuildLogArchiver("trim-success", 1, 1, 10);
+        assertEquals(1, archiver.migrate(tempDir.toFile()));
+
+        File summaryFile = new File(buildDir, BuildSummaryFile.FILE_NAME);
+        JsonObject summary = BuildSummaryFile.read(summaryFile);
+        assertFalse(summary.has("mavenOutput"));
+        assertEquals("FAILURE", BuildSummaryFile.readField(summaryFile, "buildStatus"));
+        assertEquals("repo_main_abc_1", BuildSummaryFile.readField(summaryFile, "uniqueDirName"));
+        assertEquals("full", summary.get("logRetention").getAsString());
+        assertEquals(1, summary.get("errorCount").getAsInt());
+        assertFalse(new File(buildDir, BuildLogArchiver.PLAIN_LOG_FILE).exists());
+
+        BuildLogStore store = BuildLogStore.open(buildDir);
+        assertEquals(Arrays.asList("[INFO] Scanning for projects...", "[ERROR] Failed to execute goal", "[INFO] BUILD FAILURE"),
+            store.readLines(0, 3));
+
+        assertEquals(0, archiver.migrate(tempDir.toFile()));
+    }
+
+    @Test
+    /**
+     * Test that the log of a successful build is trimmed
+     *
+     * This test archives the plain log of a successful build with a warning in the middle
+     * and checks that only the lines around the error and the tail are kept.
+     */
+    public void testArchiveTrimsSuccessfulBuild() throws IOException {
+        File buildDir = tempDir.toFile();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            log.append(i == 50 ? "[ERROR] flaky but ignored" : "[INFO] line " + i).append('\n');
+        }
+        Files.write(new File(buildDir, BuildLogArchiver.PLAIN_LOG_FILE).toPath(), log.toString().getBytes(StandardCharsets.UTF_8));
+
+        BuildLogArchiver archiver = new BuildLogArchiver("trim-success", 1, 2, 10);
+        MavenOutputParser parser = archiver.newParser();
+        for (String line : log.toString().split("\n")) {
+            parser.onLine(line);
+        }
+        Map<String, Object> summary = new HashMap<>();
+        archiver.archive(buildDir, "SUCCESS", parser, summary);
+
+        assertEquals("trimmed", summary.get("logRetention"));
+        List<String> kept = BuildLogStore.open(buildDir).readLines(0, 100);
+        assertEquals(Arrays.asList("[INFO] line 49", "[ERROR] flaky but ignored", "[INFO] line 51", "[INFO] line 98", "[INFO] line 99"), kept);
+        assertTrue((Long) summary.get("logStoredBytes") > 0);
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BuildLogStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Writes a log of numbered lines and returns its bytes.
+     */
+    private byte[] writeLog(File file, int lines) throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            log.append("[INFO] line ").append(i).append(" of the Maven output\n");
+        }
+        byte[] bytes = log.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), bytes);
+        return bytes;
+    }
+
+    @Test
+    /**
+     * Test that a whole log is stored in several blocks and read back
+     *
+     * This test compresses a log larger than a block and checks the line count, a range of lines
+     * across two blocks, the tail and a byte range.
+     */
+    public void testCompressWholeLog() throws IOException {
+        File plainLog = new File(tempDir.toFile(), "mavenOutput.txt");
+        byte[] bytes = writeLog(plainLog, 10000);
+
+        long storedBytes = BuildLogStore.compress(plainLog, tempDir.toFile(), null);
+        BuildLogStore store = BuildLogStore.open(tempDir.toFile());
+
+        assertTrue(storedBytes < bytes.length / 4, "The log should be compressed.");
+        assertEquals(10000, store.getLineCount());
+        assertEquals(bytes.length, store.getByteCount());
+        assertTrue(store.isComplete());
+        assertEquals(Arrays.asList("[INFO] line 2000 of the Maven output", "[INFO] line 2001 of the Maven output"),
+            store.readLines(2000, 2002));
+        assertEquals(Arrays.asList("[INFO] line 9999 of the Maven output"), store.tail(1));
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        store.copyTo(0, store.getByteCount(), whole, true);
+        assertArrayEquals(bytes, whole.toByteArray());
+
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        store.copyTo(100000, 100010, part, true);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 100000, 100010), part.toByteArray());
+    }
+
+    @Test
+    /**
+     * Test that a trimmed log only keeps the error windows and the tail
+     *
+     * This test compresses a log with an error line in the middle with the retained lines of the trimmed retention,
+     * and checks that the kept lines keep their line numbers and that the removed lines are marked.
+     */
+    public void testCompressTrimmedLog() throws IOException {
+        File plainLog = new File(tempDir.toFile(), "mavenOutput.txt");
+        writeLog(plainLog, 1000);
+
+        List<long[]> keptLines = BuildLogStore.retainedLines(Arrays.asList(500L), 1000, 2, 3);
+        assertEquals(2, keptLines.size());
+        assertArrayEquals(new long[] {498, 503}, keptLines.get(0));
+        assertArrayEquals(new long[] {997, 1000}, keptLines.get(1));
+        BuildLogStore.compress(plainLog, tempDir.toFile(), keptLines);
+        BuildLogStore store = BuildLogStore.open(tempDir.toFile());
+
+        assertFalse(store.isComplete());
+        assertEquals(1000, store.getLineCount());
+        List<String> lines = store.readLines(0, 1000);
+        assertEquals(8, lines.size());
+        assertEquals("[INFO] line 498 of the Maven output", lines.get(0));
+        assertEquals("[INFO] line 997 of the Maven output", lines.get(5));
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        store.copyTo(0, store.getByteCount(), whole, true);
+        String text = new String(whole.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("[... 498 lines removed by the log retention ...]\n[INFO] line 498"), text);
+        assertTrue(text.contains("[INFO] line 502 of the Maven output\n[... 494 lines removed by the log retention ...]\n"));
+        assertTrue(text.endsWith("[INFO] line 999 of the Maven output\n"));
+    }
+
+    @Test
+    /**
+     * Test that the retained lines of several errors are merged
+     */
+    public void testRetainedLinesAreMerged() {
+        List<long[]> keptLines = BuildLogStore.retainedLines(new ArrayList<>(Arrays.asList(0L, 3L, 95L)), 100, 2, 10);
+        assertEquals(2, keptLines.size());
+        assertArrayEquals(new long[] {0, 6}, keptLines.get(0));
+        assertArrayEquals(new long[] {90, 100}, keptLines.get(1));
+    }
+
+    @Test
+    /**
+     * Test that a log without line terminator at the end and an empty log are stored
+     */
+    public void testLastLineWithoutTerminator() throws IOException {
+        File plainLog = new File(tempDir.toFile(), "mavenOutput.txt");
+        Files.write(plainLog.toPath(), "first\r\nlast".getBytes(StandardCharsets.UTF_8));
+        BuildLogStore.compress(plainLog, tempDir.toFile(), null);
+        BuildLogStore store = BuildLogStore.open(tempDir.toFile());
+        assertEquals(2, store.getLineCount());
+        assertEquals(Arrays.asList("first", "last"), store.tail(5));
+
+        Files.write(plainLog.toPath(), new byte[0]);
+        BuildLogStore.compress(plainLog, tempDir.toFile(), null);
+        store = BuildLogStore.open(tempDir.toFile());
+        assertEquals(0, store.getLineCount());
+        assertTrue(store.tail(5).isEmpty());
+    }
+}
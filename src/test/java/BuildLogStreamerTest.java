@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BuildLogStreamerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test that the log of a running build is streamed while it is written
+     *
+     * This test follows the output of a build from a reader thread while lines are written,
+     * resuming from an offset, and checks that the reader gets the rest of the log and stops when the output is closed.
+     */
+    public void testFollowRunningBuild() throws Exception {
+        File logFile = new File(tempDir.toFile(), "mavenOutput.txt");
+        BuildOutput output = new BuildOutput(logFile, new MavenOutputParser(10, 10));
+        byte[] first = "[INFO] first line\n".getBytes(StandardCharsets.UTF_8);
+        output.write(first, 0, first.length);
+        output.flush();
+
+        BuildLogStreamer streamer = new BuildLogStreamer(1024 * 1024, 10);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long[] end = new long[1];
+        CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                end[0] = streamer.follow(output, "[INFO] ".length(), received);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            done.countDown();
+        });
+        reader.start();
+
+        for (int i = 0; i < 20; i++) {
+            byte[] line = ("[INFO] line " + i + "\n").getBytes(StandardCharsets.UTF_8);
+            output.write(line, 0, line.length);
+            output.flush();
+            Thread.sleep(5);
+        }
+        output.close();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "The reader should stop when the build output is closed.");
+        byte[] log = Files.readAllBytes(logFile.toPath());
+        String expected = new String(log, StandardCharsets.UTF_8).substring("[INFO] ".length());
+        assertEquals(expected, new String(received.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(log.length, end[0]);
+    }
+
+    @Test
+    /**
+     * Test that a reader far behind a running build is skipped ahead
+     *
+     * This test starts following a log from its beginning with a small maximum lag,
+     * and checks that the old bytes are replaced by a marker and the last bytes are sent.
+     */
+    public void testSlowReaderIsSkippedAhead() throws Exception {
+        File logFile = new File(tempDir.toFile(), "mavenOutput.txt");
+        BuildOutput output = new BuildOutput(logFile, new MavenOutputParser(10, 10));
+        byte[] bytes = new byte[10000];
+        Arrays.fill(bytes, (byte) 'x');
+        output.write(bytes, 0, bytes.length);
+        output.close();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long end = new BuildLogStreamer(100, 10).follow(output, 0, received);
+
+        String text = new String(received.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("\n[... 9900 bytes skipped ...]\n"), text);
+        assertTrue(text.endsWith(new String(bytes, 0, 100, StandardCharsets.UTF_8)));
+        assertEquals(bytes.length, end);
+    }
+
+    @Test
+    /**
+     * Test that a part of a finished log is sent with transferTo
+     */
+    public void testTransferPartOfFile() throws IOException {
+        File logFile = new File(tempDir.toFile(), "mavenOutput.txt");
+        Files.write(logFile.toPath(), "0123456789".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        BuildLogStreamer.transfer(logFile, 3, 4, received);
+        assertEquals("3456", new String(received.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    /**
+     * Test the parsing of the Range header
+     *
+     * This test checks the first, open and suffix ranges, the clamping of the last byte
+     * and the headers that are ignored.
+     */
+    public void testParseRange() {
+        assertArrayEquals(new long[] {0, 99}, BuildLogStreamer.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {100, 999}, BuildLogStreamer.parseRange("bytes=100-", 1000));
+        assertArrayEquals(new long[] {900, 999}, BuildLogStreamer.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {500, 999}, BuildLogStreamer.parseRange("bytes=500-5000", 1000));
+        assertArrayEquals(new long[] {2000, 999}, BuildLogStreamer.parseRange("bytes=2000-", 1000));
+        assertNull(BuildLogStreamer.parseRange(null, 1000));
+        assertNull(BuildLogStreamer.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(BuildLogStreamer.parseRange("bytes=9-1", 1000));
+        assertNull(BuildLogStreamer.parseRange("items=0-1", 1000));
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class BuildOutputTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test that the Maven output is parsed while it is written
+     *
+     * This test writes a Maven output in chunks that split the lines in the middle,
+     * and checks the log file and the values extracted by the parser.
+     */
+    public void testParseChunkedOutput() throws IOException {
+        String mavenOutput = "[INFO] Scanning for projects...\n"
+            + "[ERROR] Failed to execute goal\r\n"
+            + "[INFO] BUILD FAILURE\n"
+            + "[INFO] Total time:  1.234 s\n"
+            + "[INFO] Finished at: 2024-02-12T10:00:00+01:00";
+        byte[] bytes = mavenOutput.getBytes(StandardCharsets.UTF_8);
+        File logFile = new File(tempDir.toFile(), "mavenOutput.txt");
+        MavenOutputParser parser = new MavenOutputParser(10, 10);
+
+        try (BuildOutput output = new BuildOutput(logFile, parser)) {
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                output.write(bytes, offset, Math.min(7, bytes.length - offset));
+            }
+        }
+
+        assertArrayEquals(bytes, Files.readAllBytes(logFile.toPath()));
+        assertTrue(parser.isErrorEncountered());
+        assertEquals(Arrays.asList("[ERROR] Failed to execute goal"), parser.getErrorLines());
+        assertEquals("1.234 s", parser.getTotalTime());
+        assertEquals("2024-02-12T10:00:00+01:00", parser.getFinishedAt());
+        assertEquals(5, parser.getLineCount());
+    }
+
+    @Test
+    /**
+     * Test that the memory used by the parser does not depend on the size of the output
+     *
+     * This test copies an output with many error lines and a very long line from a stream,
+     * and checks that only the configured number of lines is kept while the log file has all the bytes.
+     */
+    public void testBoundedOutput() throws IOException {
+        ByteArrayOutputStream mavenOutput = new ByteArrayOutputStream();
+        for (int i = 0; i < 10000; i++) {
+            mavenOutput.write(("[ERROR] error " + i + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        char[] longLine = new char[100 * 1024];
+        Arrays.fill(longLine, 'x');
+        mavenOutput.write((new String(longLine) + "\n[INFO] last\n").getBytes(StandardCharsets.UTF_8));
+        File logFile = new File(tempDir.toFile(), "mavenOutput.txt");
+        MavenOutputParser parser = new MavenOutputParser(5, 3);
+
+        try (BuildOutput output = new BuildOutput(logFile, parser)) {
+            output.copyFrom(new ByteArrayInputStream(mavenOutput.toByteArray()));
+            assertEquals(mavenOutput.size(), output.getBytesWritten());
+        }
+
+        assertEquals(mavenOutput.size(), logFile.length());
+        assertEquals(5, parser.getErrorLines().size());
+        assertEquals("[ERROR] error 0", parser.getErrorLines().get(0));
+        assertEquals(3, parser.getTailLines().size());
+        assertEquals("[ERROR] error 9999", parser.getTailLines().get(0));
+        assertTrue(parser.getTailLines().get(1).length() < longLine.length, "Long lines are truncated for the parser.");
+        assertEquals("[INFO] last", parser.getTailLines().get(2));
+        assertEquals(10002, parser.getLineCount());
+        assertNull(parser.getTotalTime());
+    }
+}
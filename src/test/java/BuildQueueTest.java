@@ -0,0 +1,265 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BuildQueueTest {
+
+    private static Build build(String id, String repository, Build.Priority priority) {
+        PushEvent event = new PushEvent("refs/heads/feature", repository, null, "c", null, null);
+        return new Build(id, event, null, null, priority);
+    }
+
+    @Test
+    /**
+     * Test that submitted builds are run by the workers
+     *
+     * This test submits three builds and checks that the pipeline is called for each of them
+     * and that the builds end up in the FINISHED state.
+     */
+    public void testSubmittedBuildsAreRun() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        BuildQueue queue = new BuildQueue(2, 10, build -> {
+            ran.add(build.getId());
+            done.countDown();
+        });
+
+        Build first = new Build("build-1", null, null);
+        assertTrue(queue.submit(first));
+        assertTrue(queue.submit(new Build("build-2", null, null)));
+        assertTrue(queue.submit(new Build("build-3", null, null)));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "All builds should be run.");
+        assertEquals(3, ran.size());
+        queue.shutdown();
+    }
+
+    @Test
+    /**
+     * Test that the queue rejects builds when it is full
+     *
+     * This test blocks the only worker, fills the queue and checks that the next build is rejected
+     * and that the queue depth and busy workers are reported.
+     */
+    public void testQueueRejectsBuildsWhenFull() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 2, build -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Build running = new Build("running", null, null);
+        assertTrue(queue.submit(running));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(Build.State.RUNNING, running.getState());
+        assertEquals(1, queue.getBusyWorkers());
+
+        assertTrue(queue.submit(new Build("queued-1", null, null)));
+        assertTrue(queue.submit(new Build("queued-2", null, null)));
+        assertEquals(2, queue.getQueueDepth());
+        assertFalse(queue.submit(new Build("rejected", null, null)), "A full queue should reject the build.");
+
+        release.countDown();
+        queue.shutdown();
+    }
+
+    @Test
+    /**
+     * Test that a newer build on the same branch drops the queued build and cancels the running one
+     *
+     * This test runs a build that waits until it is cancelled, queues a second build with the same key,
+     * then submits a third one. The first is cancelled and the second is dropped without running.
+     */
+    public void testSupersedeBuildsOnSameBranch() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch allSubmitted = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 10, build -> {
+            ran.add(build.getId());
+            started.countDown();
+            while (!build.isCancelled() && build.getId().equals("first")) {
+                Thread.yield();
+            }
+            // The worker must not reach the second build before the third one is submitted
+            try {
+                allSubmitted.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+
+        Build first = new Build("first", null, null, "repo/feature");
+        Build second = new Build("second", null, null, "repo/feature");
+        Build third = new Build("third", null, null, "repo/feature");
+        Build otherBranch = new Build("other", null, null, "repo/other");
+        assertTrue(queue.submit(first));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.submit(otherBranch));
+        assertTrue(queue.submit(second));
+        assertFalse(second.isCancelled());
+        assertTrue(first.isCancelled(), "The running build should be cancelled.");
+        assertEquals("second", first.getCancelledBy());
+
+        assertTrue(queue.submit(third));
+        assertTrue(second.isCancelled(), "The queued build should be dropped.");
+        assertEquals(2, queue.getQueueDepth());
+        assertFalse(otherBranch.isCancelled(), "Builds of other branches are not superseded.");
+        allSubmitted.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        assertFalse(ran.contains("second"), "A dropped build should never run.");
+    }
+
+    @Test
+    /**
+     * Test that cancelling a build destroys its process and the children of the process
+     */
+    public void testCancelDestroysProcessTree() throws Exception {
+        Process process = new ProcessBuilder("bash", "-c", "sleep 60 & sleep 60; wait").start();
+        Build build = new Build("build", null, null, "repo/feature");
+        build.setProcess(process);
+        Thread.sleep(200);
+        List<Long> children = new java.util.ArrayList<>();
+        Build.addDescendants(Build.pidOf(process), children);
+        assertFalse(children.isEmpty());
+
+        build.cancel("newer");
+
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS), "The process should be destroyed.");
+        for (long child : children) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (isAlive(child) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse(isAlive(child), "The child processes should be destroyed.");
+        }
+    }
+
+    /**
+     * @return whether a process exists and is not a zombie waiting to be reaped
+     */
+    private static boolean isAlive(long pid) throws Exception {
+        Process ps = new ProcessBuilder("ps", "-o", "stat=", "-p", String.valueOf(pid)).start();
+        String state;
+        try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(ps.getInputStream()))) {
+            String line = reader.readLine();
+            state = line == null ? "" : line.trim();
+        }
+        ps.waitFor();
+        return !state.isEmpty() && !state.startsWith("Z");
+    }
+
+    @Test
+    /**
+     * Test that manual rebuilds run first, then the builds of protected branches, then the other builds
+     */
+    public void testPriorityClasses() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        BuildQueue queue = new BuildQueue(1, 10, build -> {
+            ran.add(build.getId());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+
+        assertTrue(queue.submit(build("running", "repo", Build.Priority.FEATURE)));
+        while (queue.getBusyWorkers() == 0) {
+            Thread.sleep(5);
+        }
+        assertTrue(queue.submit(build("feature", "repo", Build.Priority.FEATURE)));
+        assertTrue(queue.submit(build("protected", "other", Build.Priority.PROTECTED)));
+        assertTrue(queue.submit(build("manual", "repo", Build.Priority.MANUAL)));
+        assertEquals(1, queue.getPriorityStatus().get("manual").get("queued"));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("running", "manual", "protected", "feature"), ran);
+        queue.shutdown();
+    }
+
+    @Test
+    /**
+     * Test that the workers are shared between the repositories of a priority class
+     *
+     * This test queues six builds of a repository pushing all the time, then two builds of another repository.
+     * The second repository does not wait for the six builds of the first: the builds alternate.
+     */
+    public void testFairShareAcrossRepositories() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(9);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        BuildQueue queue = new BuildQueue(1, 20, build -> {
+            ran.add(build.getRepositoryName());
+            try {
+                release.await();
+                Thread.sleep(30);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+
+        assertTrue(queue.submit(build("blocker", "other", Build.Priority.FEATURE)));
+        while (queue.getBusyWorkers() == 0) {
+            Thread.sleep(5);
+        }
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.submit(build("noisy-" + i, "noisy", Build.Priority.FEATURE)));
+        }
+        assertTrue(queue.submit(build("quiet-1", "quiet", Build.Priority.FEATURE)));
+        assertTrue(queue.submit(build("quiet-2", "quiet", Build.Priority.FEATURE)));
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, Collections.frequency(ran.subList(1, 5), "quiet"), "The builds should alternate: " + ran);
+        Map<String, Map<String, Object>> status = queue.getRepositoryStatus();
+        assertEquals(6L, status.get("noisy").get("builds"));
+        assertEquals(0, status.get("quiet").get("queued"));
+        assertTrue((Long) status.get("noisy").get("waitMaxMillis") > (Long) status.get("quiet").get("waitMaxMillis"));
+        queue.shutdown();
+    }
+
+    @Test
+    /**
+     * Test that the builds are held while the admission check refuses them, and start once it accepts them
+     */
+    public void testAdmissionHold() throws InterruptedException {
+        AtomicReference<String> hold = new AtomicReference<>("Only 100 MB of memory available, 512 MB needed");
+        CountDownLatch started = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 10, build -> started.countDown(), Collections.emptyMap(), hold::get, 20);
+
+        assertTrue(queue.submit(build("held", "repo", Build.Priority.FEATURE)));
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS), "The build should be held.");
+        assertEquals(hold.get(), queue.getAdmissionHold());
+        assertEquals(1, queue.getQueueDepth());
+
+        hold.set(null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, queue.getAdmissionHolds());
+        queue.shutdown();
+    }
+}
@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BuildStatsTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static BuildRecord build(String id, String branch, String status, long finishedAtMillis, long buildMillis) {
+        Map<String, Long> phases = new LinkedHashMap<>();
+        phases.put(BuildStats.QUEUE, 100L);
+        phases.put(BuildStats.CLONE, 2000L);
+        phases.put(BuildStats.BUILD, buildMillis);
+        phases.put(BuildStats.POST_PROCESS, 50L);
+        phases.put(BuildStats.TOTAL, 2150L + buildMillis);
+        return new BuildRecord(id, "repo", branch, "c", status, finishedAtMillis, null, phases);
+    }
+
+    @Test
+    /**
+     * Test the percentiles of the histograms against the exact percentiles
+     */
+    public void testPercentiles() {
+        BuildStats.DurationHistogram histogram = new BuildStats.DurationHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50050, histogram.getMean());
+        assertEquals(50000, histogram.getPercentile(50), 50000 * 0.04);
+        assertEquals(90000, histogram.getPercentile(90), 90000 * 0.04);
+        assertEquals(99000, histogram.getPercentile(99), 99000 * 0.04);
+        assertEquals(0, new BuildStats.DurationHistogram().getPercentile(50));
+
+        // Small values are exact
+        BuildStats.DurationHistogram small = new BuildStats.DurationHistogram();
+        small.record(3);
+        assertEquals(3, small.getPercentile(99));
+    }
+
+    @Test
+    /**
+     * Test that the builds are aggregated per repository and per branch
+     *
+     * This test checks that the cancelled builds and the builds of older versions without phase durations
+     * are not counted, and that the histograms of a period only hold the builds finished in it.
+     */
+    public void testAggregatePerBranch() {
+        long now = System.currentTimeMillis();
+        BuildStats stats = new BuildStats(HOUR, 90 * 24 * HOUR);
+        stats.record(build("repo_main_c_1", "main", "SUCCESS", now, 10000));
+        stats.record(build("repo_main_c_2", "main", "FAILURE", now, 20000));
+        stats.record(build("repo_feature_c_3", "feature", "SUCCESS", now, 30000));
+        stats.record(build("repo_feature_c_4", "feature", "CANCELLED", now, 40000));
+        stats.record(new BuildRecord("repo_main_c_5", "repo", "main", "c", "SUCCESS", now, "1 s"));
+        // Older than the retention
+        stats.record(build("repo_main_c_6", "main", "SUCCESS", now - 100 * 24 * HOUR, 50000));
+
+        assertTrue(stats.hasRepository("repo"));
+        assertFalse(stats.hasRepository("other"));
+        BuildStats.PhaseHistograms all = stats.aggregate("repo", null, now - HOUR, now + HOUR);
+        assertEquals(3, all.getBuilds());
+        assertEquals(30000, all.phases.get(BuildStats.BUILD).getMax());
+        BuildStats.PhaseHistograms main = stats.aggregate("repo", "main", now - HOUR, now + HOUR);
+        assertEquals(2, main.getBuilds());
+        assertEquals(20000, main.phases.get(BuildStats.BUILD).getMax());
+        assertEquals(0, stats.aggregate("repo", "main", now - 3 * HOUR, now - HOUR).getBuilds());
+    }
+
+    @Test
+    /**
+     * Test the JSON of a repository: the percentiles of the window, the change from the previous window and the series
+     */
+    public void testWriteJson() throws IOException {
+        long now = System.currentTimeMillis();
+        BuildStats stats = new BuildStats(HOUR, 90 * 24 * HOUR);
+        // 10 s builds in the previous window, 15 s builds in the current one
+        for (int i = 0; i < 5; i++) {
+            stats.record(build("repo_main_c_" + i, "main", "SUCCESS", now - 3 * HOUR, 10000));
+            stats.record(build("repo_main_d_" + i, "main", "SUCCESS", now, 15000));
+        }
+
+        StringWriter out = new StringWriter();
+        stats.writeJson("repo", "main", 2 * HOUR, 0, now, out);
+        JsonObject json = JsonParser.parseString(out.toString()).getAsJsonObject();
+        assertEquals(5, json.get("builds").getAsInt());
+        assertEquals(2 * HOUR, json.get("windowMillis").getAsLong());
+        JsonObject build = json.getAsJsonObject("phases").getAsJsonObject(BuildStats.BUILD);
+        assertEquals(15000, build.get("p50Millis").getAsLong(), 15000 * 0.04);
+        assertEquals(5, json.getAsJsonObject("previousWindow").get("builds").getAsInt());
+        double change = json.getAsJsonObject("trend").getAsJsonObject(BuildStats.BUILD).get("p50ChangePercent").getAsDouble();
+        assertEquals(50, change, 8);
+
+        JsonArray series = json.getAsJsonArray("series");
+        assertEquals(2, series.size());
+        assertEquals(0, series.get(0).getAsJsonObject().get("builds").getAsInt());
+        assertEquals(5, series.get(1).getAsJsonObject().get("builds").getAsInt());
+
+        assertThrows(IllegalArgumentException.class,
+            () -> stats.writeJson("repo", null, 2000 * HOUR, HOUR, now, new StringWriter()));
+    }
+
+    @Test
+    /**
+     * Test that the statistics are rebuilt from the phase durations of the build summaries in the index
+     */
+    public void testRebuildFromSummaries() {
+        JsonObject summary = JsonParser.parseString("{\"repository\": \"repo\", \"branch\": \"main\", \"buildStatus\": \"SUCCESS\", "
+            + "\"phaseMillis\": {\"queue\": 5, \"clone\": 1000, \"build\": 60000, \"postProcess\": 20, \"total\": 61025}}")
+            .getAsJsonObject();
+        BuildIndex index = new BuildIndex();
+        index.record(BuildRecord.fromSummary("repo_main_c_1", summary, System.currentTimeMillis()));
+
+        BuildStats stats = new BuildStats(HOUR, 90 * 24 * HOUR);
+        stats.rebuild(index);
+        BuildStats.PhaseHistograms histograms = stats.aggregate("repo", "main", 0, System.currentTimeMillis() + HOUR);
+        assertEquals(1, histograms.getBuilds());
+        assertEquals(60000, histograms.phases.get(BuildStats.BUILD).getMax());
+    }
+
+    @Test
+    /**
+     * Test the durations of the window and interval parameters
+     */
+    public void testParseDuration() {
+        assertEquals(90 * 60 * 1000, BuildStats.parseDuration("90m", "window"));
+        assertEquals(24 * HOUR, BuildStats.parseDuration("24h", "window"));
+        assertEquals(7 * 24 * HOUR, BuildStats.parseDuration("1w", "window"));
+        assertEquals(5000, BuildStats.parseDuration("5000", "window"));
+        assertThrows(IllegalArgumentException.class, () -> BuildStats.parseDuration("0d", "window"));
+        assertThrows(IllegalArgumentException.class, () -> BuildStats.parseDuration("d", "window"));
+        assertThrows(IllegalArgumentException.class, () -> BuildStats.parseDuration("7days", "window"));
+    }
+}
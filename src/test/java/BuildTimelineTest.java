@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BuildTimelineTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test that the plugin goals of the Maven output are timed
+     *
+     * This test sends the lines of a Maven build of two modules to a parser at given times. Every goal lasts
+     * until the next goal starts, the last one until the build summary, and the goal still running when
+     * the output stops ends at the end of the build.
+     */
+    public void testGoalSpans() {
+        MavenOutputParser parser = new MavenOutputParser(10, 10);
+        parser.onLine("[INFO] Scanning for projects...", 1000);
+        parser.onLine("[INFO] --- maven-resources-plugin:3.3.1:resources (default-resources) @ core ---", 1100);
+        parser.onLine("[INFO] --- maven-compiler-plugin:3.11.0:compile (default-compile) @ core ---", 1200);
+        parser.onLine("[INFO] Compiling 12 source files to target/classes", 1300);
+        parser.onLine("[INFO] --- surefire:3.2.2:test (default-test) @ core ---", 2000);
+        parser.onLine("[INFO] --- jacoco-maven-plugin:0.8.11:report (report) @ app ---", 5000);
+        parser.onLine("[INFO] Reactor Summary for parent 1.0:", 5500);
+        parser.onLine("[INFO] BUILD SUCCESS", 5600);
+
+        List<BuildTimeline.Span> spans = parser.getGoalSpans(9000);
+        assertEquals(4, spans.size());
+        assertEquals("resources:resources @ core", spans.get(0).getName());
+        assertEquals(BuildStats.BUILD, spans.get(0).getParent());
+        assertEquals("compiler:compile @ core", spans.get(1).getName());
+        assertEquals(1200, spans.get(1).getStartMillis());
+        assertEquals(2000, spans.get(1).getEndMillis());
+        assertEquals("surefire:test @ core", spans.get(2).getName());
+        assertEquals("jacoco:report @ app", spans.get(3).getName());
+        assertEquals(5500, spans.get(3).getEndMillis());
+
+        MavenOutputParser cut = new MavenOutputParser(10, 10);
+        cut.onLine("[INFO] --- maven-surefire-plugin:2.22.2:test (default-test) @ app ---", 100);
+        cut.onLine("Running AppTest", 200);
+        assertEquals(1, cut.getGoalSpans(700).size());
+        assertEquals(700, cut.getGoalSpans(700).get(0).getEndMillis());
+    }
+
+    @Test
+    /**
+     * Test that a timeline is written to the build directory and shown as a waterfall
+     *
+     * This test writes the timeline of a build with a queue wait, a build and one goal, then reads the JSON
+     * back and checks the waterfall: the bars are placed on the scale of the whole build and the names are escaped.
+     */
+    public void testWriteAndWaterfall() throws Exception {
+        File buildDir = tempDir.toFile();
+        BuildTimeline timeline = new BuildTimeline();
+        timeline.add(new BuildTimeline.Span(BuildStats.QUEUE, null, 10000, 12000));
+        timeline.add(new BuildTimeline.Span(BuildStats.BUILD, null, 12000, 20000));
+        timeline.add(new BuildTimeline.Span("compiler:compile @ <core>", BuildStats.BUILD, 13000, 14000));
+        timeline.add(new BuildTimeline.Span("cleanup", null, 20000, 19000));
+        timeline.write(buildDir, "build-1");
+
+        String json = new String(Files.readAllBytes(new File(buildDir, BuildTimeline.FILE_NAME).toPath()), StandardCharsets.UTF_8);
+        JsonObject read = JsonParser.parseString(json).getAsJsonObject();
+        assertEquals("build-1", read.get("buildId").getAsString());
+        assertEquals(10000, read.get("startMillis").getAsLong());
+        assertEquals(20000, read.get("endMillis").getAsLong());
+        JsonArray spans = read.getAsJsonArray("spans");
+        assertEquals(4, spans.size());
+        assertEquals(2000, spans.get(0).getAsJsonObject().get("durationMillis").getAsLong());
+        assertFalse(spans.get(0).getAsJsonObject().has("parent"));
+        assertEquals(BuildStats.BUILD, spans.get(2).getAsJsonObject().get("parent").getAsString());
+        assertEquals(0, spans.get(3).getAsJsonObject().get("durationMillis").getAsLong(),
+            "A span should not end before it starts.");
+
+        StringWriter html = new StringWriter();
+        BuildTimeline.writeWaterfall(read, new PrintWriter(html));
+        String text = html.toString();
+        assertTrue(text.contains("compiler:compile @ &lt;core&gt;"), text);
+        assertFalse(text.contains("<core>"), text);
+        // The build starts at 20% of the timeline and lasts 80% of it
+        assertTrue(text.contains("left: 20.00%; width: 80.00%"), text);
+        assertTrue(text.contains("<td style='text-align: right'>2.0 s</td><td style='text-align: right'>8.0 s</td>"), text);
+    }
+}
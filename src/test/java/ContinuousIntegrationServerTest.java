@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.PrintStream;
 import java.nio.file.Path;
 
+import com.google.gson.JsonObject;
+
 public class ContinuousIntegrationServerTest {
 
     @Test
@@ -232,7 +234,7 @@ public class ContinuousIntegrationServerTest {
      * 
      * This test checks if the method returns true when the project compiles and runs a test that passes.
      */
-    public void testcompileMavenProjectTestSuccess() {
+    public void testcompileMavenProjectTestSuccess() throws Exception {
         ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer();
 
         String cwd = Path.of("").toAbsolutePath().toString();
@@ -244,6 +246,17 @@ public class ContinuousIntegrationServerTest {
 
         boolean result = ciServer.compileMavenProject(projectDirPath, uniqueDirName, payload);
         assertEquals(true, result);
+
+        // The test results are read from the Surefire report
+        JsonObject tests = BuildSummaryFile.read(new File(projectDirPath + "/" + uniqueDirName, BuildSummaryFile.FILE_NAME))
+            .getAsJsonObject("tests");
+        assertEquals(0, tests.get("failures").getAsInt());
+
+        // The durations of the phases are recorded as numbers
+        JsonObject phases = BuildSummaryFile.read(new File(projectDirPath + "/" + uniqueDirName, BuildSummaryFile.FILE_NAME))
+            .getAsJsonObject("phaseMillis");
+        assertTrue(phases.get(BuildStats.BUILD).getAsLong() > 0);
+        assertTrue(phases.get(BuildStats.TOTAL).getAsLong() >= phases.get(BuildStats.BUILD).getAsLong());
     }
 
     @Test
@@ -252,7 +265,7 @@ public class ContinuousIntegrationServerTest {
      * 
      * This test checks if the method returns false when the project compiles and runs a test that fails.
      */
-    public void testcompileMavenProjectTestFail() {
+    public void testcompileMavenProjectTestFail() throws Exception {
         ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer();
 
         String cwd = Path.of("").toAbsolutePath().toString();
@@ -264,5 +277,11 @@ public class ContinuousIntegrationServerTest {
 
         boolean result = ciServer.compileMavenProject(projectDirPath, uniqueDirName, payload);
         assertEquals(false, result);
+
+        // The test results are read from the Surefire report
+        JsonObject tests = BuildSummaryFile.read(new File(projectDirPath + "/" + uniqueDirName, BuildSummaryFile.FILE_NAME))
+            .getAsJsonObject("tests");
+        assertEquals(1, tests.get("total").getAsInt());
+        assertEquals(1, tests.get("failures").getAsInt());
     }
 }
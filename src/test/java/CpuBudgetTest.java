@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+public class CpuBudgetTest {
+
+    @Test
+    /**
+     * Test that the cores are shared between the builds expected to run at the same time
+     *
+     * This test starts a build alone, then builds while others are queued, and checks that the cores given
+     * never exceed the budget and that the cores given back go to the next build.
+     */
+    public void testShareCores() {
+        CpuBudget budget = new CpuBudget(32, 4);
+        CpuBudget.Allocation alone = budget.acquire(1, 1);
+        assertEquals(32, alone.getCores());
+        budget.release(alone);
+        budget.release(alone);
+        assertEquals(0, budget.getAllocatedCores());
+
+        // 4 workers busy and 6 builds queued: a quarter of the host each
+        CpuBudget.Allocation first = budget.acquire(10, 1);
+        assertEquals(8, first.getCores());
+        CpuBudget.Allocation second = budget.acquire(10, 1);
+        CpuBudget.Allocation third = budget.acquire(10, 1);
+        CpuBudget.Allocation fourth = budget.acquire(10, 1);
+        assertEquals(8, fourth.getCores());
+        assertEquals(32, budget.getAllocatedCores());
+
+        // The queue is empty once the first builds finish, the next build gets what they left
+        budget.release(first);
+        budget.release(second);
+        CpuBudget.Allocation fifth = budget.acquire(3, 1);
+        assertEquals(10, fifth.getCores());
+        assertEquals(3, budget.getRunningBuilds());
+        budget.release(third);
+        budget.release(fourth);
+        budget.release(fifth);
+        assertEquals(0, budget.getAllocatedCores());
+
+        // A build started alone keeps its cores, a build starting next to it gets at least one
+        CpuBudget.Allocation big = budget.acquire(1, 1);
+        CpuBudget.Allocation late = budget.acquire(2, 1);
+        assertEquals(32, big.getCores());
+        assertEquals(1, late.getCores());
+    }
+
+    @Test
+    /**
+     * Test that the cores become Maven threads for the modules and Surefire forks for the rest
+     */
+    public void testMavenArgs() {
+        CpuBudget budget = new CpuBudget(8, 1);
+        CpuBudget.Allocation single = budget.acquire(1, 1);
+        assertEquals(Arrays.asList("-DforkCount=8"), single.getMavenArgs());
+        budget.release(single);
+
+        CpuBudget.Allocation modules = budget.acquire(1, 3);
+        assertEquals(3, modules.getMavenThreads());
+        assertEquals(2, modules.getForkCount());
+        assertEquals(Arrays.asList("-T", "3", "-DforkCount=2"), modules.getMavenArgs());
+        budget.release(modules);
+
+        CpuBudget.Allocation many = budget.acquire(1, 20);
+        assertEquals(Arrays.asList("-T", "8", "-DforkCount=1"), many.getMavenArgs());
+    }
+}
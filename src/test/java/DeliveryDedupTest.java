@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DeliveryDedupTest {
+
+    private static final String MAIN = "refs/heads/main";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    /**
+     * Test that a delivery is found by its id and by its commit while the build of the commit is current
+     *
+     * This test records a delivery, then looks for a copy of it, for another delivery of the same commit
+     * for a delivery of the commit once its build was cancelled and for a push of the commit to another branch.
+     * A delivery being accepted is found too.
+     */
+    public void testFindDuplicates() {
+        DeliveryDedup dedup = new DeliveryDedup(100);
+        String repo = "https://github.com/owner/repo.git";
+        assertNull(dedup.findOrReserve("delivery-1", repo, MAIN, "abc", id -> true));
+        assertEquals("", dedup.findOrReserve("delivery-1", repo, MAIN, "abc", id -> true),
+            "A copy received while the first delivery is accepted should be a duplicate.");
+        dedup.record("delivery-1", repo, MAIN, "abc", "build-1");
+
+        assertEquals("build-1", dedup.findOrReserve("delivery-1", repo, MAIN, "abc", id -> false),
+            "A delivery sent again should always be a duplicate.");
+        assertEquals("build-1", dedup.findOrReserve("delivery-2", repo, MAIN, "abc", id -> true));
+        assertNull(dedup.findOrReserve("delivery-3", repo, MAIN, "abc", id -> false),
+            "A commit whose build was cancelled should be built again.");
+        dedup.record("delivery-3", repo, MAIN, "abc", "build-3");
+        assertEquals("build-3", dedup.findOrReserve("delivery-4", repo, MAIN, "abc", "build-3"::equals));
+        assertNull(dedup.findOrReserve("delivery-5", "https://github.com/owner/other.git", MAIN, "abc", id -> true));
+        // A commit merged into another branch is built for that branch
+        assertNull(dedup.findOrReserve("delivery-7", repo, "refs/heads/release", "abc", id -> true));
+        assertEquals(2, dedup.getDeliveryHits());
+        assertEquals(2, dedup.getCommitHits());
+
+        // A delivery that did not start a build can be sent again
+        assertNull(dedup.findOrReserve("delivery-6", repo, MAIN, "def", id -> true));
+        dedup.release("delivery-6", repo, MAIN, "def");
+        assertNull(dedup.findOrReserve("delivery-6", repo, MAIN, "def", id -> true));
+        // Deliveries without an id or a commit are never duplicates
+        assertNull(dedup.findOrReserve(null, repo, MAIN, null, id -> true));
+        assertNull(dedup.findOrReserve(null, repo, MAIN, null, id -> true));
+    }
+
+    @Test
+    /**
+     * Test that the oldest deliveries are forgotten first and that the deliveries are kept across restarts
+     *
+     * This test records more deliveries than the dedup keeps, with one old delivery looked up again meanwhile,
+     * then loads the journal in a new dedup and checks that the latest deliveries are remembered and the size of the journal.
+     */
+    public void testLruAndJournal() throws Exception {
+        File dir = tempDir.toFile();
+        DeliveryDedup dedup = new DeliveryDedup(10);
+        assertEquals(0, dedup.load(dir));
+        for (int i = 0; i < 100; i++) {
+            assertNull(dedup.findOrReserve("delivery-" + i, "repo", MAIN, "commit-" + i, id -> true));
+            dedup.record("delivery-" + i, "repo", MAIN, "commit-" + i, "build-" + i);
+            // The first delivery is looked up all the time, it is never the least recently used
+            assertEquals("build-0", dedup.findOrReserve("delivery-0", "repo", MAIN, "commit-0", id -> true));
+        }
+        assertEquals(10, dedup.getDeliveryCount());
+        assertTrue(Files.readAllLines(new File(dir, DeliveryDedup.JOURNAL_FILE).toPath()).size() <= 4 * 10 + 2,
+            "The journal should be compacted.");
+
+        DeliveryDedup reloaded = new DeliveryDedup(10);
+        assertEquals(10, reloaded.load(dir));
+        assertEquals("build-99", reloaded.findOrReserve("delivery-99", "repo", MAIN, "commit-99", id -> true));
+        assertEquals("build-95", reloaded.findOrReserve("delivery-x", "repo", MAIN, "commit-95", id -> true));
+        assertNull(reloaded.findOrReserve("delivery-50", "repo", MAIN, "commit-50", id -> true));
+    }
+}
@@ -0,0 +1,220 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+public class EmailOutboxTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StubSmtpServer smtp;
+    private final List<EmailOutbox> outboxes = new ArrayList<>();
+
+    /**
+     * A minimal SMTP server in the test JVM. It accepts every message and records its data, except that
+     * the first failMessages messages are answered with a temporary failure.
+     */
+    static class StubSmtpServer implements Runnable {
+        final ServerSocket serverSocket;
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger failMessages = new AtomicInteger();
+
+        StubSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "stub-smtp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    connections.incrementAndGet();
+                    serve(socket);
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            reply(out, "220 stub ESMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(out, "250 stub");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder data = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        data.append(line).append("\n");
+                    }
+                    if (failMessages.getAndDecrement() > 0) {
+                        reply(out, "451 Try again later");
+                    } else {
+                        messages.add(data.toString());
+                        reply(out, "250 OK");
+                    }
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    // MAIL, RCPT, RSET and NOOP
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private static void reply(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        for (EmailOutbox outbox : outboxes) {
+            outbox.stop();
+        }
+        if (smtp != null) {
+            smtp.close();
+        }
+    }
+
+    private EmailOutbox createOutbox(int port, long digestWindowMillis) throws Exception {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "localhost");
+        props.put("mail.smtp.port", Integer.toString(port));
+        props.put("mail.smtp.connectiontimeout", "2000");
+        props.put("mail.smtp.timeout", "2000");
+        EmailOutbox outbox = new EmailOutbox(tempDir.resolve(".outbox").toFile(), Session.getInstance(props),
+            new InternetAddress("ci@mail.test", "CI Server"), digestWindowMillis, 50, 5);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    /**
+     * Test that the emails are sent over one SMTP connection
+     */
+    public void testSendOverOneConnection() throws Exception {
+        smtp = new StubSmtpServer();
+        EmailOutbox outbox = createOutbox(smtp.getPort(), 0);
+        outbox.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(outbox.enqueue("dev" + i + "@mail.test", "Build " + i, "Body of build " + i));
+        }
+
+        waitFor(() -> outbox.getSentCount() == 3);
+        assertEquals(3, smtp.messages.size());
+        assertTrue(smtp.messages.get(0).contains("Subject: Build 0"));
+        assertTrue(smtp.messages.get(2).contains("Body of build 2"));
+        assertEquals(1, smtp.connections.get());
+        assertEquals(1, outbox.getConnectionCount());
+        // Sent emails are deleted from the outbox directory
+        assertEquals(0, tempDir.resolve(".outbox").toFile().list().length);
+    }
+
+    @Test
+    /**
+     * Test that a failed email is sent again after a wait
+     */
+    public void testRetry() throws Exception {
+        smtp = new StubSmtpServer();
+        smtp.failMessages.set(2);
+        EmailOutbox outbox = createOutbox(smtp.getPort(), 0);
+        outbox.start();
+        outbox.enqueue("dev@mail.test", "Build", "Body");
+
+        waitFor(() -> outbox.getSentCount() == 1);
+        assertEquals(1, smtp.messages.size());
+        assertEquals(0, outbox.getFailedCount());
+    }
+
+    @Test
+    /**
+     * Test that the emails not sent are sent after a restart
+     *
+     * This test queues an email while the mail server is down, stops the outbox,
+     * and checks that a new outbox on the same directory sends the email.
+     */
+    public void testPersistedEmailsAreSentAfterRestart() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        EmailOutbox down = createOutbox(closedPort, 0);
+        down.start();
+        down.enqueue("dev@mail.test", "Build while down", "Body");
+        down.stop();
+        assertEquals(1, tempDir.resolve(".outbox").toFile().list().length);
+
+        smtp = new StubSmtpServer();
+        EmailOutbox outbox = createOutbox(smtp.getPort(), 0);
+        assertEquals(1, outbox.start());
+        waitFor(() -> outbox.getSentCount() == 1);
+        assertTrue(smtp.messages.get(0).contains("Subject: Build while down"));
+    }
+
+    @Test
+    /**
+     * Test that the emails to the same recipient within the digest window are sent as one digest
+     */
+    public void testDigest() throws Exception {
+        smtp = new StubSmtpServer();
+        EmailOutbox outbox = createOutbox(smtp.getPort(), 500);
+        outbox.start();
+        outbox.enqueue("dev@mail.test", "Build 1", "Body 1");
+        outbox.enqueue("other@mail.test", "Build 2", "Body 2");
+        outbox.enqueue("DEV@mail.test", "Build 3", "Body 3");
+
+        waitFor(() -> outbox.getSentCount() == 3);
+        assertEquals(2, smtp.messages.size());
+        String digest = smtp.messages.get(0).contains("Build results") ? smtp.messages.get(0) : smtp.messages.get(1);
+        assertTrue(digest.contains("Subject: Build results: 2 builds"));
+        assertTrue(digest.contains("Body 1"));
+        assertTrue(digest.contains("Body 3"));
+    }
+}
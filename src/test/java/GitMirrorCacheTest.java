@@ -0,0 +1,243 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.api.Git;
+
+public class GitMirrorCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Creates a commit with one file in a local repository.
+     */
+    private static void commitFile(Git git, String name, String content) throws Exception {
+        Files.write(new File(git.getRepository().getWorkTree(), name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern(name).call();
+        git.commit().setMessage("Add " + name).setAuthor("Test", "test@mail.test").call();
+    }
+
+    /**
+     * Creates a local repository with one commit and returns its file:// URL.
+     */
+    private String createSourceRepository(String name) throws Exception {
+        File dir = tempDir.resolve(name).toFile();
+        try (Git git = Git.init().setDirectory(dir).call()) {
+            commitFile(git, "README.md", "first");
+        }
+        return dir.toURI().toString();
+    }
+
+    @Test
+    /**
+     * Test that a workspace is created from the mirror and sees new commits
+     *
+     * This test creates a workspace, adds a commit to the source repository and creates a second workspace.
+     * Both workspaces borrow the mirror objects through alternates instead of copying them.
+     */
+    public void testCreateWorkspaceFromMirror() throws Exception {
+        String repoUrl = createSourceRepository("source");
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), Long.MAX_VALUE);
+
+        File first = tempDir.resolve("build-1").toFile();
+        cache.createWorkspace(repoUrl, first, null);
+        assertTrue(new File(first, "README.md").exists());
+        assertTrue(new File(first, ".git/objects/info/alternates").exists());
+        assertFalse(new File(first, ".git/objects/pack").exists()
+            && new File(first, ".git/objects/pack").list().length > 0, "No objects should be copied.");
+
+        try (Git source = Git.open(new File(new java.net.URI(repoUrl)))) {
+            commitFile(source, "Second.java", "second");
+        }
+
+        File second = tempDir.resolve("build-2").toFile();
+        cache.createWorkspace(repoUrl, second, "master");
+        assertTrue(new File(second, "Second.java").exists(), "The mirror should be fetched before creating the workspace.");
+        try (Git workspace = Git.open(second)) {
+            assertEquals("master", workspace.getRepository().getBranch());
+            assertTrue(workspace.status().call().isClean());
+        }
+    }
+
+    @Test
+    /**
+     * Test that a workspace can be created for an exact commit of a branch
+     *
+     * This test creates a workspace for the first commit of master after a second commit was pushed,
+     * and checks that only master is fetched into the mirror and that the fetch is reported.
+     */
+    public void testCreateWorkspaceAtCommit() throws Exception {
+        String repoUrl = createSourceRepository("source");
+        String firstCommit;
+        try (Git source = Git.open(new File(new java.net.URI(repoUrl)))) {
+            firstCommit = source.getRepository().resolve("HEAD").name();
+            commitFile(source, "Second.java", "second");
+            source.branchCreate().setName("other").call();
+        }
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), Long.MAX_VALUE);
+
+        File workspaceDir = tempDir.resolve("build").toFile();
+        FetchStats stats = cache.createWorkspaceAtCommit(repoUrl, workspaceDir, "master", firstCommit);
+
+        assertTrue(stats.getBytes() > 0, "The fetched bytes should be reported.");
+        assertTrue(new File(workspaceDir, "README.md").exists());
+        assertFalse(new File(workspaceDir, "Second.java").exists(), "The pushed commit should be checked out, not the branch head.");
+        try (Git workspace = Git.open(workspaceDir)) {
+            assertEquals(firstCommit, workspace.getRepository().resolve("HEAD").name());
+        }
+        try (Git mirror = Git.open(cache.getMirrorDir(repoUrl))) {
+            assertEquals(null, mirror.getRepository().exactRef("refs/heads/other"), "Only the pushed branch should be fetched.");
+        }
+    }
+
+    @Test
+    /**
+     * Test that a workspace is updated in place to a new commit
+     *
+     * This test modifies a tracked file and adds untracked files to a workspace, then updates it to a new commit.
+     * The changes and the untracked files are removed, except the target directories, and the fetch is reported.
+     */
+    public void testUpdateWorkspaceAtCommit() throws Exception {
+        String repoUrl = createSourceRepository("source");
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), Long.MAX_VALUE);
+        File workspaceDir = tempDir.resolve("workspace").toFile();
+        cache.createWorkspace(repoUrl, workspaceDir, "master");
+
+        Files.write(new File(workspaceDir, "README.md").toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        File classes = new File(workspaceDir, "core/target/classes/A.class");
+        classes.getParentFile().mkdirs();
+        Files.write(classes.toPath(), new byte[10]);
+        File generated = new File(workspaceDir, "core/generated/B.java");
+        generated.getParentFile().mkdirs();
+        Files.write(generated.toPath(), new byte[10]);
+
+        String secondCommit;
+        try (Git source = Git.open(new File(new java.net.URI(repoUrl)))) {
+            commitFile(source, "Second.java", "second");
+            secondCommit = source.getRepository().resolve("HEAD").name();
+        }
+        long sizeBefore = cache.getTotalBytes();
+        FetchStats stats = cache.updateWorkspaceAtCommit(repoUrl, workspaceDir, "master", secondCommit, "target");
+
+        assertTrue(stats.getBytes() > 0, "The bytes of the incremental fetch should be reported.");
+        assertTrue(cache.getTotalBytes() >= sizeBefore + stats.getBytes(), "The received pack should be added to the mirror size.");
+        assertTrue(new File(workspaceDir, "Second.java").exists());
+        assertEquals("first", new String(Files.readAllBytes(new File(workspaceDir, "README.md").toPath()), StandardCharsets.UTF_8));
+        assertTrue(classes.exists(), "The target directories should be kept.");
+        assertFalse(generated.exists());
+        try (Git workspace = Git.open(workspaceDir)) {
+            assertEquals(secondCommit, workspace.getRepository().resolve("HEAD").name());
+        }
+    }
+
+    @Test
+    /**
+     * Test concurrent workspaces of the same repository
+     *
+     * This test creates four workspaces of the same repository at the same time and checks that all succeed.
+     */
+    public void testConcurrentWorkspaces() throws Exception {
+        String repoUrl = createSourceRepository("source");
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), Long.MAX_VALUE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File workspace = tempDir.resolve("build-" + i).toFile();
+            results.add(executor.submit(() -> {
+                cache.createWorkspace(repoUrl, workspace, null);
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(tempDir.resolve("build-" + i).resolve("README.md").toFile().exists());
+        }
+    }
+
+    @Test
+    /**
+     * Test that a mirror that cannot be created leaves no files in the cache, not even its lock file
+     */
+    public void testFailedMirrorLeavesNoFiles() {
+        File root = tempDir.resolve("mirrors").toFile();
+        GitMirrorCache cache = new GitMirrorCache(root, Long.MAX_VALUE);
+        String missingUrl = tempDir.resolve("missing").toUri().toString();
+
+        assertThrows(Exception.class, () -> cache.updateMirror(missingUrl));
+
+        assertEquals(0, root.list().length, "The mirror and its lock file should be deleted.");
+    }
+
+    @Test
+    /**
+     * Test that the least recently used mirror is evicted
+     *
+     * With a size limit of one byte, only the mirror that was just used is kept.
+     */
+    public void testEvictLeastRecentlyUsedMirror() throws Exception {
+        String firstUrl = createSourceRepository("first");
+        String secondUrl = createSourceRepository("second");
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), 1);
+
+        cache.updateMirror(firstUrl);
+        assertTrue(cache.getMirrorDir(firstUrl).exists());
+
+        cache.updateMirror(secondUrl);
+        assertTrue(cache.getMirrorDir(secondUrl).exists());
+        assertFalse(cache.getMirrorDir(firstUrl).exists(), "The least recently used mirror should be evicted.");
+    }
+
+    @Test
+    /**
+     * Test that a mirror used by a workspace is not evicted
+     *
+     * A workspace is created from the first mirror with a size limit of one byte. The mirror is kept when
+     * the second mirror is fetched, then evicted once the workspace is released.
+     */
+    public void testKeepMirrorUsedByWorkspace() throws Exception {
+        String firstUrl = createSourceRepository("first");
+        String secondUrl = createSourceRepository("second");
+        GitMirrorCache cache = new GitMirrorCache(tempDir.resolve("mirrors").toFile(), 1);
+        File workspace = tempDir.resolve("workspace").toFile();
+
+        cache.createWorkspace(firstUrl, workspace, null);
+        cache.updateMirror(secondUrl);
+        assertTrue(cache.getMirrorDir(firstUrl).exists(), "A mirror used by a workspace should not be evicted.");
+        try (Git git = Git.open(workspace)) {
+            assertTrue(git.log().call().iterator().hasNext());
+        }
+
+        GitMirrorCache.releaseWorkspace(workspace);
+        GitMirrorCache.releaseWorkspace(workspace);
+        assertFalse(GitMirrorCache.isInUse(cache.getMirrorDir(firstUrl)));
+        cache.updateMirror(secondUrl);
+        assertFalse(cache.getMirrorDir(firstUrl).exists(), "A released mirror should be evicted.");
+
+        // A workspace found at startup keeps its mirror again
+        File other = tempDir.resolve("other").toFile();
+        cache.createWorkspace(secondUrl, other, null);
+        GitMirrorCache.releaseWorkspace(other);
+        GitMirrorCache.retainWorkspace(other);
+        assertTrue(GitMirrorCache.isInUse(cache.getMirrorDir(secondUrl)));
+        GitMirrorCache.releaseWorkspace(other);
+    }
+}
@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MetricsTest {
+
+    private static String write(Metrics metrics) {
+        StringWriter out = new StringWriter();
+        metrics.write(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    /**
+     * Test that the metrics are written in the Prometheus text format
+     *
+     * This test records a few values in a counter with labels, a histogram and a gauge, and checks the lines
+     * written: the help and type of every metric, the escaped labels and the cumulative buckets of the histogram.
+     */
+    public void testTextFormat() {
+        Metrics metrics = new Metrics();
+        Metrics.Family<Metrics.Counter> requests = metrics.counterFamily("ci_requests_total", "Requests", "event", "outcome");
+        requests.labels("push", "accepted").add(3);
+        requests.labels("push", "say \"hi\"").inc();
+        assertSame(requests.labels("push", "accepted"), requests.labels("push", "accepted"));
+        assertThrows(IllegalArgumentException.class, () -> requests.labels("push"));
+        Metrics.Histogram latency = metrics.histogram("ci_latency_seconds", "Latency");
+        metrics.gauge("ci_depth", "Depth", () -> 7);
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("ci_depth", "Depth", () -> 0));
+
+        Metrics.Histogram published = new Metrics.Histogram(new double[] {0.1, 1});
+        metrics.histogram("ci_published_seconds", "Published", published);
+        published.observeMillis(50);
+        published.observeMillis(100);
+        published.observeMillis(500);
+        published.observeMillis(5000);
+        assertEquals(4, published.getCount());
+        assertEquals(5.65, published.getSumSeconds(), 1e-9);
+
+        String text = write(metrics);
+        assertTrue(text.contains("# HELP ci_requests_total Requests\n# TYPE ci_requests_total counter\n"), text);
+        assertTrue(text.contains("ci_requests_total{event=\"push\",outcome=\"accepted\"} 3\n"), text);
+        assertTrue(text.contains("ci_requests_total{event=\"push\",outcome=\"say \\\"hi\\\"\"} 1\n"), text);
+        assertTrue(text.contains("# TYPE ci_depth gauge\nci_depth 7\n"), text);
+        assertTrue(text.contains("# TYPE ci_published_seconds histogram\n"
+            + "ci_published_seconds_bucket{le=\"0.1\"} 2\n"
+            + "ci_published_seconds_bucket{le=\"1\"} 3\n"
+            + "ci_published_seconds_bucket{le=\"+Inf\"} 4\n"
+            + "ci_published_seconds_sum 5.65\n"
+            + "ci_published_seconds_count 4\n"), text);
+        // The metrics are sorted by name
+        assertTrue(text.indexOf("ci_depth") < text.indexOf("ci_published_seconds")
+            && text.indexOf("ci_published_seconds") < text.indexOf("ci_requests_total"), text);
+        assertEquals(0, latency.getCount());
+    }
+
+    @Test
+    /**
+     * Test that no value is lost when many threads record at the same time
+     *
+     * This test increments a counter with labels and records durations in a histogram family from 8 threads,
+     * then checks the counts and the sum of the histogram.
+     */
+    public void testConcurrentRecording() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Family<Metrics.Counter> builds = metrics.counterFamily("ci_builds_total", "Builds", "status");
+        Metrics.Family<Metrics.Histogram> phases = metrics.histogramFamily("ci_phase_seconds", "Phases", "phase");
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(threads.submit(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    builds.labels(i % 2 == 0 ? "SUCCESS" : "FAILURE").inc();
+                    phases.labels("build").observeNanos(1_000_000);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        threads.shutdown();
+        assertEquals(40000, builds.labels("SUCCESS").get());
+        assertEquals(40000, builds.labels("FAILURE").get());
+        assertEquals(80000, phases.labels("build").getCount());
+        assertEquals(80, phases.labels("build").getSumSeconds(), 1e-6);
+        String text = write(metrics);
+        assertTrue(text.contains("ci_phase_seconds_bucket{phase=\"build\",le=\"0.0005\"} 0\n"), text);
+        assertTrue(text.contains("ci_phase_seconds_bucket{phase=\"build\",le=\"0.001\"} 80000\n"), text);
+    }
+}
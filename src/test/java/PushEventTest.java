@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+public class PushEventTest {
+
+    @Test
+    /**
+     * Test that all the used fields are read from a push event payload
+     *
+     * This test parses a payload with the fields used by the CI server mixed with fields
+     * that are skipped, and checks the values of the PushEvent.
+     */
+    public void testParsePushEvent() throws IOException {
+        String payload = "{"
+            + "\"ref\": \"refs/heads/feature/x\","
+            + "\"before\": \"0000\","
+            + "\"after\": \"bbbb\","
+            + "\"repository\": {\"id\": 1, \"name\": \"test_ci\", \"owner\": {\"name\": \"Name\"},"
+            + "    \"clone_url\": \"https://github.com/Name/test_ci.git\"},"
+            + "\"pusher\": {\"name\": \"Name\", \"email\": \"pusher@mail.test\"},"
+            + "\"commits\": ["
+            + "    {\"id\": \"aaaa\", \"message\": \"Older commit\", \"added\": [\"a.txt\"], \"author\": {\"email\": \"x\"}},"
+            + "    {\"id\": \"bbbb\", \"message\": \"Latest commit\", \"modified\": [\"b.txt\"], \"removed\": []}"
+            + "],"
+            + "\"head_commit\": {\"id\": \"bbbb\", \"message\": \"Latest commit\","
+            + "    \"author\": {\"name\": \"Name\", \"email\": \"author@mail.test\"}}"
+            + "}";
+
+        PushEvent event = PushEvent.parse(new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("refs/heads/feature/x", event.getRef());
+        assertEquals("feature/x", event.getBranchName());
+        assertEquals("test_ci", event.getRepositoryName());
+        assertEquals("https://github.com/Name/test_ci.git", event.getRepositoryUrl());
+        assertEquals("bbbb", event.getHeadCommitId());
+        assertEquals("0000", event.getBeforeCommitId());
+        assertEquals("Latest commit", event.getLatestCommitMessage());
+        assertEquals("author@mail.test", event.getAuthorEmail());
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "b.txt")), event.getChangedFiles());
+    }
+
+    @Test
+    /**
+     * Test that the changed files are unknown for a new branch and a forced push
+     */
+    public void testChangedFilesOfNewBranchAndForcedPush() {
+        String commits = "\"commits\": [{\"id\": \"aaaa\", \"modified\": [\"a.txt\"]}]";
+        assertEquals(1, PushEvent.parse("{\"created\": false, \"forced\": false, " + commits + "}").getChangedFiles().size());
+        assertNull(PushEvent.parse("{\"created\": true, " + commits + "}").getChangedFiles());
+        assertNull(PushEvent.parse("{\"forced\": true, " + commits + "}").getChangedFiles());
+        assertNull(PushEvent.parse("{\"commits\": []}").getChangedFiles());
+    }
+
+    @Test
+    /**
+     * Test a push event without head commit, as sent when a branch is deleted
+     *
+     * The head commit is null, so the commit hash falls back to the "after" field.
+     */
+    public void testParsePushEventWithNullHeadCommit() {
+        String payload = "{\"ref\": \"refs/tags/v1\", \"after\": \"cccc\", \"head_commit\": null, \"commits\": []}";
+
+        PushEvent event = PushEvent.parse(payload);
+
+        assertEquals("cccc", event.getHeadCommitId());
+        assertNull(event.getBranchName(), "A tag is not a branch.");
+        assertNull(event.getAuthorEmail());
+        assertNull(event.getLatestCommitMessage());
+    }
+
+    @Test
+    /**
+     * Test that an invalid payload is rejected
+     *
+     * Parsing a string returns null, parsing the request bytes throws an IOException.
+     */
+    public void testParseInvalidPayload() {
+        assertNull(PushEvent.parse("not json"));
+        assertNull(PushEvent.parse("[1, 2]"));
+        assertThrows(IOException.class,
+            () -> PushEvent.parse(new ByteArrayInputStream("{\"ref\": ".getBytes(StandardCharsets.UTF_8))));
+    }
+}
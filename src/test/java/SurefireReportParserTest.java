@@ -0,0 +1,137 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class SurefireReportParserTest {
+
+    @TempDir
+    Path tempDir;
+
+    private void writeReport(String path, String content) throws IOException {
+        File file = new File(tempDir.toFile(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String report(String testCases) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"suite\" tests=\"0\">\n<properties><property name=\"a\" value=\"b\"/></properties>\n"
+            + testCases + "</testsuite>\n";
+    }
+
+    @Test
+    /**
+     * Test the test results of a project with two modules
+     *
+     * This test reads the reports of a root module and of a "core" module, with every status of a test case,
+     * and checks the totals, the filtered test cases and that the reports below src are ignored.
+     */
+    public void testModulesAndStatuses() throws IOException {
+        writeReport("target/surefire-reports/TEST-app.AppTest.xml", report(
+            "<testcase name=\"passes\" classname=\"app.AppTest\" time=\"0.5\"/>\n"
+            + "<testcase name=\"fails\" classname=\"app.AppTest\" time=\"0.25\">"
+            + "<failure message=\"expected: &lt;1&gt; but was: &lt;5&gt;\" type=\"AssertionFailedError\"><![CDATA[stack trace]]></failure>"
+            + "<system-out>output</system-out></testcase>\n"
+            + "<testcase name=\"skipped\" classname=\"app.AppTest\" time=\"0\"><skipped message=\"disabled\"/></testcase>\n"));
+        writeReport("core/target/surefire-reports/TEST-core.CoreTest.xml", report(
+            "<testcase name=\"breaks\" classname=\"core.CoreTest\" time=\"1,000.0\"><error type=\"NullPointerException\"/></testcase>\n"
+            + "<testcase name=\"flaky\" classname=\"core.CoreTest\" time=\"0.1\"><flakyFailure message=\"once\"/></testcase>\n"));
+        // Not a module
+        writeReport("src/test/resources/target/surefire-reports/TEST-x.xml", report("<testcase name=\"x\" classname=\"x\"/>"));
+
+        File resultsFile = new File(tempDir.toFile(), SurefireReportParser.RESULTS_FILE);
+        SurefireReportParser.TestTotals totals = SurefireReportParser.collect(tempDir.toFile(), resultsFile);
+        assertEquals(5, totals.getTests());
+        assertEquals(2, totals.getPassed());
+        assertEquals(1, totals.getFailures());
+        assertEquals(1, totals.getErrors());
+        assertEquals(1, totals.getSkipped());
+        assertEquals(1, totals.getFlaky());
+        assertEquals(1000850, totals.getTimeMillis());
+        assertEquals(2, totals.getReports());
+        assertEquals(2, totals.toSummary().get("modules"));
+        assertTrue(totals.hasFailures());
+        assertEquals("app.AppTest.fails", totals.getFailedTests().get(0));
+
+        StringWriter out = new StringWriter();
+        SurefireReportParser.copyResults(resultsFile, "failed", out);
+        JsonObject json = JsonParser.parseString(out.toString()).getAsJsonObject();
+        JsonArray failed = json.getAsJsonArray("testCases");
+        assertEquals(1, failed.size());
+        JsonObject test = failed.get(0).getAsJsonObject();
+        assertEquals(".", test.get("module").getAsString());
+        assertEquals("expected: <1> but was: <5>", test.get("message").getAsString());
+        assertEquals(0.25, test.get("time").getAsDouble());
+        assertEquals(5, json.getAsJsonObject("totals").get("total").getAsInt());
+
+        StringWriter all = new StringWriter();
+        SurefireReportParser.copyResults(resultsFile, null, all);
+        JsonArray testCases = JsonParser.parseString(all.toString()).getAsJsonObject().getAsJsonArray("testCases");
+        assertEquals(5, testCases.size());
+        assertEquals("core", testCases.get(3).getAsJsonObject().get("module").getAsString());
+    }
+
+    @Test
+    /**
+     * Test a workspace without test reports, like a project that does not compile
+     */
+    public void testNoReports() throws IOException {
+        File resultsFile = new File(tempDir.toFile(), SurefireReportParser.RESULTS_FILE);
+        assertNull(SurefireReportParser.collect(tempDir.toFile(), resultsFile));
+        assertFalse(resultsFile.exists());
+    }
+
+    @Test
+    /**
+     * Test a report with 50 000 test cases
+     *
+     * The test cases are streamed to the results file, so a large report is read with the memory
+     * of a few test cases. Every 100th test case fails with a long stack trace.
+     */
+    public void testLargeReport() throws IOException {
+        File report = new File(tempDir.toFile(), "target/surefire-reports/TEST-big.BigTest.xml");
+        report.getParentFile().mkdirs();
+        StringBuilder stackTrace = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            stackTrace.append("\tat big.BigTest.method").append(i).append("(BigTest.java:").append(i).append(")\n");
+        }
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"big.BigTest\">\n");
+            for (int i = 0; i < 50000; i++) {
+                out.write("<testcase name=\"test" + i + "\" classname=\"big.BigTest\" time=\"0.001\">");
+                if (i % 100 == 0) {
+                    out.write("<failure message=\"failure " + i + "\" type=\"AssertionError\"><![CDATA[" + stackTrace + "]]></failure>");
+                }
+                out.write("</testcase>\n");
+            }
+            out.write("</testsuite>\n");
+        }
+
+        File resultsFile = new File(tempDir.toFile(), SurefireReportParser.RESULTS_FILE);
+        SurefireReportParser.TestTotals totals = SurefireReportParser.collect(tempDir.toFile(), resultsFile);
+        assertEquals(50000, totals.getTests());
+        assertEquals(500, totals.getFailures());
+        assertEquals(49500, totals.getPassed());
+        assertEquals(50000, totals.getTimeMillis());
+        assertEquals(SurefireReportParser.MAX_FAILED_TESTS, totals.getFailedTests().size());
+        // The stack traces are not stored
+        assertTrue(resultsFile.length() < report.length() / 10);
+    }
+}
@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestSelectorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(tempDir.toFile(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String pom(String artifactId, String modules, String dependencies) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+            + "  <parent><groupId>com.x</groupId><artifactId>parent</artifactId><version>1</version></parent>\n"
+            + "  <artifactId>" + artifactId + "</artifactId>\n"
+            + "  <modules>" + modules + "</modules>\n"
+            + "  <dependencies>" + dependencies + "</dependencies>\n"
+            + "  <build><plugins><plugin><dependencies><dependency><artifactId>app</artifactId></dependency>"
+            + "</dependencies></plugin></plugins></build>\n"
+            + "</project>\n";
+    }
+
+    private static String dependency(String artifactId) {
+        return "<dependency><groupId>${project.groupId}</groupId><artifactId>" + artifactId + "</artifactId></dependency>";
+    }
+
+    private static Set<String> files(String... paths) {
+        return new HashSet<>(Arrays.asList(paths));
+    }
+
+    /**
+     * Creates a project of four modules: app depends on core, which depends on api, and tools depends on nothing.
+     */
+    @BeforeEach
+    public void createProject() throws IOException {
+        write("pom.xml", pom("parent", "<module>api</module><module>core</module><module>app</module><module>tools</module>", ""));
+        write("api/pom.xml", pom("api", "", ""));
+        write("core/pom.xml", pom("core", "", dependency("api")));
+        write("app/pom.xml", pom("app", "", dependency("core")));
+        write("tools/pom.xml", pom("tools", "", ""));
+
+        write("api/src/main/java/com/x/api/Shape.java", "package com.x.api;\npublic interface Shape { double area(); }\n");
+        write("api/src/test/java/com/x/api/ShapeTest.java", "package com.x.api;\nclass ShapeTest { Shape shape; }\n");
+        write("core/src/main/java/com/x/core/Area.java",
+            "package com.x.core;\nimport com.x.api.Shape;\npublic class Area { double of(Shape s) { return s.area(); } }\n");
+        write("core/src/main/java/com/x/core/Units.java", "package com.x.core;\npublic class Units { }\n");
+        write("core/src/test/java/com/x/core/AreaTest.java", "package com.x.core;\nclass AreaTest { Area area = new Area(); }\n");
+        write("core/src/test/java/com/x/core/UnitsTest.java", "package com.x.core;\n// Not an Area\nclass UnitsTest { Units u; }\n");
+        write("app/src/test/java/com/x/app/AppTest.java", "package com.x.app;\nimport com.x.core.*;\nclass AppTest { Area area; }\n");
+        write("tools/src/test/java/com/x/tools/ToolTest.java", "package com.x.tools;\nclass ToolTest { }\n");
+    }
+
+    @Test
+    /**
+     * Test that a changed class only runs the tests referencing it, in its module and the modules depending on it
+     */
+    public void testSelectTestsOfChangedClass() {
+        TestSelector.Selection selection = TestSelector.select(tempDir.toFile(), files("core/src/main/java/com/x/core/Units.java"));
+
+        assertFalse(selection.isFullBuild());
+        assertEquals(Collections.singletonList("core"), selection.getModules());
+        assertEquals(Collections.singletonList("com.x.core.UnitsTest"), selection.getTestClasses());
+        List<String> args = selection.getMavenArgs();
+        assertEquals(Arrays.asList("-pl", "core", "-am", "-amd", "-Dtest=com.x.core.UnitsTest"), args.subList(0, 5));
+        assertEquals("It does not reference a changed class", selection.getSkippedTests().get("com.x.core.AreaTest"));
+        assertEquals("It does not reference a changed class", selection.getSkippedTests().get("com.x.app.AppTest"));
+        assertEquals("Its module does not depend on a changed module", selection.getSkippedTests().get("com.x.tools.ToolTest"));
+        // api is built for core, tools is not built
+        assertEquals(Collections.singleton("tools"), selection.getSkippedModules().keySet());
+        assertEquals(4, selection.toSummary().get("skippedTestCount"));
+    }
+
+    @Test
+    /**
+     * Test that the tests using a changed class through other classes are selected, across modules
+     *
+     * Shape is used by Area, which is used by AreaTest and, through a wildcard import, by AppTest.
+     */
+    public void testSelectTestsThroughDependencies() {
+        TestSelector.Selection selection = TestSelector.select(tempDir.toFile(), files("api/src/main/java/com/x/api/Shape.java"));
+
+        assertEquals(Arrays.asList("com.x.api.ShapeTest", "com.x.app.AppTest", "com.x.core.AreaTest"), selection.getTestClasses());
+        assertEquals("It does not reference a changed class", selection.getSkippedTests().get("com.x.core.UnitsTest"));
+    }
+
+    @Test
+    /**
+     * Test that a changed resource runs all the tests of its module and of the modules depending on it
+     */
+    public void testChangedResourceRunsAllTestsOfModule() {
+        TestSelector.Selection selection = TestSelector.select(tempDir.toFile(),
+            files("core/src/main/resources/units.properties", "core/src/main/java/com/x/core/Units.java"));
+
+        assertNull(selection.getTestClasses());
+        assertEquals(Arrays.asList("-pl", "core", "-am", "-amd"), selection.getMavenArgs());
+        assertEquals(files("com.x.api.ShapeTest", "com.x.tools.ToolTest"), selection.getSkippedTests().keySet());
+    }
+
+    @Test
+    /**
+     * Test the changes that run the whole build, and the changes that do not need any test
+     */
+    public void testFullBuildAndNoTests() throws IOException {
+        assertTrue(TestSelector.select(tempDir.toFile(), null).isFullBuild());
+        assertTrue(TestSelector.select(tempDir.toFile(), files("core/pom.xml")).isFullBuild());
+        assertTrue(TestSelector.select(tempDir.toFile(), files(".mvn/maven.config")).isFullBuild());
+        assertTrue(TestSelector.select(tempDir.toFile(), files("core/build.sh")).isFullBuild());
+        assertEquals("full", TestSelector.select(tempDir.toFile(), null).toSummary().get("mode"));
+
+        TestSelector.Selection docs = TestSelector.select(tempDir.toFile(), files("README.md", "docs/setup.html"));
+        assertFalse(docs.isFullBuild());
+        assertEquals(Collections.singletonList("-DskipTests"), docs.getMavenArgs());
+        assertEquals(5, docs.getSkippedTests().size());
+
+        // A module missing from the workspace
+        write("pom.xml", pom("parent", "<module>missing</module>", ""));
+        assertTrue(TestSelector.select(tempDir.toFile(), files("api/src/main/java/com/x/api/Shape.java")).isFullBuild());
+    }
+
+    @Test
+    /**
+     * Test a project of one module: the tests are selected without -pl
+     */
+    public void testSingleModule() throws IOException {
+        write("pom.xml", pom("single", "", ""));
+        write("src/main/java/Calc.java", "public class Calc { }\n");
+        write("src/test/java/CalcTest.java", "class CalcTest { Calc calc; }\n");
+        write("src/test/java/OtherTest.java", "class OtherTest { }\n");
+
+        TestSelector.Selection selection = TestSelector.select(tempDir.toFile(), files("src/main/java/Calc.java"));
+        assertEquals(Collections.singletonList("CalcTest"), selection.getTestClasses());
+        assertEquals("-Dtest=CalcTest", selection.getMavenArgs().get(0));
+        assertTrue(selection.getModules().isEmpty());
+        assertTrue(selection.getSkippedTests().containsKey("OtherTest"));
+    }
+}
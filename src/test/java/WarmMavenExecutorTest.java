@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+public class WarmMavenExecutorTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Copies a project of src/test/test_snippets to a temporary directory, so the builds do not write in the sources.
+     */
+    static File copySnippet(String name, Path targetDir) throws IOException {
+        Path source = Paths.get("src/test/test_snippets", name);
+        Path target = targetDir.resolve(name);
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Path copy = target.resolve(source.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(copy);
+                } else if (!file.getFileName().toString().equals("mavenOutput.txt")) {
+                    Files.copy(file, copy);
+                }
+            }
+        }
+        return target.toFile();
+    }
+
+    @Test
+    /**
+     * Test builds run in a warm Maven JVM
+     *
+     * This test builds a project with a failing test and a project with a passing test in the same pool.
+     * The worker is recycled after each build, so the second build also checks that a new worker is started.
+     */
+    public void testWarmBuilds() throws Exception {
+        File mavenHome = WarmMavenExecutor.findMavenHome();
+        assumeTrue(mavenHome != null, "Maven must be installed to run warm builds.");
+        WarmMavenExecutor executor = new WarmMavenExecutor(mavenHome, 1, Arrays.asList("clean", "test"), 1, 0.9, "512m",
+            new ForkedBuildExecutor(Arrays.asList("false")));
+
+        try {
+            File failing = copySnippet("Test_Fail", tempDir);
+            MavenOutputParser parser = new MavenOutputParser(10, 10);
+            int exitCode;
+            try (BuildOutput output = new BuildOutput(new File(failing, "mavenOutput.txt"), parser)) {
+                exitCode = executor.execute(new Build("fail", null, null), failing, output);
+            }
+            assertNotEquals(0, exitCode, "A failing test should fail the build.");
+            String output = new String(Files.readAllBytes(new File(failing, "mavenOutput.txt").toPath()), StandardCharsets.UTF_8);
+            assertTrue(output.contains("BUILD FAILURE"));
+            assertTrue(parser.isErrorEncountered(), "The output streamed from the worker should be parsed.");
+            assertEquals(1, executor.getRecycledWorkers());
+
+            File passing = copySnippet("Test_Success", tempDir);
+            try (BuildOutput passingOutput = new BuildOutput(new File(passing, "mavenOutput.txt"), new MavenOutputParser(10, 10))) {
+                assertEquals(0, executor.execute(new Build("success", null, null), passing, passingOutput));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class WebhookSpoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    /**
+     * Test that the entries not done are returned after a crash, without the record cut by the crash
+     *
+     * This test appends three entries, marks one done, adds half a record to the segment as a crash would,
+     * and opens the spool again without closing it. The two entries not done are returned in order and are
+     * returned again after one more restart until they are done.
+     */
+    public void testReplayEntriesNotDone() throws Exception {
+        File dir = tempDir.resolve("spool").toFile();
+        WebhookSpool spool = new WebhookSpool(dir, 1024 * 1024);
+        assertTrue(spool.open().isEmpty());
+        long first = spool.append(bytes("{\"ref\": \"first\"}"));
+        long second = spool.append(bytes("{\"ref\": \"second\"}"));
+        long third = spool.append(bytes("{\"ref\": \"third\"}"));
+        assertTrue(first < second && second < third);
+        spool.complete(second);
+        spool.complete(second);
+        spool.close();
+
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        try (FileOutputStream out = new FileOutputStream(segments[0], true)) {
+            out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        }
+
+        WebhookSpool reopened = new WebhookSpool(dir, 1024 * 1024);
+        List<WebhookSpool.Entry> entries = reopened.open();
+        assertEquals(2, entries.size());
+        assertEquals(first, entries.get(0).getSequence());
+        assertEquals("{\"ref\": \"first\"}", new String(entries.get(0).getPayload(), StandardCharsets.UTF_8));
+        assertEquals(third, entries.get(1).getSequence());
+        assertEquals(2, reopened.getLiveEntries());
+        assertTrue(reopened.append(bytes("{}")) > third, "The sequence numbers should not be reused.");
+        reopened.complete(first);
+        reopened.close();
+
+        WebhookSpool again = new WebhookSpool(dir, 1024 * 1024);
+        entries = again.open();
+        assertEquals(2, entries.size());
+        assertEquals(third, entries.get(0).getSequence());
+        again.close();
+    }
+
+    @Test
+    /**
+     * Test that the entries appended after a write error are not lost behind a partial record
+     *
+     * This test closes the channel of the spool under the writer, so an append fails, and adds half a record
+     * to the segment as the failed write could. The next append goes to a new segment and is returned
+     * when the spool is opened again.
+     */
+    public void testAppendAfterWriteError() throws Exception {
+        File dir = tempDir.resolve("spool").toFile();
+        WebhookSpool spool = new WebhookSpool(dir, 1024 * 1024);
+        spool.open();
+        long first = spool.append(bytes("{\"ref\": \"first\"}"));
+
+        // There is no other way to make the disk fail under the writer
+        Field channelField = WebhookSpool.class.getDeclaredField("channel");
+        channelField.setAccessible(true);
+        ((FileChannel) channelField.get(spool)).close();
+        File[] segments = dir.listFiles();
+        try (FileOutputStream out = new FileOutputStream(segments[0], true)) {
+            out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        }
+        assertThrows(IOException.class, () -> spool.append(bytes("{\"ref\": \"failed\"}")));
+
+        long last = spool.append(bytes("{\"ref\": \"last\"}"));
+        spool.close();
+        assertEquals(2, dir.listFiles().length, "The append after the error should start a new segment.");
+
+        WebhookSpool reopened = new WebhookSpool(dir, 1024 * 1024);
+        List<WebhookSpool.Entry> entries = reopened.open();
+        assertEquals(2, entries.size());
+        assertEquals(first, entries.get(0).getSequence());
+        assertEquals(last, entries.get(1).getSequence());
+        reopened.close();
+    }
+
+    @Test
+    /**
+     * Test that appends from many threads share their fsyncs and that done segments are deleted
+     *
+     * This test appends 400 entries from 16 threads to a spool with small segments. The writer syncs batches of
+     * entries, so there are fewer fsyncs than entries. Once all entries are done, only the segment being written is left.
+     */
+    public void testGroupCommitAndCompaction() throws Exception {
+        File dir = tempDir.resolve("spool").toFile();
+        WebhookSpool spool = new WebhookSpool(dir, 4096);
+        spool.open();
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        Set<Long> sequences = ConcurrentHashMap.newKeySet();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String payload = "{\"ref\": \"refs/heads/branch-" + i + "\", \"padding\": \"" + new String(new char[100]).replace('\0', 'x') + "\"}";
+            futures.add(threads.submit(() -> {
+                sequences.add(spool.append(bytes(payload)));
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        threads.shutdown();
+        assertEquals(400, sequences.size());
+        assertEquals(400, spool.getAppendedEntries());
+        assertTrue(spool.getSyncs() < 400, "Concurrent appends should share fsyncs: " + spool.getSyncs());
+        assertTrue(spool.getSegmentCount() > 5, "The spool should be split in segments.");
+
+        // The last entry is done first: the older segments still hold entries and are kept
+        long last = sequences.stream().mapToLong(Long::longValue).max().getAsLong();
+        spool.complete(last);
+        for (long sequence : sequences) {
+            spool.complete(sequence);
+        }
+        // The segments are deleted by the writer after it wrote the done markers
+        spool.append(bytes("{}"));
+        assertEquals(1, spool.getLiveEntries());
+        assertEquals(1, spool.getSegmentCount());
+        assertEquals(1, dir.listFiles().length);
+        spool.close();
+
+        WebhookSpool reopened = new WebhookSpool(dir, 4096);
+        assertEquals(1, reopened.open().size());
+        reopened.close();
+    }
+}
@@ -0,0 +1,154 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WorkspaceJanitorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<WorkspaceJanitor> janitors = new ArrayList<>();
+
+    @AfterEach
+    public void stopJanitors() {
+        for (WorkspaceJanitor janitor : janitors) {
+            janitor.stop();
+        }
+    }
+
+    private WorkspaceJanitor createJanitor(int keepBuilds, long maxAgeMillis, long maxBytes) {
+        WorkspaceJanitor janitor = new WorkspaceJanitor(tempDir.toFile(), 2, keepBuilds, maxAgeMillis, maxBytes);
+        janitors.add(janitor);
+        return janitor;
+    }
+
+    private File writeFile(File dir, String path, int size) throws IOException {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    /**
+     * Creates the directory of a finished build with a 1000 byte summary and records it in the index.
+     */
+    private void addBuild(BuildIndex index, String id, String branch, long finishedAtMillis) throws IOException {
+        writeFile(new File(tempDir.toFile(), id), BuildSummaryFile.FILE_NAME, 1000);
+        index.record(new BuildRecord(id, "repo", branch, "c", "SUCCESS", finishedAtMillis, null));
+    }
+
+    private static void waitForEmptyBacklog(WorkspaceJanitor janitor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (janitor.getBacklog() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    /**
+     * Test that a finished workspace is moved to the trash at once and deleted in the background
+     *
+     * This test discards a workspace holding a read-only file, like the git pack files, and checks that only
+     * the build record files are left in the build directory and that the trash is deleted.
+     */
+    public void testDiscardWorkspace() throws Exception {
+        File buildDir = new File(tempDir.toFile(), "repo_main_c_1");
+        writeFile(buildDir, BuildSummaryFile.FILE_NAME, 10);
+        writeFile(buildDir, "src/Main.java", 100);
+        writeFile(buildDir, "target/classes/Main.class", 200);
+        writeFile(buildDir, ".git/objects/pack/pack-1.pack", 300).setReadOnly();
+
+        WorkspaceJanitor janitor = createJanitor(0, 0, 0);
+        assertEquals(3, janitor.discardWorkspace(buildDir, BuildSummaryFile.FILE_NAME::equals));
+        String[] left = buildDir.list();
+        assertEquals(1, left.length);
+        assertEquals(BuildSummaryFile.FILE_NAME, left[0]);
+
+        waitForEmptyBacklog(janitor);
+        assertEquals(0, new File(tempDir.toFile(), WorkspaceJanitor.TRASH_DIR).list().length);
+        assertEquals(3, janitor.getReclaimedFiles());
+        assertEquals(600, janitor.getReclaimedBytes());
+        assertEquals(0, janitor.getFailedDeletes());
+        assertEquals(3, janitor.getDeleteLatency().getCount(), "The deletion of every top level entry should be timed.");
+    }
+
+    @Test
+    /**
+     * Test that the retention keeps the newest builds of a repository and the newest build of every branch
+     */
+    public void testKeepNewestBuilds() throws Exception {
+        BuildIndex index = new BuildIndex();
+        addBuild(index, "repo_feature_c_0", "feature", 0);
+        for (int i = 1; i <= 5; i++) {
+            addBuild(index, "repo_main_c_" + i, "main", i * 1000);
+        }
+
+        WorkspaceJanitor janitor = createJanitor(2, 0, 0);
+        assertEquals(3, janitor.enforceRetention(index));
+        assertEquals(3, index.size());
+        assertNotNull(index.get("repo_main_c_5"));
+        assertNotNull(index.get("repo_main_c_4"));
+        // Older than the two newest builds, but the newest build of its branch
+        assertNotNull(index.get("repo_feature_c_0"));
+        assertNull(index.get("repo_main_c_3"));
+        assertFalse(new File(tempDir.toFile(), "repo_main_c_3").exists());
+
+        waitForEmptyBacklog(janitor);
+        assertEquals(3, janitor.getRemovedBuilds());
+        assertEquals(3000, janitor.getReclaimedBytes());
+        // Nothing more to remove
+        assertEquals(0, janitor.enforceRetention(index));
+    }
+
+    @Test
+    /**
+     * Test the maximum age and the disk space limit of the retention
+     */
+    public void testMaxAgeAndQuota() throws Exception {
+        long now = System.currentTimeMillis();
+        BuildIndex index = new BuildIndex();
+        addBuild(index, "repo_main_c_1", "main", now - 3 * 60 * 60 * 1000);
+        addBuild(index, "repo_main_c_2", "main", now - 2000);
+        addBuild(index, "repo_main_c_3", "main", now - 1000);
+        addBuild(index, "repo_main_c_4", "main", now);
+
+        // The build older than an hour is removed
+        assertEquals(1, createJanitor(0, 60 * 60 * 1000, 0).enforceRetention(index));
+        assertNull(index.get("repo_main_c_1"));
+
+        // 2500 bytes hold the two newest builds of 1000 bytes
+        assertEquals(1, createJanitor(0, 0, 2500).enforceRetention(index));
+        assertNull(index.get("repo_main_c_2"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    /**
+     * Test that the trash left by a stopped server is deleted at startup
+     */
+    public void testTrashDeletedAtStart() throws Exception {
+        File trash = new File(tempDir.toFile(), WorkspaceJanitor.TRASH_DIR);
+        writeFile(trash, "old_build.1/src/Main.java", 100);
+        writeFile(trash, "old_build.2/pom.xml", 50);
+
+        WorkspaceJanitor janitor = createJanitor(0, 0, 0);
+        janitor.start(new BuildIndex(), 60000);
+        waitForEmptyBacklog(janitor);
+        assertEquals(0, trash.list().length);
+        assertEquals(150, janitor.getReclaimedBytes());
+    }
+}
@@ -0,0 +1,153 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class WorkspacePoolTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    @TempDir
+    Path tempDir;
+
+    private WorkspaceJanitor janitor;
+
+    @AfterEach
+    public void stopJanitor() {
+        if (janitor != null) {
+            janitor.stop();
+        }
+    }
+
+    private WorkspacePool createPool(boolean incremental, int cleanEveryBuilds) {
+        if (janitor == null) {
+            janitor = new WorkspaceJanitor(tempDir.toFile(), 1, 0, 0, 0);
+        }
+        return new WorkspacePool(tempDir.resolve(WorkspacePool.POOL_DIR).toFile(), janitor, 2, incremental,
+            cleanEveryBuilds, 0, 7 * DAY);
+    }
+
+    @Test
+    /**
+     * Test that a workspace is leased to one build at a time
+     *
+     * This test leases the two workspaces of a branch, checks that a third build gets no lease,
+     * and that the workspace released is leased again.
+     */
+    public void testExclusiveLeases() {
+        WorkspacePool pool = createPool(true, 0);
+        WorkspacePool.Lease first = pool.tryAcquire("repo", "main");
+        WorkspacePool.Lease second = pool.tryAcquire("repo", "main");
+        assertNotEquals(first.getDir(), second.getDir());
+        assertTrue(first.isNewWorkspace());
+        assertNull(pool.tryAcquire("repo", "main"));
+        assertEquals(1, pool.getBusyMisses());
+        assertEquals(2, pool.getLeasedCount());
+
+        // The workspaces of another branch are not shared
+        WorkspacePool.Lease other = pool.tryAcquire("repo", "feature");
+        assertTrue(other.isNewWorkspace());
+        other.release(true);
+
+        first.release(true);
+        WorkspacePool.Lease third = pool.tryAcquire("repo", "main");
+        assertEquals(first.getDir(), third.getDir());
+        assertFalse(third.isNewWorkspace());
+        assertEquals(3, pool.getWorkspaceCount());
+    }
+
+    @Test
+    /**
+     * Test when a workspace runs an incremental build and when a clean build
+     */
+    public void testCleanAndIncrementalBuilds() {
+        WorkspacePool pool = createPool(true, 2);
+        WorkspacePool.Lease lease = pool.tryAcquire("repo", "main");
+        assertTrue(lease.isCleanBuild());
+        lease.release(true);
+
+        lease = pool.tryAcquire("repo", "main");
+        assertFalse(lease.isCleanBuild());
+        assertEquals("0 builds since the last clean build", lease.getReason());
+        lease.release(true);
+        lease = pool.tryAcquire("repo", "main");
+        assertFalse(lease.isCleanBuild());
+        lease.release(true);
+
+        // Every 2 incremental builds
+        lease = pool.tryAcquire("repo", "main");
+        assertTrue(lease.isCleanBuild());
+        assertEquals("Clean build every 2 builds", lease.getReason());
+        lease.release(true);
+
+        // A cancelled build leaves a workspace in an unknown state
+        lease = pool.tryAcquire("repo", "main");
+        assertFalse(lease.isCleanBuild());
+        lease.release(false);
+        lease = pool.tryAcquire("repo", "main");
+        assertTrue(lease.isCleanBuild());
+        assertEquals(3, pool.getCleanBuilds());
+        assertEquals(3, pool.getIncrementalBuilds());
+
+        WorkspacePool cleanPool = createPool(false, 0);
+        cleanPool.tryAcquire("repo", "main").release(true);
+        assertTrue(cleanPool.tryAcquire("repo", "main").isCleanBuild());
+    }
+
+    @Test
+    /**
+     * Test that the workspaces of a previous run are reused with a clean build, and that idle workspaces are discarded
+     */
+    public void testLoadAndEvictIdle() throws Exception {
+        File root = tempDir.resolve(WorkspacePool.POOL_DIR).toFile();
+        File existing = new File(root, WorkspacePool.keyOf("repo", "main") + ".1");
+        File idle = new File(root, WorkspacePool.keyOf("repo", "old") + ".1");
+        assertTrue(existing.mkdirs());
+        assertTrue(idle.mkdirs());
+        idle.setLastModified(System.currentTimeMillis() - 30 * DAY);
+        assertTrue(new File(root, WorkspaceJanitor.TRASH_DIR + "/left.1.1").mkdirs());
+
+        WorkspacePool pool = createPool(true, 0);
+        assertEquals(2, pool.load());
+
+        WorkspacePool.Lease lease = pool.tryAcquire("repo", "main");
+        assertEquals(existing, lease.getDir());
+        assertFalse(lease.isNewWorkspace());
+        assertTrue(lease.isCleanBuild());
+        assertEquals(1, pool.getWorkspaceCount(), "The idle workspace should be discarded.");
+        assertFalse(idle.exists());
+        lease.discard();
+        assertEquals(0, pool.getWorkspaceCount());
+        assertFalse(existing.exists());
+    }
+
+    @Test
+    /**
+     * Test that the test reports of the previous build are removed and the rest of target is kept
+     */
+    public void testRemoveOldReports() throws IOException {
+        WorkspacePool pool = createPool(true, 0);
+        WorkspacePool.Lease lease = pool.tryAcquire("repo", "main");
+        File classes = new File(lease.getDir(), "core/target/classes/A.class");
+        File report = new File(lease.getDir(), "core/target/surefire-reports/TEST-ATest.xml");
+        for (File file : Arrays.asList(classes, report)) {
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), "<testsuite/>".getBytes());
+        }
+
+        lease.removeOldReports();
+        assertTrue(classes.exists());
+        assertFalse(report.getParentFile().exists());
+    }
+}